@@ -0,0 +1,277 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import javax.mail.MessagingException;
+
+/**
+ * Index over the raw header block of a message. The block is read in a single
+ * pass which only records where each header and its name start and end, a
+ * value is decoded when it is asked for.
+ * <p/>
+ * The index only answers lookups for regular header blocks, which use CRLF
+ * line endings, have no whitespace between a name and its colon and terminate
+ * with an empty line. Everything else should be
+ * parsed by {@link #toMailHeaders()}, which does not read the source again.
+ */
+final class HeaderIndex {
+
+    private final static Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final static int INITIAL_SIZE = 1024;
+
+    /**
+     * Raw header block, including the empty line which terminates it
+     */
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int length;
+
+    /**
+     * Start, name end and end (excluding the CRLF) of each header
+     */
+    private int[] entries = new int[48];
+    private int count;
+
+    private boolean regular = true;
+
+    private HeaderIndex() {
+    }
+
+    /**
+     * Read the header block from the stream, which is left positioned at the
+     * start of the body
+     * 
+     * @param in
+     * @return index
+     * @throws IOException
+     */
+    public static HeaderIndex read(InputStream in) throws IOException {
+        HeaderIndex index = new HeaderIndex();
+        index.load(in);
+        return index;
+    }
+
+    private void load(InputStream in) throws IOException {
+        int lineStart = 0;
+        int nameEnd = -1;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (length > lineStart && data[length - 1] == '\r' && b != '\n') {
+                // a single CR is a line break for javamail
+                regular = false;
+            }
+            append(b);
+            if (b == ':' && nameEnd < 0) {
+                nameEnd = length - 1;
+            } else if (b == '\n') {
+                int end = length - 1;
+                if (end > lineStart && data[end - 1] == '\r') {
+                    end--;
+                } else {
+                    regular = false;
+                }
+                if (end == lineStart) {
+                    return;
+                }
+                addLine(lineStart, nameEnd < 0 ? end : nameEnd, end);
+                lineStart = length;
+                nameEnd = -1;
+            }
+        }
+        // the stream ended without an empty line
+        regular = false;
+    }
+
+    private void append(int b) {
+        if (length == data.length) {
+            byte[] newData = new byte[data.length * 2];
+            System.arraycopy(data, 0, newData, 0, length);
+            data = newData;
+        }
+        data[length++] = (byte) b;
+    }
+
+    private void addLine(int start, int nameEnd, int end) {
+        if (data[start] == ' ' || data[start] == '\t') {
+            if (count == 0) {
+                regular = false;
+            } else {
+                // folded line
+                entries[count * 3 - 1] = end;
+            }
+            return;
+        }
+        if (nameEnd < end && nameEnd > start && (data[nameEnd - 1] == ' ' || data[nameEnd - 1] == '\t')) {
+            // javamail keeps the whitespace before the colon in the name
+            regular = false;
+        }
+        if (count * 3 == entries.length) {
+            int[] newEntries = new int[entries.length * 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            entries = newEntries;
+        }
+        entries[count * 3] = start;
+        entries[count * 3 + 1] = nameEnd;
+        entries[count * 3 + 2] = end;
+        count++;
+    }
+
+    /**
+     * Return <code>true</code> if the lookups and {@link #writeTo(OutputStream, String[])}
+     * can be used for this header block
+     * 
+     * @return regular
+     */
+    public boolean isRegular() {
+        return regular;
+    }
+
+    /**
+     * Return the size of the raw header block, including the empty line which
+     * terminates it
+     * 
+     * @return size
+     */
+    public long getSize() {
+        return length;
+    }
+
+    /**
+     * Return all values of the given header, or <code>null</code> if it is not
+     * present
+     * 
+     * @param name
+     * @return values
+     */
+    public String[] getHeader(String name) {
+        String[] values = null;
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            if (matches(i, name)) {
+                if (values == null) {
+                    values = new String[count - i];
+                }
+                values[found++] = getValue(i);
+            }
+        }
+        if (values == null || found == values.length) {
+            return values;
+        }
+        String[] result = new String[found];
+        System.arraycopy(values, 0, result, 0, found);
+        return result;
+    }
+
+    /**
+     * Return the values of the given header separated by the delimiter, or
+     * only the first value if the delimiter is <code>null</code>
+     * 
+     * @param name
+     * @param delimiter
+     * @return value or <code>null</code> if the header is not present
+     */
+    public String getHeader(String name, String delimiter) {
+        StringBuilder builder = null;
+        for (int i = 0; i < count; i++) {
+            if (matches(i, name)) {
+                if (delimiter == null) {
+                    return getValue(i);
+                }
+                if (builder == null) {
+                    builder = new StringBuilder(getValue(i));
+                } else {
+                    builder.append(delimiter).append(getValue(i));
+                }
+            }
+        }
+        return builder == null ? null : builder.toString();
+    }
+
+    /**
+     * Write the raw headers which are not in the ignore list, followed by the
+     * empty line
+     * 
+     * @param out
+     * @param ignoreList
+     * @throws IOException
+     */
+    public void writeTo(OutputStream out, String[] ignoreList) throws IOException {
+        if (ignoreList == null || ignoreList.length == 0) {
+            out.write(data, 0, length);
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            boolean ignore = false;
+            for (int j = 0; j < ignoreList.length && !ignore; j++) {
+                ignore = matches(i, ignoreList[j]);
+            }
+            if (!ignore) {
+                int start = entries[i * 3];
+                // include the CRLF
+                out.write(data, start, entries[i * 3 + 2] + 2 - start);
+            }
+        }
+        out.write(data, length - 2, 2);
+    }
+
+    /**
+     * Parse the raw header block
+     * 
+     * @return headers
+     * @throws MessagingException
+     */
+    public MailHeaders toMailHeaders() throws MessagingException {
+        return new MailHeaders(new ByteArrayInputStream(data, 0, length));
+    }
+
+    private boolean matches(int i, String name) {
+        int start = entries[i * 3];
+        int end = entries[i * 3 + 1];
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int j = 0; j < name.length(); j++) {
+            char c = (char) (data[start + j] & 0xff);
+            char n = name.charAt(j);
+            if (c != n && Character.toUpperCase(c) != Character.toUpperCase(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getValue(int i) {
+        int start = entries[i * 3 + 1] + 1;
+        int end = entries[i * 3 + 2];
+        // a header without a colon has an empty value
+        while (start < end && (data[start] == ' ' || data[start] == '\t' || data[start] == '\r' || data[start] == '\n')) {
+            start++;
+        }
+        if (start >= end) {
+            return "";
+        }
+        return new String(data, start, end - start, CHARSET);
+    }
+}
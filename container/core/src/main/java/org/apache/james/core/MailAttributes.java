@@ -0,0 +1,229 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Copy-on-write container of the attributes of a {@link MailImpl}.
+ * <p/>
+ * A copy shares the map of the original until one of them modifies it.
+ * Values of immutable types are shared by the copies, other values get copied
+ * when the copy is created, by serialization if there is no cheaper way.
+ */
+final class MailAttributes {
+
+    /**
+     * Types whose instances can not be modified, so copies can share them
+     */
+    private final static Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class,
+            Double.class, BigInteger.class, BigDecimal.class, MailAddress.class));
+
+    private HashMap<String, Object> map;
+
+    /**
+     * True while the map may be shared with a copy, so it needs to be copied
+     * before it gets modified
+     */
+    private boolean shared;
+
+    public MailAttributes() {
+        this(new HashMap<String, Object>());
+    }
+
+    public MailAttributes(HashMap<String, Object> map) {
+        this.map = (map == null) ? new HashMap<String, Object>() : map;
+    }
+
+    /**
+     * Create a copy of the attributes of the given mail
+     * 
+     * @param mail
+     * @return copy
+     * @throws IOException
+     *             if an attribute could not be serialized
+     * @throws ClassNotFoundException
+     */
+    public static MailAttributes copyOf(Mail mail) throws IOException, ClassNotFoundException {
+        if (mail instanceof MailImpl) {
+            return ((MailImpl) mail).getAttributes().copy();
+        }
+        HashMap<String, Object> map = new HashMap<String, Object>();
+        for (Iterator<?> i = mail.getAttributeNames(); i.hasNext();) {
+            String name = (String) i.next();
+            map.put(name, copyValue(mail.getAttribute(name)));
+        }
+        return new MailAttributes(map);
+    }
+
+    /**
+     * Create a copy which shares the map with these attributes, unless there
+     * are values which need to be copied
+     * 
+     * @return copy
+     * @throws IOException
+     *             if an attribute could not be serialized
+     * @throws ClassNotFoundException
+     */
+    public MailAttributes copy() throws IOException, ClassNotFoundException {
+        HashMap<String, Object> copy = null;
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (!isImmutable(value)) {
+                if (copy == null) {
+                    copy = new HashMap<String, Object>(map);
+                }
+                copy.put(entry.getKey(), copyValue(value));
+            }
+        }
+        if (copy != null) {
+            return new MailAttributes(copy);
+        }
+        MailAttributes attributes = new MailAttributes(map);
+        attributes.shared = true;
+        shared = true;
+        return attributes;
+    }
+
+    public Object get(String name) {
+        return map.get(name);
+    }
+
+    public Object put(String name, Object value) {
+        return getModifiableMap().put(name, value);
+    }
+
+    public Object remove(String name) {
+        if (!map.containsKey(name)) {
+            return null;
+        }
+        return getModifiableMap().remove(name);
+    }
+
+    public void clear() {
+        if (shared) {
+            map = new HashMap<String, Object>();
+            shared = false;
+        } else {
+            map.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Return the names of the attributes. Removing a name through the
+     * iterator only modifies these attributes.
+     * 
+     * @return names
+     */
+    public Iterator<String> names() {
+        final HashMap<String, Object> iterated = map;
+        final Iterator<String> names = iterated.keySet().iterator();
+        return new Iterator<String>() {
+
+            private String name;
+
+            public boolean hasNext() {
+                return names.hasNext();
+            }
+
+            public String next() {
+                name = names.next();
+                return name;
+            }
+
+            public void remove() {
+                if (map == iterated && !shared) {
+                    names.remove();
+                } else if (name == null) {
+                    throw new IllegalStateException();
+                } else {
+                    MailAttributes.this.remove(name);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the map for reading, it must not be modified
+     * 
+     * @return map
+     */
+    public HashMap<String, Object> getMap() {
+        return map;
+    }
+
+    /**
+     * Return the map, which is copied first if it is shared
+     * 
+     * @return map
+     */
+    public HashMap<String, Object> getModifiableMap() {
+        if (shared) {
+            map = new HashMap<String, Object>(map);
+            shared = false;
+        }
+        return map;
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null || IMMUTABLE_TYPES.contains(value.getClass()) || value instanceof Enum<?>;
+    }
+
+    /**
+     * Copy the given value, serialization is only used for types which can not
+     * be copied otherwise
+     */
+    private static Object copyValue(Object value) throws IOException, ClassNotFoundException {
+        if (isImmutable(value)) {
+            return value;
+        } else if (value.getClass() == Date.class) {
+            return new Date(((Date) value).getTime());
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        }
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(b);
+        out.writeObject(value);
+        out.flush();
+        out.close();
+        ByteArrayInputStream bi = new ByteArrayInputStream(b.toByteArray());
+        ObjectInputStream in = new ObjectInputStream(bi);
+        return in.readObject();
+    }
+}
@@ -0,0 +1,607 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.internet.AddressException;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Compact binary format for the envelope of a {@link Mail}, which is
+ * everything but the {@link javax.mail.internet.MimeMessage}.
+ * <p/>
+ * Compared to java serialization the format uses varint lengths, stores
+ * addresses as local part and domain, writes repeated domains and attribute
+ * names only once and tags the primitive attribute values, so only other
+ * values need to get serialized. Decoded {@link MailAddress}'s and attribute
+ * names are shared between mails.
+ * <p/>
+ * The decode methods also accept the output of java serialization, so data
+ * which was written before can still be read.
+ */
+public class MailEnvelopeCodec {
+
+    /**
+     * Current version of the format
+     */
+    public final static int VERSION = 1;
+
+    private final static byte MAGIC_0 = 'J';
+    private final static byte MAGIC_1 = 'E';
+
+    private final static byte TYPE_NULL = 0;
+    private final static byte TYPE_STRING = 1;
+    private final static byte TYPE_INTEGER = 2;
+    private final static byte TYPE_LONG = 3;
+    private final static byte TYPE_TRUE = 4;
+    private final static byte TYPE_FALSE = 5;
+    private final static byte TYPE_SHORT = 6;
+    private final static byte TYPE_BYTE = 7;
+    private final static byte TYPE_FLOAT = 8;
+    private final static byte TYPE_DOUBLE = 9;
+    private final static byte TYPE_DATE = 10;
+    private final static byte TYPE_BYTES = 11;
+    private final static byte TYPE_SERIALIZED = 12;
+
+    /**
+     * Maximal count of cached addresses and names, the caches get cleared
+     * once they grow beyond it
+     */
+    private final static int MAX_CACHED = 4096;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final static ConcurrentHashMap<String, MailAddress> ADDRESSES = new ConcurrentHashMap<String, MailAddress>();
+    private final static ConcurrentHashMap<String, String> NAMES = new ConcurrentHashMap<String, String>();
+
+    private MailEnvelopeCodec() {
+    }
+
+    /**
+     * Encode the envelope of the given {@link Mail}
+     *
+     * @param mail
+     * @return encoded
+     * @throws IOException
+     *             if an attribute value is not {@link Serializable}
+     */
+    public static byte[] encode(Mail mail) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.header();
+        encoder.writeString(mail.getName());
+        encoder.writeString(mail.getState());
+        encoder.writeString(mail.getErrorMessage());
+        encoder.writeString(mail.getRemoteHost());
+        encoder.writeString(mail.getRemoteAddr());
+        Date lastUpdated = mail.getLastUpdated();
+        encoder.writeVarLong(lastUpdated == null ? 0 : lastUpdated.getTime() + 1);
+        encoder.writeAddress(mail.getSender());
+
+        @SuppressWarnings("unchecked")
+        Collection<MailAddress> recipients = mail.getRecipients();
+        if (recipients == null) {
+            encoder.writeVarInt(0);
+        } else {
+            encoder.writeVarInt(recipients.size() + 1);
+            for (MailAddress recipient : recipients) {
+                encoder.writeAddress(recipient);
+            }
+        }
+        encoder.writeAttributes(attributes(mail));
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Encode the envelope of the given {@link Mail} to the {@link OutputStream}
+     *
+     * @param mail
+     * @param out
+     * @throws IOException
+     */
+    public static void encode(Mail mail, OutputStream out) throws IOException {
+        out.write(encode(mail));
+    }
+
+    /**
+     * Decode an envelope which was written by {@link #encode(Mail)} or by java
+     * serialization.
+     *
+     * @param data
+     * @return mail without a message
+     * @throws IOException
+     */
+    public static Mail decode(byte[] data) throws IOException {
+        if (isSerialized(data)) {
+            return (Mail) deserialize(data, 0, data.length);
+        }
+        Decoder decoder = new Decoder(data);
+        decoder.header();
+
+        MailImpl mail = new MailImpl();
+        mail.setName(decoder.readString());
+        mail.setState(decoder.readString());
+        mail.setErrorMessage(decoder.readString());
+        mail.setRemoteHost(decoder.readString());
+        mail.setRemoteAddr(decoder.readString());
+        long lastUpdated = decoder.readVarLong();
+        mail.setLastUpdated(lastUpdated == 0 ? null : new Date(lastUpdated - 1));
+        mail.setSender(decoder.readAddress());
+
+        int count = decoder.readVarInt();
+        if (count > 0) {
+            List<MailAddress> recipients = new ArrayList<MailAddress>(count - 1);
+            for (int i = 1; i < count; i++) {
+                recipients.add(decoder.readAddress());
+            }
+            mail.setRecipients(recipients);
+        } else {
+            mail.setRecipients(null);
+        }
+        mail.setAttributesRaw(decoder.readAttributes());
+        return mail;
+    }
+
+    /**
+     * Decode an envelope from the {@link InputStream}. The stream is read till
+     * its end.
+     *
+     * @param in
+     * @return mail without a message
+     * @throws IOException
+     * @see #decode(byte[])
+     */
+    public static Mail decode(InputStream in) throws IOException {
+        return decode(IOUtils.toByteArray(in));
+    }
+
+    /**
+     * Encode the attributes of a {@link Mail}
+     *
+     * @param mail
+     * @return encoded
+     * @throws IOException
+     */
+    public static byte[] encodeAttributes(Mail mail) throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.header();
+        encoder.writeAttributes(attributes(mail));
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decode attributes which were written by {@link #encodeAttributes(Mail)}
+     * or a java serialized {@link HashMap}.
+     *
+     * @param data
+     * @return attributes
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static HashMap<String, Object> decodeAttributes(byte[] data) throws IOException {
+        if (isSerialized(data)) {
+            return (HashMap<String, Object>) deserialize(data, 0, data.length);
+        }
+        Decoder decoder = new Decoder(data);
+        decoder.header();
+        return decoder.readAttributes();
+    }
+
+    /**
+     * Return the {@link MailAddress} for the given address. Parsed addresses
+     * are cached, so the same address is only parsed once.
+     *
+     * @param address
+     * @return mailAddress
+     * @throws AddressException
+     */
+    public static MailAddress toMailAddress(String address) throws AddressException {
+        MailAddress mailAddress = ADDRESSES.get(address);
+        if (mailAddress == null) {
+            mailAddress = new MailAddress(address);
+            if (ADDRESSES.size() >= MAX_CACHED) {
+                ADDRESSES.clear();
+            }
+            ADDRESSES.put(address, mailAddress);
+        }
+        return mailAddress;
+    }
+
+    /**
+     * Return <code>true</code> if the data was written by java serialization
+     */
+    private static boolean isSerialized(byte[] data) {
+        return data.length > 1 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    private static Object deserialize(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            IOException ex = new IOException("Unable to deserialize: " + e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String intern(String name) {
+        String interned = NAMES.get(name);
+        if (interned == null) {
+            if (NAMES.size() >= MAX_CACHED) {
+                NAMES.clear();
+            }
+            interned = NAMES.putIfAbsent(name, name);
+            if (interned == null) {
+                interned = name;
+            }
+        }
+        return interned;
+    }
+
+    private static Map<String, Object> attributes(Mail mail) {
+        if (mail instanceof MailImpl) {
+            return ((MailImpl) mail).getAttributes().getMap();
+        }
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        @SuppressWarnings("unchecked")
+        Iterator<String> names = mail.getAttributeNames();
+        while (names.hasNext()) {
+            String name = names.next();
+            attributes.put(name, mail.getAttribute(name));
+        }
+        return attributes;
+    }
+
+    private final static class Encoder extends ByteArrayOutputStream {
+
+        /**
+         * Domains and attribute names which were written already
+         */
+        private final Map<String, Integer> table = new HashMap<String, Integer>();
+
+        private Encoder() {
+            super(256);
+        }
+
+        private void header() {
+            write(MAGIC_0);
+            write(MAGIC_1);
+            write(VERSION);
+        }
+
+        private void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        /**
+         * Write the string with its length + 1, so 0 can mark
+         * <code>null</code>
+         */
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+            } else {
+                byte[] bytes = value.getBytes(UTF8);
+                writeVarInt(bytes.length + 1);
+                write(bytes, 0, bytes.length);
+            }
+        }
+
+        /**
+         * Write the string only once, further occurrences reference the first
+         * one.
+         */
+        private void writeTableString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            Integer index = table.get(value);
+            if (index == null) {
+                table.put(value, table.size());
+                writeVarInt(1);
+                writeString(value);
+            } else {
+                writeVarInt(index + 2);
+            }
+        }
+
+        private void writeAddress(MailAddress address) {
+            if (address == null) {
+                writeVarInt(0);
+            } else {
+                writeString(address.getLocalPart());
+                writeTableString(address.getDomain());
+            }
+        }
+
+        private void writeAttributes(Map<String, Object> attributes) throws IOException {
+            writeVarInt(attributes.size());
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                writeTableString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                write(TYPE_NULL);
+            } else if (value instanceof String) {
+                write(TYPE_STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                write(TYPE_INTEGER);
+                int i = (Integer) value;
+                writeVarInt((i << 1) ^ (i >> 31));
+            } else if (value instanceof Long) {
+                write(TYPE_LONG);
+                long l = (Long) value;
+                writeVarLong((l << 1) ^ (l >> 63));
+            } else if (value instanceof Boolean) {
+                write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Short) {
+                write(TYPE_SHORT);
+                short s = (Short) value;
+                writeVarInt((s << 1) ^ (s >> 31));
+            } else if (value instanceof Byte) {
+                write(TYPE_BYTE);
+                write((Byte) value);
+            } else if (value instanceof Float) {
+                write(TYPE_FLOAT);
+                writeFixed(Float.floatToIntBits((Float) value), 4);
+            } else if (value instanceof Double) {
+                write(TYPE_DOUBLE);
+                writeFixed(Double.doubleToLongBits((Double) value), 8);
+            } else if (value.getClass() == Date.class) {
+                write(TYPE_DATE);
+                writeFixed(((Date) value).getTime(), 8);
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[]) value;
+                write(TYPE_BYTES);
+                writeVarInt(bytes.length);
+                write(bytes, 0, bytes.length);
+            } else if (value instanceof Serializable) {
+                write(TYPE_SERIALIZED);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(value);
+                out.close();
+                writeVarInt(bytes.size());
+                bytes.writeTo(this);
+            } else {
+                throw new NotSerializableException(value.getClass().getName());
+            }
+        }
+
+        private void writeFixed(long value, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                write((int) (value >>> (i * 8)));
+            }
+        }
+    }
+
+    private final static class Decoder {
+
+        private final byte[] data;
+        private final List<String> table = new ArrayList<String>();
+        private int pos;
+
+        private Decoder(byte[] data) {
+            this.data = data;
+        }
+
+        private void header() throws IOException {
+            if (data.length < 3 || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+                throw new StreamCorruptedException("Not an encoded mail envelope");
+            }
+            if (data[2] > VERSION) {
+                throw new StreamCorruptedException("Unsupported version " + data[2]);
+            }
+            pos = 3;
+        }
+
+        private int read() throws IOException {
+            if (pos >= data.length) {
+                throw new EOFException();
+            }
+            return data[pos++] & 0xFF;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 28) {
+                    throw new StreamCorruptedException("Malformed varint");
+                }
+                b = read();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63) {
+                    throw new StreamCorruptedException("Malformed varint");
+                }
+                b = read();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private long readFixed(int length) throws IOException {
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        private int readLength() throws IOException {
+            int length = readVarInt();
+            if (length < 0 || length > data.length - pos) {
+                throw new EOFException();
+            }
+            return length;
+        }
+
+        private String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length--;
+            if (length > data.length - pos) {
+                throw new EOFException();
+            }
+            String value = new String(data, pos, length, UTF8);
+            pos += length;
+            return value;
+        }
+
+        private String readTableString() throws IOException {
+            int index = readVarInt();
+            if (index == 0) {
+                return null;
+            } else if (index == 1) {
+                String value = intern(readString());
+                table.add(value);
+                return value;
+            } else if (index - 2 < table.size()) {
+                return table.get(index - 2);
+            }
+            throw new StreamCorruptedException("Invalid reference " + index);
+        }
+
+        private MailAddress readAddress() throws IOException {
+            String localPart = readString();
+            if (localPart == null) {
+                return null;
+            }
+            String domain = readTableString();
+            try {
+                return toMailAddress(domain == null ? localPart : localPart + "@" + domain);
+            } catch (AddressException e) {
+                IOException ex = new IOException("Invalid address " + localPart + "@" + domain);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+
+        private HashMap<String, Object> readAttributes() throws IOException {
+            int count = readVarInt();
+            HashMap<String, Object> attributes = new HashMap<String, Object>(count * 2);
+            for (int i = 0; i < count; i++) {
+                String name = readTableString();
+                attributes.put(name, readValue());
+            }
+            return attributes;
+        }
+
+        private Object readValue() throws IOException {
+            int type = read();
+            switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString();
+            case TYPE_INTEGER:
+                int i = readVarInt();
+                return (i >>> 1) ^ -(i & 1);
+            case TYPE_LONG:
+                long l = readVarLong();
+                return (l >>> 1) ^ -(l & 1);
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_SHORT:
+                int s = readVarInt();
+                return (short) ((s >>> 1) ^ -(s & 1));
+            case TYPE_BYTE:
+                return (byte) read();
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat((int) readFixed(4));
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(readFixed(8));
+            case TYPE_DATE:
+                return new Date(readFixed(8));
+            case TYPE_BYTES:
+                int length = readLength();
+                byte[] bytes = new byte[length];
+                System.arraycopy(data, pos, bytes, 0, length);
+                pos += length;
+                return bytes;
+            case TYPE_SERIALIZED:
+                int size = readLength();
+                Object value = deserialize(data, pos, size);
+                pos += size;
+                return value;
+            default:
+                throw new StreamCorruptedException("Unknown type " + type);
+            }
+        }
+    }
+}
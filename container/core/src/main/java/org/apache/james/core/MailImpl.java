@@ -27,12 +27,8 @@ import org.apache.mailet.MailAddress;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.ParseException;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -108,14 +104,14 @@ public class MailImpl implements Disposable, Mail {
     /**
      * Attributes added to this MailImpl instance
      */
-    private Map<String, Object> attributes;
+    private MailAttributes attributes;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
      */
     public MailImpl() {
         setState(Mail.DEFAULT);
-        attributes = new HashMap<String, Object>();
+        attributes = new MailAttributes();
     }
 
     /**
@@ -160,16 +156,8 @@ public class MailImpl implements Disposable, Mail {
         setRemoteAddr(mail.getRemoteAddr());
         setLastUpdated(mail.getLastUpdated());
         try {
-            if (mail instanceof MailImpl) {
-                setAttributesRaw((HashMap) cloneSerializableObject(((MailImpl) mail).getAttributesRaw()));
-            } else {
-                HashMap<String, Object> attribs = new HashMap<String, Object>();
-                for (Iterator i = mail.getAttributeNames(); i.hasNext(); ) {
-                    String hashKey = (String) i.next();
-                    attribs.put(hashKey, cloneSerializableObject(mail.getAttribute(hashKey)));
-                }
-                setAttributesRaw(attribs);
-            }
+            // immutable attributes are shared with the original mail
+            attributes = MailAttributes.copyOf(mail);
         } catch (IOException e) {
             // should never happen for in memory streams
             setAttributesRaw(new HashMap<String, Object>());
@@ -502,10 +490,10 @@ public class MailImpl implements Disposable, Mail {
         // the following is under try/catch to be backwards compatible
         // with messages created with James version <= 2.2.0a8
         try {
-            attributes = (HashMap) in.readObject();
+            attributes = new MailAttributes((HashMap) in.readObject());
         } catch (OptionalDataException ode) {
             if (ode.eof) {
-                attributes = new HashMap<String, Object>();
+                attributes = new MailAttributes();
             } else {
                 throw ode;
             }
@@ -527,7 +515,7 @@ public class MailImpl implements Disposable, Mail {
         out.writeObject(remoteHost);
         out.writeObject(remoteAddr);
         out.writeObject(lastUpdated);
-        out.writeObject(attributes);
+        out.writeObject(attributes.getMap());
     }
 
     @Override
@@ -550,6 +538,15 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Map<String, Object> getAttributesRaw() {
+        // the caller may modify it
+        return attributes.getModifiableMap();
+    }
+
+    /**
+     * Return the attributes container, which may share its map with copies of
+     * this mail
+     */
+    MailAttributes getAttributes() {
         return attributes;
     }
 
@@ -567,7 +564,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public void setAttributesRaw(HashMap<String, Object> attr) {
-        this.attributes = (attr == null) ? new HashMap<String, Object>() : attr;
+        this.attributes = new MailAttributes(attr);
     }
 
     @Override
@@ -592,7 +589,7 @@ public class MailImpl implements Disposable, Mail {
 
     @Override
     public Iterator getAttributeNames() {
-        return attributes.keySet().iterator();
+        return attributes.names();
     }
 
     @Override
@@ -600,26 +597,6 @@ public class MailImpl implements Disposable, Mail {
         return !attributes.isEmpty();
     }
 
-    /**
-     * This methods provide cloning for serializable objects. Mail Attributes
-     * are Serializable but not Clonable so we need a deep copy
-     *
-     * @param o Object to be cloned
-     * @return the cloned Object
-     * @throws IOException
-     * @throws ClassNotFoundException
-     */
-    private static Object cloneSerializableObject(Object o) throws IOException, ClassNotFoundException {
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(b);
-        out.writeObject(o);
-        out.flush();
-        out.close();
-        ByteArrayInputStream bi = new ByteArrayInputStream(b.toByteArray());
-        ObjectInputStream in = new ObjectInputStream(bi);
-        return in.readObject();
-    }
-
     private static final java.util.Random random = new java.util.Random(); // Used
     // to
     // generate
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.james.lifecycle.api.Disposable;
+
+/**
+ * {@link MimeMessageSource} which maps a file read-only into memory, so
+ * reading the message again and again does not need a system call per
+ * buffer. The streams are {@link javax.mail.internet.SharedInputStream}'s over
+ * the mapping and the message can be written to a channel without a copy on
+ * the heap.
+ * <p/>
+ * The mapping stays valid if the file gets moved or deleted. On
+ * {@link #dispose()} the source drops the mapping, which is released by the
+ * garbage collector once all streams are unreachable too, as Java offers no
+ * safe way to unmap it while a stream may still read it.
+ */
+public class MappedMimeMessageSource extends MimeMessageSource implements Disposable {
+
+    private final String sourceId;
+    private final long size;
+    private volatile ByteBuffer buffer;
+    private int bodyOffset = -1;
+
+    /**
+     * Map the given file
+     * 
+     * @param file
+     * @throws IOException
+     *             if the file could not be mapped or is larger than 2 GB
+     */
+    public MappedMimeMessageSource(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Unable to map " + file + " which is larger than 2 GB");
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(MapMode.READ_ONLY, 0, size);
+        } finally {
+            raf.close();
+        }
+        sourceId = file.getAbsolutePath();
+    }
+
+    @Override
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    private ByteBuffer getBuffer() throws IOException {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null) {
+            throw new IOException("Source " + sourceId + " was disposed");
+        }
+        return buffer;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new ByteBufferInputStream(getBuffer());
+    }
+
+    @Override
+    public long getMessageSize() throws IOException {
+        return size;
+    }
+
+    /**
+     * Return the offset of the first byte of the body, which follows the
+     * first empty line. If there is none the message has no body.
+     */
+    private synchronized int getBodyOffset() throws IOException {
+        if (bodyOffset < 0) {
+            ByteBuffer data = getBuffer();
+            int limit = data.limit();
+            bodyOffset = limit;
+            for (int i = 0; i < limit; i++) {
+                if (data.get(i) != '\n') {
+                    continue;
+                }
+                if (i + 1 < limit && data.get(i + 1) == '\n') {
+                    bodyOffset = i + 2;
+                    break;
+                }
+                if (i + 2 < limit && data.get(i + 1) == '\r' && data.get(i + 2) == '\n') {
+                    bodyOffset = i + 3;
+                    break;
+                }
+            }
+        }
+        return bodyOffset;
+    }
+
+    /**
+     * Return a read-only view of the headers of the message, including the
+     * empty line which separates them from the body
+     * 
+     * @return headers
+     * @throws IOException
+     */
+    public ByteBuffer getHeaders() throws IOException {
+        ByteBuffer data = getBuffer().duplicate();
+        data.limit(getBodyOffset());
+        return data.slice();
+    }
+
+    /**
+     * Return a read-only view of the body of the message
+     * 
+     * @return body
+     * @throws IOException
+     */
+    public ByteBuffer getBody() throws IOException {
+        ByteBuffer data = getBuffer().duplicate();
+        data.position(getBodyOffset());
+        return data.slice();
+    }
+
+    /**
+     * Write the whole message to the given channel, without copying it to the
+     * heap
+     * 
+     * @param target
+     * @return the count of written bytes
+     * @throws IOException
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return new ByteBufferInputStream(getBuffer()).transferTo(target);
+    }
+
+    @Override
+    public void dispose() {
+        buffer = null;
+    }
+}
@@ -0,0 +1,457 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * {@link OutputStream} which keeps the written data in buffers of the
+ * {@link MessageMemoryBudget} and spills it to a temporary file once the
+ * message is too large or the budget is exhausted.
+ * <p/>
+ * The buffers are given back to the budget once the buffer was released and
+ * all streams of {@link #newInputStream()} are closed, see also
+ * {@link #closeStreams()}. Reads do not lock, they
+ * check before and after copying that the buffers were not given back yet, so
+ * a stream which is used afterwards fails instead of returning the data of
+ * another message. A buffer which becomes unreachable without being released
+ * is detected by a {@link PhantomReference}, its buffers are given back and
+ * its temporary file is deleted the next time a buffer is created or the
+ * {@link MessageMemoryBudget} is asked for its usage.
+ */
+class MessageBuffer extends OutputStream {
+
+    private final static ReferenceQueue<MessageBuffer> UNREACHABLE = new ReferenceQueue<MessageBuffer>();
+
+    // keeps the references reachable until the buffers are given back
+    private final static Set<Resources> UNRELEASED = Collections.synchronizedSet(new HashSet<Resources>());
+
+    private final MessageMemoryBudget budget;
+    private final String prefix;
+    private final File directory;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    private final Resources resources;
+    private final Lock lock = new ReentrantLock();
+    private long count;
+    private File file;
+    private OutputStream fileOut;
+    private volatile boolean released;
+    private final Set<BufferInputStream> openStreams = new HashSet<BufferInputStream>();
+    private volatile boolean freed;
+
+    /**
+     * @param prefix
+     *            the prefix for the name of the temporary file, at least three
+     *            characters long
+     * @param directory
+     *            the directory of the temporary file
+     */
+    public MessageBuffer(MessageMemoryBudget budget, String prefix, File directory) {
+        this.budget = budget;
+        this.prefix = prefix;
+        this.directory = directory;
+        reclaimUnreachable();
+        this.resources = new Resources(this);
+        UNRELEASED.add(resources);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ByteBuffer chunk = writableChunk(1);
+        if (chunk != null) {
+            chunk.put((byte) b);
+        } else {
+            fileOut.write(b);
+        }
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ByteBuffer chunk = writableChunk(len);
+            if (chunk == null) {
+                break;
+            }
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+            count += n;
+        }
+        if (len > 0) {
+            fileOut.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Return the buffer which receives the next bytes or <code>null</code> if
+     * they go to the temporary file, which is created if the message grows too
+     * large or no buffer is left
+     * 
+     * @param len
+     *            the bytes which are about to be written
+     */
+    private ByteBuffer writableChunk(int len) throws IOException {
+        if (released) {
+            throw new IOException("Buffer was released");
+        }
+        if (fileOut != null) {
+            return null;
+        }
+        if (count + len > budget.getMaxMessageSize()) {
+            spill(false);
+            return null;
+        }
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || !chunk.hasRemaining()) {
+            chunk = budget.allocate();
+            if (chunk == null) {
+                spill(true);
+                return null;
+            }
+            chunks.add(chunk);
+        }
+        return chunk;
+    }
+
+    /**
+     * Move the data to a temporary file, which receives all further data
+     */
+    private void spill(boolean exhausted) throws IOException {
+        file = File.createTempFile(prefix, ".m64", directory);
+        resources.file = file;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer data = chunk.duplicate();
+                data.flip();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(file);
+            file = null;
+            throw e;
+        }
+        fileOut = new BufferedOutputStream(out);
+        budget.spilled(count, exhausted);
+        freeChunks();
+    }
+
+    private void freeChunks() {
+        for (ByteBuffer chunk : chunks) {
+            budget.free(chunk);
+        }
+        chunks.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Return the temporary file or <code>null</code> if the data is in
+     * memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public long getByteCount() {
+        return count;
+    }
+
+    /**
+     * Return a stream of the data which was written so far, if it is in
+     * memory. The buffers are not given back before the stream is closed.
+     * The streams it creates by {@link SharedInputStream#newStream(long, long)}
+     * are not counted, they fail once the buffers were given back.
+     */
+    public InputStream newInputStream() {
+        lock.lock();
+        try {
+            BufferInputStream stream = new BufferInputStream(0, count);
+            if (!freed) {
+                openStreams.add(stream);
+            }
+            return stream;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the temporary file and give the buffers back to the budget once
+     * all streams are closed
+     */
+    public void release() {
+        lock.lock();
+        try {
+            if (released) {
+                return;
+            }
+            released = true;
+            IOUtils.closeQuietly(fileOut);
+            if (file != null) {
+                FileUtils.deleteQuietly(file);
+            }
+            if (openStreams.isEmpty()) {
+                free();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close all streams of {@link #newInputStream()}, so the buffers are given
+     * back right away once the buffer is released
+     */
+    public void closeStreams() {
+        lock.lock();
+        try {
+            openStreams.clear();
+            if (released && !freed) {
+                free();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeStream(BufferInputStream stream) {
+        lock.lock();
+        try {
+            if (openStreams.remove(stream) && released && openStreams.isEmpty()) {
+                free();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void free() {
+        freed = true;
+        // the list is kept, so a concurrent read still finds the buffers and
+        // fails on its check afterwards
+        for (ByteBuffer chunk : chunks) {
+            budget.free(chunk);
+        }
+        UNRELEASED.remove(resources);
+        resources.clear();
+    }
+
+    /**
+     * Give back the buffers and delete the temporary files of the buffers
+     * which became unreachable without being released
+     */
+    static void reclaimUnreachable() {
+        Resources resources;
+        while ((resources = (Resources) UNREACHABLE.poll()) != null) {
+            if (UNRELEASED.remove(resources)) {
+                resources.reclaim();
+            }
+        }
+    }
+
+    /**
+     * The buffers and the temporary file of a {@link MessageBuffer}, which are
+     * given back by {@link #reclaim()} once it became unreachable
+     */
+    private final static class Resources extends PhantomReference<MessageBuffer> {
+
+        private final MessageMemoryBudget budget;
+        private final List<ByteBuffer> chunks;
+        private volatile File file;
+
+        private Resources(MessageBuffer buffer) {
+            super(buffer, UNREACHABLE);
+            this.budget = buffer.budget;
+            this.chunks = buffer.chunks;
+        }
+
+        private void reclaim() {
+            for (ByteBuffer chunk : chunks) {
+                budget.free(chunk);
+            }
+            budget.leaked();
+            chunks.clear();
+            if (file != null) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    /**
+     * {@link SharedInputStream} over the buffers, so a MimeMessage can refer
+     * to its content without a copy
+     */
+    private final class BufferInputStream extends InputStream implements SharedInputStream {
+
+        private final long start;
+        private final long end;
+        private long pos;
+        private long mark;
+
+        public BufferInputStream(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.pos = start;
+            this.mark = start;
+        }
+
+        /**
+         * Fail if the buffers were given back, which is checked before and
+         * after they are read
+         */
+        private void checkBuffers() throws IOException {
+            if (freed) {
+                throw new IOException("Buffer was released");
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkBuffers();
+            if (pos >= end) {
+                return -1;
+            }
+            ByteBuffer chunk = chunks.get((int) (pos / MessageMemoryBudget.CHUNK_SIZE));
+            int b = chunk.get((int) (pos % MessageMemoryBudget.CHUNK_SIZE)) & 0xff;
+            checkBuffers();
+            pos++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkBuffers();
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int read = 0;
+            long p = pos;
+            while (read < len && p < end) {
+                ByteBuffer data = chunks.get((int) (p / MessageMemoryBudget.CHUNK_SIZE)).duplicate();
+                int offset = (int) (p % MessageMemoryBudget.CHUNK_SIZE);
+                int n = (int) Math.min(Math.min(len - read, MessageMemoryBudget.CHUNK_SIZE - offset), end - p);
+                data.limit(offset + n);
+                data.position(offset);
+                data.get(b, off + read, n);
+                read += n;
+                p += n;
+            }
+            checkBuffers();
+            pos = p;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkBuffers();
+            long skipped = Math.max(0, Math.min(n, end - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeStream(this);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, end - pos);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            pos = mark;
+        }
+
+        @Override
+        public long getPosition() {
+            return pos - start;
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            if (start < 0) {
+                throw new IllegalArgumentException("start < 0");
+            }
+            if (end == -1) {
+                end = this.end - this.start;
+            }
+            return new BufferInputStream(this.start + start, this.start + end);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Process wide budget for the messages which are held in memory by
+ * {@link MimeMessageInputStreamSource}'s, so the memory used by concurrent
+ * receptions is bounded by one limit instead of a limit per message.
+ * <p/>
+ * The memory is handed out in pooled direct buffers of {@link #CHUNK_SIZE}
+ * bytes, so it is not part of the heap. A message which exceeds the
+ * {@link #getMaxMessageSize()} or does not get a buffer because the
+ * {@link #getCapacity()} is exhausted is spilled to a file in the
+ * {@link #getSpillDirectory()}.
+ */
+public class MessageMemoryBudget implements MessageMemoryBudgetMBean {
+
+    /**
+     * The size of the pooled buffers
+     */
+    public final static int CHUNK_SIZE = 4096;
+
+    public final static long DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    public final static long DEFAULT_MAX_MESSAGE_SIZE = 100 * 1024;
+
+    private final static MessageMemoryBudget INSTANCE = new MessageMemoryBudget();
+
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+    private long capacity = DEFAULT_CAPACITY;
+    private volatile long maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+    private volatile File spillDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private int allocated;
+    private int used;
+    private int peak;
+    private long spillCount;
+    private long exhaustedCount;
+    private long spilledBytes;
+    private long leakCount;
+
+    /**
+     * Return the budget which is used by all {@link MimeMessageInputStreamSource}'s
+     * 
+     * @return budget
+     */
+    public static MessageMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    MessageMemoryBudget() {
+    }
+
+    /**
+     * Set the max bytes of all messages which are held in memory. Raising it
+     * lets more of the messages stay in memory on hosts with enough memory
+     * for direct buffers, see <code>-XX:MaxDirectMemorySize</code>.
+     * <p/>
+     * The default is 64 MB
+     * 
+     * @param capacity
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        while (allocated > maxChunks() && !pool.isEmpty()) {
+            pool.poll();
+            allocated--;
+        }
+    }
+
+    @Override
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the max bytes of one message which is held in memory.
+     * <p/>
+     * The default is 100 KB
+     * 
+     * @param maxMessageSize
+     */
+    public void setMaxMessageSize(long maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public long getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Set the directory of the files of the messages which are spilled to
+     * disk.
+     * <p/>
+     * The default is the <code>java.io.tmpdir</code>
+     * 
+     * @param spillDirectory
+     */
+    public void setSpillDirectory(File spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    private int maxChunks() {
+        return (int) Math.min(Integer.MAX_VALUE, capacity / CHUNK_SIZE);
+    }
+
+    /**
+     * Return a cleared buffer of {@link #CHUNK_SIZE} bytes or
+     * <code>null</code> if the capacity is exhausted. The buffer must be
+     * given back by {@link #free(ByteBuffer)}.
+     */
+    ByteBuffer allocate() {
+        ByteBuffer buffer = allocateChunk();
+        if (buffer == null) {
+            // the capacity may be held by messages which were not released
+            MessageBuffer.reclaimUnreachable();
+            buffer = allocateChunk();
+        }
+        return buffer;
+    }
+
+    private synchronized ByteBuffer allocateChunk() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            if (allocated >= maxChunks()) {
+                return null;
+            }
+            buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            allocated++;
+        }
+        used++;
+        peak = Math.max(peak, used);
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer which was returned by {@link #allocate()}
+     */
+    synchronized void free(ByteBuffer buffer) {
+        used--;
+        if (allocated > maxChunks()) {
+            // the capacity was lowered, let the buffer get collected
+            allocated--;
+        } else {
+            buffer.clear();
+            pool.push(buffer);
+        }
+    }
+
+    /**
+     * Count a message which was spilled to disk
+     * 
+     * @param bytes
+     *            the bytes which were held in memory before
+     * @param exhausted
+     *            <code>true</code> if the message was spilled because no
+     *            buffer was left
+     */
+    synchronized void spilled(long bytes, boolean exhausted) {
+        spillCount++;
+        spilledBytes += bytes;
+        if (exhausted) {
+            exhaustedCount++;
+        }
+    }
+
+    /**
+     * Count a message whose buffers were given back after it became
+     * unreachable without being released
+     */
+    synchronized void leaked() {
+        leakCount++;
+    }
+
+    @Override
+    public long getUsedBytes() {
+        // give back the buffers of the messages which were not released, so
+        // they do not show up as used
+        MessageBuffer.reclaimUnreachable();
+        synchronized (this) {
+            return (long) used * CHUNK_SIZE;
+        }
+    }
+
+    @Override
+    public synchronized long getPeakUsedBytes() {
+        return (long) peak * CHUNK_SIZE;
+    }
+
+    @Override
+    public synchronized long getSpillCount() {
+        return spillCount;
+    }
+
+    @Override
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+
+    @Override
+    public synchronized long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    @Override
+    public long getLeakCount() {
+        MessageBuffer.reclaimUnreachable();
+        synchronized (this) {
+            return leakCount;
+        }
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        peak = used;
+        spillCount = 0;
+        exhaustedCount = 0;
+        spilledBytes = 0;
+        leakCount = 0;
+    }
+}
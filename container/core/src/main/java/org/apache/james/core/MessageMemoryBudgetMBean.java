@@ -0,0 +1,90 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+/**
+ * JMX view of the {@link MessageMemoryBudget}
+ */
+public interface MessageMemoryBudgetMBean {
+
+    /**
+     * Return the max bytes of all messages which are held in memory
+     * 
+     * @return capacity
+     */
+    long getCapacity();
+
+    /**
+     * Return the max bytes of one message which is held in memory, larger
+     * messages are spilled to disk
+     * 
+     * @return size
+     */
+    long getMaxMessageSize();
+
+    /**
+     * Return the bytes of the buffers which are in use
+     * 
+     * @return used
+     */
+    long getUsedBytes();
+
+    /**
+     * Return the max bytes of the buffers which were in use at the same time
+     * 
+     * @return peak
+     */
+    long getPeakUsedBytes();
+
+    /**
+     * Return the count of messages which were spilled to disk
+     * 
+     * @return count
+     */
+    long getSpillCount();
+
+    /**
+     * Return the count of messages which were spilled to disk because the
+     * capacity was exhausted, not because they were too large
+     * 
+     * @return count
+     */
+    long getExhaustedCount();
+
+    /**
+     * Return the bytes which were held in memory when the messages were
+     * spilled to disk
+     * 
+     * @return bytes
+     */
+    long getSpilledBytes();
+
+    /**
+     * Return the count of messages which were never disposed, so their
+     * buffers were only given back after they were garbage collected
+     * 
+     * @return count
+     */
+    long getLeakCount();
+
+    /**
+     * Reset the peak, the spill and the leak counters
+     */
+    void resetStatistics();
+}
@@ -39,6 +39,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This object wraps a "possibly shared" MimeMessage tracking copies and
@@ -49,24 +51,27 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
     /**
      * Used internally to track the reference count It is important that this is
      * static otherwise it will keep a reference to the parent object.
+     * <p/>
+     * The tracker does not lock, so the copies of a message do not contend
+     * when they read it.
      */
     protected static class MessageReferenceTracker {
 
         /**
          * reference counter
          */
-        private int referenceCount = 1;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
 
         /**
          * The mime message in memory
          */
-        private MimeMessage wrapped = null;
+        private volatile MimeMessage wrapped = null;
 
         public MessageReferenceTracker(MimeMessage ref) {
             wrapped = ref;
         }
 
-        protected synchronized void incrementReferenceCount() {
+        protected void incrementReferenceCount() {
             /*
              * Used to track references while debugging try { throw new
              * Exception("incrementReferenceCount: "+(wrapped != null ?
@@ -74,10 +79,10 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
              * "null")+" ["+referenceCount+"]"); } catch (Exception e) {
              * e.printStackTrace(); }
              */
-            referenceCount++;
+            referenceCount.incrementAndGet();
         }
 
-        protected synchronized void decrementReferenceCount() {
+        protected void decrementReferenceCount() {
             /*
              * Used to track references while debugging try { throw new
              * Exception("decrementReferenceCount: "+(wrapped != null ?
@@ -85,24 +90,62 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
              * "null")+" ["+referenceCount+"]"); } catch (Exception e) {
              * e.printStackTrace(); }
              */
-            referenceCount--;
-            if (referenceCount <= 0) {
-                LifecycleUtil.dispose(wrapped);
+            if (referenceCount.decrementAndGet() == 0) {
+                MimeMessage message = wrapped;
                 wrapped = null;
+                LifecycleUtil.dispose(message);
             }
         }
 
-        protected synchronized int getReferenceCount() {
-            return referenceCount;
+        protected int getReferenceCount() {
+            return referenceCount.get();
         }
 
-        public synchronized MimeMessage getWrapped() {
+        public MimeMessage getWrapped() {
             return wrapped;
         }
 
     }
 
-    protected MessageReferenceTracker refCount;
+    /**
+     * Source of a copy which shares the body of a tracked
+     * {@link MimeMessageWrapper}. It holds a reference of the tracker until it
+     * gets disposed, so the shared source stays readable.
+     */
+    private static class SharedMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final MimeMessageSource source;
+        private final AtomicReference<MessageReferenceTracker> tracker;
+
+        public SharedMimeMessageSource(MessageReferenceTracker tracker, MimeMessageSource source) {
+            this.tracker = new AtomicReference<MessageReferenceTracker>(tracker);
+            this.source = source;
+        }
+
+        @Override
+        public String getSourceId() {
+            return source.getSourceId();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return source.getInputStream();
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return source.getMessageSize();
+        }
+
+        public void dispose() {
+            MessageReferenceTracker ref = tracker.getAndSet(null);
+            if (ref != null) {
+                ref.decrementReferenceCount();
+            }
+        }
+    }
+
+    protected volatile MessageReferenceTracker refCount;
 
     public MimeMessageCopyOnWriteProxy(MimeMessage original) {
         this(original, false);
@@ -131,15 +174,28 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
 
     /**
      * Check the number of references over the MimeMessage and clone it if
-     * needed before returning the reference
+     * needed before returning the reference.
+     * <p/>
+     * If the body of the shared message was not modified, the clone only
+     * copies the headers and reads the body from the shared source. It keeps
+     * the reference of this proxy to the shared message until it is disposed.
      * 
      * @throws MessagingException
      *             exception
      */
     protected synchronized MimeMessage getWrappedMessageForWriting() throws MessagingException {
-        if (refCount.getReferenceCount() > 1) {
-            refCount.decrementReferenceCount();
-            refCount = new MessageReferenceTracker(new MimeMessageWrapper(refCount.getWrapped()));
+        MessageReferenceTracker tracker = refCount;
+        if (tracker.getReferenceCount() > 1) {
+            MimeMessage shared = tracker.getWrapped();
+            if (shared instanceof MimeMessageWrapper && ((MimeMessageWrapper) shared).isSourceBody()) {
+                MimeMessageWrapper wrapper = (MimeMessageWrapper) shared;
+                refCount = new MessageReferenceTracker(new MimeMessageWrapper(wrapper, new SharedMimeMessageSource(tracker, wrapper.source)));
+            } else {
+                // copy before releasing the shared message, so the other
+                // references can not dispose it while it is copied
+                refCount = new MessageReferenceTracker(new MimeMessageWrapper(shared));
+                tracker.decrementReferenceCount();
+            }
         }
         return refCount.getWrapped();
     }
@@ -149,7 +205,7 @@ public class MimeMessageCopyOnWriteProxy extends MimeMessage implements Disposab
      * 
      * @return wrapped return the wrapped mimeMessage
      */
-    public synchronized MimeMessage getWrappedMessage() {
+    public MimeMessage getWrappedMessage() {
         return refCount.getWrapped();
     }
 
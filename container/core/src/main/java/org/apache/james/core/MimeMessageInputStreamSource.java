@@ -23,46 +23,46 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
 
 import javax.mail.MessagingException;
-import javax.mail.util.SharedByteArrayInputStream;
 import javax.mail.util.SharedFileInputStream;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.james.lifecycle.api.Disposable;
 
 /**
  * Takes an input stream and creates a repeatable input stream source for a
  * MimeMessageWrapper. It does this by completely reading the input stream and
- * saving that to data to an {@link DeferredFileOutputStream} with its threshold set to 100kb
+ * saving that data to buffers of the {@link MessageMemoryBudget}.
+ * <p/>
+ * Once the data exceeds the max message size of the budget or the budget is
+ * exhausted it is written to a temporary file, which can be handed over to a
+ * new owner with {@link #moveTo(File)} instead of copying it. The temporary
+ * file is read through a {@link SharedFileInputStream}, it only gets mapped
+ * into memory if a caller asks for it with {@link #getMappedSource()}.
  */
 public class MimeMessageInputStreamSource extends MimeMessageSource implements Disposable {
 
-    private final List<InputStream> streams = new ArrayList<InputStream>();
-
     /**
-     * A temporary file used to hold the message stream
+     * The buffers or the temporary file used to hold the message stream
      */
-    private DeferredFileOutputStream out;
+    private volatile MessageBuffer out;
 
     /**
-     * The full path of the temporary file
+     * The temporary file opened once, so it stays readable after it was moved
      */
-    private String sourceId;
+    private SharedFileInputStream shared;
 
     /**
-     * 100kb threshold for the stream.
+     * The temporary file mapped on request of a caller which wants to read it
+     * without a copy
      */
-    private final static int THRESHOLD = 1024 * 100;
+    private MappedMimeMessageSource mapped;
 
     /**
-     * Temporary directory to use
+     * The full path of the temporary file
      */
-    private final static File TMPDIR = new File(System.getProperty("java.io.tmpdir"));
+    private String sourceId;
 
     /**
      * Construct a new MimeMessageInputStreamSource from an
@@ -74,28 +74,20 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      */
     public MimeMessageInputStreamSource(String key, InputStream in) throws MessagingException {
         super();
-        // We want to immediately read this into a temporary file
-        // Create a temp file and channel the input stream into it
+        // We want to immediately read this into the buffers or a temporary file
+        // and channel the input stream into it
         try {
-            out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
+            MessageMemoryBudget budget = MessageMemoryBudget.getInstance();
+            out = new MessageBuffer(budget, key, budget.getSpillDirectory());
             IOUtils.copy(in, out);
+            out.close();
             sourceId = key;
         } catch (IOException ioe) {
+            if (out != null) {
+                out.release();
+            }
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-
-                    File file = out.getFile();
-                    if (file != null) {
-                        FileUtils.forceDelete(file);
-                    }
-                }
-            } catch (IOException ioe) {
-                // Ignored - logging unavailable to log this non-fatal error.
-            }
-
             try {
                 if (in != null) {
                     in.close();
@@ -108,8 +100,21 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     }
 
     public MimeMessageInputStreamSource(String key) {
+        this(key, MessageMemoryBudget.getInstance().getSpillDirectory());
+    }
+
+    /**
+     * Construct a new MimeMessageInputStreamSource whose data gets written to
+     * {@link #getWritableOutputStream()}
+     *
+     * @param key    the prefix for the name of the temp file
+     * @param tmpDir the directory of the temp file. If it is on the same file
+     *               system as the final location of the message, the temp file
+     *               can be moved there by {@link #moveTo(File)}
+     */
+    public MimeMessageInputStreamSource(String key, File tmpDir) {
         super();
-        out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
+        out = new MessageBuffer(MessageMemoryBudget.getInstance(), key, tmpDir);
         sourceId = key;
     }
 
@@ -127,15 +132,83 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      *
      * @return a <code>BufferedInputStream</code> containing the data
      */
-    public synchronized InputStream getInputStream() throws IOException {
-        InputStream in;
-        if (out.isInMemory()) {
-            in = new SharedByteArrayInputStream(out.getData());
-        } else {
-            in = new SharedFileInputStream(out.getFile());
+    public InputStream getInputStream() throws IOException {
+        MessageBuffer buffer = getBuffer();
+        if (buffer.isInMemory()) {
+            return buffer.newInputStream();
+        }
+        return getShared(buffer).newStream(0, -1);
+    }
+
+    /**
+     * Return the buffers, read once as {@link #dispose()} may clear them
+     * concurrently
+     *
+     * @throws IOException if this source was disposed
+     */
+    private MessageBuffer getBuffer() throws IOException {
+        MessageBuffer buffer = out;
+        if (buffer == null) {
+            throw new IOException("disposed");
+        }
+        return buffer;
+    }
+
+    /**
+     * Open the file once, the streams share its descriptor
+     */
+    private synchronized SharedFileInputStream getShared(MessageBuffer buffer) throws IOException {
+        if (out == null) {
+            throw new IOException("disposed");
         }
-        streams.add(in);
-        return in;
+        if (shared == null) {
+            shared = new SharedFileInputStream(buffer.getFile());
+        }
+        return shared;
+    }
+
+    /**
+     * Map the temporary file into memory, so the caller can write it to a
+     * channel without a copy on the heap, see
+     * {@link MappedMimeMessageSource#transferTo(java.nio.channels.WritableByteChannel)}.
+     * The file is mapped once and the mapping is dropped on {@link #dispose()}.
+     *
+     * @return the mapped source or <code>null</code> if the data is held in
+     *         memory
+     * @throws IOException if the file could not be mapped
+     */
+    public synchronized MappedMimeMessageSource getMappedSource() throws IOException {
+        MessageBuffer buffer = getBuffer();
+        if (buffer.isInMemory()) {
+            return null;
+        }
+        if (mapped == null) {
+            mapped = new MappedMimeMessageSource(buffer.getFile());
+        }
+        return mapped;
+    }
+
+    /**
+     * Move the temporary file which holds the data to the given file, which
+     * is then owned by the caller. The data stays readable from this source
+     * even after the file got deleted, as the file is opened before it gets
+     * moved.
+     * <p/>
+     * This fails if the data is held in memory, so there is no file, or if
+     * the target is not on the same file system.
+     *
+     * @param target the file to move the data to
+     * @return <code>true</code> if the file was moved, otherwise the caller
+     *         needs to copy the data
+     * @throws IOException if the file could not be opened
+     */
+    public synchronized boolean moveTo(File target) throws IOException {
+        MessageBuffer buffer = out;
+        if (buffer == null || buffer.isInMemory()) {
+            return false;
+        }
+        getShared(buffer);
+        return buffer.getFile().renameTo(target);
     }
 
     /**
@@ -147,7 +220,7 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      */
     @Override
     public long getMessageSize() throws IOException {
-        return out.getByteCount();
+        return getBuffer().getByteCount();
     }
 
     public OutputStream getWritableOutputStream() {
@@ -155,20 +228,24 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     }
 
     @Override
-    public void dispose() {
-        // explicit close all streams
-        for (InputStream stream : streams) {
-            IOUtils.closeQuietly(stream);
+    public synchronized void dispose() {
+        if (mapped != null) {
+            mapped.dispose();
+            mapped = null;
         }
 
-        if (out != null) {
-            IOUtils.closeQuietly(out);
-            File file = out.getFile();
-            if (file != null) {
-                FileUtils.deleteQuietly(file);
-                file = null;
-            }
+        if (shared != null) {
+            // the file is closed once the streams of it are closed too
+            IOUtils.closeQuietly(shared);
+            shared = null;
+        }
+
+        MessageBuffer buffer = out;
+        if (buffer != null) {
             out = null;
+            // explicit close all streams of the buffers
+            buffer.closeStreams();
+            buffer.release();
         }
     }
 
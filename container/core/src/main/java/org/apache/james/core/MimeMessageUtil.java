@@ -19,6 +19,7 @@
 
 package org.apache.james.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -286,6 +287,29 @@ public class MimeMessageUtil {
         return size;
     }
 
+    /**
+     * Move the given mimeMessage to the file without copying it, if it is an
+     * unmodified {@link MimeMessageWrapper} whose source is a temporary file on
+     * the same file system, see {@link MimeMessageWrapper#moveTo(File)}
+     * 
+     * @param message
+     *            the MimeMessage
+     * @param target
+     *            the file to move the message to
+     * @return <code>true</code> if the message was moved, otherwise it needs
+     *         to be written to the file
+     * @throws IOException
+     */
+    public static boolean moveTo(MimeMessage message, File target) throws IOException {
+        if (message instanceof MimeMessageCopyOnWriteProxy) {
+            message = ((MimeMessageCopyOnWriteProxy) message).getWrappedMessage();
+        }
+        if (message instanceof MimeMessageWrapper) {
+            return ((MimeMessageWrapper) message).moveTo(target);
+        }
+        return false;
+    }
+
     /**
      * Calculate the size of the give mimeMessage
      * 
@@ -21,6 +21,8 @@ package org.apache.james.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -62,17 +64,23 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     /**
      * This is false until we parse the message
      */
-    protected boolean messageParsed = false;
+    protected volatile boolean messageParsed = false;
 
     /**
      * This is false until we parse the message
      */
-    protected boolean headersModified = false;
+    protected volatile boolean headersModified = false;
 
     /**
      * This is false until we parse the message
      */
-    protected boolean bodyModified = false;
+    protected volatile boolean bodyModified = false;
+
+    /**
+     * This is false until the headers are parsed, so the lookups can be
+     * answered by the {@link #headerIndex} without locking
+     */
+    private volatile boolean headersLoaded = false;
 
     /**
      * Keep a reference to the sourceIn so we can close it only when we dispose
@@ -80,7 +88,11 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      */
     private InputStream sourceIn;
 
-    private long initialHeaderSize;
+    /**
+     * Index over the raw headers of the source, which answers header lookups
+     * until the headers are parsed. It is never modified once it is set.
+     */
+    private volatile HeaderIndex headerIndex;
 
     private MimeMessageWrapper(Session session) {
         super(session);
@@ -116,6 +128,40 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         this(Session.getDefaultInstance(System.getProperties()), source);
     }
 
+    /**
+     * A constructor that instantiates a MimeMessageWrapper which shares the
+     * body of the original message, so only the headers are copied. The
+     * original needs to have an unmodified body, see
+     * {@link #isSourceBody()}, and the given source needs to provide the
+     * bytes of its source.
+     * 
+     * @param original
+     *            the message to copy
+     * @param source
+     *            the source of the original
+     * @throws MessagingException
+     */
+    MimeMessageWrapper(MimeMessageWrapper original, MimeMessageSource source) throws MessagingException {
+        this(Session.getDefaultInstance(System.getProperties()), source);
+        flags = original.getFlags();
+
+        synchronized (original) {
+            if (original.isHeaderModified()) {
+                // the original headers can not be read from the source
+                MailHeaders copy = new MailHeaders();
+                Enumeration<?> lines = original.headers.getAllHeaderLines();
+                while (lines.hasMoreElements()) {
+                    copy.addHeaderLine((String) lines.nextElement());
+                }
+                headers = copy;
+                headersLoaded = true;
+                headersModified = true;
+                modified = true;
+                saved = original.saved;
+            }
+        }
+    }
+
     public MimeMessageWrapper(MimeMessage original) throws MessagingException {
         this(Session.getDefaultInstance(System.getProperties()));
         flags = original.getFlags();
@@ -178,7 +224,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @see MimeMessageSource
      */
-    public synchronized String getSourceId() {
+    public String getSourceId() {
         return source != null ? source.getSourceId() : null;
     }
 
@@ -191,12 +237,16 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     protected synchronized void loadHeaders() throws MessagingException {
         if (headers != null) {
             // Another thread has already loaded these headers
+        } else if (headerIndex != null) {
+            // the raw headers were already read
+            headers = headerIndex.toMailHeaders();
+            headersLoaded = true;
         } else if (source != null) {
             try {
                 InputStream in = source.getInputStream();
                 try {
                     headers = createInternetHeaders(in);
-
+                    headersLoaded = true;
                 } finally {
                     IOUtils.closeQuietly(in);
                 }
@@ -208,6 +258,53 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         }
     }
 
+    /**
+     * Index the raw message headers from the internal source, without parsing
+     * them. Only the first call locks.
+     * 
+     * @return index
+     * @throws MessagingException
+     *             if an error is encountered while reading the headers
+     */
+    private HeaderIndex indexHeaders() throws MessagingException {
+        HeaderIndex index = headerIndex;
+        if (index == null) {
+            synchronized (this) {
+                if (headerIndex == null) {
+                    try {
+                        InputStream in = source.getInputStream();
+                        try {
+                            headerIndex = HeaderIndex.read(in);
+                        } finally {
+                            IOUtils.closeQuietly(in);
+                        }
+                    } catch (IOException ioe) {
+                        throw new MessagingException("Unable to read headers from stream: " + ioe.getMessage(), ioe);
+                    }
+                }
+                index = headerIndex;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Return the index which answers header lookups, or <code>null</code> if
+     * the headers are parsed already or need to be parsed. The headers are
+     * parsed before they get modified, so the index always holds the current
+     * headers.
+     * 
+     * @return index
+     * @throws MessagingException
+     */
+    private HeaderIndex getHeaderIndex() throws MessagingException {
+        if (headersLoaded || source == null) {
+            return null;
+        }
+        HeaderIndex index = indexHeaders();
+        return index.isRegular() ? index : null;
+    }
+
     /**
      * Load the complete MimeMessage from the internal source.
      * 
@@ -241,7 +338,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @return whether the message has been modified
      */
-    public synchronized boolean isModified() {
+    public boolean isModified() {
         return headersModified || bodyModified || modified;
     }
 
@@ -250,19 +347,47 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * 
      * @return bodyModified
      */
-    public synchronized boolean isBodyModified() {
+    public boolean isBodyModified() {
         return bodyModified;
     }
 
+    /**
+     * Get whether the body of the message is still the one of the source, so
+     * it can be shared by copies of the message.
+     * 
+     * @return <code>true</code> if there is a source and the body was not
+     *         modified
+     */
+    public boolean isSourceBody() {
+        return source != null && !bodyModified;
+    }
+
     /**
      * Get whether the header of the message has been modified
      * 
      * @return headersModified
      */
-    public synchronized boolean isHeaderModified() {
+    public boolean isHeaderModified() {
         return headersModified;
     }
 
+    /**
+     * Move the message to the given file instead of writing it, see
+     * {@link MimeMessageInputStreamSource#moveTo(File)}. This is only possible
+     * if the message was not modified.
+     * 
+     * @param target
+     * @return <code>true</code> if the message was moved, otherwise it needs
+     *         to be written to the file
+     * @throws IOException
+     */
+    public synchronized boolean moveTo(File target) throws IOException {
+        if (isModified() || !(source instanceof MimeMessageInputStreamSource)) {
+            return false;
+        }
+        return ((MimeMessageInputStreamSource) source).moveTo(target);
+    }
+
     /**
      * Rewritten for optimization purposes
      */
@@ -291,51 +416,69 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         writeTo(headerOs, bodyOs, ignoreList, false);
     }
 
-    public synchronized void writeTo(OutputStream headerOs, OutputStream bodyOs, String[] ignoreList, boolean preLoad) throws IOException, MessagingException {
+    public void writeTo(OutputStream headerOs, OutputStream bodyOs, String[] ignoreList, boolean preLoad) throws IOException, MessagingException {
         
         if (!preLoad && source != null && !isBodyModified()) {
             // We do not want to instantiate the message... just read from
             // source
-            // and write to this outputstream
+            // and write to this outputstream. The source is never modified,
+            // so we only need to lock if the headers were modified
 
             // First handle the headers
             InputStream in = source.getInputStream();
             try {
-                InternetHeaders myHeaders;
-                MailHeaders parsedHeaders = new MailHeaders(in);
+                HeaderIndex index = indexHeaders();
+                IOUtils.skipFully(in, index.getSize());
 
-                // check if we should use the parsed headers or not
-                if (!isHeaderModified()) {
-                    myHeaders = parsedHeaders;
+                if (!isHeaderModified() && index.isRegular()) {
+                    // write the original headers as they are
+                    index.writeTo(headerOs, ignoreList);
+                } else {
+                    synchronized (this) {
+                        InternetHeaders myHeaders;
+
+                        // check if we should use the parsed headers or not
+                        if (!isHeaderModified()) {
+                            myHeaders = index.toMailHeaders();
+                        } else {
+                            // The headers was modified so we need to call saveChanges() just to be sure
+                            // See JAMES-1320
+                            if (!saved)
+                                saveChanges();
+                            myHeaders = headers;
+                        }
+                        IOUtils.copy(new InternetHeadersInputStream(myHeaders.getNonMatchingHeaderLines(ignoreList)), headerOs);
+                    }
+                }
+                if (in instanceof ByteBufferInputStream && bodyOs instanceof FileOutputStream) {
+                    // write the mapped body to the file without a copy on the heap
+                    headerOs.flush();
+                    ((ByteBufferInputStream) in).transferTo(((FileOutputStream) bodyOs).getChannel());
                 } else {
-                    // The headers was modified so we need to call saveChanges() just to be sure
-                    // See JAMES-1320
-                    if (!saved)
-                        saveChanges();
-                    myHeaders = headers;
+                    IOUtils.copy(in, bodyOs);
                 }
-                IOUtils.copy(new InternetHeadersInputStream(myHeaders.getNonMatchingHeaderLines(ignoreList)), headerOs);
-                IOUtils.copy(in, bodyOs);
             } finally {
                 IOUtils.closeQuietly(in);
             }
         } else {
-            // save the changes as the message was modified
-            // See JAMES-1320
-            if (!saved)
-                saveChanges();
-
-            // MimeMessageUtil.writeToInternal(this, headerOs, bodyOs,
-            // ignoreList);
-            if (headers == null) {
-                loadHeaders();
-            }
-            IOUtils.copy(new InternetHeadersInputStream(headers.getNonMatchingHeaderLines(ignoreList)), headerOs);
+            synchronized (this) {
+                // save the changes as the message was modified
+                // See JAMES-1320
+                if (!saved)
+                    saveChanges();
+
+                // MimeMessageUtil.writeToInternal(this, headerOs, bodyOs,
+                // ignoreList);
+                if (!headersLoaded) {
+                    loadHeaders();
+                }
+                IOUtils.copy(new InternetHeadersInputStream(headers.getNonMatchingHeaderLines(ignoreList)), headerOs);
 
-            if (preLoad && !messageParsed) {
-                loadMessage();
+                if (preLoad && !messageParsed) {
+                    loadMessage();
+                }
+                MimeMessageUtil.writeMessageBodyTo(this, bodyOs);
             }
-            MimeMessageUtil.writeMessageBodyTo(this, bodyOs);
         }
     }
 
@@ -345,25 +488,24 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * never change on {@link #saveChanges()}
      */
     @Override
-    public synchronized int getSize() throws MessagingException {
+    public int getSize() throws MessagingException {
         if (source != null) {
             try {
                 long fullSize = source.getMessageSize();
-                if (headers == null) {
-                    loadHeaders();
-                }
-                // 2 == CRLF
-                return (int) (fullSize - initialHeaderSize - 2);
+                // the body starts after the raw headers
+                return (int) (fullSize - indexHeaders().getSize());
 
             } catch (IOException e) {
                 throw new MessagingException("Unable to calculate message size");
             }
         } else {
-            if (!messageParsed) {
-                loadMessage();
-            }
+            synchronized (this) {
+                if (!messageParsed) {
+                    loadMessage();
+                }
 
-            return super.getSize();
+                return super.getSize();
+            }
         }
 
     }
@@ -432,7 +574,11 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public String[] getHeader(String name) throws MessagingException {
-        if (headers == null) {
+        HeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getHeader(name);
+        }
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getHeader(name);
@@ -440,7 +586,11 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public String getHeader(String name, String delimiter) throws MessagingException {
-        if (headers == null) {
+        HeaderIndex index = getHeaderIndex();
+        if (index != null) {
+            return index.getHeader(name, delimiter);
+        }
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getHeader(name, delimiter);
@@ -448,7 +598,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getAllHeaders() throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getAllHeaders();
@@ -456,7 +606,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getMatchingHeaders(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getMatchingHeaders(names);
@@ -464,7 +614,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getNonMatchingHeaders(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getNonMatchingHeaders(names);
@@ -472,7 +622,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getAllHeaderLines() throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getAllHeaderLines();
@@ -480,7 +630,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getMatchingHeaderLines(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getMatchingHeaderLines(names);
@@ -488,7 +638,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
 
     @Override
     public Enumeration getNonMatchingHeaderLines(String[] names) throws MessagingException {
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         return headers.getNonMatchingHeaderLines(names);
@@ -501,7 +651,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
          */
 
         // End JAMES-559
-        if (headers == null) {
+        if (!headersLoaded) {
             loadHeaders();
         }
         modified = true;
@@ -565,6 +715,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         // the super implementation calls
         // headers = createInternetHeaders(is);
         super.parse(is);
+        headersLoaded = true;
         messageParsed = true;
     }
 
@@ -608,8 +759,6 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         if (headers != null) {
             return headers;
         } else {
-            initialHeaderSize = newHeaders.getSize();
-
             return newHeaders;
         }
     }
@@ -629,19 +778,21 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      * @see javax.mail.internet.MimeMessage#getRawInputStream()
      */
     @Override
-    public synchronized InputStream getRawInputStream() throws MessagingException {
+    public InputStream getRawInputStream() throws MessagingException {
         if (!messageParsed && !isModified() && source != null) {
             InputStream is;
             try {
                 is = source.getInputStream();
                 // skip the headers.
-                new MailHeaders(is);
+                IOUtils.skipFully(is, indexHeaders().getSize());
                 return is;
             } catch (IOException e) {
                 throw new MessagingException("Unable to read the stream: " + e.getMessage(), e);
             }
         } else {
-            return super.getRawInputStream();
+            synchronized (this) {
+                return super.getRawInputStream();
+            }
         }
     }
 
@@ -656,14 +807,15 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      */
 
     @SuppressWarnings("unchecked")
-    public synchronized InputStream getMessageInputStream() throws MessagingException {
+    public InputStream getMessageInputStream() throws MessagingException {
         if (!messageParsed && !isModified() && source != null) {
             try {
                 return source.getInputStream();
             } catch (IOException e) {
                 throw new MessagingException("Unable to get inputstream", e);
             }
-        } else {
+        }
+        synchronized (this) {
             try {
 
                 // Try to optimize if possible to prevent OOM on big mails.
@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class HeaderIndexTest {
+
+    private final static String HEADERS = "Return-Path: <sender@example.com>\r\n"
+            + "Received: from relay.example.com\r\n"
+            + "\tby mx.example.com; Mon, 1 Jan 2001 00:00:00 +0000\r\n"
+            + "Received: from client.example.com\r\n"
+            + "Subject:  test\r\n"
+            + "X-Empty:\r\n"
+            + "X-Folded-Empty: \r\n"
+            + "\tvalue\r\n"
+            + "NoColon\r\n"
+            + "x-mixed-CASE: ä\r\n"
+            + "\r\n";
+
+    private final static String BODY = "body\r\n";
+
+    private InputStream stream(String message) throws Exception {
+        return new ByteArrayInputStream(message.getBytes("ISO-8859-1"));
+    }
+
+    @Test
+    public void testLookupsMatchMailHeaders() throws Exception {
+        HeaderIndex index = HeaderIndex.read(stream(HEADERS + BODY));
+        MailHeaders headers = new MailHeaders(stream(HEADERS + BODY));
+        assertTrue(index.isRegular());
+        for (String name : new String[] { "Return-Path", "received", "Subject", "Subject ", "X-Empty", "x-folded-empty", "NoColon", "X-Mixed-Case", "Missing" }) {
+            assertArrayEquals(name, headers.getHeader(name), index.getHeader(name));
+            assertEquals(name, headers.getHeader(name, ", "), index.getHeader(name, ", "));
+            assertEquals(name, headers.getHeader(name, null), index.getHeader(name, null));
+        }
+        assertEquals(HEADERS.length(), index.getSize());
+    }
+
+    @Test
+    public void testStreamIsPositionedAtBody() throws Exception {
+        InputStream in = stream(HEADERS + BODY);
+        HeaderIndex.read(in);
+        assertEquals(BODY, new String(IOUtils.toByteArray(in), "US-ASCII"));
+    }
+
+    @Test
+    public void testWriteToIsVerbatim() throws Exception {
+        HeaderIndex index = HeaderIndex.read(stream(HEADERS + BODY));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.writeTo(out, new String[0]);
+        assertEquals(HEADERS, new String(out.toByteArray(), "ISO-8859-1"));
+    }
+
+    @Test
+    public void testWriteToIgnoresHeaders() throws Exception {
+        HeaderIndex index = HeaderIndex.read(stream(HEADERS + BODY));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.writeTo(out, new String[] { "received", "X-Empty" });
+        assertEquals("Return-Path: <sender@example.com>\r\nSubject:  test\r\nX-Folded-Empty: \r\n\tvalue\r\nNoColon\r\nx-mixed-CASE: ä\r\n\r\n", new String(out.toByteArray(), "ISO-8859-1"));
+    }
+
+    @Test
+    public void testIrregularHeaders() throws Exception {
+        assertFalse(HeaderIndex.read(stream("Subject: test\n\nbody")).isRegular());
+        assertFalse(HeaderIndex.read(stream("Subject: test\rX-Test: test\r\n\r\nbody")).isRegular());
+        assertFalse(HeaderIndex.read(stream(" folded\r\nSubject: test\r\n\r\nbody")).isRegular());
+        assertFalse(HeaderIndex.read(stream("Subject: test\r\n")).isRegular());
+        // javamail implementations differ in trimming the name
+        assertFalse(HeaderIndex.read(stream("Subject : test\r\n\r\nbody")).isRegular());
+        assertFalse(HeaderIndex.read(stream("X-Test: a\r\nSubject\t: test\r\n\r\nbody")).isRegular());
+
+        HeaderIndex index = HeaderIndex.read(stream("Subject: test\nX-Test: a\n\nbody"));
+        assertEquals("test", index.toMailHeaders().getHeader("Subject", null));
+        assertEquals("a", index.toMailHeaders().getHeader("X-Test", null));
+    }
+
+    @Test
+    public void testEmptyHeaders() throws Exception {
+        HeaderIndex index = HeaderIndex.read(stream("\r\nbody"));
+        assertTrue(index.isRegular());
+        assertNull(index.getHeader("Subject"));
+        assertEquals(2, index.getSize());
+    }
+}
@@ -0,0 +1,147 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link MailEnvelopeCodec} with java serialization, which is used
+ * by the file queue and repositories, and with the recipient list which the
+ * JMS queue stores in a message property.
+ * <p/>
+ * Run with <code>java -cp ... org.openjdk.jmh.Main MailEnvelopeCodecBenchmark</code>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MailEnvelopeCodecBenchmark {
+
+    private final static String SEPARATOR = ";";
+
+    private MailImpl mail;
+    private byte[] encoded;
+    private byte[] serialized;
+    private String recipients;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<MailAddress> rcpts = new ArrayList<MailAddress>();
+        for (int i = 0; i < 10; i++) {
+            rcpts.add(new MailAddress("recipient" + i + "@example" + (i % 3) + ".com"));
+        }
+        mail = new MailImpl(MailImpl.getId(), new MailAddress("sender@example.com"), rcpts);
+        mail.setRemoteHost("relay.example.com");
+        mail.setRemoteAddr("192.0.2.1");
+        mail.setLastUpdated(new Date());
+        mail.setAttribute("org.apache.james.SMTPAuthUser", "user");
+        mail.setAttribute("MAIL_PRIORITY", 5);
+        mail.setAttribute("org.apache.james.spam.score", 1.5d);
+        mail.setAttribute("org.apache.james.relayed", true);
+
+        encoded = MailEnvelopeCodec.encode(mail);
+        serialized = serialize(mail);
+        recipients = joinRecipients(mail);
+    }
+
+    @Benchmark
+    public byte[] encodeCodec() throws Exception {
+        return MailEnvelopeCodec.encode(mail);
+    }
+
+    @Benchmark
+    public byte[] encodeSerialization() throws Exception {
+        return serialize(mail);
+    }
+
+    @Benchmark
+    public Mail decodeCodec() throws Exception {
+        return MailEnvelopeCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public Object decodeSerialization() throws Exception {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public String encodeJMSRecipients() {
+        return joinRecipients(mail);
+    }
+
+    @Benchmark
+    public List<MailAddress> decodeJMSRecipients() throws Exception {
+        List<MailAddress> rcpts = new ArrayList<MailAddress>();
+        StringTokenizer tokenizer = new StringTokenizer(recipients, SEPARATOR);
+        while (tokenizer.hasMoreTokens()) {
+            rcpts.add(new MailAddress(tokenizer.nextToken()));
+        }
+        return rcpts;
+    }
+
+    private static String joinRecipients(Mail mail) {
+        StringBuilder builder = new StringBuilder();
+        @SuppressWarnings("unchecked")
+        Iterator<MailAddress> rcpts = mail.getRecipients().iterator();
+        while (rcpts.hasNext()) {
+            builder.append(rcpts.next().toString());
+            if (rcpts.hasNext()) {
+                builder.append(SEPARATOR);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,135 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.Test;
+
+public class MailEnvelopeCodecTest {
+
+    private MailImpl createMail() throws Exception {
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        recipients.add(new MailAddress("rcpt1@example.com"));
+        recipients.add(new MailAddress("rcpt2@example.com"));
+        recipients.add(new MailAddress("\"quoted local\"@other.example"));
+        MailImpl mail = new MailImpl("mail-1", new MailAddress("sender@example.com"), recipients);
+        mail.setErrorMessage("550 failed");
+        mail.setRemoteHost("relay.example.com");
+        mail.setRemoteAddr("192.0.2.1");
+        mail.setLastUpdated(new Date(1234567890L));
+        mail.setAttribute("string", "value");
+        mail.setAttribute("integer", -42);
+        mail.setAttribute("long", Long.MAX_VALUE);
+        mail.setAttribute("boolean", true);
+        mail.setAttribute("short", (short) -7);
+        mail.setAttribute("byte", (byte) 200);
+        mail.setAttribute("float", 1.5f);
+        mail.setAttribute("double", -2.25d);
+        mail.setAttribute("date", new Date(987654321L));
+        mail.setAttribute("bytes", new byte[] { 1, 2, 3 });
+        mail.setAttribute("list", new ArrayList<String>(Arrays.asList("a", "b")));
+        return mail;
+    }
+
+    private void checkMail(Mail expected, Mail mail) {
+        assertEquals(expected.getName(), mail.getName());
+        assertEquals(expected.getState(), mail.getState());
+        assertEquals(expected.getErrorMessage(), mail.getErrorMessage());
+        assertEquals(expected.getRemoteHost(), mail.getRemoteHost());
+        assertEquals(expected.getRemoteAddr(), mail.getRemoteAddr());
+        assertEquals(expected.getLastUpdated(), mail.getLastUpdated());
+        assertEquals(expected.getSender(), mail.getSender());
+        assertEquals(new ArrayList<Object>(expected.getRecipients()), new ArrayList<Object>(mail.getRecipients()));
+        for (String name : Arrays.asList("string", "integer", "long", "boolean", "short", "byte", "float", "double", "date", "list")) {
+            assertEquals(name, expected.getAttribute(name), mail.getAttribute(name));
+        }
+        assertArrayEquals((byte[]) expected.getAttribute("bytes"), (byte[]) mail.getAttribute("bytes"));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        MailImpl mail = createMail();
+        checkMail(mail, MailEnvelopeCodec.decode(MailEnvelopeCodec.encode(mail)));
+    }
+
+    @Test
+    public void testNullValues() throws Exception {
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("null", null);
+        Mail decoded = MailEnvelopeCodec.decode(MailEnvelopeCodec.encode(mail));
+        assertNull(decoded.getName());
+        assertNull(decoded.getSender());
+        assertTrue(decoded.getAttributeNames().hasNext());
+        assertNull(decoded.getAttribute("null"));
+    }
+
+    @Test
+    public void testSmallerThanSerialization() throws Exception {
+        MailImpl mail = createMail();
+        assertTrue(MailEnvelopeCodec.encode(mail).length < serialize(mail).length);
+    }
+
+    @Test
+    public void testDecodeSerialized() throws Exception {
+        MailImpl mail = createMail();
+        checkMail(mail, MailEnvelopeCodec.decode(serialize(mail)));
+    }
+
+    @Test
+    public void testAttributes() throws Exception {
+        MailImpl mail = createMail();
+        HashMap<String, Object> attributes = MailEnvelopeCodec.decodeAttributes(MailEnvelopeCodec.encodeAttributes(mail));
+        assertEquals(mail.getAttributesRaw().keySet(), attributes.keySet());
+        assertEquals(mail.getAttribute("list"), attributes.get("list"));
+
+        attributes.remove("bytes");
+        assertEquals(attributes, MailEnvelopeCodec.decodeAttributes(serialize(attributes)));
+    }
+
+    @Test
+    public void testAddressesAreShared() throws Exception {
+        MailImpl mail = createMail();
+        Mail first = MailEnvelopeCodec.decode(MailEnvelopeCodec.encode(mail));
+        Mail second = MailEnvelopeCodec.decode(MailEnvelopeCodec.encode(mail));
+        assertSame(first.getSender(), second.getSender());
+    }
+
+    private byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
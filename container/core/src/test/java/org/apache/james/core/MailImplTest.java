@@ -25,6 +25,7 @@ import org.apache.mailet.Mail;
 
 import javax.mail.MessagingException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -102,4 +103,58 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    @Test
+    public void testDuplicateSharesImmutableAttributes() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        String value = new String("value");
+        mail.setAttribute("string", value);
+        mail.setAttribute("integer", 1);
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        assertSame(value, duplicate.getAttribute("string"));
+        assertSame(mail.getAttributes().getMap(), duplicate.getAttributes().getMap());
+
+        duplicate.setAttribute("integer", 2);
+        duplicate.removeAttribute("string");
+        assertEquals(1, mail.getAttribute("integer"));
+        assertSame(value, mail.getAttribute("string"));
+        assertEquals(2, duplicate.getAttribute("integer"));
+        assertNull(duplicate.getAttribute("string"));
+
+        mail.removeAllAttributes();
+        assertFalse(mail.hasAttributes());
+        assertTrue(duplicate.hasAttributes());
+    }
+
+    @Test
+    public void testDuplicateCopiesMutableAttributes() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList<String> list = new ArrayList<String>();
+        list.add("a");
+        mail.setAttribute("list", list);
+        mail.setAttribute("string", "value");
+
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        assertNotSame(list, duplicate.getAttribute("list"));
+        assertEquals(list, duplicate.getAttribute("list"));
+        assertSame(mail.getAttribute("string"), duplicate.getAttribute("string"));
+    }
+
+    @Test
+    public void testRemoveSharedAttributeName() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("first", "1");
+        mail.setAttribute("second", "2");
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        Iterator<?> names = duplicate.getAttributeNames();
+        while (names.hasNext()) {
+            names.next();
+            names.remove();
+        }
+        assertFalse(duplicate.hasAttributes());
+        assertEquals("1", mail.getAttribute("first"));
+        assertEquals("2", mail.getAttribute("second"));
+    }
 }
@@ -0,0 +1,138 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedMimeMessageSourceTest extends MimeMessageFromStreamTest {
+
+    private final static String HEADERS = "Subject: test\r\nFrom: sender@example.com\r\n\r\n";
+    private final static String BODY = "line 1\r\nline 2\r\n";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/mapped-source-test-" + System.nanoTime());
+        FileUtils.forceMkdir(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private File createFile(String content) throws IOException {
+        File file = File.createTempFile("message", ".eml", dir);
+        FileUtils.writeByteArrayToFile(file, content.getBytes());
+        return file;
+    }
+
+    @Override
+    protected MimeMessage getMessageFromSources(String sources) throws Exception {
+        return new MimeMessageWrapper(new MappedMimeMessageSource(createFile(sources)));
+    }
+
+    private String toString(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new String(data);
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        MappedMimeMessageSource source = new MappedMimeMessageSource(createFile(HEADERS + BODY));
+        assertEquals(HEADERS.length() + BODY.length(), source.getMessageSize());
+        assertEquals(HEADERS, toString(source.getHeaders()));
+        assertEquals(BODY, toString(source.getBody()));
+        assertTrue(source.getBody().isReadOnly());
+
+        source = new MappedMimeMessageSource(createFile("Subject: test\n\nbody"));
+        assertEquals("body", toString(source.getBody()));
+
+        source = new MappedMimeMessageSource(createFile("Subject: test\r\n"));
+        assertEquals("Subject: test\r\n", toString(source.getHeaders()));
+        assertEquals(0, source.getBody().remaining());
+    }
+
+    @Test
+    public void testStaysReadableAfterDelete() throws Exception {
+        File file = createFile(HEADERS + BODY);
+        MappedMimeMessageSource source = new MappedMimeMessageSource(file);
+        FileUtils.forceDelete(file);
+        assertEquals(HEADERS + BODY, IOUtils.toString(source.getInputStream()));
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        MappedMimeMessageSource source = new MappedMimeMessageSource(createFile(HEADERS + BODY));
+        File target = new File(dir, "target");
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            assertEquals(HEADERS.length() + BODY.length(), source.transferTo(out.getChannel()));
+        } finally {
+            out.close();
+        }
+        assertEquals(HEADERS + BODY, FileUtils.readFileToString(target));
+    }
+
+    @Test
+    public void testWriteToFile() throws Exception {
+        MimeMessageWrapper message = new MimeMessageWrapper(new MappedMimeMessageSource(createFile(HEADERS + BODY)));
+        message.setHeader("X-Test", "value");
+        File target = new File(dir, "target");
+        FileOutputStream out = new FileOutputStream(target);
+        try {
+            message.writeTo(out);
+        } finally {
+            out.close();
+        }
+        String written = FileUtils.readFileToString(target);
+        assertTrue(written.contains("X-Test: value\r\n"));
+        assertTrue(written.endsWith("\r\n\r\n" + BODY));
+        message.dispose();
+    }
+
+    @Test
+    public void testDispose() throws Exception {
+        MappedMimeMessageSource source = new MappedMimeMessageSource(createFile(HEADERS + BODY));
+        source.dispose();
+        try {
+            source.getInputStream();
+            fail("The source was disposed");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
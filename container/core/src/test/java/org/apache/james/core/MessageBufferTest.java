@@ -0,0 +1,262 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageBufferTest {
+
+    private File dir;
+    private MessageMemoryBudget budget;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/message-buffer-test-" + System.nanoTime());
+        FileUtils.forceMkdir(dir);
+        budget = new MessageMemoryBudget();
+        budget.setCapacity(4 * MessageMemoryBudget.CHUNK_SIZE);
+        budget.setMaxMessageSize(3 * MessageMemoryBudget.CHUNK_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        byte[] data = data(2 * MessageMemoryBudget.CHUNK_SIZE + 100);
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data, 0, 10);
+        buffer.write(data[10]);
+        buffer.write(data, 11, data.length - 11);
+        buffer.close();
+
+        assertTrue(buffer.isInMemory());
+        assertEquals(data.length, buffer.getByteCount());
+        assertEquals(3 * MessageMemoryBudget.CHUNK_SIZE, budget.getUsedBytes());
+        InputStream in = buffer.newInputStream();
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        in.close();
+
+        buffer.release();
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, budget.getSpillCount());
+    }
+
+    @Test
+    public void testNewStream() throws Exception {
+        byte[] data = data(2 * MessageMemoryBudget.CHUNK_SIZE);
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data);
+        buffer.close();
+
+        InputStream in = buffer.newInputStream();
+        assertEquals(100, in.skip(100));
+        assertEquals(100, ((SharedInputStream) in).getPosition());
+        InputStream part = ((SharedInputStream) in).newStream(MessageMemoryBudget.CHUNK_SIZE - 10, MessageMemoryBudget.CHUNK_SIZE + 10);
+        byte[] expected = new byte[20];
+        System.arraycopy(data, MessageMemoryBudget.CHUNK_SIZE - 10, expected, 0, 20);
+        assertArrayEquals(expected, IOUtils.toByteArray(part));
+        buffer.release();
+    }
+
+    @Test
+    public void testLargeMessageIsSpilled() throws Exception {
+        byte[] data = data(3 * MessageMemoryBudget.CHUNK_SIZE + 1);
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data, 0, 100);
+        buffer.write(data, 100, data.length - 100);
+        buffer.close();
+
+        assertFalse(buffer.isInMemory());
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(1, budget.getSpillCount());
+        assertEquals(0, budget.getExhaustedCount());
+        assertEquals(100, budget.getSpilledBytes());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(buffer.getFile()));
+
+        buffer.release();
+        assertEquals(0, dir.list().length);
+    }
+
+    @Test
+    public void testLargeMessageOfSingleBytesIsSpilled() throws Exception {
+        byte[] data = data(3 * MessageMemoryBudget.CHUNK_SIZE + 1);
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        for (byte b : data) {
+            buffer.write(b);
+        }
+        buffer.close();
+
+        assertFalse(buffer.isInMemory());
+        assertEquals(data.length, buffer.getByteCount());
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(3 * MessageMemoryBudget.CHUNK_SIZE, budget.getSpilledBytes());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(buffer.getFile()));
+        buffer.release();
+    }
+
+    @Test
+    public void testExhaustedBudget() throws Exception {
+        byte[] data = data(2 * MessageMemoryBudget.CHUNK_SIZE);
+        MessageBuffer first = new MessageBuffer(budget, "test", dir);
+        first.write(data);
+        first.close();
+        MessageBuffer second = new MessageBuffer(budget, "test", dir);
+        second.write(data);
+        second.close();
+        assertTrue(second.isInMemory());
+
+        MessageBuffer third = new MessageBuffer(budget, "test", dir);
+        third.write(data);
+        third.close();
+        assertFalse(third.isInMemory());
+        assertNotNull(third.getFile());
+        assertEquals(1, budget.getExhaustedCount());
+        assertEquals(4 * MessageMemoryBudget.CHUNK_SIZE, budget.getPeakUsedBytes());
+        assertArrayEquals(data, FileUtils.readFileToByteArray(third.getFile()));
+
+        first.release();
+        second.release();
+        third.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testBuffersAreFreedAfterLastStreamIsClosed() throws Exception {
+        byte[] data = data(10);
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data);
+        buffer.close();
+        InputStream in = buffer.newInputStream();
+        InputStream part = ((SharedInputStream) in).newStream(0, -1);
+        buffer.release();
+
+        // the open stream keeps the buffers
+        assertEquals(MessageMemoryBudget.CHUNK_SIZE, budget.getUsedBytes());
+        assertEquals(0, in.read());
+        assertEquals(0, part.read());
+        in.close();
+        in.close();
+        assertEquals(0, budget.getUsedBytes());
+        try {
+            part.read();
+            fail("The buffers may be in use by another message");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            part.skip(1);
+            fail("The buffers may be in use by another message");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseStreams() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data(10));
+        buffer.close();
+        InputStream in = buffer.newInputStream();
+        buffer.closeStreams();
+        buffer.release();
+        assertEquals(0, budget.getUsedBytes());
+        try {
+            in.read();
+            fail("The buffers may be in use by another message");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReleasedBufferIsNotReadable() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data(10));
+        buffer.close();
+        buffer.release();
+        try {
+            buffer.newInputStream().read();
+            fail("The buffers may be in use by another message");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnreleasedBufferIsReclaimed() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data(10));
+        buffer.close();
+        buffer.newInputStream();
+        buffer = null;
+        assertEquals(MessageMemoryBudget.CHUNK_SIZE, budget.getUsedBytes());
+
+        for (int i = 0; i < 50 && budget.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+            // the unreachable buffers are reclaimed when a buffer is created
+            new MessageBuffer(budget, "test", dir).release();
+        }
+        assertEquals(1, budget.getLeakCount());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testUnreleasedBufferIsReclaimedByUsage() throws Exception {
+        MessageBuffer buffer = new MessageBuffer(budget, "test", dir);
+        buffer.write(data(10));
+        buffer.close();
+        buffer = null;
+
+        for (int i = 0; i < 50 && budget.getUsedBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(1, budget.getLeakCount());
+    }
+}
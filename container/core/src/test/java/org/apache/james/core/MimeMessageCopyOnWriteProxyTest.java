@@ -18,14 +18,21 @@
  ****************************************************************/
 package org.apache.james.core;
 
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import javax.mail.util.SharedByteArrayInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
@@ -248,6 +255,105 @@ public class MimeMessageCopyOnWriteProxyTest extends MimeMessageFromStreamTest {
         LifecycleUtil.dispose(mm);
     }
 
+    /**
+     * Copies of a message read it from several threads, only the copy which
+     * writes gets a clone.
+     */
+    @Test
+    public void testConcurrentReadsShareMessage() throws Exception {
+        final MimeMessageCopyOnWriteProxy original = (MimeMessageCopyOnWriteProxy) getMessageFromSources(content + sep + body);
+        final List<MimeMessage> copies = new ArrayList<MimeMessage>();
+        for (int i = 0; i < 8; i++) {
+            copies.add(new MimeMessageCopyOnWriteProxy(original));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(copies.size());
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (final MimeMessage copy : copies) {
+            results.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    String result = null;
+                    for (int i = 0; i < 100; i++) {
+                        result = copy.getSubject() + "/" + copy.getSize() + "/" + IOUtils.toString(copy.getRawInputStream());
+                    }
+                    return result;
+                }
+            }));
+        }
+        for (Future<String> result : results) {
+            assertEquals("foo/" + body.length() + "/" + body, result.get());
+        }
+        executor.shutdown();
+
+        for (MimeMessage copy : copies) {
+            assertTrue(isSameMimeMessage(original, copy));
+        }
+        copies.get(0).setSubject("changed");
+        assertFalse(isSameMimeMessage(original, copies.get(0)));
+        assertTrue(isSameMimeMessage(original, copies.get(1)));
+        assertEquals("foo", copies.get(1).getSubject());
+
+        for (MimeMessage copy : copies) {
+            LifecycleUtil.dispose(copy);
+        }
+        LifecycleUtil.dispose(original);
+    }
+
+    @Test
+    public void testHeaderOverlaySharesBody() throws Exception {
+        MimeMessageCopyOnWriteProxy original = (MimeMessageCopyOnWriteProxy) getMessageFromSources(content + sep + body);
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(original);
+
+        copy.addHeader("X-Copy", "copy");
+        assertFalse(isSameMimeMessage(original, copy));
+        MimeMessageWrapper wrapper = (MimeMessageWrapper) getWrappedMessage(copy);
+        assertTrue(wrapper.isSourceBody());
+        assertFalse(wrapper.source instanceof MimeMessageInputStreamSource);
+
+        // the copy keeps the shared message alive
+        assertEquals(2, original.refCount.getReferenceCount());
+        LifecycleUtil.dispose(original);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy.writeTo(out);
+        String written = out.toString("US-ASCII");
+        assertTrue(written, written.contains("Subject: foo\r\n"));
+        assertTrue(written, written.contains("X-Copy: copy\r\n"));
+        assertTrue(written, written.endsWith(sep + body));
+
+        LifecycleUtil.dispose(copy);
+    }
+
+    @Test
+    public void testHeaderOverlayKeepsModifiedHeaders() throws Exception {
+        MimeMessageCopyOnWriteProxy original = (MimeMessageCopyOnWriteProxy) getMessageFromSources(content + sep + body);
+        original.setSubject("modified");
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(original);
+
+        copy.addHeader("X-Copy", "copy");
+        assertEquals("modified", copy.getSubject());
+        assertEquals("copy", copy.getHeader("X-Copy", null));
+        assertNull(original.getHeader("X-Copy"));
+        assertEquals(body, IOUtils.toString(copy.getRawInputStream()));
+
+        LifecycleUtil.dispose(copy);
+        LifecycleUtil.dispose(original);
+    }
+
+    @Test
+    public void testBodyChangeCopiesMessage() throws Exception {
+        MimeMessageCopyOnWriteProxy original = (MimeMessageCopyOnWriteProxy) getMessageFromSources(content + sep + body);
+        MimeMessageCopyOnWriteProxy copy = new MimeMessageCopyOnWriteProxy(original);
+        original.setText("new body");
+        copy.addHeader("X-Copy", "copy");
+
+        assertEquals(1, original.refCount.getReferenceCount());
+        assertEquals("new body", original.getContent());
+        assertEquals("bar\r\n.\r\n", copy.getContent());
+
+        LifecycleUtil.dispose(copy);
+        LifecycleUtil.dispose(original);
+    }
+
     private static String getReferences(MimeMessage m) {
         StringBuilder ref = new StringBuilder("/");
         while (m instanceof MimeMessageCopyOnWriteProxy) {
@@ -25,10 +25,22 @@ import javax.mail.internet.MimeMessage;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class MimeMessageUtilTest {
 
     @Test
@@ -62,4 +74,114 @@ public class MimeMessageUtilTest {
         MimeMessageUtil.writeTo(mimeMessage, headerOut, bodyOut);
     }
 
+    @Test
+    public void testMoveTo() throws Exception {
+        File dir = new File("target/move-test-" + System.nanoTime());
+        FileUtils.forceMkdir(dir);
+        try {
+            StringBuilder body = new StringBuilder();
+            while (body.length() < 200 * 1024) {
+                body.append("0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+            }
+            String message = "Subject: move\r\n\r\n" + body;
+
+            MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("move", dir);
+            source.getWritableOutputStream().write(message.getBytes());
+            source.getWritableOutputStream().close();
+            MimeMessageCopyOnWriteProxy proxy = new MimeMessageCopyOnWriteProxy(source);
+
+            File target = new File(dir, "target");
+            assertTrue(MimeMessageUtil.moveTo(proxy, target));
+            assertEquals(message.length(), target.length());
+            assertEquals(1, dir.list().length);
+            // the message is still readable from the source
+            assertEquals("move", proxy.getSubject());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            proxy.writeTo(out);
+            assertEquals(message, out.toString());
+
+            // the file is gone, so it can not be moved again
+            assertFalse(MimeMessageUtil.moveTo(proxy, new File(dir, "again")));
+            proxy.dispose();
+            assertTrue(target.exists());
+
+            source = new MimeMessageInputStreamSource("modified", dir);
+            source.getWritableOutputStream().write(message.getBytes());
+            source.getWritableOutputStream().close();
+            proxy = new MimeMessageCopyOnWriteProxy(source);
+            proxy.setSubject("modified");
+            assertFalse(MimeMessageUtil.moveTo(proxy, new File(dir, "modified")));
+            proxy.dispose();
+
+            source = new MimeMessageInputStreamSource("small", dir);
+            source.getWritableOutputStream().write("Subject: small\r\n\r\nbody".getBytes());
+            source.getWritableOutputStream().close();
+            assertFalse(source.moveTo(new File(dir, "small")));
+            source.dispose();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testSpilledSourceIsOnlyMappedOnRequest() throws Exception {
+        File dir = new File("target/mapped-test-" + System.nanoTime());
+        FileUtils.forceMkdir(dir);
+        try {
+            StringBuilder body = new StringBuilder();
+            while (body.length() < 200 * 1024) {
+                body.append("0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+            }
+            String message = "Subject: mapped\r\n\r\n" + body;
+
+            MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("mapped", dir);
+            source.getWritableOutputStream().write(message.getBytes());
+            source.getWritableOutputStream().close();
+
+            InputStream in = source.getInputStream();
+            assertFalse(in instanceof ByteBufferInputStream);
+            assertEquals(message, IOUtils.toString(in));
+            in.close();
+
+            MappedMimeMessageSource mapped = source.getMappedSource();
+            assertSame(mapped, source.getMappedSource());
+            assertEquals(message.length(), mapped.getMessageSize());
+            source.dispose();
+            try {
+                mapped.getInputStream();
+                fail("the mapping needs to be released on dispose");
+            } catch (IOException e) {
+                // expected
+            }
+
+            source = new MimeMessageInputStreamSource("small", dir);
+            source.getWritableOutputStream().write("Subject: small\r\n\r\nbody".getBytes());
+            source.getWritableOutputStream().close();
+            assertNull(source.getMappedSource());
+            source.dispose();
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testDisposedSourceIsNotReadable() throws Exception {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("disposed",
+                new ByteArrayInputStream("Subject: disposed\r\n\r\nbody".getBytes()));
+        source.dispose();
+        try {
+            source.getInputStream();
+            fail("The source was disposed");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            source.getMessageSize();
+            fail("The source was disposed");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(source.moveTo(new File("target/disposed")));
+    }
+
 }
@@ -150,12 +150,33 @@ public class MimeMessageWrapperTest extends MimeMessageFromStreamTest {
     public void testDeferredHeaderLoading() throws MessagingException, IOException {
         mw.setHeadersLoadable(false);
         try {
-            assertEquals("foo", mw.getSubject());
-            fail("subject should not be loadable here, headers loading is disabled");
+            mw.getAllHeaders();
+            fail("headers should not be loadable here, headers loading is disabled");
         } catch (IllegalStateException e) {
         }
     }
 
+    @Test
+    public void testHeaderLookupWithoutLoading() throws MessagingException, IOException {
+        mw.setHeadersLoadable(false);
+        assertEquals("foo", mw.getSubject());
+        assertNull(mw.getInnerHeaders());
+
+        mw.setHeadersLoadable(true);
+        mw.addHeader("X-Test", "test");
+        assertEquals("foo", mw.getSubject());
+        assertEquals("test", mw.getHeader("X-Test", null));
+    }
+
+    @Test
+    public void testWriteToUnmodifiedHeadersVerbatim() throws Exception {
+        mw.setHeadersLoadable(false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mw.writeTo(out);
+        assertEquals(content + sep + body, out.toString("US-ASCII"));
+        assertNull(mw.getInnerHeaders());
+    }
+
     /**
      * See JAMES-474 MimeMessageWrapper(MimeMessage) should clone the original
      * message.
@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads of a message which is shared by several {@link MimeMessageCopyOnWriteProxy}
+ * copies, as done by the camel MatcherSplitter. Each thread reads its own copy
+ * of the same message, so the throughput should grow with the number of
+ * threads.
+ * <p/>
+ * Run with <code>java -cp ... org.openjdk.jmh.Main SharedMimeMessageBenchmark -t 1</code>
+ * and again with more threads, e.g. <code>-t 4</code> and <code>-t 16</code>, to compare.
+ * The score is the total of all threads, so it only grows on a host with at
+ * least as many cores as threads. With fewer cores it should stay flat
+ * instead of dropping, which would point to contention.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedMimeMessageBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedMessage {
+
+        private MimeMessageCopyOnWriteProxy message;
+
+        @Setup
+        public void setUp() throws Exception {
+            StringBuilder content = new StringBuilder();
+            content.append("Return-Path: <sender@example.com>\r\n");
+            content.append("Received: from relay.example.com\r\n\tby mx.example.com\r\n");
+            content.append("From: sender@example.com\r\n");
+            content.append("To: rcpt1@example.com, rcpt2@example.org\r\n");
+            content.append("Subject: benchmark\r\n");
+            content.append("Message-ID: <benchmark@example.com>\r\n");
+            content.append("Content-Type: text/plain; charset=us-ascii\r\n");
+            content.append("\r\n");
+            for (int i = 0; i < 100; i++) {
+                content.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+            }
+            message = new MimeMessageCopyOnWriteProxy(new MimeMessageInputStreamSource("benchmark", new SharedByteArrayInputStream(content.toString().getBytes("US-ASCII"))));
+        }
+
+        @TearDown
+        public void tearDown() {
+            LifecycleUtil.dispose(message);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Copy {
+
+        private MimeMessage message;
+
+        @Setup
+        public void setUp(SharedMessage shared) {
+            message = new MimeMessageCopyOnWriteProxy(shared.message);
+        }
+
+        @TearDown
+        public void tearDown() {
+            LifecycleUtil.dispose(message);
+        }
+    }
+
+    @Benchmark
+    public String getHeader(Copy copy) throws Exception {
+        return copy.message.getHeader("Subject", null);
+    }
+
+    @Benchmark
+    public String getMessageID(Copy copy) throws Exception {
+        return copy.message.getMessageID();
+    }
+
+    @Benchmark
+    public int getSize(Copy copy) throws Exception {
+        return copy.message.getSize();
+    }
+
+    @Benchmark
+    public byte[] getRawInputStream(Copy copy) throws Exception {
+        InputStream in = copy.message.getRawInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+}
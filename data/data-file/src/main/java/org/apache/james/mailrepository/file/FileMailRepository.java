@@ -21,6 +21,7 @@ package org.apache.james.mailrepository.file;
 
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailEnvelopeCodec;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
 import org.apache.james.filesystem.api.FileSystem;
@@ -69,6 +70,7 @@ public class FileMailRepository extends AbstractMailRepository {
     private boolean fifo;
     private boolean cacheKeys; // experimental: for use with write mostly
     // repositories such as spam and error
+    private boolean binaryEnvelope; // store the envelope with the MailEnvelopeCodec
     private FileSystem fileSystem;
 
     @Inject
@@ -85,6 +87,7 @@ public class FileMailRepository extends AbstractMailRepository {
         }
         fifo = config.getBoolean("[@FIFO]", false);
         cacheKeys = config.getBoolean("[@CACHEKEYS]", true);
+        binaryEnvelope = config.getBoolean("[@BINARYENVELOPE]", false);
         // ignore model
     }
 
@@ -214,7 +217,11 @@ public class FileMailRepository extends AbstractMailRepository {
             }
         }
         // Always save the header information
-        objectRepository.put(key, mc);
+        if (binaryEnvelope) {
+            objectRepository.put(key, MailEnvelopeCodec.encode(mc));
+        } else {
+            objectRepository.put(key, mc);
+        }
     }
 
     @Override
@@ -222,7 +229,12 @@ public class FileMailRepository extends AbstractMailRepository {
         try {
             Mail mc;
             try {
-                mc = (Mail) objectRepository.get(key);
+                Object envelope = objectRepository.get(key);
+                if (envelope instanceof byte[]) {
+                    mc = MailEnvelopeCodec.decode((byte[]) envelope);
+                } else {
+                    mc = (Mail) envelope;
+                }
             } catch (RuntimeException re) {
                 StringBuilder exceptionBuffer = new StringBuilder(128);
                 if (re.getCause() instanceof Error) {
@@ -23,7 +23,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.sql.Blob;
 import java.sql.Connection;
@@ -51,6 +50,7 @@ import javax.sql.DataSource;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
 import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailEnvelopeCodec;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageWrapper;
@@ -142,6 +142,12 @@ public class JDBCMailRepository extends AbstractMailRepository {
      */
     private int inMemorySizeLimit;
 
+    /**
+     * Store the attributes with the {@link MailEnvelopeCodec} instead of java
+     * serialization
+     */
+    private boolean binaryAttributes;
+
     private FileSystem fileSystem;
 
     private String filestore;
@@ -213,6 +219,8 @@ public class JDBCMailRepository extends AbstractMailRepository {
 
         inMemorySizeLimit = configuration.getInt("inMemorySizeLimit", 409600000);
 
+        binaryAttributes = configuration.getBoolean("binaryAttributes", false);
+
         filestore = configuration.getString("filestore", null);
         sqlFileName = configuration.getString("sqlFile");
 
@@ -486,31 +494,8 @@ public class JDBCMailRepository extends AbstractMailRepository {
                     PreparedStatement updateMessageAttr = null;
                     try {
                         updateMessageAttr = conn.prepareStatement(updateMessageAttrSql);
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            updateMessageAttr.setBinaryStream(1, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        byte[] attributes = serializeAttributes(mc);
+                        updateMessageAttr.setBinaryStream(1, new ByteArrayInputStream(attributes), attributes.length);
                         updateMessageAttr.setString(2, mc.getName());
                         updateMessageAttr.setString(3, repositoryName);
                         updateMessageAttr.execute();
@@ -568,31 +553,8 @@ public class JDBCMailRepository extends AbstractMailRepository {
 
                     // Store attributes
                     if (number_of_parameters > 10) {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(baos);
-                        try {
-                            if (mc instanceof MailImpl) {
-                                oos.writeObject(((MailImpl) mc).getAttributesRaw());
-                            } else {
-                                HashMap temp = new HashMap();
-                                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
-                                    String hashKey = (String) i.next();
-                                    temp.put(hashKey, mc.getAttribute(hashKey));
-                                }
-                                oos.writeObject(temp);
-                            }
-                            oos.flush();
-                            ByteArrayInputStream attrInputStream = new ByteArrayInputStream(baos.toByteArray());
-                            insertMessage.setBinaryStream(11, attrInputStream, baos.size());
-                        } finally {
-                            try {
-                                if (oos != null) {
-                                    oos.close();
-                                }
-                            } catch (IOException ioe) {
-                                getLogger().debug("JDBCMailRepository: Unexpected exception while closing output stream.", ioe);
-                            }
-                        }
+                        byte[] attributes = serializeAttributes(mc);
+                        insertMessage.setBinaryStream(11, new ByteArrayInputStream(attributes), attributes.length);
                     }
 
                     insertMessage.execute();
@@ -611,6 +573,32 @@ public class JDBCMailRepository extends AbstractMailRepository {
         }
     }
 
+    /**
+     * Serialize the attributes of the given {@link Mail}
+     */
+    private byte[] serializeAttributes(Mail mc) throws IOException {
+        if (binaryAttributes) {
+            return MailEnvelopeCodec.encodeAttributes(mc);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        try {
+            if (mc instanceof MailImpl) {
+                oos.writeObject(((MailImpl) mc).getAttributesRaw());
+            } else {
+                HashMap temp = new HashMap();
+                for (Iterator i = mc.getAttributeNames(); i.hasNext();) {
+                    String hashKey = (String) i.next();
+                    temp.put(hashKey, mc.getAttribute(hashKey));
+                }
+                oos.writeObject(temp);
+            }
+        } finally {
+            oos.close();
+        }
+        return baos.toByteArray();
+    }
+
     /**
      * @see org.apache.james.mailrepository.api.MailRepository#retrieve(String)
      */
@@ -666,10 +654,7 @@ public class JDBCMailRepository extends AbstractMailRepository {
                             }
                             // this check is for better backwards compatibility
                             if (serialized_attr != null) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(serialized_attr);
-                                ObjectInputStream ois = new ObjectInputStream(bais);
-                                attributes = (HashMap) ois.readObject();
-                                ois.close();
+                                attributes = MailEnvelopeCodec.decodeAttributes(serialized_attr);
                             }
                         } catch (IOException ioe) {
                             if (getLogger().isDebugEnabled()) {
@@ -24,7 +24,7 @@ package org.apache.james.mailetcontainer.api.jmx;
 public interface MailSpoolerMBean {
 
     /**
-     * Return the number of threads used for spooling
+     * Return the number of threads which are currently used for spooling
      * 
      * @return threadCount
      */
@@ -36,4 +36,29 @@ public interface MailSpoolerMBean {
      */
     int getCurrentSpoolCount();
 
+    /**
+     * Return the number of mails which were dequeued and are not completed
+     * yet
+     * 
+     * @return inFlight
+     */
+    int getInFlightCount();
+
+    /**
+     * Return the average time in milliseconds the mails which were dequeued
+     * during the last interval spent in the mail queue, measured from their
+     * enqueue or last update
+     * 
+     * @return queueWaitTime
+     */
+    long getAverageQueueWaitTime();
+
+    /**
+     * Return the average time in milliseconds the processing of a mail took
+     * during the last interval
+     * 
+     * @return processingTime
+     */
+    long getAverageProcessingTime();
+
 }
@@ -27,10 +27,12 @@ import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.mailetcontainer.api.MailProcessor;
 import org.apache.james.mailetcontainer.api.jmx.MailSpoolerMBean;
+import org.apache.james.queue.api.BatchMailQueue;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.util.concurrent.JMXEnabledScheduledThreadPoolExecutor;
 import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
@@ -38,23 +40,95 @@ import org.slf4j.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages the mail spool. This class is responsible for retrieving messages
  * from the spool, directing messages to the appropriate processor, and removing
  * them from the spool when processing is complete.
+ * <p/>
+ * A mail is only dequeued if a worker thread is free to process it, so mails
+ * which can not be processed yet stay in the queue. If <code>minThreads</code>
+ * and <code>maxThreads</code> differ, the count of worker threads is adapted
+ * to the measured latency of the mailets and the CPU load.
  */
 public class JamesMailSpooler implements Runnable, Disposable, Configurable, LogEnabled, MailSpoolerMBean {
 
+    /**
+     * How long to wait for a batch of mails, in milliseconds
+     */
+    private final static long BATCH_TIMEOUT = 1000;
+
     private MailQueue queue;
 
+    /**
+     * The JMX path of the thread pools
+     */
+    private final static String JMX_PATH = "org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool";
+
     /**
      * The number of threads used to move mail through the spool.
      */
-    private int numThreads;
+    private volatile int numThreads;
+
+    private int minThreads;
+
+    private int maxThreads;
+
+    /**
+     * How often the count of threads is adapted, in milliseconds
+     */
+    private long adaptInterval;
+
+    private double maxCpuLoad;
+
+    /**
+     * Free worker threads, a mail is only dequeued after a slot was acquired
+     */
+    private ResizableSemaphore slots;
+
+    /**
+     * Number of mails which were dequeued and are not completed yet
+     */
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    private final AtomicInteger peakInFlight = new AtomicInteger(0);
+
+    /**
+     * Set if a dequeue thread had to wait for a free slot since the count of
+     * threads was last adapted
+     */
+    private volatile boolean saturated;
+
+    private final AtomicLong processedCount = new AtomicLong(0);
+
+    /**
+     * Time the mails dequeued since the last interval spent in the mail queue
+     */
+    private final AtomicLong queueWaitTime = new AtomicLong(0);
+
+    private final AtomicLong dequeuedCount = new AtomicLong(0);
+
+    private final AtomicLong processingTime = new AtomicLong(0);
+
+    private volatile long averageQueueWaitTime;
+
+    private volatile long averageProcessingTime;
+
+    private SpoolerConcurrencyController controller;
+
+    private ScheduledExecutorService controllerService;
 
     /**
      * Number of active threads
@@ -73,7 +147,7 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
      */
     private ExecutorService dequeueService;
 
-    private ExecutorService workerService;
+    private ThreadPoolExecutor workerService;
 
     /**
      * The mail processor
@@ -86,6 +160,11 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
     private int numDequeueThreads;
 
+    /**
+     * The maximal count of mails to dequeue at once
+     */
+    private int batchSize;
+
     @Inject
     public void setMailQueueFactory(MailQueueFactory queueFactory) {
         this.queueFactory = queueFactory;
@@ -102,7 +181,17 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public void configure(HierarchicalConfiguration config) throws ConfigurationException {
         numDequeueThreads = config.getInt("dequeueThreads", 2);
 
-        numThreads = config.getInt("threads", 100);
+        int threads = config.getInt("threads", 100);
+        maxThreads = config.getInt("maxThreads", threads);
+        minThreads = config.getInt("minThreads", Math.min(threads, maxThreads));
+        if (minThreads < 1 || minThreads > maxThreads) {
+            throw new ConfigurationException("minThreads must be between 1 and maxThreads");
+        }
+        numThreads = Math.max(minThreads, Math.min(maxThreads, threads));
+        adaptInterval = config.getLong("adaptInterval", 10000);
+        maxCpuLoad = config.getDouble("maxCpuLoad", 0.9);
+
+        batchSize = config.getInt("batchSize", 1);
     }
 
     /**
@@ -116,12 +205,29 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
         if (logger.isInfoEnabled()) {
             String infoBuffer = getClass().getName() + " uses " + numThreads + " Thread(s)";
+            if (minThreads != maxThreads) {
+                infoBuffer += ", adapted between " + minThreads + " and " + maxThreads;
+            }
             logger.info(infoBuffer);
         }
 
         active.set(true);
-        workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
-        dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "dequeuer", numDequeueThreads);
+        slots = new ResizableSemaphore(numThreads);
+        controller = new SpoolerConcurrencyController(minThreads, maxThreads, maxCpuLoad);
+        workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool(JMX_PATH, "spooler", numThreads);
+        dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool(JMX_PATH, "dequeuer", numDequeueThreads);
+        controllerService = new JMXEnabledScheduledThreadPoolExecutor(1, JMX_PATH, "spooler-controller");
+        controllerService.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    adapt();
+                } catch (Exception e) {
+                    logger.error("Unable to adapt the spooler threads", e);
+                }
+            }
+        }, adaptInterval, adaptInterval, TimeUnit.MILLISECONDS);
 
         for (int i = 0; i < numDequeueThreads; i++) {
             Thread reader = new Thread(this, "Dequeue Thread #" + i);
@@ -142,56 +248,31 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
 
         while (active.get()) {
-
-            final MailQueueItem queueItem;
+            int acquired = 0;
             try {
-                queueItem = queue.deQueue();
-                workerService.execute(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            numActive.incrementAndGet();
-
-                            // increase count
-                            processingActive.incrementAndGet();
-
-                            Mail mail = queueItem.getMail();
-                            if (logger.isDebugEnabled()) {
-                                String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
-                                logger.debug(debugBuffer);
-                            }
-
-                            try {
-                                mailProcessor.service(mail);
-                                queueItem.done(true);
-                            } catch (Exception e) {
-                                if (active.get() && logger.isErrorEnabled()) {
-                                    logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-                                }
-                                queueItem.done(false);
-
-                            } finally {
-                                LifecycleUtil.dispose(mail);
-                                mail = null;
-                            }
-                        } catch (Throwable e) {
-                            if (active.get() && logger.isErrorEnabled()) {
-                                logger.error("Exception processing mail while spooling " + e.getMessage(), e);
-
-                            }
-                        } finally {
-                            processingActive.decrementAndGet();
-                            numActive.decrementAndGet();
-                        }
-
+                acquired = acquireSlots();
+                if (acquired > 1) {
+                    List<MailQueueItem> queueItems = ((BatchMailQueue) queue).deQueue(acquired, BATCH_TIMEOUT, TimeUnit.MILLISECONDS);
+                    for (MailQueueItem queueItem : queueItems) {
+                        // the slot is released by the worker
+                        acquired--;
+                        process(queueItem);
                     }
-                });
+                } else {
+                    MailQueueItem queueItem = queue.deQueue();
+                    acquired--;
+                    process(queueItem);
+                }
             } catch (MailQueueException e1) {
                 if (active.get() && logger.isErrorEnabled()) {
                     logger.error("Exception dequeue mail", e1);
 
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                slots.release(acquired);
             }
         }
         if (logger.isInfoEnabled()) {
@@ -199,6 +280,176 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         }
     }
 
+    /**
+     * Acquire the slots for the mails to dequeue next, which blocks until at
+     * least one worker is free
+     *
+     * @return the count of acquired slots
+     * @throws InterruptedException
+     */
+    private int acquireSlots() throws InterruptedException {
+        if (!slots.tryAcquire()) {
+            saturated = true;
+            slots.acquire();
+        }
+        int acquired = 1;
+        if (batchSize > 1 && queue instanceof BatchMailQueue) {
+            while (acquired < batchSize && slots.tryAcquire()) {
+                acquired++;
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * Hand the dequeued item over to the worker threads. The caller must hold
+     * a slot, which is released once the mail was processed.
+     */
+    private void process(final MailQueueItem queueItem) {
+        // the time the mail spent in the queue since it was enqueued
+        Date lastUpdated = queueItem.getMail().getLastUpdated();
+        if (lastUpdated != null) {
+            queueWaitTime.addAndGet(Math.max(0, System.currentTimeMillis() - lastUpdated.getTime()));
+            dequeuedCount.incrementAndGet();
+        }
+        int current = inFlight.incrementAndGet();
+        int peak = peakInFlight.get();
+        while (current > peak && !peakInFlight.compareAndSet(peak, current)) {
+            peak = peakInFlight.get();
+        }
+
+        try {
+            execute(queueItem);
+        } catch (RejectedExecutionException e) {
+            // the workers are shut down, so give the mail back to the queue
+            if (active.get() && logger.isErrorEnabled()) {
+                logger.error("Unable to hand mail " + queueItem.getMail().getName() + " over to a worker", e);
+            }
+            try {
+                queueItem.done(false);
+            } catch (MailQueueException e1) {
+                if (logger.isWarnEnabled()) {
+                    logger.warn("Unable to give mail " + queueItem.getMail().getName() + " back to the queue", e1);
+                }
+            } finally {
+                LifecycleUtil.dispose(queueItem.getMail());
+                inFlight.decrementAndGet();
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Process the dequeued item by a worker thread
+     *
+     * @throws RejectedExecutionException
+     *             if the worker threads are shut down
+     */
+    private void execute(final MailQueueItem queueItem) {
+        workerService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    numActive.incrementAndGet();
+
+                    // increase count
+                    processingActive.incrementAndGet();
+
+                    Mail mail = queueItem.getMail();
+                    if (logger.isDebugEnabled()) {
+                        String debugBuffer = "==== Begin processing mail " + mail.getName() + "====";
+                        logger.debug(debugBuffer);
+                    }
+
+                    try {
+                        mailProcessor.service(mail);
+                        queueItem.done(true);
+                    } catch (Exception e) {
+                        if (active.get() && logger.isErrorEnabled()) {
+                            logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+                        }
+                        queueItem.done(false);
+
+                    } finally {
+                        LifecycleUtil.dispose(mail);
+                        mail = null;
+                    }
+                } catch (Throwable e) {
+                    if (active.get() && logger.isErrorEnabled()) {
+                        logger.error("Exception processing mail while spooling " + e.getMessage(), e);
+
+                    }
+                } finally {
+                    processingActive.decrementAndGet();
+                    numActive.decrementAndGet();
+                    processingTime.addAndGet(System.currentTimeMillis() - start);
+                    processedCount.incrementAndGet();
+                    inFlight.decrementAndGet();
+                    slots.release();
+                }
+
+            }
+        });
+    }
+
+    /**
+     * Compute the statistics of the last interval and adapt the count of
+     * worker threads
+     */
+    private void adapt() {
+        long processed = processedCount.getAndSet(0);
+        long waitTime = queueWaitTime.getAndSet(0);
+        long dequeued = dequeuedCount.getAndSet(0);
+        long time = processingTime.getAndSet(0);
+        boolean wasSaturated = saturated;
+        saturated = false;
+        int peak = peakInFlight.getAndSet(inFlight.get());
+
+        averageQueueWaitTime = dequeued == 0 ? 0 : waitTime / dequeued;
+        averageProcessingTime = processed == 0 ? 0 : time / processed;
+
+        if (minThreads == maxThreads) {
+            return;
+        }
+        double latency = processed == 0 ? -1 : (double) time / processed;
+        int threads = controller.adapt(numThreads, wasSaturated, peak, latency, getCpuLoad());
+        if (threads != numThreads) {
+            resize(threads);
+        }
+    }
+
+    /**
+     * Return the system load average per processor or -1 if it is not
+     * available
+     */
+    private double getCpuLoad() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        if (load < 0) {
+            return -1;
+        }
+        return load / Runtime.getRuntime().availableProcessors();
+    }
+
+    private synchronized void resize(int threads) {
+        int delta = threads - numThreads;
+        if (delta > 0) {
+            workerService.setMaximumPoolSize(threads);
+            workerService.setCorePoolSize(threads);
+            slots.release(delta);
+        } else {
+            // mails which are in flight already are still processed
+            slots.reducePermits(-delta);
+            workerService.setCorePoolSize(threads);
+            workerService.setMaximumPoolSize(threads);
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Adapted the spooler threads from " + numThreads + " to " + threads);
+        }
+        numThreads = threads;
+    }
+
     /**
      * The dispose operation is called at the end of a components lifecycle.
      * Instances of this class use this method to release and destroy any
@@ -214,6 +465,7 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public void dispose() {
         logger.info(getClass().getName() + " dispose...");
         active.set(false); // shutdown the threads
+        controllerService.shutdownNow();
         dequeueService.shutdownNow();
         workerService.shutdown();
 
@@ -242,4 +494,37 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public int getCurrentSpoolCount() {
         return processingActive.get();
     }
+
+    @Override
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getAverageQueueWaitTime() {
+        return averageQueueWaitTime;
+    }
+
+    @Override
+    public long getAverageProcessingTime() {
+        return averageProcessingTime;
+    }
+
+    /**
+     * {@link Semaphore} which allows to reduce the permits while they are
+     * acquired
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        public ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
 }
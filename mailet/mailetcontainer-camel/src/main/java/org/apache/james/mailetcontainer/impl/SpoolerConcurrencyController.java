@@ -0,0 +1,92 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl;
+
+/**
+ * Decides about the count of worker threads of the {@link JamesMailSpooler}.
+ * Threads are only added while all of them are busy, the latency of the
+ * mailets does not degrade and the CPU has capacity left. Threads which are
+ * not needed are released again.
+ */
+class SpoolerConcurrencyController {
+
+    /**
+     * How much the average latency may grow after threads were added before
+     * they are considered to cause contention
+     */
+    private final static double LATENCY_TOLERANCE = 1.5;
+
+    private final int minThreads;
+    private final int maxThreads;
+    private final double maxCpuLoad;
+
+    private double previousLatency = -1;
+
+    /**
+     * @param minThreads
+     * @param maxThreads
+     * @param maxCpuLoad
+     *            the load per processor above which the count of threads is
+     *            decreased
+     */
+    public SpoolerConcurrencyController(int minThreads, int maxThreads, double maxCpuLoad) {
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.maxCpuLoad = maxCpuLoad;
+    }
+
+    /**
+     * Return the count of threads to use for the next interval
+     *
+     * @param threads
+     *            the current count of threads
+     * @param saturated
+     *            <code>true</code> if mails had to wait for a free thread
+     *            during the last interval
+     * @param peakInFlight
+     *            the maximal count of mails processed at once during the last
+     *            interval
+     * @param latency
+     *            the average processing time of the last interval or -1 if no
+     *            mail was processed
+     * @param cpuLoad
+     *            the load per processor or -1 if it is not available
+     * @return threads
+     */
+    public synchronized int adapt(int threads, boolean saturated, int peakInFlight, double latency, double cpuLoad) {
+        int step = Math.max(1, threads / 10);
+        int next = threads;
+        if (cpuLoad >= maxCpuLoad) {
+            next = threads - step;
+        } else if (saturated) {
+            if (latency > 0 && previousLatency > 0 && latency > previousLatency * LATENCY_TOLERANCE) {
+                next = threads - step;
+            } else {
+                next = threads + step;
+            }
+        } else if (peakInFlight < threads / 2) {
+            next = threads - step;
+        }
+        if (latency > 0) {
+            previousLatency = latency;
+        }
+        return Math.max(minThreads, Math.min(maxThreads, next));
+    }
+}
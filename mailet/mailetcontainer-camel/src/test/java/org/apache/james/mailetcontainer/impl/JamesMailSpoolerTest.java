@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.mailet.Mail;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class JamesMailSpoolerTest {
+
+    @Test
+    public void testDequeueOnlyWithFreeWorker() throws Exception {
+        final AtomicInteger dequeued = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicBoolean overloaded = new AtomicBoolean();
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch completed = new CountDownLatch(10);
+        final MailQueue queue = new MailQueue() {
+
+            @Override
+            public void enQueue(Mail mail, long delay, TimeUnit unit) {
+            }
+
+            @Override
+            public void enQueue(Mail mail) {
+            }
+
+            @Override
+            public MailQueueItem deQueue() {
+                final Mail mail = new MailImpl();
+                // a mail is only dequeued once a worker is free
+                if (dequeued.incrementAndGet() - done.get() > 3) {
+                    overloaded.set(true);
+                }
+                return new MailQueueItem() {
+
+                    @Override
+                    public Mail getMail() {
+                        return mail;
+                    }
+
+                    @Override
+                    public void done(boolean success) {
+                        done.incrementAndGet();
+                        completed.countDown();
+                    }
+                };
+            }
+        };
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        DefaultConfigurationBuilder config = new DefaultConfigurationBuilder();
+        config.addProperty("threads", 3);
+        config.addProperty("dequeueThreads", 2);
+
+        JamesMailSpooler spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger(JamesMailSpoolerTest.class));
+        spooler.setMailQueueFactory(new MailQueueFactory() {
+
+            @Override
+            public MailQueue getQueue(String name) {
+                return queue;
+            }
+        });
+        spooler.setMailProcessor(new MailProcessor() {
+
+            @Override
+            public void service(Mail mail) throws MessagingException {
+                started.countDown();
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new MessagingException("Interrupted", e);
+                }
+            }
+        });
+        spooler.configure(config);
+        spooler.init();
+        try {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // every worker is blocked, so no more mails are taken from the queue
+            assertEquals(3, dequeued.get());
+            assertEquals(3, spooler.getInFlightCount());
+
+            latch.countDown();
+            assertTrue(completed.await(5, TimeUnit.SECONDS));
+            assertFalse(overloaded.get());
+        } finally {
+            latch.countDown();
+            spooler.dispose();
+        }
+    }
+}
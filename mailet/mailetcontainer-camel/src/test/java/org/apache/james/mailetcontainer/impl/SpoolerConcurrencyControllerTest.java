@@ -0,0 +1,57 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SpoolerConcurrencyControllerTest {
+
+    @Test
+    public void testGrowWhileSaturated() {
+        SpoolerConcurrencyController controller = new SpoolerConcurrencyController(2, 40, 0.9);
+        assertEquals(11, controller.adapt(10, true, 10, 100, 0.5));
+        assertEquals(12, controller.adapt(11, true, 11, 110, -1));
+        assertEquals(40, controller.adapt(40, true, 40, 100, 0.5));
+    }
+
+    @Test
+    public void testShrinkOnContention() {
+        SpoolerConcurrencyController controller = new SpoolerConcurrencyController(2, 40, 0.9);
+        assertEquals(22, controller.adapt(20, true, 20, 100, 0.5));
+        // the latency doubled after threads were added
+        assertEquals(20, controller.adapt(22, true, 22, 200, 0.5));
+    }
+
+    @Test
+    public void testShrinkOnCpuLoad() {
+        SpoolerConcurrencyController controller = new SpoolerConcurrencyController(2, 40, 0.9);
+        assertEquals(18, controller.adapt(20, true, 20, 100, 1.2));
+    }
+
+    @Test
+    public void testShrinkWhenIdle() {
+        SpoolerConcurrencyController controller = new SpoolerConcurrencyController(5, 40, 0.9);
+        assertEquals(18, controller.adapt(20, false, 3, -1, 0.1));
+        assertEquals(20, controller.adapt(20, false, 15, 100, 0.1));
+        assertEquals(5, controller.adapt(5, false, 0, -1, 0.1));
+    }
+}
@@ -63,6 +63,7 @@ import org.apache.james.dnsservice.library.MXHostAddressIterator;
 import org.apache.james.domainlist.api.DomainList;
 import org.apache.james.domainlist.api.DomainListException;
 import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.BatchMailQueue;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
@@ -94,6 +95,8 @@ import org.apache.mailet.base.GenericMailet;
  * <p/>
  * <ul>
  * <li><b>deliveryThreads</b> (required) - an Integer for the number of threads this mailet will use to deliver mail.</li>
+ * <li><b>batchSize</b> (optional) - an Integer for the maximal number of mails a thread takes from the queue at once. This
+ * is only used if the queue supports it. Default is 1.</li>
  * <li><b>outgoing</b> (required) - a String containing the name of the queue that will hold messages being processed by this mailet.</li>
  * <li><b>bind</b> (optional) - a String describing the local IP address to which the mailet should be bound while delivering
  * emails. This tag is useful for multihomed machines. Default is to bind to the default local address of the machine.<br>
@@ -154,6 +157,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      */
     private static final long DEFAULT_DELAY_TIME = 21600000;
 
+    /**
+     * How long to wait for a batch of mails, in milliseconds
+     */
+    private static final long BATCH_TIMEOUT = 1000;
+
     /**
      * Pattern to match [attempts*]delay[units].
      */
@@ -202,6 +210,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      */
     private int workersThreadCount = 1;
 
+    /**
+     * The maximal count of mails a delivery thread dequeues at once
+     */
+    private int batchSize = 1;
+
     /**
      * The server(s) to send all email to
      */
@@ -444,6 +457,11 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
         // Start Workers Threads.
         workersThreadCount = Integer.parseInt(getInitParameter("deliveryThreads"));
+
+        String batch = getInitParameter("batchSize");
+        if (batch != null) {
+            batchSize = Integer.parseInt(batch);
+        }
         initDeliveryThreads();
     }
 
@@ -777,77 +795,24 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // of time to block is determined by the 'getWaitTime'
                     // method of the
                     // MultipleDelayFilter.
-                    MailQueueItem queueItem = queue.deQueue();
-                    Mail mail = queueItem.getMail();
-
-                    String key = mail.getName();
-
-                    try {
-                        if (isDebug) {
-                            String message = Thread.currentThread().getName() + " will process mail " + key;
-                            log(message);
-                        }
-
-                        // Deliver message
-                        if (deliver(mail, session)) {
-                            // Message was successfully delivered/fully
-                            // failed...
-                            // delete it
-                            LifecycleUtil.dispose(mail);
-                            // workRepository.remove(key);
-                        } else {
-                            // Something happened that will delay delivery.
-                            // Store it back in the retry repository.
-                            // workRepository.store(mail);
-                            int retries = 0;
-                            try {
-                                retries = Integer.parseInt(mail.getErrorMessage());
-                            } catch (NumberFormatException e) {
-                                // Something strange was happen with the
-                                // errorMessage..
+                    if (batchSize > 1 && queue instanceof BatchMailQueue) {
+                        for (MailQueueItem queueItem : ((BatchMailQueue) queue).deQueue(batchSize, BATCH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                            if (destroyed) {
+                                // give the rest of the batch back to the queue
+                                queueItem.done(false);
+                                continue;
                             }
-
-                            long delay = getNextDelay(retries);
-
-                            if (usePriority) {
-                                // Use lowest priority for retries. See JAMES-1311
-                                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                            try {
+                                process(queueItem, session);
+                            } catch (Throwable e) {
+                                if (!destroyed) {
+                                    log("Exception caught in RemoteDelivery.run()", e);
+                                }
                             }
-                            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
-                            LifecycleUtil.dispose(mail);
-
-                            // This is an update, so we have to unlock and
-                            // notify or this mail is kept locked by this
-                            // thread.
-                            // workRepository.unlock(key);
-
-                            // Note: We do not notify because we updated an
-                            // already existing mail and we are now free to
-                            // handle
-                            // more mails.
-                            // Furthermore this mail should not be processed now
-                            // because we have a retry time scheduling.
                         }
-
-                        // Clear the object handle to make sure it recycles
-                        // this object.
-                        mail = null;
-                        queueItem.done(true);
-                    } catch (Exception e) {
-                        // Prevent unexpected exceptions from causing looping by
-                        // removing message from outgoing.
-                        // DO NOT CHANGE THIS to catch Error! For example, if
-                        // there were an OutOfMemory condition caused because
-                        // something else in the server was abusing memory, we
-                        // would
-                        // not want to start purging the retrying spool!
-                        log("Exception caught in RemoteDelivery.run()", e);
-                        LifecycleUtil.dispose(mail);
-                        // workRepository.remove(key);
-                        queueItem.done(false);
-                        throw new MailQueueException("Unable to perform dequeue", e);
+                    } else {
+                        process(queue.deQueue(), session);
                     }
-
                 } catch (Throwable e) {
                     if (!destroyed) {
                         log("Exception caught in RemoteDelivery.run()", e);
@@ -860,6 +825,85 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
+    /**
+     * Deliver the dequeued mail and complete the given {@link MailQueueItem}
+     *
+     * @param queueItem
+     * @param session
+     * @throws MailQueueException
+     */
+    private void process(MailQueueItem queueItem, Session session) throws MailQueueException {
+        Mail mail = queueItem.getMail();
+
+        String key = mail.getName();
+
+        try {
+            if (isDebug) {
+                String message = Thread.currentThread().getName() + " will process mail " + key;
+                log(message);
+            }
+
+            // Deliver message
+            if (deliver(mail, session)) {
+                // Message was successfully delivered/fully
+                // failed...
+                // delete it
+                LifecycleUtil.dispose(mail);
+                // workRepository.remove(key);
+            } else {
+                // Something happened that will delay delivery.
+                // Store it back in the retry repository.
+                // workRepository.store(mail);
+                int retries = 0;
+                try {
+                    retries = Integer.parseInt(mail.getErrorMessage());
+                } catch (NumberFormatException e) {
+                    // Something strange was happen with the
+                    // errorMessage..
+                }
+
+                long delay = getNextDelay(retries);
+
+                if (usePriority) {
+                    // Use lowest priority for retries. See JAMES-1311
+                    mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                }
+                queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+                LifecycleUtil.dispose(mail);
+
+                // This is an update, so we have to unlock and
+                // notify or this mail is kept locked by this
+                // thread.
+                // workRepository.unlock(key);
+
+                // Note: We do not notify because we updated an
+                // already existing mail and we are now free to
+                // handle
+                // more mails.
+                // Furthermore this mail should not be processed now
+                // because we have a retry time scheduling.
+            }
+
+            // Clear the object handle to make sure it recycles
+            // this object.
+            mail = null;
+            queueItem.done(true);
+        } catch (Exception e) {
+            // Prevent unexpected exceptions from causing looping by
+            // removing message from outgoing.
+            // DO NOT CHANGE THIS to catch Error! For example, if
+            // there were an OutOfMemory condition caused because
+            // something else in the server was abusing memory, we
+            // would
+            // not want to start purging the retrying spool!
+            log("Exception caught in RemoteDelivery.run()", e);
+            LifecycleUtil.dispose(mail);
+            // workRepository.remove(key);
+            queueItem.done(false);
+            throw new MailQueueException("Unable to perform dequeue", e);
+        }
+    }
+
     /**
      * We can assume that the recipients of this message are all going to the
      * same mail server. We will now rely on the DNS server to do DNS MX record
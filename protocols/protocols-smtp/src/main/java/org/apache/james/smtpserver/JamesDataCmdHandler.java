@@ -18,6 +18,12 @@
  ****************************************************************/
 package org.apache.james.smtpserver;
 
+import java.io.File;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import javax.inject.Named;
+
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageInputStreamSource;
 import org.apache.james.protocols.api.ProtocolSession.State;
@@ -25,12 +31,37 @@ import org.apache.james.protocols.smtp.SMTPResponse;
 import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.DataCmdHandler;
+import org.apache.james.queue.api.IngestMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
 
 /**
  * handles DATA command
  */
 public class JamesDataCmdHandler extends DataCmdHandler {
 
+    private MailQueueFactory queueFactory;
+
+    /**
+     * The directory to receive the messages in, so the spool can take them
+     * over without copying them. <code>null</code> for the temporary
+     * directory.
+     */
+    private File ingestDirectory;
+
+    @Inject
+    public void setMailQueueFactory(@Named("mailqueuefactory") MailQueueFactory queueFactory) {
+        this.queueFactory = queueFactory;
+    }
+
+    @PostConstruct
+    public void init() {
+        MailQueue queue = queueFactory.getQueue(MailQueueFactory.SPOOL);
+        if (queue instanceof IngestMailQueue) {
+            ingestDirectory = ((IngestMailQueue) queue).getIngestDirectory();
+        }
+    }
+
     /**
      * Handler method called upon receipt of a DATA command. Reads in message
      * data, creates header, and delivers to mail server service for delivery.
@@ -40,7 +71,12 @@ public class JamesDataCmdHandler extends DataCmdHandler {
      */
     protected SMTPResponse doDATA(SMTPSession session, String argument) {
         try {
-            MimeMessageInputStreamSource mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
+            MimeMessageInputStreamSource mmiss;
+            if (ingestDirectory != null) {
+                mmiss = new MimeMessageInputStreamSource(MailImpl.getId(), ingestDirectory);
+            } else {
+                mmiss = new MimeMessageInputStreamSource(MailImpl.getId());
+            }
             session.setAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, mmiss, State.Transaction);
         } catch (Exception e) {
             session.getLogger().warn("Error creating mimemessagesource for incoming data", e);
@@ -20,11 +20,16 @@ package org.apache.james.queue.activemq;
 
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
@@ -38,13 +43,21 @@ import javax.mail.MessagingException;
 
 import org.apache.activemq.ActiveMQSession;
 import org.apache.activemq.BlobMessage;
+import org.apache.activemq.ScheduledMessage;
+import org.apache.activemq.blob.BlobUploadStrategy;
 import org.apache.activemq.command.ActiveMQBlobMessage;
+import org.apache.activemq.command.ActiveMQMessage;
+import org.apache.activemq.filter.BooleanExpression;
+import org.apache.activemq.filter.MessageEvaluationContext;
+import org.apache.activemq.filter.NonCachedMessageEvaluationContext;
+import org.apache.activemq.selector.SelectorParser;
 import org.apache.activemq.util.JMSExceptionSupport;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageInputStream;
 import org.apache.james.core.MimeMessageSource;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.james.queue.jms.JMSSessionPool.PooledSession;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.springframework.jms.connection.SessionProxy;
@@ -81,11 +94,44 @@ import org.springframework.jms.connection.SessionProxy;
  * {@link #NORMAL_PRIORITY}, {@link #HIGH_PRIORITY}
  * <p>
  * </p>
- * To have a good throughput you should use a caching connection factory. </p>
+ * Connections, sessions and producers are pooled by the queue itself. </p>
+ * <p>
+ * Delayed mails are held back by the scheduler of the broker, so they are not
+ * visible to the consumers until they are due and no message selector is
+ * needed. This requires <code>schedulerSupport="true"</code> on the broker.
+ * See <a href="http://activemq.apache.org/delay-and-schedule-message-delivery.html">
+ * http://activemq.apache.org/delay-and-schedule-message-delivery.html</a>
+ * </p>
  */
 public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
+    /**
+     * How long to wait for the replies of the scheduler before a browse of the
+     * scheduled mails fails
+     */
+    private final static long SCHEDULER_BROWSE_TIMEOUT = 10000;
+
+    /**
+     * Property of the message which marks the end of the replies of the
+     * scheduler
+     */
+    private final static String JAMES_SCHEDULER_BROWSE_END = "JAMES_SCHEDULER_BROWSE_END";
+
+    /**
+     * The scheduler truncates the current time to full seconds before it adds
+     * the delay of a job, so the delay is padded by this time to never deliver
+     * a mail too early
+     */
+    private final static long SCHEDULER_GRANULARITY = 1000;
+
+    /**
+     * Scheduled mails which are due within this time are not flushed, as the
+     * scheduler may already have delivered them
+     */
+    private final static long SCHEDULER_FLUSH_MARGIN = 1000;
+
     private final boolean useBlob;
+    private final boolean useScheduler;
 
     /**
      * Construct a {@link ActiveMQMailQueue} which only use {@link BlobMessage}
@@ -96,7 +142,8 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     }
 
     /**
-     * Construct a new ActiveMQ based {@link MailQueue}.
+     * Construct a new ActiveMQ based {@link MailQueue} which use the scheduler
+     * of the broker for delayed mails.
      * 
      * @param connectionFactory
      * @param queuename
@@ -104,8 +151,41 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
      * @param logger
      */
     public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, final Logger logger) {
+        this(connectionFactory, queuename, useBlob, true, logger);
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue}.
+     * 
+     * @param connectionFactory
+     * @param queuename
+     * @param useBlob
+     * @param useScheduler
+     *            use the scheduler of the broker for delayed mails instead of
+     *            a message selector
+     * @param logger
+     */
+    public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, boolean useScheduler, final Logger logger) {
         super(connectionFactory, queuename, logger);
         this.useBlob = useBlob;
+        this.useScheduler = useScheduler;
+    }
+
+    @Override
+    protected boolean isDelayedBySelector() {
+        return !useScheduler;
+    }
+
+    @Override
+    protected Map<String, Object> getJMSProperties(Mail mail, long delayInMillis) throws MessagingException {
+        Map<String, Object> props = super.getJMSProperties(mail, delayInMillis);
+        if (useScheduler && delayInMillis > 0) {
+            props.put(ScheduledMessage.AMQ_SCHEDULED_DELAY, delayInMillis + SCHEDULER_GRANULARITY);
+
+            // the scheduler does not tell the destination of its jobs
+            props.put(JAMES_QUEUE_NAME, queueName);
+        }
+        return props;
     }
 
     /**
@@ -139,16 +219,19 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     /**
      * Produce the mail to the JMS Queue
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
+    protected void produceMail(PooledSession session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
         BlobMessage blobMessage = null;
         boolean reuse = false;
+        // the reference to a stored blob is given back if the send fails
+        FileSystemBlobStrategy storage = null;
+        URL stored = null;
+        boolean sent = false;
 
         try {
 
             // check if we should use a blob message here
             if (useBlob) {
-                ActiveMQSession amqSession = getAMQSession(session);
+                ActiveMQSession amqSession = getAMQSession(session.getSession());
                 
                 /*
                  * Remove this optimization as it could lead to problems when the same blob content
@@ -178,22 +261,29 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
 
                 }*/
                 if (blobMessage == null) {
-                    // just use the MimeMessageInputStream which can read every
-                    // MimeMessage implementation
-                    blobMessage = amqSession.createBlobMessage(new MimeMessageInputStream(mail.getMessage()));
+                    BlobUploadStrategy strategy = amqSession.getBlobTransferPolicy().getUploadStrategy();
+                    if (strategy instanceof FileSystemBlobStrategy) {
+                        // the content is only kept if no blob with the same
+                        // content exists yet
+                        storage = (FileSystemBlobStrategy) strategy;
+                        stored = storage.store(new MimeMessageInputStream(mail.getMessage()));
+                        blobMessage = amqSession.createBlobMessage(stored);
+                    } else {
+                        // just use the MimeMessageInputStream which can read every
+                        // MimeMessage implementation
+                        blobMessage = amqSession.createBlobMessage(new MimeMessageInputStream(mail.getMessage()));
+                    }
                 }
                  
                     
                 // store the queue name in the props
                 props.put(JAMES_QUEUE_NAME, queueName);
 
-                Queue queue = session.createQueue(queueName);
-
-                producer = session.createProducer(queue);
                 for (Map.Entry<String, Object> entry : props.entrySet()) {
                     blobMessage.setObjectProperty(entry.getKey(), entry.getValue());
                 }
-                producer.send(blobMessage, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+                session.getProducer().send(blobMessage, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+                sent = true;
                     
               
 
@@ -201,17 +291,17 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 super.produceMail(session, props, msgPrio, mail);
             }
         } catch (JMSException e) {
-            if (!reuse && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
+            if (!reuse && stored == null && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
                 ((ActiveMQBlobMessage) blobMessage).deleteFile();
             }
             throw e;
         } finally {
-
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
+            if (stored != null && !sent) {
+                try {
+                    storage.release(stored);
+                } catch (IOException e) {
+                    logger.info("Unable to release blob " + stored + " of mail " + mail.getName(), e);
+                }
             }
         }
 
@@ -238,14 +328,34 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     }
 
     @Override
-    protected MailQueueItem createMailQueueItem(Connection connection, Session session, MessageConsumer consumer, Message message) throws JMSException, MessagingException {
+    protected MailQueueItem createMailQueueItem(PooledSession session, Message message) throws JMSException, MessagingException {
         Mail mail = createMail(message);
-        return new ActiveMQMailQueueItem(mail, connection, session, consumer, message, logger);
+        return new ActiveMQMailQueueItem(mail, pool, session, statistics, getKey(message), message, logger);
+    }
+
+    @Override
+    protected void committed(Mail mail, Message message) {
+        if (message instanceof ActiveMQBlobMessage && mail.getAttribute(JAMES_REUSE_BLOB_URL) == null) {
+
+            // This should get removed once this jira issue was fixed
+            // https://issues.apache.org/activemq/browse/AMQ-1529
+            try {
+                ((ActiveMQBlobMessage) message).deleteFile();
+            } catch (IOException e) {
+                logger.info("Unable to delete blob message file for mail " + mail.getName());
+            } catch (JMSException e) {
+                logger.info("Unable to delete blob message file for mail " + mail.getName());
+            }
+        }
+        mail.removeAttribute(JAMES_REUSE_BLOB_URL);
     }
 
     @Override
     public List<Message> removeWithSelector(String selector) throws MailQueueException {
         List<Message> mList = super.removeWithSelector(selector);
+        if (useScheduler) {
+            mList.addAll(removeScheduled(selector));
+        }
 
         // Handle the blob messages
         for (Message m : mList) {
@@ -272,18 +382,340 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
             } catch (IOException e) {
                 throw JMSExceptionSupport.create("Unable to copy message " + m, e);
             }
-            return copy;
+            copy.setStringProperty(JAMES_QUEUE_KEY, getKey(b));
+            return unschedule(copy);
         } else {
-            return super.copy(session, m);
+            return unschedule(super.copy(session, m));
+        }
+    }
+
+    /**
+     * Let the scheduler of the broker hold back the copy if it is used
+     */
+    @Override
+    protected void delay(Message copy, long delay) throws JMSException {
+        super.delay(copy, delay);
+        if (useScheduler) {
+            copy.setLongProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY, delay + SCHEDULER_GRANULARITY);
+            copy.setStringProperty(JAMES_QUEUE_NAME, queueName);
+        }
+    }
+
+    /**
+     * Remove the scheduler properties of the copy of a message, so it gets
+     * delivered right away
+     */
+    private Message unschedule(Message m) throws JMSException {
+        if (m instanceof ActiveMQMessage) {
+            try {
+                ((ActiveMQMessage) m).removeProperty(ScheduledMessage.AMQ_SCHEDULED_DELAY);
+                ((ActiveMQMessage) m).removeProperty(ScheduledMessage.AMQ_SCHEDULED_ID);
+            } catch (IOException e) {
+                throw JMSExceptionSupport.create("Unable to copy message " + m, e);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Also deliver the scheduled mails of this queue right away
+     */
+    @Override
+    public long flush() throws MailQueueException {
+        long count = super.flush();
+        if (!useScheduler) {
+            return count;
+        }
+
+        Session session = null;
+        MessageProducer producer = null;
+        try {
+            session = pool.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+            producer = session.createProducer(session.createQueue(queueName));
+            long due = System.currentTimeMillis() + SCHEDULER_FLUSH_MARGIN;
+            for (Message m : browseScheduled(session, due, Long.MAX_VALUE)) {
+                removeScheduled(session, m);
+                producer.send(copy(session, m), m.getJMSDeliveryMode(), m.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
+                count++;
+            }
+            return count;
+        } catch (Exception e) {
+            logger.error("Unable to flush scheduled mails", e);
+            throw new MailQueueException("Unable to flush scheduled mails of queue " + queueName, e);
+        } finally {
+            if (producer != null) {
+                try {
+                    producer.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+            }
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Also include the scheduled mails of this queue
+     */
+    @Override
+    protected MailQueueIterator browse(String selector) throws MailQueueException {
+        return withScheduled(super.browse(selector), selector, true);
+    }
+
+    /**
+     * Also include the scheduled mails of this queue
+     */
+    @Override
+    protected MailQueueIterator browseStatistics() throws MailQueueException {
+        return withScheduled(super.browseStatistics(), null, false);
+    }
+
+    /**
+     * Append the scheduled mails which match the given selector to the given
+     * iterator
+     */
+    private MailQueueIterator withScheduled(final MailQueueIterator queued, String selector, final boolean withMail) throws MailQueueException {
+        if (!useScheduler) {
+            return queued;
+        }
+
+        final Iterator<Message> scheduled;
+        try {
+            scheduled = browseScheduled(selector).iterator();
+        } catch (MailQueueException e) {
+            queued.close();
+            throw e;
+        }
+        return new MailQueueIterator() {
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                if (queued.hasNext()) {
+                    return queued.next();
+                }
+                while (scheduled.hasNext()) {
+                    try {
+                        Message m = scheduled.next();
+                        return withMail ? createMailQueueItemView(m) : createStatisticsView(m);
+                    } catch (MessagingException e) {
+                        logger.error("Unable to browse queue", e);
+                    } catch (JMSException e) {
+                        logger.error("Unable to browse queue", e);
+                    }
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public boolean hasNext() {
+                return queued.hasNext() || scheduled.hasNext();
+            }
+
+            @Override
+            public void close() {
+                queued.close();
+            }
+        };
+    }
+
+    /**
+     * Return the messages of this queue which are held back by the scheduler
+     * of the broker and match the given selector. The selector is evaluated by
+     * the client, as the scheduler does not support them.
+     *
+     * @param selector
+     *            the selector or <code>null</code> to return all messages
+     * @return scheduled
+     * @throws MailQueueException
+     */
+    protected List<Message> browseScheduled(String selector) throws MailQueueException {
+        Session session = null;
+        try {
+            BooleanExpression expression = selector == null ? null : SelectorParser.parse(selector);
+            MessageEvaluationContext context = new NonCachedMessageEvaluationContext();
+
+            session = pool.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+            List<Message> scheduled = new ArrayList<Message>();
+            for (Message m : browseScheduled(session, 0, Long.MAX_VALUE)) {
+                if (matches(expression, context, m)) {
+                    scheduled.add(m);
+                }
+            }
+            return scheduled;
+        } catch (JMSException e) {
+            throw new MailQueueException("Unable to browse scheduled mails of queue " + queueName, e);
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Remove the scheduled messages of this queue which match the given
+     * selector. The selector is evaluated by the client, as the scheduler
+     * does not support them.
+     *
+     * @param selector
+     * @return removed
+     * @throws MailQueueException
+     */
+    protected List<Message> removeScheduled(String selector) throws MailQueueException {
+        Session session = null;
+        List<Message> removed = new ArrayList<Message>();
+        try {
+            BooleanExpression expression = selector == null ? null : SelectorParser.parse(selector);
+            MessageEvaluationContext context = new NonCachedMessageEvaluationContext();
+
+            session = pool.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE);
+            for (Message m : browseScheduled(session, 0, Long.MAX_VALUE)) {
+                if (matches(expression, context, m)) {
+                    removeScheduled(session, m);
+                    statistics.remove(getKey(m));
+                    removed.add(m);
+                }
+            }
+            return removed;
+        } catch (JMSException e) {
+            throw new MailQueueException("Unable to remove scheduled mails of queue " + queueName, e);
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e1) {
+                // ignore here
+            }
+        }
+    }
+
+    private static boolean matches(BooleanExpression expression, MessageEvaluationContext context, Message m) throws JMSException {
+        if (expression == null) {
+            return true;
+        }
+        context.setMessageReference((ActiveMQMessage) m);
+        return expression.matches(context);
+    }
+
+    /**
+     * Ask the scheduler for its jobs which are due between the given times and
+     * return the ones of this queue. The scheduler sends one message per job
+     * to the reply destination while it handles the request. The broker
+     * handles the commands of a connection in order, so a marker which is sent
+     * to the reply destination after the request is queued after all replies.
+     * The jobs of other queues are filtered by the selector of the consumer,
+     * so they are never sent to this client.
+     *
+     * @throws JMSException
+     *             if the end of the replies was not received in time
+     */
+    private List<Message> browseScheduled(Session session, long start, long end) throws JMSException {
+        List<Message> messages = new ArrayList<Message>();
+        TemporaryQueue replyTo = session.createTemporaryQueue();
+        MessageConsumer consumer = null;
+        MessageProducer producer = null;
+        try {
+            consumer = session.createConsumer(replyTo, JAMES_QUEUE_NAME + " = '" + queueName.replace("'", "''") + "'");
+            producer = session.createProducer(null);
+
+            Message request = session.createMessage();
+            request.setStringProperty(ScheduledMessage.AMQ_SCHEDULER_ACTION, ScheduledMessage.AMQ_SCHEDULER_ACTION_BROWSE);
+            request.setLongProperty(ScheduledMessage.AMQ_SCHEDULER_ACTION_START_TIME, start);
+            request.setLongProperty(ScheduledMessage.AMQ_SCHEDULER_ACTION_END_TIME, end);
+            request.setJMSReplyTo(replyTo);
+            producer.send(session.createTopic(ScheduledMessage.AMQ_SCHEDULER_MANAGEMENT_DESTINATION), request, DeliveryMode.PERSISTENT, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+
+            Message marker = session.createMessage();
+            marker.setStringProperty(JAMES_QUEUE_NAME, queueName);
+            marker.setBooleanProperty(JAMES_SCHEDULER_BROWSE_END, true);
+            producer.send(replyTo, marker, DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+
+            long deadline = System.currentTimeMillis() + SCHEDULER_BROWSE_TIMEOUT;
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                Message m = remaining > 0 ? consumer.receive(remaining) : null;
+                if (m == null) {
+                    throw new JMSException("Timeout while browsing the scheduled mails of queue " + queueName);
+                }
+                if (m.propertyExists(JAMES_SCHEDULER_BROWSE_END)) {
+                    return messages;
+                }
+                messages.add(m);
+            }
+        } finally {
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+            }
+            if (producer != null) {
+                try {
+                    producer.close();
+                } catch (JMSException e1) {
+                    // ignore here
+                }
+            }
+            try {
+                // see getSize()
+                replyTo.delete();
+            } catch (JMSException e) {
+            }
+        }
+    }
+
+    /**
+     * Remove the job of the given scheduled message from the scheduler
+     */
+    private void removeScheduled(Session session, Message m) throws JMSException {
+        MessageProducer producer = session.createProducer(session.createTopic(ScheduledMessage.AMQ_SCHEDULER_MANAGEMENT_DESTINATION));
+        try {
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            Message request = session.createMessage();
+            request.setStringProperty(ScheduledMessage.AMQ_SCHEDULER_ACTION, ScheduledMessage.AMQ_SCHEDULER_ACTION_REMOVE);
+            request.setStringProperty(ScheduledMessage.AMQ_SCHEDULED_ID, m.getStringProperty(ScheduledMessage.AMQ_SCHEDULED_ID));
+            producer.send(request);
+        } finally {
+            producer.close();
         }
     }
 
     /**
      * Try to use ActiveMQ StatisticsPlugin to get size and if that fails
-     * fallback to {@link JMSMailQueue#getSize()}
+     * fallback to {@link JMSMailQueue#getSize()}. Mails which are held back by
+     * the scheduler are taken from the statistics of this queue.
      */
     @Override
     public long getSize() throws MailQueueException {
+        long size = getQueueSize();
+        if (size < 0) {
+            return super.getSize();
+        }
+        if (useScheduler) {
+            loadStatistics();
+            size += statistics.getDeferredCount();
+        }
+        return size;
+    }
+
+    /**
+     * Return the size of the queue reported by the StatisticsPlugin or -1 if
+     * it is not available
+     */
+    private long getQueueSize() throws MailQueueException {
 
         Connection connection = null;
         Session session = null;
@@ -293,8 +725,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
         long size;
 
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
+            connection = pool.getConnection();
 
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
             replyTo = session.createTemporaryQueue();
@@ -321,7 +752,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
             }
 
         } catch (Exception e) {
-            throw new MailQueueException("Unable to remove mails", e);
+            throw new MailQueueException("Unable to get size of queue " + queueName, e);
 
         } finally {
 
@@ -330,8 +761,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 try {
                     consumer.close();
                 } catch (JMSException e1) {
-                    e1.printStackTrace();
-                    // ignore on rollback
+                    logger.debug("Unable to close consumer of the statistics of queue " + queueName, e1);
                 }
             }
 
@@ -361,17 +791,10 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
             } catch (JMSException e1) {
                 // ignore here
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
         }
 
         // if we came to this point we should just fallback to super method
-        return super.getSize();
+        return -1;
     }
 
 }
@@ -29,13 +29,24 @@ import org.apache.james.queue.jms.JMSMailQueueFactory;
 public class ActiveMQMailQueueFactory extends JMSMailQueueFactory {
 
     private boolean useBlob = true;
+    private boolean useScheduler = true;
 
     public void setUseBlobMessages(boolean useBlob) {
         this.useBlob = useBlob;
     }
 
+    /**
+     * Use the scheduler of the broker for delayed mails. The broker needs to
+     * get started with <code>schedulerSupport="true"</code> for this.
+     *
+     * @param useScheduler
+     */
+    public void setUseBrokerScheduler(boolean useScheduler) {
+        this.useScheduler = useScheduler;
+    }
+
     @Override
     protected MailQueue createMailQueue(String name) {
-        return new ActiveMQMailQueue(connectionFactory, name, useBlob, log);
+        return configure(new ActiveMQMailQueue(connectionFactory, name, useBlob, useScheduler, log));
     }
 }
@@ -1,76 +1,80 @@
-/****************************************************************
- * Licensed to the Apache Software Foundation (ASF) under one   *
- * or more contributor license agreements.  See the NOTICE file *
- * distributed with this work for additional information        *
- * regarding copyright ownership.  The ASF licenses this file   *
- * to you under the Apache License, Version 2.0 (the            *
- * "License"); you may not use this file except in compliance   *
- * with the License.  You may obtain a copy of the License at   *
- *                                                              *
- *   http://www.apache.org/licenses/LICENSE-2.0                 *
- *                                                              *
- * Unless required by applicable law or agreed to in writing,   *
- * software distributed under the License is distributed on an  *
- * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
- * KIND, either express or implied.  See the License for the    *
- * specific language governing permissions and limitations      *
- * under the License.                                           *
- ****************************************************************/
-
-package org.apache.james.queue.activemq;
-
-import java.io.IOException;
-
-import javax.jms.Connection;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageConsumer;
-import javax.jms.Session;
-
-import org.apache.activemq.command.ActiveMQBlobMessage;
-import org.apache.james.queue.api.MailQueue.MailQueueException;
-import org.apache.james.queue.api.MailQueue.MailQueueItem;
-import org.apache.james.queue.jms.JMSMailQueueItem;
-import org.apache.mailet.Mail;
-import org.slf4j.Logger;
-
-/**
- * ActiveMQ {@link MailQueueItem} implementation which handles Blob-Messages as
- * well
- */
-public class ActiveMQMailQueueItem extends JMSMailQueueItem implements ActiveMQSupport {
-
-    private final Message message;
-    private final Logger logger;
-
-    public ActiveMQMailQueueItem(Mail mail, Connection connection, Session session, MessageConsumer consumer, Message message, Logger logger) {
-        super(mail, connection, session, consumer);
-        this.message = message;
-        this.logger = logger;
-    }
-
-    /**
-     * @see org.apache.james.queue.jms.JMSMailQueueItem#done(boolean)
-     */
-    public void done(boolean success) throws MailQueueException {
-        super.done(success);
-        if (success) {
-            if (message instanceof ActiveMQBlobMessage && getMail().getAttribute(JAMES_REUSE_BLOB_URL) == null) {
-
-                // This should get removed once this jira issue was fixed
-                // https://issues.apache.org/activemq/browse/AMQ-1529
-                try {
-                    ((ActiveMQBlobMessage) message).deleteFile();
-                } catch (IOException e) {
-                    logger.info("Unable to delete blob message file for mail " + getMail().getName());
-                } catch (JMSException e) {
-                    logger.info("Unable to delete blob message file for mail " + getMail().getName());
-                }
-            }
-            getMail().removeAttribute(JAMES_REUSE_BLOB_URL);
-
-        }
-
-    }
-
-}
\ No newline at end of file
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.queue.activemq;
+
+import java.io.IOException;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+import org.apache.activemq.command.ActiveMQBlobMessage;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.jms.JMSMailQueueItem;
+import org.apache.james.queue.jms.JMSSessionPool;
+import org.apache.james.queue.jms.JMSSessionPool.PooledSession;
+import org.apache.james.queue.library.MailQueueStatistics;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * ActiveMQ {@link MailQueueItem} implementation which handles Blob-Messages as
+ * well
+ */
+public class ActiveMQMailQueueItem extends JMSMailQueueItem implements ActiveMQSupport {
+
+    private final Message message;
+    private final Logger logger;
+
+    public ActiveMQMailQueueItem(Mail mail, JMSSessionPool pool, PooledSession session, Message message, Logger logger) {
+        this(mail, pool, session, null, null, message, logger);
+    }
+
+    public ActiveMQMailQueueItem(Mail mail, JMSSessionPool pool, PooledSession session, MailQueueStatistics statistics, String key, Message message, Logger logger) {
+        super(mail, pool, session, statistics, key);
+        this.message = message;
+        this.logger = logger;
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSMailQueueItem#done(boolean)
+     */
+    public void done(boolean success) throws MailQueueException {
+        super.done(success);
+        if (success) {
+            if (message instanceof ActiveMQBlobMessage && getMail().getAttribute(JAMES_REUSE_BLOB_URL) == null) {
+
+                // This should get removed once this jira issue was fixed
+                // https://issues.apache.org/activemq/browse/AMQ-1529
+                try {
+                    ((ActiveMQBlobMessage) message).deleteFile();
+                } catch (IOException e) {
+                    logger.info("Unable to delete blob message file for mail " + getMail().getName());
+                } catch (JMSException e) {
+                    logger.info("Unable to delete blob message file for mail " + getMail().getName());
+                }
+            }
+            getMail().removeAttribute(JAMES_REUSE_BLOB_URL);
+
+        }
+
+    }
+
+}
\ No newline at end of file
@@ -1,142 +1,327 @@
-/****************************************************************
- * Licensed to the Apache Software Foundation (ASF) under one   *
- * or more contributor license agreements.  See the NOTICE file *
- * distributed with this work for additional information        *
- * regarding copyright ownership.  The ASF licenses this file   *
- * to you under the Apache License, Version 2.0 (the            *
- * "License"); you may not use this file except in compliance   *
- * with the License.  You may obtain a copy of the License at   *
- *                                                              *
- *   http://www.apache.org/licenses/LICENSE-2.0                 *
- *                                                              *
- * Unless required by applicable law or agreed to in writing,   *
- * software distributed under the License is distributed on an  *
- * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
- * KIND, either express or implied.  See the License for the    *
- * specific language governing permissions and limitations      *
- * under the License.                                           *
- ****************************************************************/
-package org.apache.james.queue.activemq;
-
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-
-import javax.jms.JMSException;
-
-import org.apache.activemq.BlobMessage;
-import org.apache.activemq.blob.BlobDownloadStrategy;
-import org.apache.activemq.blob.BlobTransferPolicy;
-import org.apache.activemq.blob.BlobUploadStrategy;
-import org.apache.activemq.command.ActiveMQBlobMessage;
-import org.apache.commons.io.FileUtils;
-import org.apache.james.filesystem.api.FileSystem;
-
-/**
- * {@link BlobUploadStrategy} and {@link BlobDownloadStrategy} implementation
- * which use the {@link FileSystem} to lookup the {@link File} for the
- * {@link BlobMessage}
- */
-public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadStrategy, ActiveMQSupport {
-
-    private final FileSystem fileSystem;
-    private final BlobTransferPolicy policy;
-    private final int splitCount;
-    private final Object lock = new Object();
-
-    public FileSystemBlobStrategy(final BlobTransferPolicy policy, final FileSystem fileSystem, int splitCount) {
-        this.fileSystem = fileSystem;
-        this.policy = policy;
-        this.splitCount = splitCount;
-    }
-
-    @Override
-    public URL uploadFile(ActiveMQBlobMessage message, File file) throws JMSException, IOException {
-        return uploadStream(message, new FileInputStream(file));
-    }
-
-    @Override
-    public URL uploadStream(ActiveMQBlobMessage message, InputStream in) throws JMSException, IOException {
-        FileOutputStream out = null;
-        try {
-            File f = getFile(message);
-            out = new FileOutputStream(f);
-            byte[] buffer = new byte[policy.getBufferSize()];
-            for (int c = in.read(buffer); c != -1; c = in.read(buffer)) {
-                out.write(buffer, 0, c);
-                out.flush();
-            }
-            out.flush();
-            // File.toURL() is deprecated
-            return f.toURI().toURL();
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
-        }
-
-    }
-
-    @Override
-    public void deleteFile(ActiveMQBlobMessage message) throws IOException, JMSException {
-        File f = getFile(message);
-        synchronized (lock) {
-            FileUtils.forceDelete(f);
-        }
-    }
-
-    /**
-     * Returns a {@link FileInputStream} for the give {@link BlobMessage}
-     */
-    @Override
-    public InputStream getInputStream(ActiveMQBlobMessage message) throws IOException, JMSException {
-        return new FileInputStream(getFile(message));
-    }
-
-    /**
-     * Return the {@link File} for the {@link ActiveMQBlobMessage}. The
-     * {@link File} is lookup via the {@link FileSystem} service
-     *
-     * @param message
-     * @return file
-     * @throws JMSException
-     * @throws FileNotFoundException
-     */
-    protected File getFile(ActiveMQBlobMessage message) throws JMSException, IOException {
-        if (message.getURL() != null) {
-            return fileSystem.getFile(message.getURL().toString());
-        }
-
-        // Make sure it works on windows in all cases and make sure
-        // we use the JMS Message ID as filename so we are safe in the case
-        // we try to stream from and to the same mail
-        String filename = message.getJMSMessageID().replaceAll("[:\\\\/*?|<>]", "_");
-        int i = (int) (Math.random() * splitCount + 1);
-
-        String queueUrl = policy.getUploadUrl() + "/" + i;
-
-        File queueF = fileSystem.getFile(queueUrl);
-
-        synchronized (lock) {
-            // check if we need to create the queue folder
-            FileUtils.forceMkdir(queueF);
-        }
-
-        return fileSystem.getFile(queueUrl + "/" + filename);
-    }
-}
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.activemq;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+
+import org.apache.activemq.BlobMessage;
+import org.apache.activemq.blob.BlobDownloadStrategy;
+import org.apache.activemq.blob.BlobTransferPolicy;
+import org.apache.activemq.blob.BlobUploadStrategy;
+import org.apache.activemq.command.ActiveMQBlobMessage;
+import org.apache.commons.io.FileUtils;
+import org.apache.james.filesystem.api.FileSystem;
+
+/**
+ * {@link BlobUploadStrategy} and {@link BlobDownloadStrategy} implementation
+ * which use the {@link FileSystem} to lookup the {@link File} for the
+ * {@link BlobMessage}
+ * <p/>
+ * The blobs are content-addressed: the file is named by the SHA-256 hash of
+ * its content, so a message which is enqueued more than once, for example
+ * once per destination domain, is only stored once. The references to a blob
+ * are counted and the file is only deleted once the last referencing message
+ * was acknowledged or removed. The count is kept in a <code>.refs</code> file
+ * next to the blob, which only exists while the blob is shared.
+ */
+public class FileSystemBlobStrategy implements BlobUploadStrategy, BlobDownloadStrategy, ActiveMQSupport {
+
+    private final static String DIGEST_ALGORITHM = "SHA-256";
+    private final static String REFS_EXTENSION = ".refs";
+    private final static String TMP_DIR = "tmp";
+    private final static String TMP_EXTENSION = ".tmp";
+    private final static AtomicLong COUNTER = new AtomicLong();
+
+    /**
+     * Every strategy which works on the same files must use the same lock, as
+     * the {@link BlobTransferPolicy} is copied for every connection
+     */
+    private final static Object LOCK = new Object();
+
+    private final FileSystem fileSystem;
+    private final BlobTransferPolicy policy;
+    private final int splitCount;
+
+    public FileSystemBlobStrategy(final BlobTransferPolicy policy, final FileSystem fileSystem, int splitCount) {
+        this.fileSystem = fileSystem;
+        this.policy = policy;
+        this.splitCount = splitCount;
+    }
+
+    @Override
+    public URL uploadFile(ActiveMQBlobMessage message, File file) throws JMSException, IOException {
+        return uploadStream(message, new FileInputStream(file));
+    }
+
+    @Override
+    public URL uploadStream(ActiveMQBlobMessage message, InputStream in) throws JMSException, IOException {
+        return store(in);
+    }
+
+    /**
+     * Write the stream to a temporary file and move it to the blob of its
+     * hash, or just reference the blob if it exists already. The content is
+     * hashed while it is written, so it is read only once. The reference must
+     * be given back by {@link #release(URL)} if the blob is not sent.
+     *
+     * @param in
+     *            the content, which gets closed
+     * @return url
+     * @throws IOException
+     */
+    public URL store(InputStream in) throws IOException {
+        File tmpDir = fileSystem.getFile(policy.getUploadUrl() + "/" + TMP_DIR);
+        synchronized (LOCK) {
+            FileUtils.forceMkdir(tmpDir);
+        }
+        File tmp = new File(tmpDir, System.currentTimeMillis() + "-" + COUNTER.incrementAndGet());
+        String hash;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            hash = hash(in, out);
+        } catch (IOException e) {
+            FileUtils.deleteQuietly(tmp);
+            throw e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+        }
+
+        File f = getBlobFile(hash);
+        synchronized (LOCK) {
+            if (f.exists()) {
+                FileUtils.deleteQuietly(tmp);
+                writeRefs(f, readRefs(f) + 1);
+            } else {
+                FileUtils.forceMkdir(f.getParentFile());
+                if (!tmp.renameTo(f)) {
+                    FileUtils.deleteQuietly(tmp);
+                    throw new IOException("Unable to rename " + tmp + " to " + f);
+                }
+            }
+        }
+        return f.toURI().toURL();
+    }
+
+    /**
+     * Release the reference of the message to its blob. The file is deleted
+     * once no message references it anymore.
+     */
+    @Override
+    public void deleteFile(ActiveMQBlobMessage message) throws IOException, JMSException {
+        release(getFile(message));
+    }
+
+    /**
+     * Release a reference which was returned by {@link #store(InputStream)}
+     *
+     * @param url
+     * @throws IOException
+     */
+    public void release(URL url) throws IOException {
+        release(fileSystem.getFile(url.toString()));
+    }
+
+    private void release(File f) throws IOException {
+        synchronized (LOCK) {
+            int refs = readRefs(f) - 1;
+            if (refs > 0) {
+                writeRefs(f, refs);
+            } else {
+                FileUtils.forceDelete(f);
+                FileUtils.deleteQuietly(getRefsFile(f));
+                FileUtils.deleteQuietly(getRefsTmpFile(f));
+            }
+        }
+    }
+
+    /**
+     * Returns a {@link FileInputStream} for the give {@link BlobMessage}
+     */
+    @Override
+    public InputStream getInputStream(ActiveMQBlobMessage message) throws IOException, JMSException {
+        return new FileInputStream(getFile(message));
+    }
+
+    /**
+     * Return the {@link File} for the {@link ActiveMQBlobMessage}. The
+     * {@link File} is lookup via the {@link FileSystem} service
+     *
+     * @param message
+     * @return file
+     * @throws JMSException
+     * @throws FileNotFoundException
+     */
+    protected File getFile(ActiveMQBlobMessage message) throws JMSException, IOException {
+        if (message.getURL() != null) {
+            return fileSystem.getFile(message.getURL().toString());
+        }
+
+        // Make sure it works on windows in all cases and make sure
+        // we use the JMS Message ID as filename so we are safe in the case
+        // we try to stream from and to the same mail
+        String filename = message.getJMSMessageID().replaceAll("[:\\\\/*?|<>]", "_");
+        int i = (int) (Math.random() * splitCount + 1);
+
+        String queueUrl = policy.getUploadUrl() + "/" + i;
+
+        File queueF = fileSystem.getFile(queueUrl);
+
+        synchronized (LOCK) {
+            // check if we need to create the queue folder
+            FileUtils.forceMkdir(queueF);
+        }
+
+        return fileSystem.getFile(queueUrl + "/" + filename);
+    }
+
+    /**
+     * Return the {@link File} of the blob with the given hash. The split
+     * directory is derived from the hash, so equal content always ends up in
+     * the same file.
+     */
+    private File getBlobFile(String hash) throws IOException {
+        int split = Integer.parseInt(hash.substring(0, 2), 16) % splitCount + 1;
+        return fileSystem.getFile(policy.getUploadUrl() + "/" + split + "/" + hash);
+    }
+
+    private static File getRefsFile(File f) {
+        return new File(f.getPath() + REFS_EXTENSION);
+    }
+
+    private static File getRefsTmpFile(File f) {
+        return new File(f.getPath() + REFS_EXTENSION + TMP_EXTENSION);
+    }
+
+    /**
+     * Return the count of references to the given blob. A blob without a
+     * refs file, including the ones written before blobs were shared, is
+     * referenced once. If the refs file is missing because a replace of it
+     * was interrupted, the complete temporary file is used.
+     */
+    private static int readRefs(File f) throws IOException {
+        File refs = getRefsFile(f);
+        if (!refs.exists()) {
+            File tmp = getRefsTmpFile(f);
+            if (tmp.exists()) {
+                try {
+                    return readInt(tmp);
+                } catch (EOFException e) {
+                    // the write of the temporary file was interrupted
+                }
+            }
+            return 1;
+        }
+        return readInt(refs);
+    }
+
+    private static int readInt(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the count of references to the given blob. The count is written
+     * to a temporary file which is synced and then renamed to the refs file,
+     * so a crash never leaves an empty or truncated refs file behind.
+     */
+    private static void writeRefs(File f, int count) throws IOException {
+        File refs = getRefsFile(f);
+        File tmp = getRefsTmpFile(f);
+        if (count == 1) {
+            FileUtils.deleteQuietly(refs);
+            FileUtils.deleteQuietly(tmp);
+            return;
+        }
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fout);
+            out.writeInt(count);
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+        // renaming over an existing file fails on some platforms, the
+        // complete temporary file is picked up by readRefs in between
+        if (!tmp.renameTo(refs) && !(refs.delete() && tmp.renameTo(refs))) {
+            throw new IOException("Unable to rename " + tmp + " to " + refs);
+        }
+    }
+
+    /**
+     * Read the stream to the end and return the hex encoded hash of its
+     * content, which is copied to the given {@link OutputStream}. The stream
+     * gets closed.
+     */
+    private String hash(InputStream in, OutputStream out) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Unable to hash blob: " + e.getMessage());
+        }
+        DigestInputStream din = new DigestInputStream(in, digest);
+        try {
+            byte[] buffer = new byte[policy.getBufferSize()];
+            for (int c = din.read(buffer); c != -1; c = din.read(buffer)) {
+                out.write(buffer, 0, c);
+            }
+            out.flush();
+        } finally {
+            try {
+                din.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -18,15 +18,22 @@
  ****************************************************************/
 package org.apache.james.queue.activemq;
 
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.mailet.Mail;
+import org.junit.Test;
 
 import com.google.common.base.Throwables;
 
@@ -76,6 +83,63 @@ public class ActiveMQMailQueueBlobTest extends ActiveMQMailQueueTest {
         return true;
     }
 
+    @Test
+    public void testBlobIsShared() throws Exception {
+        File dir = fs.getFile(BASE_DIR);
+        int blobs = countBlobs(dir);
+
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        mail.setName(mail.getName() + "-2");
+        queue.enQueue(mail);
+        assertEquals(blobs + 1, countBlobs(dir));
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        assertEquals(blobs + 1, countBlobs(dir));
+
+        // the blob is deleted with the last reference
+        item = queue.deQueue();
+        item.done(true);
+        assertEquals(blobs, countBlobs(dir));
+    }
+
+    @Test
+    public void testUnsentBlobIsReleased() throws Exception {
+        File dir = fs.getFile(BASE_DIR);
+        int blobs = countBlobs(dir);
+        FileSystemBlobTransferPolicy policy = new FileSystemBlobTransferPolicy();
+        policy.setFileSystem(fs);
+        policy.setDefaultUploadUrl(BASE_DIR);
+        FileSystemBlobStrategy strategy = new FileSystemBlobStrategy(policy, fs, 10);
+
+        byte[] content = "unsent content".getBytes("US-ASCII");
+        URL url = strategy.store(new ByteArrayInputStream(content));
+        assertEquals(url, strategy.store(new ByteArrayInputStream(content)));
+        assertEquals(blobs + 1, countBlobs(dir));
+
+        // the references of the blobs which were not sent are given back
+        strategy.release(url);
+        assertEquals(blobs + 1, countBlobs(dir));
+        strategy.release(url);
+        assertEquals(blobs, countBlobs(dir));
+    }
+
+    private int countBlobs(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    count += countBlobs(f);
+                } else if (!f.getName().endsWith(".refs")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
     private final class MyFileSystem implements FileSystem {
 
         @Override
@@ -23,15 +23,24 @@ import org.apache.activemq.broker.BrokerService;
 import org.apache.activemq.broker.region.policy.PolicyEntry;
 import org.apache.activemq.broker.region.policy.PolicyMap;
 import org.apache.activemq.plugin.StatisticsBrokerPlugin;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
 import org.apache.james.queue.jms.AbstractJMSMailQueueTest;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.mailet.Mail;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import javax.jms.ConnectionFactory;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 public abstract class ActiveMQMailQueueTest extends AbstractJMSMailQueueTest {
 
@@ -66,10 +75,36 @@ public abstract class ActiveMQMailQueueTest extends AbstractJMSMailQueueTest {
         // Enable statistics
         broker.setPlugins(new BrokerPlugin[]{new StatisticsBrokerPlugin()});
         broker.setEnableStatistics(true);
+        // Enable the scheduler for delayed mails
+        broker.setSchedulerSupport(true);
+        broker.setDataDirectory("target/activemq-data");
 
         return broker;
     }
 
+    @Test
+    public void testDelayedMailIsHeldBackByBroker() throws Exception {
+        final JMSMailQueue queue = getQueue();
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        queue.enQueue(mail, 30, TimeUnit.SECONDS);
+
+        // the consumers don't see the mail, but it is still part of the queue
+        assertTrue(queue.deQueue(1, 1, TimeUnit.SECONDS).isEmpty());
+        assertEquals(1, queue.getSize());
+
+        MailQueueIterator it = queue.browse();
+        assertTrue(it.hasNext());
+        checkMail(mail, it.next().getMail());
+        assertFalse(it.hasNext());
+        it.close();
+
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, mail.getName()));
+        assertEquals(0, queue.getSize());
+        assertTrue(queue.deQueue(1, 1, TimeUnit.SECONDS).isEmpty());
+    }
+
     @Override
     protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
         Logger log = LoggerFactory.getLogger(ActiveMQMailQueueTest.class);
@@ -0,0 +1,55 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MailQueue} which is able to dequeue more then one Mail at
+ * once
+ */
+public interface BatchMailQueue extends MailQueue {
+
+    /**
+     * Dequeue up to max ready-to-process Mails. This method will block until
+     * at least one Mail is ready or the timeout elapsed. Mails which get ready
+     * after the first one was received are not waited for.
+     * <p/>
+     * {@link MailQueueItem#done(boolean)} MUST get called for every returned
+     * item. Implementations may defer the acknowledgement until all items of
+     * the batch are done and then acknowledge them at once, for example in
+     * one transaction.
+     * <p/>
+     * The delivery is at-least-once: a Mail whose acknowledgement failed or
+     * was not done yet when the server stopped gets dequeued again, even if
+     * it was processed successfully. If an implementation acknowledges the
+     * items at once, a failure may only be reported to the caller which
+     * completed the batch, so callers must not rely on
+     * {@link MailQueueItem#done(boolean)} throwing to detect it.
+     * 
+     * @param max
+     *            the maximal count of items to return
+     * @param timeout
+     * @param unit
+     * @return items the dequeued items, empty if the timeout elapsed
+     * @throws MailQueueException
+     */
+    List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException;
+}
@@ -0,0 +1,40 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.io.File;
+
+/**
+ * {@link MailQueue} which stores the messages as files and can take over the
+ * file of an enqueued message instead of copying it.
+ * <p/>
+ * A message which is received into the ingest directory and was not modified
+ * afterwards gets moved into the queue on enqueue. Messages received elsewhere
+ * are copied as usual.
+ */
+public interface IngestMailQueue extends MailQueue {
+
+    /**
+     * Return the directory to receive the messages in which get enqueued to
+     * this queue later. It is on the same file system as the queue.
+     * 
+     * @return directory
+     */
+    File getIngestDirectory();
+}
@@ -0,0 +1,198 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+/**
+ * Filter which selects the mails of a {@link ManageableMailQueue}. A mail
+ * matches if it matches all criteria of the filter, a filter without any
+ * criteria matches every mail.
+ * <p/>
+ * Names, senders and recipients need to match exactly, recipient domains are
+ * matched case-insensitive. The null sender is matched by an empty value.
+ */
+public final class MailQueueFilter {
+
+    /**
+     * Filter which matches every mail
+     */
+    public final static MailQueueFilter ALL = new MailQueueFilter(new EnumMap<Type, String>(Type.class));
+
+    private final EnumMap<Type, String> criteria;
+
+    public MailQueueFilter(Type type, String value) {
+        this(ALL.criteria, type, value);
+    }
+
+    private MailQueueFilter(EnumMap<Type, String> criteria, Type type, String value) {
+        this(new EnumMap<Type, String>(criteria));
+        if (value == null) {
+            throw new IllegalArgumentException("The value of " + type + " must not be null");
+        }
+        this.criteria.put(type, value);
+    }
+
+    private MailQueueFilter(EnumMap<Type, String> criteria) {
+        this.criteria = criteria;
+    }
+
+    /**
+     * Return a new filter which also requires the given criterion
+     * 
+     * @param type
+     * @param value
+     * @return filter
+     */
+    public MailQueueFilter and(Type type, String value) {
+        return new MailQueueFilter(criteria, type, value);
+    }
+
+    /**
+     * Return the value the given type needs to match or <code>null</code> if
+     * the filter does not restrict it
+     * 
+     * @param type
+     * @return value
+     */
+    public String get(Type type) {
+        return criteria.get(type);
+    }
+
+    /**
+     * Return the criteria of this filter
+     * 
+     * @return criteria
+     */
+    public Map<Type, String> getCriteria() {
+        return Collections.unmodifiableMap(criteria);
+    }
+
+    /**
+     * Return <code>true</code> if this filter matches every mail
+     * 
+     * @return all
+     */
+    public boolean isEmpty() {
+        return criteria.isEmpty();
+    }
+
+    /**
+     * Return <code>true</code> if the given {@link Mail} matches this filter
+     * 
+     * @param mail
+     * @return matches
+     */
+    @SuppressWarnings("unchecked")
+    public boolean matches(Mail mail) {
+        MailAddress sender = mail.getSender();
+        Collection<MailAddress> rcpts = mail.getRecipients();
+        String[] recipients = new String[rcpts == null ? 0 : rcpts.size()];
+        if (rcpts != null) {
+            Iterator<MailAddress> it = rcpts.iterator();
+            for (int i = 0; i < recipients.length; i++) {
+                recipients[i] = it.next().toString();
+            }
+        }
+        return matches(mail.getName(), sender == null ? null : sender.toString(), recipients);
+    }
+
+    /**
+     * Return <code>true</code> if a mail with the given envelope matches this
+     * filter
+     * 
+     * @param name
+     * @param sender
+     *            the sender or <code>null</code>
+     * @param recipients
+     * @return matches
+     */
+    public boolean matches(String name, String sender, String[] recipients) {
+        for (Map.Entry<Type, String> criterion : criteria.entrySet()) {
+            String value = criterion.getValue();
+            switch (criterion.getKey()) {
+                case Name:
+                    if (!value.equals(name)) {
+                        return false;
+                    }
+                    break;
+                case Sender:
+                    if (!value.equals(sender == null ? "" : sender)) {
+                        return false;
+                    }
+                    break;
+                case Recipient:
+                    if (!contains(recipients, value, false)) {
+                        return false;
+                    }
+                    break;
+                case RecipientDomain:
+                    if (!contains(recipients, value, true)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(String[] recipients, String value, boolean domain) {
+        for (String recipient : recipients) {
+            if (domain ? value.equalsIgnoreCase(getDomain(recipient)) : value.equals(recipient)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the domain of the given address
+     * 
+     * @param address
+     * @return domain
+     */
+    public static String getDomain(String address) {
+        return address.substring(address.lastIndexOf('@') + 1);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MailQueueFilter && criteria.equals(((MailQueueFilter) obj).criteria);
+    }
+
+    @Override
+    public int hashCode() {
+        return criteria.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return criteria.toString();
+    }
+}
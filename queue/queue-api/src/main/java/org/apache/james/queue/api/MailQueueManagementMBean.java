@@ -31,6 +31,47 @@ public interface MailQueueManagementMBean {
      */
     long getSize() throws Exception;
 
+    /**
+     * Return the count of mails which are ready for dequeue or -1 if it could
+     * not get calculated
+     * 
+     * @return ready
+     */
+    long getReadyCount() throws Exception;
+
+    /**
+     * Return the count of mails which are delayed until a later time or -1 if
+     * it could not get calculated
+     * 
+     * @return deferred
+     */
+    long getDeferredCount() throws Exception;
+
+    /**
+     * Return the size of all queued messages in bytes or -1 if it could not
+     * get calculated
+     * 
+     * @return bytes
+     */
+    long getTotalBytes() throws Exception;
+
+    /**
+     * Return the age of the oldest mail in milliseconds, 0 if the queue is
+     * empty or -1 if it could not get calculated
+     * 
+     * @return age
+     */
+    long getOldestAge() throws Exception;
+
+    /**
+     * Return the count of mails which are ready for dequeue per priority,
+     * indexed by the priority, or <code>null</code> if the queue does not
+     * keep them apart
+     * 
+     * @return ready
+     */
+    long[] getReadyCountPerPriority() throws Exception;
+
     /**
      * Flush queue to make every Mail ready to consume.
      * 
@@ -72,11 +113,41 @@ public interface MailQueueManagementMBean {
     long removeWithRecipient(String address) throws Exception;
 
     /**
-     * Allow to browse the content of the queue
+     * Remove all mails which match the given filter from the queue. The filter
+     * is a list of <code>type=value</code> criteria separated by
+     * <code>;</code>, where type is one of <code>name</code>,
+     * <code>sender</code>, <code>recipient</code> or
+     * <code>recipientDomain</code>. All criteria need to match.
+     * 
+     * @param filter
+     * @return count the count of all removed mails or -1 if clear was not
+     *         possible
+     */
+    long removeWithFilter(String filter) throws Exception;
+
+    /**
+     * Allow to browse the content of the queue. This loads the whole queue, see
+     * {@link #browsePage(String, String, int)} for big queues.
      * 
      * @return data
      * @throws Exception
      */
     List<CompositeData> browse() throws Exception;
 
+    /**
+     * Browse one page of the mails which match the given filter. See
+     * {@link #removeWithFilter(String)} for the syntax of the filter, an empty
+     * filter matches all mails. The returned data contains the
+     * <code>mails</code> of the page and the <code>cursor</code> of the next
+     * page, which is empty if this was the last page.
+     * 
+     * @param filter
+     * @param cursor
+     *            the cursor of the previous page or empty for the first page
+     * @param pageSize
+     * @return page
+     * @throws Exception
+     */
+    CompositeData browsePage(String filter, String cursor, int pageSize) throws Exception;
+
 }
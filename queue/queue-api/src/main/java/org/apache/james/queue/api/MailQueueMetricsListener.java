@@ -0,0 +1,78 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+
+/**
+ * Listener which gets notified about the latencies of the operations of an
+ * {@link InstrumentedMailQueue}. All durations are given in nanoseconds.
+ * <p/>
+ * The callbacks are invoked by the threads which enqueue and dequeue mails, so
+ * implementations must be thread-safe and should return quickly.
+ */
+public interface MailQueueMetricsListener {
+
+    /**
+     * Called after a mail was enqueued
+     * 
+     * @param queueName
+     *            the name of the queue
+     * @param latency
+     *            the time it took to enqueue the mail
+     */
+    void enqueued(String queueName, long latency);
+
+    /**
+     * Called after a mail was dequeued
+     * 
+     * @param queueName
+     *            the name of the queue
+     * @param wait
+     *            the time the consumer waited for the mail
+     * @param redelivered
+     *            <code>true</code> if the mail was dequeued before and rolled
+     *            back
+     */
+    void dequeued(String queueName, long wait, boolean redelivered);
+
+    /**
+     * Called once the processing of a dequeued mail is done, see
+     * {@link MailQueueItem#done(boolean)}
+     * 
+     * @param queueName
+     *            the name of the queue
+     * @param timeInQueue
+     *            the time since the mail was enqueued
+     * @param success
+     *            <code>false</code> if the dequeue was rolled back
+     */
+    void done(String queueName, long timeInQueue, boolean success);
+
+    /**
+     * Called after a mail was moved to quarantine, see
+     * {@link RedeliveryMailQueue}
+     * 
+     * @param queueName
+     *            the name of the queue
+     * @param failures
+     *            how often the processing of the mail failed
+     */
+    void quarantined(String queueName, int failures);
+}
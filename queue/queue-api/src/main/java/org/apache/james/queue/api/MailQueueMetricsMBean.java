@@ -0,0 +1,79 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * JMX view of the latencies of an {@link InstrumentedMailQueue}. The
+ * latencies are returned as a summary of their distribution, which contains
+ * the count, mean, max and the 50th, 95th, 99th and 99.9th percentile in
+ * milliseconds.
+ */
+public interface MailQueueMetricsMBean {
+
+    /**
+     * Return the distribution of the time it took to enqueue a mail
+     * 
+     * @return latency
+     */
+    CompositeData getEnqueueLatency();
+
+    /**
+     * Return the distribution of the time consumers waited for a mail
+     * 
+     * @return wait
+     */
+    CompositeData getDequeueWait();
+
+    /**
+     * Return the distribution of the time from the enqueue of a mail until
+     * its processing was done successfully
+     * 
+     * @return timeInQueue
+     */
+    CompositeData getTimeInQueue();
+
+    /**
+     * Return how often the dequeue of a mail was rolled back
+     * 
+     * @return rollbacks
+     */
+    long getRollbackCount();
+
+    /**
+     * Return how often a mail was dequeued again after a rollback
+     * 
+     * @return redeliveries
+     */
+    long getRedeliveryCount();
+
+    /**
+     * Return how many mails were moved to quarantine because their processing
+     * failed too often
+     * 
+     * @return quarantined
+     */
+    long getQuarantineCount();
+
+    /**
+     * Reset all latencies and counts
+     */
+    void reset();
+}
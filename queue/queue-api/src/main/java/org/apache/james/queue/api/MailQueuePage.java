@@ -0,0 +1,107 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+
+/**
+ * One page of the mails of a {@link ManageableMailQueue}, see
+ * {@link PageableMailQueue#browse(MailQueueFilter, String, int)}
+ */
+public final class MailQueuePage {
+
+    private final List<MailQueueItemView> items;
+    private final String cursor;
+
+    public MailQueuePage(List<MailQueueItemView> items, String cursor) {
+        this.items = Collections.unmodifiableList(items);
+        this.cursor = cursor;
+    }
+
+    /**
+     * Return the mails of this page
+     * 
+     * @return items
+     */
+    public List<MailQueueItemView> getItems() {
+        return items;
+    }
+
+    /**
+     * Return the cursor of the next page or <code>null</code> if this is the
+     * last page
+     * 
+     * @return cursor
+     */
+    public String getNextCursor() {
+        return cursor;
+    }
+
+    /**
+     * Create a page by streaming the given iterator. The cursor is the count
+     * of matching mails which were returned by the previous pages. The mails
+     * before the cursor are skipped without keeping them in memory. The
+     * iterator gets closed.
+     * 
+     * @param it
+     * @param filter
+     * @param cursor
+     *            the cursor of the previous page or <code>null</code> for the
+     *            first page
+     * @param pageSize
+     * @return page
+     * @throws IllegalArgumentException
+     *             if the cursor is not valid
+     */
+    public static MailQueuePage create(MailQueueIterator it, MailQueueFilter filter, String cursor, int pageSize) {
+        try {
+            long offset = 0;
+            if (cursor != null && cursor.length() > 0) {
+                try {
+                    offset = Long.parseLong(cursor);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid cursor " + cursor);
+                }
+            }
+            List<MailQueueItemView> items = new ArrayList<MailQueueItemView>(Math.min(pageSize, 1024));
+            long position = 0;
+            while (it.hasNext()) {
+                MailQueueItemView view = it.next();
+                if (!filter.matches(view.getMail())) {
+                    continue;
+                }
+                if (position++ < offset) {
+                    continue;
+                }
+                if (items.size() == pageSize) {
+                    return new MailQueuePage(items, Long.toString(offset + pageSize));
+                }
+                items.add(view);
+            }
+            return new MailQueuePage(items, null);
+        } finally {
+            it.close();
+        }
+    }
+}
@@ -28,7 +28,7 @@ import org.apache.mailet.Mail;
 public interface ManageableMailQueue extends MailQueue {
 
     public enum Type {
-        Sender, Recipient, Name
+        Sender, Recipient, Name, RecipientDomain
     }
 
     /**
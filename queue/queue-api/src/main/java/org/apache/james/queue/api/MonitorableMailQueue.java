@@ -0,0 +1,59 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+/**
+ * {@link ManageableMailQueue} which keeps statistics about its content, so the
+ * size and the statistics of the queue can be read without browsing it
+ */
+public interface MonitorableMailQueue extends ManageableMailQueue {
+
+    /**
+     * Return the count of mails which are ready for dequeue
+     * 
+     * @return ready
+     * @throws MailQueueException
+     */
+    long getReadyCount() throws MailQueueException;
+
+    /**
+     * Return the count of mails which are delayed until a later time
+     * 
+     * @return deferred
+     * @throws MailQueueException
+     */
+    long getDeferredCount() throws MailQueueException;
+
+    /**
+     * Return the size of all queued messages in bytes
+     * 
+     * @return bytes
+     * @throws MailQueueException
+     */
+    long getTotalBytes() throws MailQueueException;
+
+    /**
+     * Return the age of the oldest mail in the queue in milliseconds or 0 if
+     * the queue is empty
+     * 
+     * @return age
+     * @throws MailQueueException
+     */
+    long getOldestAge() throws MailQueueException;
+}
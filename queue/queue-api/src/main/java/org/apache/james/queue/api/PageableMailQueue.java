@@ -0,0 +1,57 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+/**
+ * {@link ManageableMailQueue} which can be browsed page by page and whose
+ * mails can be removed by a {@link MailQueueFilter}, without loading the whole
+ * queue into memory
+ */
+public interface PageableMailQueue extends ManageableMailQueue {
+
+    /**
+     * Browse one page of the mails which match the given filter
+     * <p/>
+     * Implementations which can not seek may use the count of the mails of the
+     * previous pages as cursor, see {@link MailQueuePage#create}. Browsing a
+     * page then walks all matching mails before it again, so paging through
+     * the whole queue is quadratic in the count of its pages, and mails which
+     * were added or removed meanwhile shift the following pages.
+     * 
+     * @param filter
+     * @param cursor
+     *            the cursor returned by the previous page or <code>null</code>
+     *            for the first page. Cursors are specific to the
+     *            implementation.
+     * @param pageSize
+     *            the maximal count of mails in the page
+     * @return page
+     * @throws MailQueueException
+     */
+    MailQueuePage browse(MailQueueFilter filter, String cursor, int pageSize) throws MailQueueException;
+
+    /**
+     * Remove all mails which match the given filter
+     * 
+     * @param filter
+     * @return count the count of all removed mails
+     * @throws MailQueueException
+     */
+    long remove(MailQueueFilter filter) throws MailQueueException;
+}
@@ -0,0 +1,54 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+
+/**
+ * {@link MailQueue} which tracks how often the processing of a mail failed,
+ * see {@link MailQueueItem#done(boolean)}, and delays failed mails according
+ * to a {@link RedeliveryPolicy}. Mails which exhausted the policy are moved to
+ * the quarantine queue if one is set, so a mail which fails over and over
+ * again does not keep the consumers busy.
+ */
+public interface RedeliveryMailQueue extends MailQueue {
+
+    /**
+     * The name of the attribute which holds the count of failed attempts to
+     * process a mail, set on the mails which get moved to quarantine
+     */
+    String REDELIVERY_COUNT = "org.apache.james.queue.RedeliveryCount";
+
+    /**
+     * Set the policy for failed mails. The default is
+     * {@link RedeliveryPolicy#DEFAULT}.
+     * 
+     * @param policy
+     */
+    void setRedeliveryPolicy(RedeliveryPolicy policy);
+
+    /**
+     * Set the queue which receives the mails which exhausted the
+     * {@link RedeliveryPolicy}, <code>null</code> to keep them in this queue
+     * at the max delay
+     * 
+     * @param quarantine
+     */
+    void setQuarantine(MailQueue quarantine);
+}
@@ -0,0 +1,129 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+
+/**
+ * Policy of a {@link RedeliveryMailQueue} for mails whose processing failed,
+ * see {@link MailQueueItem#done(boolean)}.
+ * <p/>
+ * A failed mail is delayed before it gets dequeued again. The delay starts at
+ * the initial delay and is multiplied for every further failure, up to the max
+ * delay. Once a mail failed more than the max redeliveries it is moved to the
+ * quarantine of the queue, if there is one.
+ */
+public final class RedeliveryPolicy {
+
+    public final static long DEFAULT_INITIAL_DELAY = 1000;
+    public final static long DEFAULT_MAX_DELAY = 300000;
+    public final static int DEFAULT_MULTIPLIER = 2;
+
+    /**
+     * Policy which delays failed mails by the default delays and never gives
+     * up on them
+     */
+    public final static RedeliveryPolicy DEFAULT = new RedeliveryPolicy(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, -1);
+
+    /**
+     * Policy which makes failed mails ready again right away, like the queues
+     * did before they supported redelivery policies
+     */
+    public final static RedeliveryPolicy IMMEDIATE = new RedeliveryPolicy(0, 0, 1, -1);
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int multiplier;
+    private final int maxRedeliveries;
+
+    /**
+     * @param initialDelay
+     *            the delay in milliseconds after the first failure
+     * @param maxDelay
+     *            the max delay in milliseconds
+     * @param multiplier
+     *            the factor the delay grows with every failure
+     * @param maxRedeliveries
+     *            the count of redeliveries before a mail gets quarantined, a
+     *            negative value for no limit
+     */
+    public RedeliveryPolicy(long initialDelay, long maxDelay, int multiplier, int maxRedeliveries) {
+        if (initialDelay < 0 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("The delays must be positive and the max delay must not be smaller than the initial delay");
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("The multiplier must be at least 1");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.maxRedeliveries = maxRedeliveries;
+    }
+
+    /**
+     * Return the delay in milliseconds before a mail gets dequeued again
+     * 
+     * @param failures
+     *            how often the processing of the mail failed, including the
+     *            current failure
+     * @return delay
+     */
+    public long getDelay(int failures) {
+        long delay = initialDelay;
+        for (int i = 1; i < failures && delay < maxDelay; i++) {
+            delay *= multiplier;
+            if (multiplier == 1) {
+                break;
+            }
+        }
+        return Math.min(delay, maxDelay);
+    }
+
+    /**
+     * Return <code>true</code> if a mail which failed the given count of
+     * times should not get redelivered anymore
+     * 
+     * @param failures
+     * @return exhausted
+     */
+    public boolean isExhausted(int failures) {
+        return maxRedeliveries >= 0 && failures > maxRedeliveries;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getMultiplier() {
+        return multiplier;
+    }
+
+    public int getMaxRedeliveries() {
+        return maxRedeliveries;
+    }
+
+    @Override
+    public String toString() {
+        return "RedeliveryPolicy[initialDelay=" + initialDelay + ", maxDelay=" + maxDelay + ", multiplier=" + multiplier + ", maxRedeliveries=" + maxRedeliveries + "]";
+    }
+}
@@ -0,0 +1,277 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.lifecycle.api.LogEnabled;
+import org.apache.james.queue.api.InstrumentedMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.api.MailQueueManagementMBean;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.slf4j.Logger;
+
+/**
+ * {@link MailQueueFactory} abstract base class which take care of register the
+ * {@link MailQueue} implementations via JMX (if possible)
+ * <p/>
+ * The latencies of {@link InstrumentedMailQueue}'s are recorded per queue by
+ * {@link MailQueueMetrics}, which get registered via JMX too. Additional
+ * {@link MailQueueMetricsListener}'s can be set to export them elsewhere.
+ * <p/>
+ * {@link RedeliveryMailQueue}'s get the configured {@link RedeliveryPolicy} and
+ * the quarantine queue, if one is configured.
+ */
+public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogEnabled {
+
+    protected final Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
+    protected Logger log;
+    private boolean useJMX = true;
+    private MBeanServer mbeanServer;
+    private final List<String> mbeans = new ArrayList<String>();
+    private final Map<String, MailQueueMetrics> metrics = new HashMap<String, MailQueueMetrics>();
+    private List<MailQueueMetricsListener> metricsListeners = new ArrayList<MailQueueMetricsListener>();
+    private long redeliveryDelay = RedeliveryPolicy.DEFAULT_INITIAL_DELAY;
+    private long maxRedeliveryDelay = RedeliveryPolicy.DEFAULT_MAX_DELAY;
+    private int redeliveryMultiplier = RedeliveryPolicy.DEFAULT_MULTIPLIER;
+    private int maxRedeliveries = -1;
+    private String quarantineQueue;
+
+    public void setUseJMX(boolean useJMX) {
+        this.useJMX = useJMX;
+    }
+
+    /**
+     * Set the listeners which get notified about the operations of every
+     * {@link InstrumentedMailQueue} created afterwards, in addition to its
+     * {@link MailQueueMetrics}
+     * 
+     * @param metricsListeners
+     */
+    public void setMetricsListeners(List<MailQueueMetricsListener> metricsListeners) {
+        this.metricsListeners = new ArrayList<MailQueueMetricsListener>(metricsListeners);
+    }
+
+    /**
+     * Set the delay in milliseconds before a mail whose processing failed
+     * gets dequeued again. The delay is multiplied by the redelivery
+     * multiplier for every further failure.
+     * <p/>
+     * The default is 1 second
+     * 
+     * @param redeliveryDelay
+     */
+    public void setRedeliveryDelay(long redeliveryDelay) {
+        this.redeliveryDelay = redeliveryDelay;
+    }
+
+    /**
+     * Set the max delay in milliseconds of a failed mail.
+     * <p/>
+     * The default is 5 minutes
+     * 
+     * @param maxRedeliveryDelay
+     */
+    public void setMaxRedeliveryDelay(long maxRedeliveryDelay) {
+        this.maxRedeliveryDelay = maxRedeliveryDelay;
+    }
+
+    /**
+     * Set the factor the delay of a failed mail grows with every failure.
+     * <p/>
+     * The default is 2
+     * 
+     * @param redeliveryMultiplier
+     */
+    public void setRedeliveryMultiplier(int redeliveryMultiplier) {
+        this.redeliveryMultiplier = redeliveryMultiplier;
+    }
+
+    /**
+     * Set how often a failed mail gets redelivered before it is moved to the
+     * quarantine queue. A negative value means no limit.
+     * <p/>
+     * The default is -1
+     * 
+     * @param maxRedeliveries
+     */
+    public void setMaxRedeliveries(int maxRedeliveries) {
+        this.maxRedeliveries = maxRedeliveries;
+    }
+
+    /**
+     * Set the name of the queue which receives the mails which failed more
+     * than the max redeliveries. Without a quarantine queue these mails stay
+     * in their queue and get redelivered at the max delay.
+     * <p/>
+     * The default is <code>null</code>
+     * 
+     * @param quarantineQueue
+     */
+    public void setQuarantineQueue(String quarantineQueue) {
+        this.quarantineQueue = quarantineQueue;
+    }
+
+    @PostConstruct
+    public void init() {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (String mbean : new ArrayList<String>(mbeans)) {
+            unregisterMBean(mbean);
+        }
+
+        for (MailQueue mailQueue : queues.values()) {
+            LifecycleUtil.dispose(mailQueue);
+        }
+
+    }
+
+    @Override
+    public synchronized final MailQueue getQueue(String name) {
+        
+        MailQueue queue = queues.get(name);
+
+        if (queue == null) {
+            queue = createMailQueue(name);
+            if (queue instanceof InstrumentedMailQueue) {
+                instrument(name, (InstrumentedMailQueue) queue);
+            }
+            if (queue instanceof RedeliveryMailQueue) {
+                RedeliveryMailQueue redeliveryQueue = (RedeliveryMailQueue) queue;
+                redeliveryQueue.setRedeliveryPolicy(new RedeliveryPolicy(redeliveryDelay, maxRedeliveryDelay, redeliveryMultiplier, maxRedeliveries));
+                if (quarantineQueue != null && !quarantineQueue.equals(name)) {
+                    redeliveryQueue.setQuarantine(getQueue(quarantineQueue));
+                }
+            }
+            if (useJMX) {
+                registerMBean(name, queue);
+
+            }
+            queues.put(name, queue);
+        }
+
+        return queue;
+    }
+
+    /**
+     * Create a {@link MailQueue} for the given name
+     * 
+     * @param name
+     * @return queue
+     */
+    protected abstract MailQueue createMailQueue(String name);
+
+    /**
+     * Return the {@link MailQueueMetrics} of the queue with the given name or
+     * <code>null</code> if the queue was not created yet or is not an
+     * {@link InstrumentedMailQueue}
+     * 
+     * @param name
+     * @return metrics
+     */
+    public synchronized MailQueueMetrics getMetrics(String name) {
+        return metrics.get(name);
+    }
+
+    private void instrument(String name, InstrumentedMailQueue queue) {
+        MailQueueMetrics queueMetrics;
+        try {
+            queueMetrics = new MailQueueMetrics(name);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to create metrics", e);
+        }
+        List<MailQueueMetricsListener> listeners = new ArrayList<MailQueueMetricsListener>();
+        listeners.add(queueMetrics);
+        listeners.addAll(metricsListeners);
+        queue.setMetricsListener(new CompositeMailQueueMetricsListener(listeners));
+        metrics.put(name, queueMetrics);
+    }
+
+    protected synchronized void registerMBean(String queuename, MailQueue queue) {
+
+        String mbeanName = "org.apache.james:type=component,name=queue,queue=" + queuename;
+        try {
+            MailQueueManagementMBean mbean = null;
+            if (queue instanceof ManageableMailQueue) {
+                mbean = new MailQueueManagement((ManageableMailQueue) queue);
+            } else if (queue instanceof MailQueueManagementMBean) {
+                mbean = (MailQueueManagementMBean) queue;
+            }
+            if (mbean != null) {
+                registerMBean(mbeanName, mbean);
+            }
+            MailQueueMetrics queueMetrics = metrics.get(queuename);
+            if (queueMetrics != null) {
+                registerMBean("org.apache.james:type=component,name=queuemetrics,queue=" + queuename, queueMetrics);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+
+    }
+
+    /**
+     * Register the given object under the given name. It gets unregistered on
+     * {@link #destroy()}.
+     * 
+     * @param mbeanName
+     * @param mbean
+     */
+    protected synchronized void registerMBean(String mbeanName, Object mbean) {
+        try {
+            mbeanServer.registerMBean(mbean, new ObjectName(mbeanName));
+            mbeans.add(mbeanName);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
+    protected synchronized void unregisterMBean(String mbeanName) {
+        try {
+            mbeanServer.unregisterMBean(new ObjectName(mbeanName));
+            mbeans.remove(mbeanName);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to unregister mbean", e);
+        }
+
+    }
+
+    @Override
+    public void setLog(Logger log) {
+        this.log = log;
+    }
+    
+}
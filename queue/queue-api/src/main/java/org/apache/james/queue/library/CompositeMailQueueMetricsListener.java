@@ -0,0 +1,69 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.util.Collection;
+
+import org.apache.james.queue.api.MailQueueMetricsListener;
+
+/**
+ * {@link MailQueueMetricsListener} which notifies a fixed list of listeners.
+ * Without any listener it does nothing, so it is used as default by the
+ * instrumented queues.
+ */
+public class CompositeMailQueueMetricsListener implements MailQueueMetricsListener {
+
+    private final MailQueueMetricsListener[] listeners;
+
+    public CompositeMailQueueMetricsListener(Collection<? extends MailQueueMetricsListener> listeners) {
+        this.listeners = listeners.toArray(new MailQueueMetricsListener[listeners.size()]);
+    }
+
+    public CompositeMailQueueMetricsListener(MailQueueMetricsListener... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    @Override
+    public void enqueued(String queueName, long latency) {
+        for (MailQueueMetricsListener listener : listeners) {
+            listener.enqueued(queueName, latency);
+        }
+    }
+
+    @Override
+    public void dequeued(String queueName, long wait, boolean redelivered) {
+        for (MailQueueMetricsListener listener : listeners) {
+            listener.dequeued(queueName, wait, redelivered);
+        }
+    }
+
+    @Override
+    public void done(String queueName, long timeInQueue, boolean success) {
+        for (MailQueueMetricsListener listener : listeners) {
+            listener.done(queueName, timeInQueue, success);
+        }
+    }
+
+    @Override
+    public void quarantined(String queueName, int failures) {
+        for (MailQueueMetricsListener listener : listeners) {
+            listener.quarantined(queueName, failures);
+        }
+    }
+}
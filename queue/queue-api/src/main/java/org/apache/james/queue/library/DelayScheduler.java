@@ -0,0 +1,126 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
+
+/**
+ * Drives a {@link TimingWheel} with a single daemon thread, which sleeps until
+ * the next entry of the wheel may expire.
+ * <p/>
+ * This replaces one scheduled task per delayed mail by a single thread per
+ * queue.
+ */
+public class DelayScheduler implements Disposable {
+
+    private final TimingWheel wheel;
+    private final ExpirationListener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long wakeUp = Long.MAX_VALUE;
+
+    /**
+     * @param name
+     *            the name used for the thread
+     * @param wheel
+     * @param listener
+     *            gets called from the scheduler thread for every expired key
+     */
+    public DelayScheduler(String name, TimingWheel wheel, ExpirationListener listener) {
+        this.wheel = wheel;
+        this.listener = listener;
+        this.thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runLoop();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public DelayScheduler(String name, ExpirationListener listener) {
+        this(name, new TimingWheel(), listener);
+    }
+
+    /**
+     * Schedule the key to expire at the given deadline
+     */
+    public void schedule(String key, long deadline) {
+        wheel.schedule(key, deadline);
+        synchronized (this) {
+            if (deadline < wakeUp) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Return the number of scheduled keys
+     */
+    public int size() {
+        return wheel.size();
+    }
+
+    /**
+     * Remove all scheduled keys
+     */
+    public void clear() {
+        wheel.clear();
+    }
+
+    private void runLoop() {
+        while (running) {
+            wheel.expire(System.currentTimeMillis(), listener);
+            synchronized (this) {
+                wakeUp = wheel.nextExpiry();
+                long wait = wakeUp - System.currentTimeMillis();
+                if (wait > 0 && running) {
+                    try {
+                        if (wakeUp == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(wait);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                wakeUp = 0;
+            }
+        }
+    }
+
+    @Override
+    public void dispose() {
+        running = false;
+        synchronized (this) {
+            notify();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        wheel.close();
+    }
+}
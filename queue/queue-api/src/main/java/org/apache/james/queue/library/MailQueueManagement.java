@@ -0,0 +1,345 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueueManagementMBean;
+import org.apache.james.queue.api.MailQueuePage;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.james.queue.api.MonitorableMailQueue;
+import org.apache.james.queue.api.PageableMailQueue;
+import org.apache.james.queue.api.PriorityMailQueue;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+import javax.mail.MessagingException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX MBean implementation which expose management functions by wrapping a
+ * {@link ManageableMailQueue}
+ */
+public class MailQueueManagement extends StandardMBean implements MailQueueManagementMBean {
+    private final static String[] MAIL_NAMES = new String[]{"name", "sender", "state", "recipients", "size", "lastUpdated", "remoteAddress", "remoteHost", "errorMessage", "attributes", "nextDelivery"};
+    private final static String[] MAIL_DESCS = new String[]{"Unique name", "Sender", "Current state", "Recipients", "Size in bytes", "Timestamp of last update", "IPAddress of the sender", "Hostname of the sender", "Errormessage if any", "Attributes stored", "Timestamp of when the next delivery attempt will be make"};
+    private final static OpenType<?>[] MAIL_TYPES = new OpenType<?>[]{SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG, SimpleType.LONG, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.STRING, SimpleType.LONG};
+    private final static String[] PAGE_NAMES = new String[]{"mails", "cursor"};
+    private final static String[] PAGE_DESCS = new String[]{"Mails of the page", "Cursor of the next page, empty if this is the last page"};
+    private final static CompositeType MAIL_TYPE;
+    private final static CompositeType PAGE_TYPE;
+
+    static {
+        try {
+            MAIL_TYPE = new CompositeType(Mail.class.getName(), "Queue Mail", MAIL_NAMES, MAIL_DESCS, MAIL_TYPES);
+            PAGE_TYPE = new CompositeType(MailQueuePage.class.getName(), "Page of Queue Mails", PAGE_NAMES, PAGE_DESCS, new OpenType<?>[]{new ArrayType<CompositeData>(1, MAIL_TYPE), SimpleType.STRING});
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final ManageableMailQueue queue;
+
+    public MailQueueManagement(ManageableMailQueue queue) throws NotCompliantMBeanException {
+        super(MailQueueManagementMBean.class);
+        this.queue = queue;
+
+    }
+
+    @Override
+    public long clear() throws Exception {
+        try {
+            return queue.clear();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long flush() throws Exception {
+        try {
+            return queue.flush();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getSize() throws Exception {
+        try {
+            return queue.getSize();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getReadyCount() throws Exception {
+        if (!(queue instanceof MonitorableMailQueue)) {
+            return -1;
+        }
+        try {
+            return ((MonitorableMailQueue) queue).getReadyCount();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getDeferredCount() throws Exception {
+        if (!(queue instanceof MonitorableMailQueue)) {
+            return -1;
+        }
+        try {
+            return ((MonitorableMailQueue) queue).getDeferredCount();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getTotalBytes() throws Exception {
+        if (!(queue instanceof MonitorableMailQueue)) {
+            return -1;
+        }
+        try {
+            return ((MonitorableMailQueue) queue).getTotalBytes();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long getOldestAge() throws Exception {
+        if (!(queue instanceof MonitorableMailQueue)) {
+            return -1;
+        }
+        try {
+            return ((MonitorableMailQueue) queue).getOldestAge();
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long[] getReadyCountPerPriority() throws Exception {
+        if (!(queue instanceof PriorityMailQueue)) {
+            return null;
+        }
+        try {
+            long[] counts = new long[MailPrioritySupport.HIGH_PRIORITY + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = ((PriorityMailQueue) queue).getReadyCount(i);
+            }
+            return counts;
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long removeWithName(String name) throws Exception {
+        try {
+            return queue.remove(Type.Name, name);
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long removeWithRecipient(String address) throws Exception {
+        try {
+            return queue.remove(Type.Recipient, address);
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long removeWithSender(String address) throws Exception {
+        try {
+            return queue.remove(Type.Sender, address);
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public long removeWithFilter(String filter) throws Exception {
+        try {
+            MailQueueFilter mailQueueFilter = parseFilter(filter);
+            if (queue instanceof PageableMailQueue) {
+                return ((PageableMailQueue) queue).remove(mailQueueFilter);
+            }
+            Map<Type, String> criteria = mailQueueFilter.getCriteria();
+            if (criteria.size() != 1) {
+                return -1;
+            }
+            Map.Entry<Type, String> criterion = criteria.entrySet().iterator().next();
+            return queue.remove(criterion.getKey(), criterion.getValue());
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    @Override
+    public List<CompositeData> browse() throws Exception {
+        MailQueueIterator it = queue.browse();
+        List<CompositeData> data = new ArrayList<CompositeData>();
+        try {
+            while (it.hasNext()) {
+                data.add(toCompositeData(it.next()));
+            }
+        } finally {
+            it.close();
+        }
+        return data;
+    }
+
+    @Override
+    public CompositeData browsePage(String filter, String cursor, int pageSize) throws Exception {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        try {
+            MailQueueFilter mailQueueFilter = parseFilter(filter);
+            if (cursor != null && cursor.length() == 0) {
+                cursor = null;
+            }
+            MailQueuePage page;
+            if (queue instanceof PageableMailQueue) {
+                page = ((PageableMailQueue) queue).browse(mailQueueFilter, cursor, pageSize);
+            } else {
+                page = MailQueuePage.create(queue.browse(), mailQueueFilter, cursor, pageSize);
+            }
+
+            List<MailQueueItemView> items = page.getItems();
+            CompositeData[] mails = new CompositeData[items.size()];
+            for (int i = 0; i < mails.length; i++) {
+                mails[i] = toCompositeData(items.get(i));
+            }
+            Map<String, Object> map = new HashMap<String, Object>();
+            map.put(PAGE_NAMES[0], mails);
+            map.put(PAGE_NAMES[1], page.getNextCursor() == null ? "" : page.getNextCursor());
+            return new CompositeDataSupport(PAGE_TYPE, map);
+        } catch (MailQueueException e) {
+            throw new Exception(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse the filter syntax described in
+     * {@link MailQueueManagementMBean#removeWithFilter(String)}
+     */
+    private static MailQueueFilter parseFilter(String filter) {
+        MailQueueFilter mailQueueFilter = MailQueueFilter.ALL;
+        if (filter == null) {
+            return mailQueueFilter;
+        }
+        for (String criterion : filter.split(";")) {
+            criterion = criterion.trim();
+            if (criterion.length() == 0) {
+                continue;
+            }
+            int index = criterion.indexOf('=');
+            if (index < 0) {
+                throw new IllegalArgumentException("Invalid filter criterion " + criterion);
+            }
+            String typeName = criterion.substring(0, index).trim();
+            Type type = null;
+            for (Type t : Type.values()) {
+                if (t.name().equalsIgnoreCase(typeName)) {
+                    type = t;
+                }
+            }
+            if (type == null) {
+                throw new IllegalArgumentException("Unknown filter type " + typeName);
+            }
+            mailQueueFilter = mailQueueFilter.and(type, criterion.substring(index + 1).trim());
+        }
+        return mailQueueFilter;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompositeData toCompositeData(MailQueueItemView mView) throws OpenDataException, MessagingException {
+        Mail m = mView.getMail();
+        long nextDelivery = mView.getNextDelivery();
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(MAIL_NAMES[0], m.getName());
+        String sender = null;
+        MailAddress senderAddress = m.getSender();
+        if (senderAddress != null) {
+            sender = senderAddress.toString();
+        }
+        map.put(MAIL_NAMES[1], sender);
+        map.put(MAIL_NAMES[2], m.getState());
+
+        StringBuilder rcptsBuilder = new StringBuilder();
+        Collection<MailAddress> rcpts = m.getRecipients();
+        if (rcpts != null) {
+            Iterator<MailAddress> rcptsIt = rcpts.iterator();
+            while (rcptsIt.hasNext()) {
+                rcptsBuilder.append(rcptsIt.next().toString());
+                if (rcptsIt.hasNext()) {
+                    rcptsBuilder.append(",");
+                }
+            }
+        }
+        map.put(MAIL_NAMES[3], rcptsBuilder.toString());
+        map.put(MAIL_NAMES[4], m.getMessageSize());
+        map.put(MAIL_NAMES[5], m.getLastUpdated().getTime());
+        map.put(MAIL_NAMES[6], m.getRemoteAddr());
+        map.put(MAIL_NAMES[7], m.getRemoteHost());
+        map.put(MAIL_NAMES[8], m.getErrorMessage());
+        Map<String, String> attrs = new HashMap<String, String>();
+        Iterator<String> attrNames = m.getAttributeNames();
+        while (attrNames.hasNext()) {
+            String attrName = attrNames.next();
+            String attrValueString = null;
+            Serializable attrValue = m.getAttribute(attrName);
+            if (attrValue != null) {
+                attrValueString = attrValue.toString();
+            }
+            attrs.put(attrName, attrValueString);
+        }
+        map.put(MAIL_NAMES[9], attrs.toString());
+        map.put(MAIL_NAMES[10], nextDelivery);
+        return new CompositeDataSupport(MAIL_TYPE, map);
+    }
+
+}
@@ -0,0 +1,186 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.NotCompliantMBeanException;
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import org.apache.james.queue.api.InstrumentedMailQueue;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.MailQueueMetricsMBean;
+
+/**
+ * {@link MailQueueMetricsListener} which records the latencies of one
+ * {@link InstrumentedMailQueue} in {@link LatencyHistogram}'s and exposes
+ * them via JMX
+ */
+public class MailQueueMetrics extends StandardMBean implements MailQueueMetricsListener, MailQueueMetricsMBean {
+    private final static String[] LATENCY_NAMES = new String[]{"count", "mean", "p50", "p95", "p99", "p999", "max"};
+    private final static String[] LATENCY_DESCS = new String[]{"Count of recorded latencies", "Mean in milliseconds", "50th percentile in milliseconds", "95th percentile in milliseconds", "99th percentile in milliseconds", "99.9th percentile in milliseconds", "Max in milliseconds"};
+    private final static OpenType<?>[] LATENCY_TYPES = new OpenType<?>[]{SimpleType.LONG, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE, SimpleType.DOUBLE};
+    private final static CompositeType LATENCY_TYPE;
+    private final static double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static {
+        try {
+            LATENCY_TYPE = new CompositeType(LatencyHistogram.class.getName(), "Latency distribution", LATENCY_NAMES, LATENCY_DESCS, LATENCY_TYPES);
+        } catch (OpenDataException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final String queueName;
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram dequeueWait = new LatencyHistogram();
+    private final LatencyHistogram timeInQueue = new LatencyHistogram();
+    private final AtomicLong rollbacks = new AtomicLong();
+    private final AtomicLong redeliveries = new AtomicLong();
+    private final AtomicLong quarantined = new AtomicLong();
+
+    public MailQueueMetrics(String queueName) throws NotCompliantMBeanException {
+        super(MailQueueMetricsMBean.class);
+        this.queueName = queueName;
+    }
+
+    /**
+     * Return the name of the queue
+     * 
+     * @return queueName
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    @Override
+    public void enqueued(String queueName, long latency) {
+        enqueueLatency.record(latency);
+    }
+
+    @Override
+    public void dequeued(String queueName, long wait, boolean redelivered) {
+        dequeueWait.record(wait);
+        if (redelivered) {
+            redeliveries.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void done(String queueName, long timeInQueue, boolean success) {
+        if (success) {
+            this.timeInQueue.record(timeInQueue);
+        } else {
+            rollbacks.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void quarantined(String queueName, int failures) {
+        quarantined.incrementAndGet();
+    }
+
+    /**
+     * Return the histogram of the enqueue latencies in nanoseconds
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram getEnqueueLatencyHistogram() {
+        return enqueueLatency;
+    }
+
+    /**
+     * Return the histogram of the dequeue waits in nanoseconds
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram getDequeueWaitHistogram() {
+        return dequeueWait;
+    }
+
+    /**
+     * Return the histogram of the times in queue in nanoseconds
+     * 
+     * @return histogram
+     */
+    public LatencyHistogram getTimeInQueueHistogram() {
+        return timeInQueue;
+    }
+
+    @Override
+    public CompositeData getEnqueueLatency() {
+        return toCompositeData(enqueueLatency);
+    }
+
+    @Override
+    public CompositeData getDequeueWait() {
+        return toCompositeData(dequeueWait);
+    }
+
+    @Override
+    public CompositeData getTimeInQueue() {
+        return toCompositeData(timeInQueue);
+    }
+
+    @Override
+    public long getRollbackCount() {
+        return rollbacks.get();
+    }
+
+    @Override
+    public long getRedeliveryCount() {
+        return redeliveries.get();
+    }
+
+    @Override
+    public long getQuarantineCount() {
+        return quarantined.get();
+    }
+
+    @Override
+    public void reset() {
+        enqueueLatency.reset();
+        dequeueWait.reset();
+        timeInQueue.reset();
+        rollbacks.set(0);
+        redeliveries.set(0);
+        quarantined.set(0);
+    }
+
+    private CompositeData toCompositeData(LatencyHistogram histogram) {
+        Object[] values = new Object[]{histogram.getCount(), histogram.getMean() / NANOS_PER_MILLI, toMillis(histogram.getPercentile(50)), toMillis(histogram.getPercentile(95)), toMillis(histogram.getPercentile(99)),
+                toMillis(histogram.getPercentile(99.9)), toMillis(histogram.getMax())};
+        try {
+            return new CompositeDataSupport(LATENCY_TYPE, LATENCY_NAMES, values);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Unable to create latency summary", e);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
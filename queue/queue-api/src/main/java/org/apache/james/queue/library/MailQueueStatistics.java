@@ -0,0 +1,330 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.mail.MessagingException;
+
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.MonitorableMailQueue;
+import org.apache.mailet.Mail;
+
+/**
+ * Statistics of the content of a {@link MonitorableMailQueue}, which are
+ * maintained on enqueue and dequeue instead of being calculated by browsing
+ * the queue.
+ * <p/>
+ * Mails are tracked by a key which needs to be unique within the queue, adding
+ * a key again replaces the previous entry. Deferred mails become ready once
+ * their next delivery time is reached, which is checked when the statistics
+ * are read. All operations are O(1) or O(log n) in the size of the queue.
+ */
+public class MailQueueStatistics {
+
+    private final static Comparator<Entry> BY_ARRIVAL = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return compareTimes(e1.arrival, e2.arrival, e1.sequence, e2.sequence);
+        }
+    };
+
+    private final static Comparator<Entry> BY_NEXT_DELIVERY = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return compareTimes(e1.nextDelivery, e2.nextDelivery, e1.sequence, e2.sequence);
+        }
+    };
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final TreeSet<Entry> arrivals = new TreeSet<Entry>(BY_ARRIVAL);
+    private final TreeSet<Entry> deferred = new TreeSet<Entry>(BY_NEXT_DELIVERY);
+    private long bytes;
+    private long sequence;
+
+    // keys which were removed while the statistics get loaded
+    private Set<String> removedWhileLoading;
+
+    /**
+     * Add a mail
+     * 
+     * @param key
+     *            the unique key of the mail in the queue
+     * @param size
+     *            the size of the message in bytes
+     * @param arrival
+     *            the time the mail was enqueued
+     * @param nextDelivery
+     *            the time the mail is ready for dequeue, 0 or -1 if it is
+     *            ready right away
+     */
+    public synchronized void add(String key, long size, long arrival, long nextDelivery) {
+        Entry entry = new Entry(sequence++, Math.max(0, size), arrival, nextDelivery);
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            discard(old);
+        }
+        bytes += entry.size;
+        arrivals.add(entry);
+        if (nextDelivery > System.currentTimeMillis()) {
+            deferred.add(entry);
+        }
+    }
+
+    /**
+     * Defer the mail with the given key until the given time, its size and
+     * arrival are kept
+     * 
+     * @param key
+     * @param nextDelivery
+     *            the time the mail is ready for dequeue
+     * @return deferred <code>true</code> if the mail was known
+     */
+    public synchronized boolean defer(String key, long nextDelivery) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        add(key, entry.size, entry.arrival, nextDelivery);
+        return true;
+    }
+
+    /**
+     * Remove the mail with the given key
+     * 
+     * @param key
+     * @return removed <code>true</code> if the mail was known
+     */
+    public synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            if (removedWhileLoading != null) {
+                removedWhileLoading.add(key);
+            }
+            return false;
+        }
+        discard(entry);
+        return true;
+    }
+
+    private void discard(Entry entry) {
+        bytes -= entry.size;
+        arrivals.remove(entry);
+        deferred.remove(entry);
+    }
+
+    /**
+     * Make all deferred mails ready
+     */
+    public synchronized void flush() {
+        deferred.clear();
+    }
+
+    /**
+     * Remove all mails
+     */
+    public synchronized void clear() {
+        entries.clear();
+        arrivals.clear();
+        deferred.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Add the mails of the given iterator, using their names as keys unless
+     * the views are {@link KeyedItemView}s. The mail of a {@link KeyedItemView}
+     * is never read, so its queue does not need to create it. This is used to
+     * initialize the
+     * statistics of a queue which already contains mails, and to
+     * re-sync them with a queue which is shared with other instances. Mails which are added
+     * or removed while loading are not touched. Once the iterator is
+     * exhausted, mails which were added before the load but were not returned
+     * by it are dropped, as they were removed by someone else. The iterator
+     * gets closed.
+     * 
+     * @param mails
+     */
+    public void load(MailQueueIterator mails) {
+        long start;
+        Set<String> seen = new HashSet<String>();
+        boolean complete = false;
+        synchronized (this) {
+            removedWhileLoading = new HashSet<String>();
+            start = sequence;
+        }
+        try {
+            while (mails.hasNext()) {
+                MailQueueItemView view = mails.next();
+                String key;
+                long size;
+                long arrival;
+                if (view instanceof KeyedItemView) {
+                    KeyedItemView keyed = (KeyedItemView) view;
+                    key = keyed.getKey();
+                    size = keyed.getMessageSize();
+                    arrival = keyed.getArrival();
+                } else {
+                    Mail mail = view.getMail();
+                    key = mail.getName();
+                    try {
+                        size = mail.getMessageSize();
+                    } catch (MessagingException e) {
+                        size = 0;
+                    }
+                    Date lastUpdated = mail.getLastUpdated();
+                    arrival = lastUpdated == null ? System.currentTimeMillis() : lastUpdated.getTime();
+                }
+                seen.add(key);
+                synchronized (this) {
+                    if (!entries.containsKey(key) && !removedWhileLoading.contains(key)) {
+                        add(key, size, arrival, view.getNextDelivery());
+                    }
+                }
+            }
+            complete = true;
+        } finally {
+            mails.close();
+            synchronized (this) {
+                removedWhileLoading = null;
+                if (complete) {
+                    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+                    while (it.hasNext()) {
+                        Map.Entry<String, Entry> e = it.next();
+                        if (e.getValue().sequence < start && !seen.contains(e.getKey())) {
+                            it.remove();
+                            discard(e.getValue());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the count of mails
+     * 
+     * @return size
+     */
+    public synchronized long getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Return the count of mails which are not ready yet
+     * 
+     * @return deferred
+     */
+    public synchronized long getDeferredCount() {
+        long now = System.currentTimeMillis();
+        while (!deferred.isEmpty() && deferred.first().nextDelivery <= now) {
+            deferred.pollFirst();
+        }
+        return deferred.size();
+    }
+
+    /**
+     * Return the count of mails which are ready
+     * 
+     * @return ready
+     */
+    public synchronized long getReadyCount() {
+        return entries.size() - getDeferredCount();
+    }
+
+    /**
+     * Return the size of all messages in bytes
+     * 
+     * @return bytes
+     */
+    public synchronized long getTotalBytes() {
+        return bytes;
+    }
+
+    /**
+     * Return the age of the oldest mail in milliseconds or 0 if there are no
+     * mails
+     * 
+     * @return age
+     */
+    public synchronized long getOldestAge() {
+        if (arrivals.isEmpty()) {
+            return 0;
+        }
+        return Math.max(0, System.currentTimeMillis() - arrivals.first().arrival);
+    }
+
+    /**
+     * A {@link MailQueueItemView} which carries the key of the mail in the
+     * statistics, for queues which do not key their mails by name
+     */
+    public interface KeyedItemView extends MailQueueItemView {
+
+        /**
+         * Return the unique key of the mail in the queue
+         * 
+         * @return key
+         */
+        String getKey();
+
+        /**
+         * Return the size of the message in bytes
+         * 
+         * @return size
+         */
+        long getMessageSize();
+
+        /**
+         * Return the time the mail was enqueued
+         * 
+         * @return arrival
+         */
+        long getArrival();
+    }
+
+    private final static class Entry {
+        private final long sequence;
+        private final long size;
+        private final long arrival;
+        private final long nextDelivery;
+
+        private Entry(long sequence, long size, long arrival, long nextDelivery) {
+            this.sequence = sequence;
+            this.size = size;
+            this.arrival = arrival;
+            this.nextDelivery = nextDelivery;
+        }
+    }
+
+    private static int compareTimes(long time1, long time2, long sequence1, long sequence2) {
+        if (time1 != time2) {
+            return time1 < time2 ? -1 : 1;
+        }
+        return sequence1 < sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+    }
+}
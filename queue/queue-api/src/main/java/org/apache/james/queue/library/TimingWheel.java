@@ -0,0 +1,467 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Hierarchical timing wheel which keeps track of the deadlines of delayed
+ * {@link org.apache.mailet.Mail}'s.
+ * <p/>
+ * Entries are stored in primitive arrays and chained by index, so a scheduled
+ * key costs a few bytes instead of a scheduled task. Inserting and expiring an
+ * entry is O(1). Each level has the same number of slots. An entry is placed on
+ * the lowest level whose range covers its deadline and is moved down one level
+ * once the slot it lives in is reached, like the classic kernel timer wheel.
+ * <p/>
+ * If a spill directory is given, entries whose deadline is further away than
+ * the spill threshold are appended to a file instead of being kept in memory.
+ * They are read back once their deadline comes close.
+ * <p/>
+ * The wheel does not own a thread. It only moves forward when
+ * {@link #expire(long, ExpirationListener)} is called.
+ */
+public class TimingWheel {
+
+    public final static long DEFAULT_TICK = 100;
+    public final static int DEFAULT_SLOTS = 256;
+    public final static int DEFAULT_LEVELS = 4;
+
+    private final static int NONE = -1;
+    private final static int INITIAL_CAPACITY = 64;
+    private final static String SPILL_PREFIX = "wheel-spill-";
+
+    private final long tick;
+    private final int bits;
+    private final int mask;
+    private final int levels;
+
+    // the slot heads of every level
+    private final int[][] slots;
+
+    // the entries. next is used to chain the entries of a slot and the free
+    // entries
+    private long[] deadlines;
+    private String[] keys;
+    private int[] next;
+    private int free = NONE;
+    private int used;
+    private int size;
+
+    // entries which are due already and entries which are beyond the range of
+    // the top level
+    private int ready = NONE;
+    private int overflow = NONE;
+
+    private long currentTick;
+
+    private final File spillDir;
+    private final long spillThreshold;
+    private File spillFile;
+    private DataOutputStream spillOut;
+    private int spilled;
+    private long spillMin = Long.MAX_VALUE;
+    private long spillGeneration;
+
+    /**
+     * Create a wheel with the default tick of {@value #DEFAULT_TICK} ms,
+     * {@value #DEFAULT_SLOTS} slots and {@value #DEFAULT_LEVELS} levels
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK, DEFAULT_SLOTS, DEFAULT_LEVELS);
+    }
+
+    public TimingWheel(long tick, int slotsPerLevel, int levels) {
+        this(tick, slotsPerLevel, levels, null, 0);
+    }
+
+    /**
+     * @param tick
+     *            the resolution of the wheel in milliseconds
+     * @param slotsPerLevel
+     *            the slots of each level, must be a power of two
+     * @param levels
+     *            the number of levels
+     * @param spillDir
+     *            the directory used to spill far away entries to or
+     *            <code>null</code> if all entries should be kept in memory
+     * @param spillThreshold
+     *            entries with a deadline further away than this milliseconds
+     *            get spilled
+     */
+    public TimingWheel(long tick, int slotsPerLevel, int levels, File spillDir, long spillThreshold) {
+        if (tick <= 0) {
+            throw new IllegalArgumentException("Tick must be positive");
+        }
+        if (slotsPerLevel < 2 || Integer.bitCount(slotsPerLevel) != 1) {
+            throw new IllegalArgumentException("Slots per level must be a power of two");
+        }
+        this.tick = tick;
+        this.bits = Integer.numberOfTrailingZeros(slotsPerLevel);
+        if (levels < 1 || bits * levels > 62) {
+            throw new IllegalArgumentException("Invalid number of levels " + levels);
+        }
+        this.mask = slotsPerLevel - 1;
+        this.levels = levels;
+        this.slots = new int[levels][slotsPerLevel];
+        for (int[] level : slots) {
+            Arrays.fill(level, NONE);
+        }
+        this.deadlines = new long[INITIAL_CAPACITY];
+        this.keys = new String[INITIAL_CAPACITY];
+        this.next = new int[INITIAL_CAPACITY];
+        this.currentTick = System.currentTimeMillis() / tick;
+
+        this.spillDir = spillDir;
+        this.spillThreshold = spillThreshold;
+        if (spillDir != null) {
+            // spilled entries are not meant to survive a restart, the owner
+            // of the wheel schedules its entries again
+            File[] old = spillDir.listFiles();
+            if (old != null) {
+                for (File f : old) {
+                    if (f.getName().startsWith(SPILL_PREFIX)) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Schedule the given key. It will get expired once the deadline is
+     * reached.
+     *
+     * @param key
+     * @param deadline
+     *            the deadline in milliseconds since the epoch
+     */
+    public synchronized void schedule(String key, long deadline) {
+        long deadlineTick = toTick(deadline);
+        if (deadlineTick <= currentTick) {
+            int e = allocate(key, deadline);
+            next[e] = ready;
+            ready = e;
+            return;
+        }
+        if (spillDir != null && deadline - currentTick * tick > spillThreshold && spill(key, deadline)) {
+            return;
+        }
+        place(allocate(key, deadline));
+    }
+
+    /**
+     * Move the wheel forward to the given time and pass every expired key to
+     * the listener. The listener is called while holding the lock of the
+     * wheel, so it should not block.
+     *
+     * @return expired the number of expired keys
+     */
+    public synchronized int expire(long now, ExpirationListener listener) {
+        int count = drainReady(listener);
+        if (spilled > 0 && spillMin - now <= spillThreshold) {
+            unspill();
+            count += drainReady(listener);
+        }
+
+        long nowTick = now / tick;
+        if (size == 0) {
+            // nothing to move, so just jump forward
+            currentTick = Math.max(currentTick, nowTick);
+            return count;
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            cascade();
+            int slot = (int) (currentTick & mask);
+            int e = slots[0][slot];
+            slots[0][slot] = NONE;
+            while (e != NONE) {
+                int n = next[e];
+                count++;
+                fire(e, listener);
+                e = n;
+            }
+            if (size == 0) {
+                currentTick = nowTick;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the earliest time at which {@link #expire(long, ExpirationListener)}
+     * may expire an entry or move an entry down the levels. This is a lower
+     * bound of the next deadline, so it is safe to sleep until then. Returns
+     * {@link Long#MAX_VALUE} if nothing is scheduled.
+     */
+    public synchronized long nextExpiry() {
+        if (ready != NONE) {
+            return 0;
+        }
+        long nextTick = Long.MAX_VALUE;
+        for (int level = 0; level < levels; level++) {
+            int shift = bits * level;
+            long base = currentTick >> shift;
+            for (int i = 1; i <= mask + 1; i++) {
+                if (slots[level][(int) ((base + i) & mask)] != NONE) {
+                    nextTick = Math.min(nextTick, (base + i) << shift);
+                    break;
+                }
+            }
+        }
+        if (overflow != NONE) {
+            int shift = bits * levels;
+            nextTick = Math.min(nextTick, ((currentTick >> shift) + 1) << shift);
+        }
+        long next = nextTick == Long.MAX_VALUE ? Long.MAX_VALUE : nextTick * tick;
+        if (spilled > 0) {
+            next = Math.min(next, spillMin - spillThreshold);
+        }
+        return next;
+    }
+
+    /**
+     * Return the number of scheduled keys, including spilled ones
+     */
+    public synchronized int size() {
+        return size + spilled;
+    }
+
+    /**
+     * Remove all scheduled keys
+     */
+    public synchronized void clear() {
+        for (int[] level : slots) {
+            Arrays.fill(level, NONE);
+        }
+        Arrays.fill(keys, null);
+        free = NONE;
+        used = 0;
+        size = 0;
+        ready = NONE;
+        overflow = NONE;
+        closeSpill();
+    }
+
+    /**
+     * Release the resources of the wheel
+     */
+    public synchronized void close() {
+        clear();
+    }
+
+    /**
+     * Move the entries of the higher level slots which got reached by the
+     * current tick one level down
+     */
+    private void cascade() {
+        for (int level = 1; level < levels; level++) {
+            int shift = bits * level;
+            if ((currentTick & ((1L << shift) - 1)) != 0) {
+                return;
+            }
+            int slot = (int) ((currentTick >> shift) & mask);
+            int e = slots[level][slot];
+            slots[level][slot] = NONE;
+            while (e != NONE) {
+                int n = next[e];
+                place(e);
+                e = n;
+            }
+        }
+        if ((currentTick & ((1L << (bits * levels)) - 1)) == 0) {
+            int e = overflow;
+            overflow = NONE;
+            while (e != NONE) {
+                int n = next[e];
+                place(e);
+                e = n;
+            }
+        }
+    }
+
+    /**
+     * Place the entry in the slot matching its deadline. The deadline must not
+     * be before the current tick.
+     */
+    private void place(int e) {
+        long deadlineTick = toTick(deadlines[e]);
+        long delta = deadlineTick - currentTick;
+        for (int level = 0; level < levels; level++) {
+            int shift = bits * level;
+            if (delta >> (shift + bits) == 0) {
+                int slot = (int) ((deadlineTick >> shift) & mask);
+                next[e] = slots[level][slot];
+                slots[level][slot] = e;
+                return;
+            }
+        }
+        next[e] = overflow;
+        overflow = e;
+    }
+
+    /**
+     * Return the tick of the given deadline. Rounds up, so an entry never
+     * expires before its deadline.
+     */
+    private long toTick(long deadline) {
+        return (deadline + tick - 1) / tick;
+    }
+
+    private int drainReady(ExpirationListener listener) {
+        int count = 0;
+        while (ready != NONE) {
+            int e = ready;
+            ready = next[e];
+            count++;
+            fire(e, listener);
+        }
+        return count;
+    }
+
+    private void fire(int e, ExpirationListener listener) {
+        String key = keys[e];
+        long deadline = deadlines[e];
+        release(e);
+        listener.expired(key, deadline);
+    }
+
+    private int allocate(String key, long deadline) {
+        int e;
+        if (free != NONE) {
+            e = free;
+            free = next[e];
+        } else {
+            if (used == keys.length) {
+                int capacity = keys.length * 2;
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            e = used++;
+        }
+        keys[e] = key;
+        deadlines[e] = deadline;
+        size++;
+        return e;
+    }
+
+    private void release(int e) {
+        keys[e] = null;
+        next[e] = free;
+        free = e;
+        size--;
+    }
+
+    /**
+     * Append the entry to the spill file.
+     *
+     * @return spilled <code>true</code> if the entry was spilled, otherwise it
+     *         needs to be kept in memory
+     */
+    private boolean spill(String key, long deadline) {
+        try {
+            if (spillOut == null) {
+                spillFile = new File(spillDir, SPILL_PREFIX + spillGeneration++);
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            spillOut.writeLong(deadline);
+            spillOut.writeUTF(key);
+            spilled++;
+            spillMin = Math.min(spillMin, deadline);
+            return true;
+        } catch (IOException e) {
+            // keeping the entry in memory is always possible
+            return false;
+        }
+    }
+
+    /**
+     * Read back all spilled entries and schedule them again. Entries which are
+     * still far away get spilled to a new file.
+     */
+    private void unspill() {
+        File file = spillFile;
+        int count = spilled;
+        try {
+            spillOut.close();
+        } catch (IOException e) {
+            // ignore on close
+        }
+        spillOut = null;
+        spillFile = null;
+        spilled = 0;
+        spillMin = Long.MAX_VALUE;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            for (int i = 0; i < count; i++) {
+                long deadline = in.readLong();
+                schedule(in.readUTF(), deadline);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read spill file " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+            }
+            file.delete();
+        }
+    }
+
+    private void closeSpill() {
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            spillFile.delete();
+            spillOut = null;
+            spillFile = null;
+        }
+        spilled = 0;
+        spillMin = Long.MAX_VALUE;
+    }
+
+    /**
+     * Listener which gets notified about expired keys
+     */
+    public interface ExpirationListener {
+
+        /**
+         * The given key reached its deadline
+         */
+        void expired(String key, long deadline);
+    }
+}
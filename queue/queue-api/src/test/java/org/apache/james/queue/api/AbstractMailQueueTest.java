@@ -0,0 +1,196 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Contract of a {@link MonitorableMailQueue}. Extend this class and create the
+ * queue in {@link #createQueue()} for the tests to run against it.
+ */
+public abstract class AbstractMailQueueTest<Q extends MonitorableMailQueue> {
+
+    protected final static String QUEUE_NAME = "test";
+
+    protected Q queue;
+
+    protected abstract Q createQueue() throws Exception;
+
+    /**
+     * Return true if mails are dequeued by their {@link MailPrioritySupport#MAIL_PRIORITY}
+     */
+    protected boolean isPriorityOrdered() {
+        return queue instanceof PriorityMailQueue;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        queue = createQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LifecycleUtil.dispose(queue);
+    }
+
+    @Test
+    public void testEnqueueDequeue() throws Exception {
+        MailImpl mail = createMail("mail1");
+        mail.setAttribute("attr", "value");
+        queue.enQueue(mail);
+        // the queue must not depend on the enqueued mail
+        mail.setAttribute("attr", "changed");
+        mail.dispose();
+        assertEquals(1, queue.getSize());
+        assertEquals(1, queue.getReadyCount());
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        assertEquals("value", item.getMail().getAttribute("attr"));
+        assertEquals(new MailAddress("sender@senderdomain"), item.getMail().getSender());
+        assertEquals(Arrays.asList(new MailAddress("test@test")), item.getMail().getRecipients());
+        assertEquals("subject of mail1", item.getMail().getMessage().getSubject());
+        assertEquals("body of mail1", item.getMail().getMessage().getContent());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testDelayedMail() throws Exception {
+        long start = System.currentTimeMillis();
+        queue.enQueue(createMail("mail1"), 300, TimeUnit.MILLISECONDS);
+        assertEquals(0, queue.getReadyCount());
+        assertEquals(1, queue.getDeferredCount());
+        MailQueueItem item = queue.deQueue();
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals("mail1", item.getMail().getName());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        if (!isPriorityOrdered()) {
+            return;
+        }
+        MailImpl low = createMail("low");
+        low.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+        queue.enQueue(low);
+        queue.enQueue(createMail("normal"));
+        MailImpl high = createMail("high");
+        high.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+        queue.enQueue(high);
+
+        for (String name : new String[] { "high", "normal", "low" }) {
+            MailQueueItem item = queue.deQueue();
+            assertEquals(name, item.getMail().getName());
+            item.done(true);
+        }
+    }
+
+    @Test
+    public void testBrowse() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"), 1, TimeUnit.HOURS);
+        queue.enQueue(createMail("mail3"));
+
+        MailQueueIterator mails = queue.browse();
+        Set<String> names = new HashSet<String>();
+        while (mails.hasNext()) {
+            MailQueueItemView view = mails.next();
+            names.add(view.getMail().getName());
+            if (view.getMail().getName().equals("mail2")) {
+                assertTrue(view.getNextDelivery() > System.currentTimeMillis());
+            }
+        }
+        mails.close();
+        assertEquals(new HashSet<String>(Arrays.asList("mail1", "mail2", "mail3")), names);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        MailImpl other = createMail("mail3");
+        other.setSender(new MailAddress("other@otherdomain"));
+        other.setRecipients(Arrays.asList(new MailAddress("rcpt@rcptdomain")));
+        queue.enQueue(other);
+
+        assertEquals(1, queue.remove(Type.Name, "mail1"));
+        assertEquals(0, queue.remove(Type.Name, "mail1"));
+        assertEquals(1, queue.remove(Type.Recipient, "rcpt@rcptdomain"));
+        assertEquals(1, queue.remove(Type.Sender, "sender@senderdomain"));
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getReadyCount());
+    }
+
+    @Test
+    public void testFlushAndClear() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"), 1, TimeUnit.HOURS);
+        assertEquals(1, queue.getDeferredCount());
+        assertTrue(queue.getTotalBytes() > 0);
+
+        assertEquals(1, queue.flush());
+        assertEquals(2, queue.getReadyCount());
+        assertEquals(0, queue.getDeferredCount());
+        assertEquals(2, queue.clear());
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getReadyCount());
+        assertEquals(0, queue.getTotalBytes());
+        assertEquals(0, queue.getOldestAge());
+    }
+
+    protected MailImpl createMail(String name) throws Exception {
+        MailImpl mail = new MailImpl();
+        mail.setName(name);
+        mail.setLastUpdated(new Date());
+        mail.setRecipients(Arrays.asList(new MailAddress("test@test")));
+        mail.setSender(new MailAddress("sender@senderdomain"));
+
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject("subject of " + name);
+        message.setText("body of " + name);
+        message.saveChanges();
+        mail.setMessage(message);
+        return mail;
+    }
+}
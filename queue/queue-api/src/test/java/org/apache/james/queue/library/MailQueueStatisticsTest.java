@@ -0,0 +1,169 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueItemView;
+import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.library.MailQueueStatistics.KeyedItemView;
+import org.apache.mailet.Mail;
+import org.junit.Test;
+
+public class MailQueueStatisticsTest {
+
+    @Test
+    public void testCounters() {
+        MailQueueStatistics statistics = new MailQueueStatistics();
+        long now = System.currentTimeMillis();
+        statistics.add("mail1", 100, now - 5000, 0);
+        statistics.add("mail2", 200, now - 1000, now + 60000);
+        statistics.add("mail3", 300, now, -1);
+
+        assertEquals(3, statistics.getSize());
+        assertEquals(2, statistics.getReadyCount());
+        assertEquals(1, statistics.getDeferredCount());
+        assertEquals(600, statistics.getTotalBytes());
+        assertTrue(statistics.getOldestAge() >= 5000);
+
+        assertTrue(statistics.remove("mail1"));
+        assertFalse(statistics.remove("mail1"));
+        assertEquals(500, statistics.getTotalBytes());
+        assertTrue(statistics.getOldestAge() < 5000);
+
+        statistics.flush();
+        assertEquals(0, statistics.getDeferredCount());
+        assertEquals(2, statistics.getReadyCount());
+
+        statistics.clear();
+        assertEquals(0, statistics.getSize());
+        assertEquals(0, statistics.getTotalBytes());
+        assertEquals(0, statistics.getOldestAge());
+    }
+
+    @Test
+    public void testDeferredBecomeReady() throws Exception {
+        MailQueueStatistics statistics = new MailQueueStatistics();
+        statistics.add("mail1", 100, System.currentTimeMillis(), System.currentTimeMillis() + 100);
+        assertEquals(1, statistics.getDeferredCount());
+        Thread.sleep(150);
+        assertEquals(0, statistics.getDeferredCount());
+        assertEquals(1, statistics.getReadyCount());
+    }
+
+    @Test
+    public void testAddReplaces() {
+        MailQueueStatistics statistics = new MailQueueStatistics();
+        long now = System.currentTimeMillis();
+        statistics.add("mail1", 100, now, now + 60000);
+        statistics.add("mail1", 50, now, 0);
+        assertEquals(1, statistics.getSize());
+        assertEquals(0, statistics.getDeferredCount());
+        assertEquals(50, statistics.getTotalBytes());
+    }
+
+    @Test
+    public void testDefer() {
+        MailQueueStatistics statistics = new MailQueueStatistics();
+        long now = System.currentTimeMillis();
+        statistics.add("mail1", 100, now - 5000, 0);
+        assertTrue(statistics.defer("mail1", now + 60000));
+        assertFalse(statistics.defer("mail2", now + 60000));
+        assertEquals(1, statistics.getSize());
+        assertEquals(1, statistics.getDeferredCount());
+        assertEquals(100, statistics.getTotalBytes());
+        assertTrue(statistics.getOldestAge() >= 5000);
+    }
+
+    @Test
+    public void testLoadDropsMailsRemovedByOthers() {
+        MailQueueStatistics statistics = new MailQueueStatistics();
+        long now = System.currentTimeMillis();
+        statistics.add("known", 100, now, 0);
+        statistics.add("gone", 200, now, 0);
+
+        statistics.load(iterator(view("known"), view("other")));
+        assertEquals(2, statistics.getSize());
+        assertEquals(150, statistics.getTotalBytes());
+        assertTrue(statistics.remove("known"));
+        assertTrue(statistics.remove("other"));
+        assertFalse(statistics.remove("gone"));
+    }
+
+    private static KeyedItemView view(final String key) {
+        return new KeyedItemView() {
+
+            @Override
+            public long getNextDelivery() {
+                return -1;
+            }
+
+            @Override
+            public Mail getMail() {
+                // the statistics are loaded from the properties only
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public long getMessageSize() {
+                return 50;
+            }
+
+            @Override
+            public long getArrival() {
+                return System.currentTimeMillis();
+            }
+        };
+    }
+
+    private static MailQueueIterator iterator(MailQueueItemView... views) {
+        final Iterator<MailQueueItemView> it = Arrays.asList(views).iterator();
+        return new MailQueueIterator() {
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.library;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpireOnTime() {
+        // 4 slots on 3 levels, so everything beyond 64 ticks overflows
+        TimingWheel wheel = new TimingWheel(10, 4, 3);
+        long now = System.currentTimeMillis();
+        PriorityQueue<Long> pending = new PriorityQueue<Long>();
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            long deadline = now + random.nextInt(2000);
+            wheel.schedule(Long.toString(deadline), deadline);
+            pending.add(deadline);
+        }
+        assertEquals(500, wheel.size());
+
+        RecordingListener listener = new RecordingListener();
+        for (long time = now; time <= now + 2100; time += 7) {
+            if (!pending.isEmpty()) {
+                // it must be safe to sleep until the next expiry, deadlines
+                // are rounded up to the next tick
+                assertTrue(wheel.nextExpiry() <= (pending.peek() + 9) / 10 * 10);
+            }
+            listener.now = time;
+            wheel.expire(time, listener);
+            for (String key : listener.expired) {
+                pending.remove(Long.parseLong(key));
+            }
+            listener.expired.clear();
+        }
+        assertTrue(pending.isEmpty());
+        assertEquals(0, wheel.size());
+        assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+    }
+
+    @Test
+    public void testDueKeysExpireImmediately() {
+        TimingWheel wheel = new TimingWheel();
+        long now = System.currentTimeMillis();
+        wheel.schedule("key", now - 1000);
+        assertEquals(0, wheel.nextExpiry());
+
+        RecordingListener listener = new RecordingListener();
+        listener.maxLateness = 2000;
+        listener.now = now;
+        assertEquals(1, wheel.expire(now, listener));
+        assertEquals("key", listener.expired.get(0));
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        File dir = new File("target/wheel-test-" + System.nanoTime());
+        dir.mkdirs();
+        try {
+            TimingWheel wheel = new TimingWheel(10, 16, 2, dir, 500);
+            long now = System.currentTimeMillis();
+            wheel.schedule("near", now + 100);
+            wheel.schedule("far", now + 2000);
+            assertEquals(2, wheel.size());
+            assertEquals(1, dir.list().length);
+
+            RecordingListener listener = new RecordingListener();
+            for (long time = now; time <= now + 2100; time += 10) {
+                listener.now = time;
+                wheel.expire(time, listener);
+            }
+            assertEquals(2, listener.expired.size());
+            assertEquals("near", listener.expired.get(0));
+            assertEquals("far", listener.expired.get(1));
+            assertEquals(0, dir.list().length);
+            wheel.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private final static class RecordingListener implements ExpirationListener {
+        private final List<String> expired = new ArrayList<String>();
+        private long now;
+        private long maxLateness = 20;
+
+        @Override
+        public void expired(String key, long deadline) {
+            // never expire too early and never more than a tick too late
+            assertTrue(deadline <= now);
+            assertTrue(now - deadline < maxLateness);
+            expired.add(key);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.benchmark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.james.filesystem.api.FileSystem;
+
+/**
+ * {@link FileSystem} which resolves the relative <code>file://</code> urls
+ * against the directory of a {@link BenchmarkQueue}
+ */
+class BenchmarkFileSystem implements FileSystem {
+
+    private final File basedir;
+
+    public BenchmarkFileSystem(File basedir) {
+        this.basedir = basedir;
+    }
+
+    @Override
+    public InputStream getResource(String url) throws IOException {
+        throw new FileNotFoundException(url);
+    }
+
+    @Override
+    public File getFile(String fileURL) throws FileNotFoundException {
+        if (fileURL.startsWith(FILE_PROTOCOL_ABSOLUTE)) {
+            return new File(fileURL.substring(FILE_PROTOCOL_ABSOLUTE.length() - 1));
+        } else if (fileURL.startsWith(FILE_PROTOCOL)) {
+            return new File(basedir, fileURL.substring(FILE_PROTOCOL.length()));
+        } else if (fileURL.startsWith("file:/")) {
+            // the urls of the blob files are absolute
+            return new File(fileURL.substring("file:".length()));
+        }
+        throw new FileNotFoundException(fileURL);
+    }
+
+    @Override
+    public File getBasedir() throws FileNotFoundException {
+        return basedir;
+    }
+}
@@ -0,0 +1,120 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.commons.io.FileUtils;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.activemq.ActiveMQMailQueue;
+import org.apache.james.queue.activemq.FileSystemBlobTransferPolicy;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.file.FileMailQueue;
+import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.james.queue.memory.MemoryMailQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the {@link ManageableMailQueue} of a given type for the benchmarks,
+ * including the embedded broker for the JMS based queues. Everything is kept
+ * below a temporary directory which is deleted on {@link #dispose()}.
+ */
+public class BenchmarkQueue {
+
+    public final static String MEMORY = "memory";
+    public final static String FILE = "file";
+    public final static String FILE_NOSYNC = "file-nosync";
+    public final static String JMS = "jms";
+    public final static String ACTIVEMQ = "activemq";
+    public final static String ACTIVEMQ_BLOB = "activemq-blob";
+
+    private final static String QUEUE_NAME = "benchmark";
+    private final static String BROKER_NAME = "james-benchmark";
+
+    private final Logger log = LoggerFactory.getLogger(BenchmarkQueue.class);
+    private final File dir;
+    private final ManageableMailQueue queue;
+    private BrokerService broker;
+
+    public BenchmarkQueue(String type) throws Exception {
+        dir = new File(System.getProperty("java.io.tmpdir"), "james-queue-benchmark-" + System.nanoTime());
+        FileUtils.forceMkdir(dir);
+        queue = createQueue(type);
+    }
+
+    private ManageableMailQueue createQueue(String type) throws Exception {
+        if (MEMORY.equals(type)) {
+            return new MemoryMailQueue(QUEUE_NAME, MemoryMailQueue.DEFAULT_HEAP_BUDGET, new File(dir, "spill"), log);
+        } else if (FILE.equals(type)) {
+            return new FileMailQueue(dir, QUEUE_NAME, true, log);
+        } else if (FILE_NOSYNC.equals(type)) {
+            return new FileMailQueue(dir, QUEUE_NAME, false, log);
+        } else if (JMS.equals(type)) {
+            return new JMSMailQueue(startBroker(), QUEUE_NAME, log);
+        } else if (ACTIVEMQ.equals(type)) {
+            return new ActiveMQMailQueue(startBroker(), QUEUE_NAME, false, log);
+        } else if (ACTIVEMQ_BLOB.equals(type)) {
+            ActiveMQConnectionFactory factory = startBroker();
+            FileSystemBlobTransferPolicy policy = new FileSystemBlobTransferPolicy();
+            policy.setFileSystem(new BenchmarkFileSystem(dir));
+            policy.setDefaultUploadUrl("file://blobs");
+            factory.setBlobTransferPolicy(policy);
+            return new ActiveMQMailQueue(factory, QUEUE_NAME, true, log);
+        }
+        throw new IllegalArgumentException("Unknown queue type " + type + ", use one of "
+                + Arrays.asList(MEMORY, FILE, FILE_NOSYNC, JMS, ACTIVEMQ, ACTIVEMQ_BLOB));
+    }
+
+    /**
+     * Start a non persistent embedded broker and return a factory for the
+     * connections to it
+     */
+    private ActiveMQConnectionFactory startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.setSchedulerSupport(true);
+        broker.setDataDirectoryFile(new File(dir, "activemq-data"));
+        broker.start();
+        return new ActiveMQConnectionFactory("vm://" + BROKER_NAME + "?create=false");
+    }
+
+    public ManageableMailQueue getQueue() {
+        return queue;
+    }
+
+    public void dispose() throws Exception {
+        LifecycleUtil.dispose(queue);
+        if (broker != null) {
+            broker.stop();
+            broker.waitUntilStopped();
+        }
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            log.warn("Unable to delete " + dir, e);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedByteArrayInputStream;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.mailet.MailAddress;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Enqueue and dequeue benchmarks of the {@link ManageableMailQueue}
+ * implementations, for different message sizes and attribute counts. The
+ * concurrency is given by the thread count of the run, see
+ * {@link QueueBenchmarks}.
+ * <p/>
+ * {@link #roundTrip(QueueState)} measures the throughput and the latency of
+ * a full enqueue, dequeue and done cycle. {@link #enqueue(QueueState)} and
+ * {@link #dequeue(PrefilledQueueState)} measure the single operations in
+ * batches of {@link #BATCH_SIZE} mails per thread, so the queue does not grow
+ * without bounds.
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class MailQueueBenchmark {
+
+    public final static int BATCH_SIZE = 50;
+
+    private final static List<MailAddress> RECIPIENTS;
+    private final static MailAddress SENDER;
+
+    static {
+        try {
+            SENDER = new MailAddress("sender@example.com");
+            RECIPIENTS = Arrays.asList(new MailAddress("rcpt1@example.com"), new MailAddress("rcpt2@example.org"));
+        } catch (MessagingException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+
+        @Param({ BenchmarkQueue.MEMORY, BenchmarkQueue.FILE, BenchmarkQueue.FILE_NOSYNC, BenchmarkQueue.JMS, BenchmarkQueue.ACTIVEMQ, BenchmarkQueue.ACTIVEMQ_BLOB })
+        public String queueType;
+
+        @Param({ "1024", "102400", "1048576", "10485760" })
+        public int messageSize;
+
+        @Param({ "0", "10", "100" })
+        public int attributeCount;
+
+        private BenchmarkQueue benchmarkQueue;
+        private byte[] message;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            benchmarkQueue = new BenchmarkQueue(queueType);
+            message = createMessage(messageSize);
+        }
+
+        @TearDown(Level.Iteration)
+        public void clear() throws Exception {
+            benchmarkQueue.getQueue().clear();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            benchmarkQueue.dispose();
+        }
+
+        public ManageableMailQueue getQueue() {
+            return benchmarkQueue.getQueue();
+        }
+
+        /**
+         * Create a new mail which shares the message bytes with all other
+         * mails of this state
+         */
+        public MailImpl createMail() throws MessagingException {
+            MailImpl mail = new MailImpl(MailImpl.getId(), SENDER, RECIPIENTS, new MimeMessageCopyOnWriteProxy(new BytesMimeMessageSource(message)));
+            for (int i = 0; i < attributeCount; i++) {
+                mail.setAttribute("org.apache.james.benchmark.attribute" + i, "value " + i);
+            }
+            return mail;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PrefilledQueueState extends QueueState {
+
+        /**
+         * Fill the queue with a batch of mails for each thread
+         */
+        @Setup(Level.Iteration)
+        public void fill(BenchmarkParams params) throws Exception {
+            for (int i = 0; i < BATCH_SIZE * params.getThreads(); i++) {
+                MailImpl mail = createMail();
+                getQueue().enQueue(mail);
+                mail.dispose();
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    public void roundTrip(QueueState state) throws Exception {
+        MailImpl mail = state.createMail();
+        state.getQueue().enQueue(mail);
+        mail.dispose();
+        MailQueueItem item = state.getQueue().deQueue();
+        item.done(true);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = BATCH_SIZE)
+    @Measurement(iterations = 20, batchSize = BATCH_SIZE)
+    public void enqueue(QueueState state) throws Exception {
+        MailImpl mail = state.createMail();
+        state.getQueue().enQueue(mail);
+        mail.dispose();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = BATCH_SIZE)
+    @Measurement(iterations = 20, batchSize = BATCH_SIZE)
+    public void dequeue(PrefilledQueueState state) throws Exception {
+        state.getQueue().deQueue().done(true);
+    }
+
+    /**
+     * Create a message of the given size with a text body
+     */
+    private static byte[] createMessage(int size) {
+        StringBuilder message = new StringBuilder(size + 80);
+        message.append("From: sender@example.com\r\n");
+        message.append("To: rcpt1@example.com, rcpt2@example.org\r\n");
+        message.append("Subject: benchmark\r\n");
+        message.append("Content-Type: text/plain; charset=us-ascii\r\n");
+        message.append("\r\n");
+        while (message.length() < size) {
+            message.append("0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+        }
+        message.setLength(size);
+        return message.toString().getBytes();
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message from a shared byte
+     * array, so creating the mails does not copy the message
+     */
+    private final static class BytesMimeMessageSource extends MimeMessageSource {
+
+        private final byte[] message;
+
+        public BytesMimeMessageSource(byte[] message) {
+            this.message = message;
+        }
+
+        @Override
+        public String getSourceId() {
+            return "benchmark-" + System.identityHashCode(message);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new SharedByteArrayInputStream(message);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return message.length;
+        }
+    }
+}
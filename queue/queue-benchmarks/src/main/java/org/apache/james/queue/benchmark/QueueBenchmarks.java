@@ -0,0 +1,65 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link MailQueueBenchmark} once for every thread count and writes
+ * the results of each run as JSON to <code>jmh-result-&lt;threads&gt;.json</code>,
+ * so they can be compared between releases.
+ * <p/>
+ * All options of the JMH command line are supported. If the thread count is
+ * given with <code>-t</code> only that count is run. The result format and
+ * file can be changed with <code>-rf</code> and <code>-rff</code>, a result
+ * file given with <code>-rff</code> is overwritten by each thread count. For
+ * example
+ * <code>java -jar target/benchmarks.jar -p queueType=file -p messageSize=1024 -t 4</code>
+ */
+public class QueueBenchmarks {
+
+    private final static int[] THREADS = { 1, 4, 16 };
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListResultFormats() || cmd.shouldListProfilers()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        int[] threads = cmd.getThreads().hasValue() ? new int[] { cmd.getThreads().get() } : THREADS;
+        for (int count : threads) {
+            ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd).threads(count);
+            if (cmd.getIncludes().isEmpty()) {
+                options.include(MailQueueBenchmark.class.getSimpleName());
+            }
+            if (!cmd.getResultFormat().hasValue()) {
+                options.resultFormat(ResultFormatType.JSON);
+            }
+            if (!cmd.getResult().hasValue()) {
+                options.result("jmh-result-" + count + ".json");
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
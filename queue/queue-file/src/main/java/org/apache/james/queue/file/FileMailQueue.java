@@ -25,15 +25,23 @@ import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableSet;
 import java.util.NoSuchElementException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -42,11 +50,29 @@ import javax.mail.MessagingException;
 import javax.mail.util.SharedFileInputStream;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailEnvelopeCodec;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
 import org.apache.james.core.MimeMessageSource;
+import org.apache.james.core.MimeMessageUtil;
 import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.james.queue.api.IngestMailQueue;
+import org.apache.james.queue.api.InstrumentedMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.MailQueuePage;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.PageableMailQueue;
+import org.apache.james.queue.api.PriorityMailQueue;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.file.FileMailQueueIndex.IndexEntry;
+import org.apache.james.queue.library.CompositeMailQueueMetricsListener;
+import org.apache.james.queue.library.DelayScheduler;
+import org.apache.james.queue.library.MailQueueStatistics;
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 
@@ -56,157 +82,485 @@ import com.google.common.io.Closeables;
  * {@link ManageableMailQueue} implementation which use the fs to store {@link Mail}'s
  * <p/>
  * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of
- * loading the needed meta-data into memory for fast access.
+ * loading the needed meta-data into memory for fast access. The meta-data is taken from a compact
+ * recovery index which is checkpointed while the queue runs, so the {@link Mail}'s don't need to get
+ * deserialized on startup. The split directories are reconciled with the index in the background
+ * to pick up {@link Mail}'s which were enqueued after the last checkpoint.
+ * <p/>
+ * The statistics of the queue are maintained on enqueue and dequeue, see {@link MailQueueStatistics}.
+ * The keys are kept sorted and indexed by sender and recipient domain, so the queue can be browsed
+ * page by page and mails can be removed without reading every queued {@link Mail}.
+ * <p/>
+ * The {@link Mail}'s which are ready for dequeue are kept in one lane per {@link #MAIL_PRIORITY}, see
+ * {@link PriorityLanes}. The priority is stored in the index, so it survives a restart.
+ * <p/>
+ * The latencies of enqueue and dequeue are reported to the {@link MailQueueMetricsListener}, the time
+ * in queue is measured from the arrival which is stored in the index.
+ * <p/>
+ * Failed {@link Mail}'s are delayed according to the {@link RedeliveryPolicy}. The count of failures is
+ * only kept in memory, so it starts again after a restart.
+ * <p/>
+ * Unmodified messages which were received into the {@link #getIngestDirectory()} are moved into the
+ * queue on enqueue instead of being copied.
+ * <p/>
+ * The messages of dequeued {@link Mail}'s are read through a {@link SharedFileInputStream} which is
+ * closed once the {@link Mail} is done, before its files get deleted. They are not mapped into memory,
+ * as a mapped file can't be deleted on some platforms and keeps its disk space until the mapping is
+ * garbage collected. Message files which can't be deleted are retried periodically, and message files
+ * without an object file are removed on startup.
+ * <p/>
+ * The queue directory may be shared by several nodes if each of them is given its own node id. The
+ * index is not used then, instead the nodes rescan the split directories for the {@link Mail}'s
+ * enqueued by the others. A node claims a {@link Mail} before it is handed out by moving its object
+ * file into the claim directory of the node, only one node can win this move. Each node renews the
+ * lease on its claim directory while it runs, the {@link Mail}'s claimed by a node whose lease expired
+ * are moved back by the other nodes. The clocks of the nodes should be in sync well within the lease time.
  */
-public class FileMailQueue implements ManageableMailQueue {
+public class FileMailQueue implements PriorityMailQueue, PageableMailQueue, BatchMailQueue, InstrumentedMailQueue, RedeliveryMailQueue, IngestMailQueue, Disposable {
 
-    private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
-    private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
+    private final ConcurrentSkipListMap<String, FileItem> keyMappings = new ConcurrentSkipListMap<String, FileMailQueue.FileItem>();
+    private final SecondaryIndex senders = new SecondaryIndex();
+    private final SecondaryIndex recipientDomains = new SecondaryIndex();
+    private final PriorityLanes inmemoryQueue = new PriorityLanes();
+    private final MailQueueStatistics statistics = new MailQueueStatistics();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Queue<File> undeletedFiles = new ConcurrentLinkedQueue<File>();
+    private final DelayScheduler delayScheduler;
+    private final ExecutorService reconciler = Executors.newFixedThreadPool(Math.min(SPLITCOUNT, Runtime.getRuntime().availableProcessors()));
     private final static AtomicLong COUNTER = new AtomicLong();
+    private final String queueName;
     private final String queueDirName;
     private final File queueDir;
+    private final File ingestDir;
+    private final String nodeId;
+    private final File claimDir;
+    private final long leaseTime;
+    private final FileMailQueueIndex index;
     private final Logger log;
+    private volatile boolean indexDirty;
+    private volatile MailQueueMetricsListener metrics = new CompositeMailQueueMetricsListener();
+    private volatile RedeliveryPolicy redeliveryPolicy = RedeliveryPolicy.DEFAULT;
+    private volatile MailQueue quarantine;
 
     private final boolean sync;
     private final static String MSG_EXTENSION = ".msg";
     private final static String OBJECT_EXTENSION = ".obj";
     private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+    private final static String INGEST_DIR = "ingest";
+    private final static String CLAIMS_DIR = "claims";
+    private final static String TMP_EXTENSION = ".tmp";
     private final static int SPLITCOUNT = 10;
+    private final static long CHECKPOINT_INTERVAL = 10;
+    private final static long SCAN_INTERVAL = 1000;
+    private final static FilenameFilter OBJECT_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(OBJECT_EXTENSION);
+        }
+    };
+    private final static FilenameFilter MSG_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(MSG_EXTENSION);
+        }
+    };
+
+    public final static long DEFAULT_LEASE_TIME = 60000;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
+        this(parentDir, queuename, sync, null, DEFAULT_LEASE_TIME, log);
+    }
+
+    /**
+     * Create a queue whose directory may be shared with other nodes
+     * 
+     * @param nodeId
+     *            the id of this node, which must be unique among the nodes
+     *            which share the queue directory and usable as a file name. If
+     *            <code>null</code> the queue directory must not be shared
+     * @param leaseTime
+     *            the time in milliseconds after which the mails claimed by a
+     *            node which stopped to renew its lease get moved back
+     */
+    public FileMailQueue(File parentDir, String queuename, boolean sync, String nodeId, long leaseTime, Logger log) throws IOException {
         this.log = log;
         this.sync = sync;
+        this.queueName = queuename;
         this.queueDir = new File(parentDir, queuename);
+        this.nodeId = nodeId;
+        this.leaseTime = leaseTime;
+        if (nodeId == null) {
+            this.ingestDir = new File(queueDir, INGEST_DIR);
+            this.claimDir = null;
+        } else {
+            this.ingestDir = new File(new File(queueDir, INGEST_DIR), nodeId);
+            this.claimDir = new File(new File(queueDir, CLAIMS_DIR), nodeId);
+        }
         this.queueDirName = queueDir.getAbsolutePath();
+        this.index = new FileMailQueueIndex(queueDir);
+        this.delayScheduler = new DelayScheduler("FileMailQueue-" + queuename, new ExpirationListener() {
+
+            @Override
+            public void expired(String key, long deadline) {
+                // the mail may have been removed in the meantime
+                FileItem item = keyMappings.get(key);
+                if (item != null) {
+                    inmemoryQueue.add(key, item.getEntry().getPriority());
+                }
+            }
+        });
         init();
     }
 
     private void init() throws IOException {
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            FileUtils.forceMkdir(new File(queueDir, Integer.toString(i)));
+        }
+        // messages left from receptions which were not completed
+        FileUtils.forceMkdir(ingestDir);
+        FileUtils.cleanDirectory(ingestDir);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                deleteUndeletedFiles();
+            }
+        }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+
+        if (claimDir != null) {
+            initClaims();
+            return;
+        }
 
+        List<IndexEntry> entries;
+        try {
+            entries = index.read();
+        } catch (IOException e) {
+            log.warn("Unable to read index of queue " + queueDirName + ", all mails will get loaded from the split directories", e);
+            index.delete();
+            entries = new ArrayList<IndexEntry>();
+        }
+
+        final Map<Integer, Set<String>> indexedKeys = new HashMap<Integer, Set<String>>();
         for (int i = 1; i <= SPLITCOUNT; i++) {
+            indexedKeys.put(i, new HashSet<String>());
+        }
+        for (IndexEntry entry : entries) {
+            Set<String> keys = indexedKeys.get(entry.getSplit());
+            if (keys != null) {
+                keys.add(entry.getKey());
+                keyMappings.put(entry.getKey(), new FileItem(entry));
+                index(entry.getKey(), entry);
+                schedule(entry);
+            }
+        }
 
-            File qDir = new File(queueDir, Integer.toString(i));
-            FileUtils.forceMkdir(qDir);
+        // Everything written after this point is registered by enQueue itself
+        final long startTime = System.currentTimeMillis();
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            final int split = i;
+            reconciler.execute(new Runnable() {
 
-            String[] files = qDir.list(new FilenameFilter() {
                 @Override
-                public boolean accept(File dir, String name) {
-                    return name.endsWith(OBJECT_EXTENSION);
+                public void run() {
+                    reconcile(split, indexedKeys.get(split), startTime);
                 }
             });
+        }
+        reconciler.shutdown();
 
-            for (final String name : files) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                ObjectInputStream oin = null;
+            @Override
+            public void run() {
+                checkpoint();
+            }
+        }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
+    }
 
-                try {
+    /**
+     * Prepare the claim directory of this node and start the tasks which
+     * maintain the lease and pick up the mails of the other nodes
+     */
+    private void initClaims() throws IOException {
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            FileUtils.forceMkdir(new File(claimDir, Integer.toString(i)));
+        }
+        // mails which were claimed before this node was stopped
+        releaseClaims(claimDir);
 
-                    final String msgFileName = name.substring(0, name.length() - OBJECT_EXTENSION.length()) + MSG_EXTENSION;
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                    FileItem item = new FileItem(qDir.getAbsolutePath() + File.separator + name, qDir.getAbsolutePath() + File.separator + msgFileName);
+            @Override
+            public void run() {
+                renewLease();
+            }
+        }, 0, leaseTime / 3, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
 
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
-                    Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
-                    if (next == null) {
-                        next = 0L;
-                    }
+            @Override
+            public void run() {
+                scan();
+            }
+        }, 0, SCAN_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
-                    final String key = mail.getName();
-                    keyMappings.put(key, item);
-                    if (next <= System.currentTimeMillis()) {
+    /**
+     * Renew the lease of this node and move the mails claimed by nodes whose
+     * lease expired back to the split directories
+     */
+    private void renewLease() {
+        long now = System.currentTimeMillis();
+        if (!claimDir.setLastModified(now)) {
+            log.warn("Unable to renew lease of node " + nodeId + " on queue " + queueDirName);
+        }
+        File[] nodes = claimDir.getParentFile().listFiles();
+        if (nodes == null) {
+            log.error("Unable to list " + claimDir.getParentFile());
+            return;
+        }
+        for (File node : nodes) {
+            if (node.isDirectory() && !node.equals(claimDir) && now - node.lastModified() > leaseTime) {
+                releaseClaims(node);
+            }
+        }
+    }
 
-                        try {
-                            inmemoryQueue.put(key);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    } else {
+    /**
+     * Move the mails claimed by the node of the given claim directory back to
+     * the split directories
+     */
+    private void releaseClaims(File nodeDir) {
+        int count = 0;
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            File dir = new File(nodeDir, Integer.toString(i));
+            String[] files = dir.list(OBJECT_FILTER);
+            if (files == null) {
+                continue;
+            }
+            File qDir = new File(queueDir, Integer.toString(i));
+            for (String name : files) {
+                // another node may win the move
+                if (new File(dir, name).renameTo(new File(qDir, name))) {
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            log.info("Released " + count + " mails claimed by node " + nodeDir.getName() + " on queue " + queueDirName);
+        }
+    }
 
-                        // Schedule a task which will put the mail in the queue
-                        // for processing after a given delay
-                        scheduler.schedule(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    inmemoryQueue.put(key);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new RuntimeException("Unable to init", e);
-                                }
-                            }
-                        }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-                    }
+    /**
+     * Reconcile the split directories with the mails known to this node, which
+     * picks up the mails enqueued or released by the other nodes
+     */
+    private void scan() {
+        Map<Integer, Set<String>> keys = new HashMap<Integer, Set<String>>();
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            keys.put(i, new HashSet<String>());
+        }
+        for (FileItem item : keyMappings.values()) {
+            keys.get(item.getEntry().getSplit()).add(item.getEntry().getKey());
+        }
+        for (int i = 1; i <= SPLITCOUNT; i++) {
+            reconcile(i, keys.get(i), Long.MAX_VALUE);
+        }
+    }
 
-                } catch (ClassNotFoundException e1) {
-                    log.error("Unable to load Mail", e1);
-                } catch (IOException e) {
-                    log.error("Unable to load Mail", e);
-                } finally {
-                    if (oin != null) {
-                        try {
-                            oin.close();
-                        } catch (Exception e) {
-                            // ignore on close
-                        }
-                    }
+    /**
+     * Reconcile the given split directory with the index. Mails which are not
+     * in the index get loaded and index entries whose files are gone get
+     * removed.
+     */
+    private void reconcile(int split, Set<String> indexedKeys, long startTime) {
+        File qDir = new File(queueDir, Integer.toString(split));
+        String[] files = qDir.list(OBJECT_FILTER);
+        if (files == null) {
+            log.error("Unable to list " + qDir);
+            return;
+        }
+
+        Set<String> existing = new HashSet<String>();
+        for (final String name : files) {
+            final String key = name.substring(0, name.length() - OBJECT_EXTENSION.length());
+            existing.add(key);
+            if (indexedKeys.contains(key)) {
+                continue;
+            }
+
+            FileItem item = new FileItem(split, key);
+            long arrival = new File(item.getObjectFile()).lastModified();
+            if (arrival >= startTime) {
+                continue;
+            }
+
+            try {
+                Mail mail = readMail(item.getObjectFile());
+                Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
+                if (next == null) {
+                    next = 0L;
                 }
+                item = new FileItem(IndexEntry.create(key, split, arrival, next, new File(item.getMessageFile()).length(), mail));
+                if (keyMappings.putIfAbsent(key, item) == null) {
+                    indexDirty = true;
+                    index(key, item.getEntry());
+                    schedule(item.getEntry());
+                }
+            } catch (FileNotFoundException e) {
+                // removed or claimed by another node in the meantime
+                log.debug("Mail " + key + " is gone before it could get loaded");
+            } catch (IOException e) {
+                log.error("Unable to load Mail", e);
+            }
+        }
 
+        // message files of mails which were removed while their file could
+        // not be deleted, or whose enqueue did not complete. If the directory
+        // is shared the object file may be claimed by a node.
+        String[] msgFiles = claimDir == null ? qDir.list(MSG_FILTER) : null;
+        if (msgFiles != null) {
+            for (String name : msgFiles) {
+                String key = name.substring(0, name.length() - MSG_EXTENSION.length());
+                File msgFile = new File(qDir, name);
+                if (!existing.contains(key) && msgFile.lastModified() < startTime && !new File(qDir, key + OBJECT_EXTENSION).exists()) {
+                    log.info("Deleting message file " + msgFile + " without object file");
+                    FileUtils.deleteQuietly(msgFile);
+                }
             }
         }
+
+        for (String key : indexedKeys) {
+            if (!existing.contains(key)) {
+                FileItem item = keyMappings.get(key);
+                // the object file of a claimed mail is in the claim directory
+                if (item != null && item.getEntry().getSplit() == split && !item.isClaimed()) {
+                    // unindex first, so the statistics never count a mail
+                    // which is gone already. Unindexing twice is harmless.
+                    unindex(key, item.getEntry());
+                    if (keyMappings.remove(key, item)) {
+                        indexDirty = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the index if anything changed since the last checkpoint
+     */
+    private void checkpoint() {
+        if (!indexDirty) {
+            return;
+        }
+        indexDirty = false;
+        List<IndexEntry> entries = new ArrayList<IndexEntry>(keyMappings.size());
+        for (FileItem item : keyMappings.values()) {
+            entries.add(item.getEntry());
+        }
+        try {
+            index.write(entries);
+        } catch (IOException e) {
+            indexDirty = true;
+            log.warn("Unable to checkpoint index of queue " + queueDirName, e);
+        }
+    }
+
+    /**
+     * Add the mail to the statistics and the secondary indexes
+     */
+    private void index(String key, IndexEntry entry) {
+        statistics.add(key, entry.getSize(), entry.getArrival(), entry.getNextDelivery());
+        senders.add(senderKey(entry.getSender()), key);
+        for (String recipient : entry.getRecipients()) {
+            recipientDomains.add(domainKey(recipient), key);
+        }
+    }
+
+    /**
+     * Remove the mail from the statistics and the secondary indexes
+     */
+    private void unindex(String key, IndexEntry entry) {
+        statistics.remove(key);
+        senders.remove(senderKey(entry.getSender()), key);
+        for (String recipient : entry.getRecipients()) {
+            recipientDomains.remove(domainKey(recipient), key);
+        }
+    }
+
+    private static String senderKey(String sender) {
+        return sender == null ? "" : sender;
+    }
+
+    private static String domainKey(String address) {
+        return MailQueueFilter.getDomain(address).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Make the key available for dequeue once the next delivery time is reached
+     */
+    private void schedule(IndexEntry entry) {
+        if (entry.getNextDelivery() <= System.currentTimeMillis()) {
+            inmemoryQueue.add(entry.getKey(), entry.getPriority());
+        } else {
+            delayScheduler.schedule(entry.getKey(), entry.getNextDelivery());
+        }
     }
 
     @Override
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
+        long start = System.nanoTime();
+        final String key = mail.getName() + "-" + (nodeId == null ? "" : nodeId + "-") + COUNTER.incrementAndGet();
         FileOutputStream out = null;
         FileOutputStream foout = null;
-        ObjectOutputStream oout = null;
+        File messageFile = null;
+        File tmpFile = null;
+        boolean published = false;
         try {
             int i = (int) (Math.random() * SPLITCOUNT + 1);
 
-
-            String name = queueDirName + "/" + i + "/" + key;
-
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
+            long nextDelivery = 0;
             if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
+                nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
+                mail.setAttribute(NEXT_DELIVERY, nextDelivery);
             }
-            foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
-            if (sync) foout.getFD().sync();
-            out = new FileOutputStream(item.getMessageFile());
-
-            mail.getMessage().writeTo(out);
-            out.flush();
-            if (sync) out.getFD().sync();
-
-            keyMappings.put(key, item);
-
-            if (delay > 0) {
-                // The message should get delayed so schedule it for later
-                scheduler.schedule(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            inmemoryQueue.put(key);
+            final FileItem fileItem = new FileItem(i, key);
+            long size;
+            messageFile = new File(fileItem.getMessageFile());
+            if (MimeMessageUtil.moveTo(mail.getMessage(), messageFile)) {
+                size = messageFile.length();
+                if (sync) sync(messageFile);
+            } else {
+                out = new FileOutputStream(messageFile);
 
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    }
-                }, delay, unit);
+                mail.getMessage().writeTo(out);
+                out.flush();
+                if (sync) out.getFD().sync();
+                size = out.getChannel().position();
+            }
 
-            } else {
-                inmemoryQueue.put(key);
+            // the object file is written last and published by a rename, so
+            // the reconciliation never sees a mail which is incomplete
+            File objectFile = new File(fileItem.getObjectFile());
+            tmpFile = new File(fileItem.getObjectFile() + TMP_EXTENSION);
+            foout = new FileOutputStream(tmpFile);
+            foout.write(MailEnvelopeCodec.encode(mail));
+            if (sync) foout.getFD().sync();
+            foout.close();
+            if (!tmpFile.renameTo(objectFile)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + objectFile);
+            }
+            published = true;
+
+            IndexEntry entry = IndexEntry.create(key, i, System.currentTimeMillis(), nextDelivery, size, mail);
+            indexDirty = true;
+            index(key, entry);
+            // the reconciliation may have picked up the files already
+            if (keyMappings.put(key, new FileItem(entry)) == null) {
+                schedule(entry);
             }
+            metrics.enqueued(queueName, System.nanoTime() - start);
 
             //TODO: Think about exception handling in detail
         } catch (FileNotFoundException e) {
@@ -216,9 +570,6 @@ public class FileMailQueue implements ManageableMailQueue {
 
         } catch (MessagingException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-        } catch (InterruptedException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
-
         } finally {
             if (out != null) {
                 try {
@@ -227,13 +578,6 @@ public class FileMailQueue implements ManageableMailQueue {
                     // ignore on close
                 }
             }
-            if (oout != null) {
-                try {
-                    oout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
-            }
             if (foout != null) {
                 try {
                     foout.close();
@@ -241,10 +585,32 @@ public class FileMailQueue implements ManageableMailQueue {
                     // ignore on close
                 }
             }
+            // don't leave the files of a mail behind which was not enqueued,
+            // the message file may have been moved here already
+            if (!published) {
+                if (messageFile != null) {
+                    FileUtils.deleteQuietly(messageFile);
+                }
+                if (tmpFile != null) {
+                    FileUtils.deleteQuietly(tmpFile);
+                }
+            }
         }
 
     }
 
+    /**
+     * Sync the content of the given file, which was moved into the queue
+     */
+    private static void sync(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+        }
+    }
+
     @Override
     public void enQueue(Mail mail) throws MailQueueException {
         enQueue(mail, 0, TimeUnit.MILLISECONDS);
@@ -252,75 +618,292 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
+        long start = System.nanoTime();
         try {
-            FileItem item = null;
-            String k = null;
-            while (item == null) {
-                k = inmemoryQueue.take();
-
-                item = keyMappings.get(k);
+            while (true) {
+                MailQueueItem item = load(inmemoryQueue.take(), start);
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
 
+    /**
+     * Wait for the first ready key and then take the keys which are ready
+     * already, without waiting for more.
+     */
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        long start = System.nanoTime();
+        long end = start + unit.toNanos(timeout);
+        try {
+            while (items.isEmpty()) {
+                String key = inmemoryQueue.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (key == null) {
+                    return items;
+                }
+                MailQueueItem item = load(key, start);
+                if (item != null) {
+                    items.add(item);
+                }
             }
-            final String key = k;
-            final FileItem fitem = item;
-            ObjectInputStream oin = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+
+        String key;
+        while (items.size() < max && (key = inmemoryQueue.poll()) != null) {
             try {
-                final File objectFile = new File(fitem.getObjectFile());
-                final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
-                mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
-                return new MailQueueItem() {
-
-                    @Override
-                    public Mail getMail() {
-                        return mail;
-                    }
+                MailQueueItem item = load(key, start);
+                if (item != null) {
+                    items.add(item);
+                }
+            } catch (MailQueueException e) {
+                // hand out what we have, the next dequeue will fail again if
+                // the problem persists
+                log.info("Unable to dequeue mail " + key, e);
+                FileItem fitem = keyMappings.get(key);
+                if (fitem != null) {
+                    inmemoryQueue.addFirst(key, fitem.getEntry().getPriority());
+                }
+                break;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Load the {@link MailQueueItem} for the given key. Returns
+     * <code>null</code> if the mail is not in the queue anymore.
+     * 
+     * @param start
+     *            the time in nanoseconds the consumer started to wait
+     */
+    private MailQueueItem load(final String key, long start) throws MailQueueException {
+        final FileItem fitem = keyMappings.get(key);
+        if (fitem == null) {
+            return null;
+        }
+        if (claimDir != null) {
+            if (fitem.getEntry().getNextDelivery() > System.currentTimeMillis()) {
+                // the key was taken before the mail disappeared and showed
+                // up again with a delay, it gets scheduled for that delay
+                return null;
+            }
+            synchronized (fitem) {
+                if (fitem.isClaimed()) {
+                    // handed out already
+                    return null;
+                }
+                if (!fitem.claim()) {
+                    log.debug("Mail " + key + " was claimed by another node");
+                    forget(key, fitem);
+                    return null;
+                }
+            }
+        }
+
+        try {
+            final File msgFile = new File(fitem.getMessageFile());
+            final Mail mail = readMail(fitem.getCurrentObjectFile());
+            if (fitem.isClaimed()) {
+                // another node may have redelivered the mail with a delay
+                // after this node cached its entry
+                Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
+                if (next != null && next > System.currentTimeMillis()) {
+                    fitem.release(0);
+                    reschedule(key, fitem, next);
+                    return null;
+                }
+            }
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
+            metrics.dequeued(queueName, System.nanoTime() - start, fitem.getFailures() > 0);
+            return new MailQueueItem() {
 
-                    @Override
-                    public void done(boolean success) throws MailQueueException {
-                        if (!success) {
-                            try {
-                                inmemoryQueue.put(key);
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                                throw new MailQueueException("Unable to rollback", e);
-                            }
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
+
+                @Override
+                public void done(boolean success) throws MailQueueException {
+                    if (!success) {
+                        int failures = fitem.failed();
+                        if (quarantine != null && redeliveryPolicy.isExhausted(failures)) {
+                            quarantine(key, fitem, mail, failures);
                         } else {
-                            fitem.delete();
-                            keyMappings.remove(key);
+                            redeliver(key, fitem, failures);
                         }
-
+                    } else {
+                        // close the message file before it gets deleted
                         LifecycleUtil.dispose(mail);
+                        removeDone(key, fitem);
                     }
-                };
+                    metrics.done(queueName, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - fitem.getEntry().getArrival()), success);
 
-                // TODO: Think about exception handling in detail
-            } catch (FileNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
+                    LifecycleUtil.dispose(mail);
+                }
+            };
+
+        } catch (FileNotFoundException e) {
+            // the index was checkpointed before the mail was removed,
+            // so just drop the stale entry
+            log.debug("Files of mail " + key + " are gone, removing it from the queue");
+            if (fitem.isClaimed()) {
+                fitem.delete();
+            }
+            forget(key, fitem);
+            return null;
+        } catch (IOException e) {
+            releaseClaim(key, fitem);
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            releaseClaim(key, fitem);
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
+
+    /**
+     * Release the given mail if it is claimed, so it can get dequeued again
+     */
+    private void releaseClaim(String key, FileItem fitem) {
+        if (fitem.isClaimed()) {
+            try {
+                fitem.release(0);
             } catch (IOException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (MessagingException e) {
-                throw new MailQueueException("Unable to dequeue", e);
+                log.warn("Unable to release mail " + key + " of queue " + queueName, e);
+            }
+        }
+    }
 
-            } finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    } catch (IOException e) {
-                        // ignore on close
-                    }
-                }
+    /**
+     * Replace the cached entry of the given mail, whose next delivery time was
+     * changed by another node, and schedule it for that time
+     */
+    private void reschedule(String key, FileItem fitem, long nextDelivery) {
+        IndexEntry old = fitem.getEntry();
+        IndexEntry entry = new IndexEntry(key, old.getSplit(), old.getArrival(), nextDelivery, old.getSize(), old.getPriority(), old.getName(), old.getSender(), old.getRecipients());
+        if (keyMappings.replace(key, fitem, new FileItem(entry))) {
+            indexDirty = true;
+            unindex(key, old);
+            index(key, entry);
+            schedule(entry);
+        }
+    }
+
+    /**
+     * Remove the given mail from the in memory state of this queue only
+     */
+    private void forget(String key, FileItem fitem) {
+        unindex(key, fitem.getEntry());
+        if (keyMappings.remove(key, fitem)) {
+            indexDirty = true;
+        }
+    }
+
+    /**
+     * Remove the mail of the given key after it was processed
+     */
+    private void removeDone(String key, FileItem fitem) throws MailQueueException {
+        fitem.delete();
+        keyMappings.remove(key);
+        unindex(key, fitem.getEntry());
+        indexDirty = true;
+    }
+
+    /**
+     * Make the failed mail of the given key ready again once the delay of the
+     * {@link RedeliveryPolicy} passed
+     */
+    private void redeliver(String key, FileItem fitem, int failures) {
+        IndexEntry entry = fitem.getEntry();
+        long delay = redeliveryPolicy.getDelay(failures);
+        long nextDelivery = delay > 0 ? System.currentTimeMillis() + delay : 0;
+        if (claimDir != null) {
+            try {
+                fitem.release(nextDelivery);
+            } catch (IOException e) {
+                log.warn("Unable to release mail " + key + " of queue " + queueName + ", the lease of node " + nodeId + " may have expired", e);
+            }
+        }
+        if (delay > 0) {
+            // the mail may have been removed in the meantime
+            if (keyMappings.get(key) == fitem) {
+                statistics.add(key, entry.getSize(), entry.getArrival(), nextDelivery);
             }
+            delayScheduler.schedule(key, nextDelivery);
+        } else {
+            inmemoryQueue.add(key, entry.getPriority());
+        }
+    }
 
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new MailQueueException("Unable to dequeue", e);
+    /**
+     * Move the failed mail of the given key to the quarantine queue. If this
+     * fails the mail gets redelivered.
+     */
+    private void quarantine(String key, FileItem fitem, Mail mail, int failures) throws MailQueueException {
+        try {
+            mail.removeAttribute(NEXT_DELIVERY);
+            mail.setAttribute(REDELIVERY_COUNT, failures);
+            quarantine.enQueue(mail);
+        } catch (MailQueueException e) {
+            log.error("Unable to move mail " + mail.getName() + " of queue " + queueName + " to quarantine", e);
+            redeliver(key, fitem, failures);
+            return;
+        }
+        log.warn("Moved mail " + mail.getName() + " of queue " + queueName + " to quarantine after " + failures + " failures");
+        LifecycleUtil.dispose(mail);
+        removeDone(key, fitem);
+        metrics.quarantined(queueName, failures);
+    }
+
+    /**
+     * Delete the given message file of a removed mail. If this fails, for
+     * example because the file is still open on a platform which does not
+     * allow to delete open files, the delete is retried periodically.
+     */
+    private void deleteMessageFile(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Unable to delete message file " + file + " of queue " + queueName + ", retrying later");
+            undeletedFiles.add(file);
+        }
+    }
+
+    /**
+     * Retry to delete the message files which could not be deleted before
+     */
+    private void deleteUndeletedFiles() {
+        Iterator<File> files = undeletedFiles.iterator();
+        while (files.hasNext()) {
+            File file = files.next();
+            if (file.delete() || !file.exists()) {
+                files.remove();
+            }
         }
     }
 
+    /**
+     * Read the {@link Mail} from the given object file
+     */
+    private Mail readMail(String objectFile) throws IOException {
+        FileInputStream in = new FileInputStream(objectFile);
+        try {
+            return MailEnvelopeCodec.decode(in);
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} for the message file of a dequeued mail, which
+     * is closed on dispose
+     */
     private final class FileMimeMessageSource extends MimeMessageSource implements Disposable {
 
         private File file;
@@ -365,48 +948,199 @@ public class FileMailQueue implements ManageableMailQueue {
     private final class FileItem {
         private final String objectfile;
         private final String messagefile;
+        private final String claimfile;
+        private final IndexEntry entry;
+        private volatile int failures;
+        private volatile boolean claimed;
+
+        public FileItem(int split, String key) {
+            this(split, key, null);
+        }
 
-        public FileItem(String objectfile, String messagefile) {
-            this.objectfile = objectfile;
-            this.messagefile = messagefile;
+        public FileItem(IndexEntry entry) {
+            this(entry.getSplit(), entry.getKey(), entry);
+        }
+
+        private FileItem(int split, String key, IndexEntry entry) {
+            String name = queueDirName + "/" + split + "/" + key;
+            this.objectfile = name + OBJECT_EXTENSION;
+            this.messagefile = name + MSG_EXTENSION;
+            this.claimfile = claimDir == null ? null : claimDir.getAbsolutePath() + "/" + split + "/" + key + OBJECT_EXTENSION;
+            this.entry = entry;
         }
 
         public String getObjectFile() {
             return objectfile;
         }
 
-        public String getMessageFile() {
-            return messagefile;
+        /**
+         * Return the object file in the claim directory if the mail is claimed
+         * by this node
+         */
+        public String getCurrentObjectFile() {
+            return claimed ? claimfile : objectfile;
         }
 
-        public void delete() throws MailQueueException {
-            try {
-                FileUtils.forceDelete(new File(getObjectFile()));
-            } catch (IOException e) {
-                throw new MailQueueException("Unable to delete mail");
+        public boolean isClaimed() {
+            return claimed;
+        }
+
+        /**
+         * Claim the mail for this node by moving its object file into the
+         * claim directory. Returns <code>false</code> if the mail was removed
+         * or claimed by another node.
+         */
+        public synchronized boolean claim() {
+            if (new File(objectfile).renameTo(new File(claimfile))) {
+                claimed = true;
+                return true;
             }
+            return false;
+        }
 
+        /**
+         * Move the object file of the claimed mail back, so any node can claim
+         * it again once the given next delivery time is reached
+         */
+        public synchronized void release(long nextDelivery) throws IOException {
+            File file = new File(claimfile);
             try {
-                FileUtils.forceDelete(new File(getMessageFile()));
-            } catch (IOException e) {
-                log.debug("Remove of msg file for mail failed");
+                if (nextDelivery > 0) {
+                    Mail mail = readMail(claimfile);
+                    mail.setAttribute(NEXT_DELIVERY, nextDelivery);
+                    File tmpFile = new File(claimfile + TMP_EXTENSION);
+                    FileUtils.writeByteArrayToFile(tmpFile, MailEnvelopeCodec.encode(mail));
+                    if (!tmpFile.renameTo(file)) {
+                        FileUtils.deleteQuietly(tmpFile);
+                        throw new IOException("Unable to rename " + tmpFile + " to " + file);
+                    }
+                }
+                if (!file.renameTo(new File(objectfile))) {
+                    throw new IOException("Unable to move " + file + " back to " + objectfile);
+                }
+            } finally {
+                claimed = false;
             }
         }
+
+        public String getMessageFile() {
+            return messagefile;
+        }
+
+        public IndexEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Return how often the processing of the mail failed
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * Count a failed processing of the mail, which is only done by the
+         * consumer which holds the mail
+         */
+        public int failed() {
+            return ++failures;
+        }
+
+        /**
+         * Delete the files of the mail. If the queue directory is shared the
+         * mail gets claimed first, <code>false</code> is returned if another
+         * node holds it.
+         */
+        public synchronized boolean delete() throws MailQueueException {
+            if (claimDir != null) {
+                if (!claimed && !claim()) {
+                    return false;
+                }
+                claimed = false;
+                if (!new File(claimfile).delete()) {
+                    log.warn("Mail " + entry.getKey() + " was released before it was done, the lease of node " + nodeId + " may have expired");
+                    return false;
+                }
+            } else {
+                try {
+                    FileUtils.forceDelete(new File(getObjectFile()));
+                } catch (IOException e) {
+                    throw new MailQueueException("Unable to delete mail");
+                }
+            }
+
+            deleteMessageFile(new File(getMessageFile()));
+            return true;
+        }
+    }
+
+    @Override
+    public File getIngestDirectory() {
+        return ingestDir;
+    }
+
+    @Override
+    public void setMetricsListener(MailQueueMetricsListener listener) {
+        this.metrics = listener;
+    }
+
+    @Override
+    public void setRedeliveryPolicy(RedeliveryPolicy policy) {
+        this.redeliveryPolicy = policy;
+    }
+
+    @Override
+    public void setQuarantine(MailQueue quarantine) {
+        this.quarantine = quarantine;
     }
 
     @Override
     public long getSize() throws MailQueueException {
-        return keyMappings.size();
+        return statistics.getSize();
+    }
+
+    @Override
+    public long getReadyCount() throws MailQueueException {
+        return statistics.getReadyCount();
+    }
+
+    @Override
+    public long getReadyCount(int priority) throws MailQueueException {
+        return inmemoryQueue.size(priority);
+    }
+
+    /**
+     * Return the highest priority of the ready mails or -1 if none is ready
+     */
+    int getHighestReadyPriority() {
+        return inmemoryQueue.highestPriority();
+    }
+
+    @Override
+    public long getDeferredCount() throws MailQueueException {
+        return statistics.getDeferredCount();
+    }
+
+    @Override
+    public long getTotalBytes() throws MailQueueException {
+        return statistics.getTotalBytes();
+    }
+
+    @Override
+    public long getOldestAge() throws MailQueueException {
+        return statistics.getOldestAge();
     }
 
     @Override
     public long flush() throws MailQueueException {
-        Iterator<String> keys = keyMappings.keySet().iterator();
+        statistics.flush();
+        Iterator<Entry<String, FileItem>> items = keyMappings.entrySet().iterator();
         long i = 0;
-        while (keys.hasNext()) {
-            String key = keys.next();
+        while (items.hasNext()) {
+            Entry<String, FileItem> item = items.next();
+            String key = item.getKey();
             if (!inmemoryQueue.contains(key)) {
-                inmemoryQueue.add(key);
+                inmemoryQueue.add(key, item.getValue().getEntry().getPriority());
                 i++;
             }
         }
@@ -422,36 +1156,120 @@ public class FileMailQueue implements ManageableMailQueue {
             FileItem item = entry.getValue();
             String key = entry.getKey();
 
-            item.delete();
+            boolean deleted = item.delete();
             keyMappings.remove(key);
-            count++;
+            unindex(key, item.getEntry());
+            indexDirty = true;
+            if (deleted) {
+                count++;
+            }
 
         }
         return count;
     }
 
-    /**
-     * TODO: implement me
-     *
-     * @see ManageableMailQueue#remove(org.apache.james.queue.api.ManageableMailQueue.Type, String)
-     */
     @Override
     public long remove(Type type, String value) throws MailQueueException {
-        switch (type) {
-            case Name:
-                FileItem item = keyMappings.remove(value);
-                if (item != null) {
-                    item.delete();
-                    return 1;
-                } else {
-                    return 0;
+        return remove(new MailQueueFilter(type, value));
+    }
+
+    @Override
+    public long remove(MailQueueFilter filter) throws MailQueueException {
+        long count = 0;
+        for (String key : candidates(filter, null)) {
+            FileItem item = keyMappings.get(key);
+            if (item != null && matches(filter, item) && keyMappings.remove(key, item)) {
+                boolean deleted = item.delete();
+                unindex(key, item.getEntry());
+                indexDirty = true;
+                if (deleted) {
+                    count++;
                 }
+            }
+        }
+        return count;
+    }
 
-            default:
-                break;
+    /**
+     * Browse the mails in the order of their keys, the cursor is the key of
+     * the last mail of the previous page
+     */
+    @Override
+    public MailQueuePage browse(MailQueueFilter filter, String cursor, int pageSize) throws MailQueueException {
+        List<MailQueueItemView> items = new ArrayList<MailQueueItemView>();
+        String last = null;
+        for (String key : candidates(filter, cursor)) {
+            FileItem fitem = keyMappings.get(key);
+            if (fitem == null || !matches(filter, fitem)) {
+                continue;
+            }
+            if (items.size() == pageSize) {
+                return new MailQueuePage(items, last);
+            }
+            MailQueueItemView view = view(fitem);
+            if (view != null) {
+                items.add(view);
+                last = key;
+            }
         }
-        throw new MailQueueException("Not supported yet");
+        return new MailQueuePage(items, null);
+    }
+
+    /**
+     * Return the sorted keys after the cursor which may match the given
+     * filter, using the most selective index
+     */
+    private NavigableSet<String> candidates(MailQueueFilter filter, String cursor) {
+        NavigableSet<String> keys;
+        String name = filter.get(Type.Name);
+        String sender = filter.get(Type.Sender);
+        String recipient = filter.get(Type.Recipient);
+        String domain = filter.get(Type.RecipientDomain);
+        if (name != null) {
+            // the keys start with the name of the mail
+            keys = keyMappings.subMap(name + "-", true, name + "-" + Character.MAX_VALUE, true).navigableKeySet();
+        } else if (sender != null) {
+            keys = senders.get(sender);
+        } else if (recipient != null) {
+            keys = recipientDomains.get(domainKey(recipient));
+        } else if (domain != null) {
+            keys = recipientDomains.get(domain.toLowerCase(Locale.US));
+        } else {
+            keys = keyMappings.navigableKeySet();
+        }
+        return cursor == null ? keys : keys.tailSet(cursor, false);
+    }
 
+    private boolean matches(MailQueueFilter filter, FileItem item) {
+        IndexEntry entry = item.getEntry();
+        return filter.matches(entry.getName(), entry.getSender(), entry.getRecipients());
+    }
+
+    /**
+     * Return the view of the given item or <code>null</code> if its mail could
+     * not get read
+     */
+    private MailQueueItemView view(final FileItem fitem) {
+        try {
+            final Mail mail = readMail(fitem.getObjectFile());
+            return new MailQueueItemView() {
+
+                @Override
+                public long getNextDelivery() {
+                    return fitem.getEntry().getNextDelivery();
+                }
+
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
+            };
+        } catch (FileNotFoundException e) {
+            log.info("Unable to load mail", e);
+        } catch (IOException e) {
+            log.info("Unable to load mail", e);
+        }
+        return null;
     }
 
     @Override
@@ -481,38 +1299,9 @@ public class FileMailQueue implements ManageableMailQueue {
             public boolean hasNext() {
                 if (item == null) {
                     while (items.hasNext()) {
-                        ObjectInputStream in = null;
-                        try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
-                            item = new MailQueueItemView() {
-
-                                @Override
-                                public long getNextDelivery() {
-                                    return (Long) mail.getAttribute(NEXT_DELIVERY);
-                                }
-
-                                @Override
-                                public Mail getMail() {
-                                    return mail;
-                                }
-                            };
+                        item = view(items.next());
+                        if (item != null) {
                             return true;
-                        } catch (FileNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } catch (IOException e) {
-                            log.info("Unable to load mail", e);
-
-                        } catch (ClassNotFoundException e) {
-                            log.info("Unable to load mail", e);
-                        } finally {
-                            if (in != null) {
-                                try {
-                                    in.close();
-                                } catch (IOException e) {
-                                    // ignore on close
-                                }
-                            }
                         }
                     }
                     return false;
@@ -528,4 +1317,16 @@ public class FileMailQueue implements ManageableMailQueue {
         };
     }
 
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+        deleteUndeletedFiles();
+        delayScheduler.dispose();
+        reconciler.shutdownNow();
+        if (claimDir == null) {
+            indexDirty = true;
+            checkpoint();
+        }
+    }
+
 }
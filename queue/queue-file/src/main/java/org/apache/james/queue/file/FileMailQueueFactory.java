@@ -19,27 +19,31 @@
 package org.apache.james.queue.file;
 
 import org.apache.james.filesystem.api.FileSystem;
-import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
-import org.slf4j.Logger;
+import org.apache.james.queue.library.AbstractMailQueueFactory;
 
 import javax.annotation.Resource;
 import javax.inject.Inject;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * {@link MailQueueFactory} implementation which returns {@link FileMailQueue} instances
+ * {@link MailQueueFactory} implementation which returns {@link FileMailQueue} instances,
+ * {@link JournalMailQueue} instances if the journal is enabled or {@link ShardedMailQueue} instances
+ * if shards are configured
  */
-public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
+public class FileMailQueueFactory extends AbstractMailQueueFactory {
 
-    private final Map<String, MailQueue> queues = new HashMap<String, MailQueue>();
     private FileSystem fs;
-    private Logger log;
     private boolean sync = true;
+    private boolean journal = false;
+    private long segmentSize = JournalMailQueue.DEFAULT_SEGMENT_SIZE;
+    private String nodeId;
+    private long leaseTime = FileMailQueue.DEFAULT_LEASE_TIME;
+    private String[] shards;
 
     @Inject
     @Resource
@@ -59,26 +63,85 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled {
         this.sync = sync;
     }
 
+    /**
+     * If <code>true</code> the later created queues will append the {@link org.apache.mailet.Mail}'s to large
+     * preallocated segment files, see {@link JournalMailQueue}. This avoids the creation and deletion of two files
+     * per {@link org.apache.mailet.Mail}.
+     * <p/>
+     * The default is <code>false</code>
+     *
+     * @param journal
+     */
+    public void setJournal(boolean journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Set the size in bytes of the segment files used when the journal is enabled.
+     * <p/>
+     * The default is 64 MB
+     *
+     * @param segmentSize
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Set the id of this node if the queue directory is shared by several nodes, see {@link FileMailQueue}.
+     * The id must be unique among these nodes and usable as a file name. The journal does not support a
+     * shared queue directory.
+     * <p/>
+     * The default is <code>null</code>, so the queue directory must not be shared
+     *
+     * @param nodeId
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Set the time in milliseconds after which the mails claimed by a node of a shared queue directory get
+     * released, if the node stopped to renew its lease.
+     * <p/>
+     * The default is 60 seconds
+     *
+     * @param leaseTime
+     */
+    public void setLeaseTime(long leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    /**
+     * Set the directories of the shards, given as {@link FileSystem} urls. If set the later created queues are
+     * split into one {@link FileMailQueue} per directory, see {@link ShardedMailQueue}. Each directory should
+     * be on its own disk. The journal does not support shards.
+     * <p/>
+     * The default is <code>null</code>, so each queue is kept in one directory
+     *
+     * @param shards
+     */
+    public void setShards(String[] shards) {
+        this.shards = shards;
+    }
+
     @Override
-    public MailQueue getQueue(String name) {
-        MailQueue queue = queues.get(name);
-        if (queue == null) {
-            synchronized (queues) {
-                try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
-                    queues.put(name, queue);
-                } catch (IOException e) {
-                    throw new RuntimeException("Unable to access queue " + name, e);
+    protected MailQueue createMailQueue(String name) {
+        try {
+            if (shards != null && shards.length > 0) {
+                List<FileMailQueue> queues = new ArrayList<FileMailQueue>(shards.length);
+                for (String shard : shards) {
+                    queues.add(new FileMailQueue(fs.getFile(shard), name, sync, nodeId, leaseTime, log));
                 }
+                return new ShardedMailQueue(name, queues);
+            } else if (journal) {
+                return new JournalMailQueue(fs.getFile("file://var/store/queue"), name, segmentSize, sync, log);
+            } else {
+                return new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, nodeId, leaseTime, log);
             }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to access queue " + name, e);
         }
-        return queue;
     }
-
-    @Override
-    public void setLog(Logger log) {
-        this.log = log;
-    }
-
 }
 
@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+
+import com.google.common.io.Closeables;
+
+/**
+ * Compact recovery index of a {@link FileMailQueue}.
+ * <p/>
+ * The index holds everything which is needed to make the queue usable after a
+ * restart without reading the serialized {@link Mail}'s: the key, the split
+ * directory, the arrival and next delivery time, the message size, the priority
+ * and a summary of the envelope. It is written to a temporary file which is then renamed, so a crash
+ * while checkpointing leaves the previous index intact.
+ */
+class FileMailQueueIndex {
+
+    private final static int MAGIC = 0x4A464951;
+    private final static int VERSION = 1;
+
+    private final File file;
+    private final File tmpFile;
+
+    public FileMailQueueIndex(File queueDir) {
+        this.file = new File(queueDir, "index");
+        this.tmpFile = new File(queueDir, "index.tmp");
+    }
+
+    /**
+     * Read the index. Returns an empty list if no valid index exists.
+     */
+    public List<IndexEntry> read() throws IOException {
+        List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        if (!file.exists()) {
+            return entries;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid index " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Invalid index " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int split = in.readByte();
+                long arrival = in.readLong();
+                long nextDelivery = in.readLong();
+                long size = in.readLong();
+                int priority = in.readByte();
+                String name = in.readUTF();
+                String sender = in.readUTF();
+                String[] recipients = new String[in.readInt()];
+                for (int a = 0; a < recipients.length; a++) {
+                    recipients[a] = in.readUTF();
+                }
+                entries.add(new IndexEntry(key, split, arrival, nextDelivery, size, priority, name, sender.length() == 0 ? null : sender, recipients));
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Truncated index " + file);
+            }
+            return entries;
+        } finally {
+            Closeables.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the given entries as the new index
+     */
+    public void write(Collection<IndexEntry> entries) throws IOException {
+        FileOutputStream fout = new FileOutputStream(tmpFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (IndexEntry entry : entries) {
+                out.writeUTF(entry.getKey());
+                out.writeByte(entry.getSplit());
+                out.writeLong(entry.getArrival());
+                out.writeLong(entry.getNextDelivery());
+                out.writeLong(entry.getSize());
+                out.writeByte(entry.getPriority());
+                out.writeUTF(entry.getName() == null ? "" : entry.getName());
+                out.writeUTF(entry.getSender() == null ? "" : entry.getSender());
+                String[] recipients = entry.getRecipients();
+                out.writeInt(recipients.length);
+                for (String recipient : recipients) {
+                    out.writeUTF(recipient);
+                }
+            }
+            out.writeInt(MAGIC);
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            Closeables.closeQuietly(out);
+        }
+        if (!tmpFile.renameTo(file)) {
+            // renameTo does not replace existing files on all platforms
+            FileUtils.forceDelete(file);
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Delete the index, for example because it could not be read
+     */
+    public void delete() {
+        FileUtils.deleteQuietly(file);
+        FileUtils.deleteQuietly(tmpFile);
+    }
+
+    /**
+     * Index entry of a queued {@link Mail}
+     */
+    static final class IndexEntry {
+        private final String key;
+        private final int split;
+        private final long arrival;
+        private final long nextDelivery;
+        private final long size;
+        private final int priority;
+        private final String name;
+        private final String sender;
+        private final String[] recipients;
+
+        public IndexEntry(String key, int split, long arrival, long nextDelivery, long size, int priority, String name, String sender, String[] recipients) {
+            this.key = key;
+            this.split = split;
+            this.arrival = arrival;
+            this.nextDelivery = nextDelivery;
+            this.size = size;
+            this.priority = priority;
+            this.name = name;
+            this.sender = sender;
+            this.recipients = recipients;
+        }
+
+        /**
+         * Create the {@link IndexEntry} for the given {@link Mail}
+         */
+        @SuppressWarnings("unchecked")
+        public static IndexEntry create(String key, int split, long arrival, long nextDelivery, long size, Mail mail) {
+            MailAddress sender = mail.getSender();
+            Collection<MailAddress> rcpts = mail.getRecipients();
+            String[] recipients = new String[rcpts == null ? 0 : rcpts.size()];
+            if (rcpts != null) {
+                Iterator<MailAddress> it = rcpts.iterator();
+                for (int i = 0; i < recipients.length; i++) {
+                    recipients[i] = it.next().toString();
+                }
+            }
+            int priority = MailPrioritySupport.NORMAL_PRIORITY;
+            Object prio = mail.getAttribute(MailPrioritySupport.MAIL_PRIORITY);
+            if (prio instanceof Integer) {
+                priority = Math.max(MailPrioritySupport.LOW_PRIORITY, Math.min(MailPrioritySupport.HIGH_PRIORITY, (Integer) prio));
+            }
+            return new IndexEntry(key, split, arrival, nextDelivery, size, priority, mail.getName(), sender == null ? null : sender.toString(), recipients);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getSplit() {
+            return split;
+        }
+
+        public long getArrival() {
+            return arrival;
+        }
+
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String[] getRecipients() {
+            return recipients;
+        }
+    }
+}
@@ -0,0 +1,634 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailEnvelopeCodec;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.MonitorableMailQueue;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.file.JournalSegment.Record;
+import org.apache.james.queue.library.DelayScheduler;
+import org.apache.james.queue.library.MailQueueStatistics;
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+import com.google.common.io.Closeables;
+
+/**
+ * {@link ManageableMailQueue} implementation which appends {@link Mail}'s to a
+ * journal of large preallocated segment files instead of writing two files per
+ * {@link Mail}.
+ * <p/>
+ * An in-memory index maps the keys of the queued {@link Mail}'s to their
+ * location in the journal. Acknowledging a {@link Mail} only flips the status
+ * byte of its record, segments which hold no unacknowledged record anymore are
+ * deleted in the background. On startup the index is rebuilt by scanning the
+ * existing segments. Recovered {@link Mail}'s count as enqueued at the last
+ * write of their segment for the statistics of the queue.
+ * <p/>
+ * Failed {@link Mail}'s are delayed according to the {@link RedeliveryPolicy}
+ * and moved to the quarantine queue once they exhausted it. Their records are
+ * not written again for this, so the failures are only counted in memory and
+ * the delays end with a restart.
+ */
+public class JournalMailQueue implements MonitorableMailQueue, BatchMailQueue, RedeliveryMailQueue, Disposable {
+
+    /**
+     * Default size of a segment in bytes
+     */
+    public final static long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final static AtomicLong COUNTER = new AtomicLong();
+    private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+
+    private final ConcurrentHashMap<String, Record> keyMappings = new ConcurrentHashMap<String, Record>();
+    private final ConcurrentHashMap<Long, JournalSegment> segments = new ConcurrentHashMap<Long, JournalSegment>();
+    private final ConcurrentHashMap<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+    private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
+    private final MailQueueStatistics statistics = new MailQueueStatistics();
+    private final DelayScheduler delayScheduler;
+    private final ExecutorService reclaimer = Executors.newSingleThreadExecutor();
+    private final Object writeLock = new Object();
+    private final File journalDir;
+    private final long segmentSize;
+    private final boolean sync;
+    private final Logger log;
+    private final String queueName;
+    private volatile RedeliveryPolicy redeliveryPolicy = RedeliveryPolicy.DEFAULT;
+    private volatile MailQueue quarantine;
+    private JournalSegment current;
+
+    public JournalMailQueue(File parentDir, String queuename, long segmentSize, boolean sync, Logger log) throws IOException {
+        this.log = log;
+        this.sync = sync;
+        this.segmentSize = segmentSize;
+        this.queueName = queuename;
+        this.journalDir = new File(new File(parentDir, queuename), "journal");
+        this.delayScheduler = new DelayScheduler("JournalMailQueue-" + queuename, new ExpirationListener() {
+
+            @Override
+            public void expired(String key, long deadline) {
+                // the mail may have been removed in the meantime
+                if (keyMappings.containsKey(key)) {
+                    inmemoryQueue.add(key);
+                }
+            }
+        });
+        init();
+    }
+
+    private void init() throws IOException {
+        FileUtils.forceMkdir(journalDir);
+
+        File[] files = journalDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JournalSegment.EXTENSION);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long id1 = JournalSegment.parseId(f1.getName());
+                long id2 = JournalSegment.parseId(f2.getName());
+                return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+            }
+        });
+
+        long nextId = 1;
+        for (File file : files) {
+            JournalSegment segment = JournalSegment.open(file);
+            nextId = Math.max(nextId, segment.getId() + 1);
+            segments.put(segment.getId(), segment);
+
+            long lastWrite = file.lastModified();
+            for (Record record : segment.recover()) {
+                keyMappings.put(record.getKey(), record);
+                statistics.add(record.getKey(), record.getMessageLength(), lastWrite, record.getNextDelivery());
+                schedule(record.getKey(), record.getNextDelivery());
+            }
+            if (segment.seal()) {
+                reclaim(segment);
+            }
+        }
+
+        current = JournalSegment.create(journalDir, nextId, segmentSize);
+        segments.put(current.getId(), current);
+    }
+
+    /**
+     * Make the key available for dequeue once the next delivery time is reached
+     */
+    private void schedule(String key, long nextDelivery) {
+        if (nextDelivery <= System.currentTimeMillis()) {
+            inmemoryQueue.add(key);
+        } else {
+            delayScheduler.schedule(key, nextDelivery);
+        }
+    }
+
+    /**
+     * Seal the current segment and start a new one. Must be called while
+     * holding the write lock.
+     */
+    private void roll() throws IOException {
+        JournalSegment old = current;
+        current = JournalSegment.create(journalDir, old.getId() + 1, segmentSize);
+        segments.put(current.getId(), current);
+        if (old.seal()) {
+            reclaim(old);
+        }
+    }
+
+    /**
+     * Delete the given segment in the background
+     */
+    private void reclaim(final JournalSegment segment) {
+        reclaimer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                segments.remove(segment.getId());
+                try {
+                    segment.destroy();
+                } catch (IOException e) {
+                    log.info("Unable to delete segment " + segment, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Mark the record as deleted and reclaim its segment if possible
+     */
+    private void release(Record record) throws MailQueueException {
+        try {
+            JournalSegment segment = record.getSegment();
+            if (segment.delete(record)) {
+                reclaim(segment);
+            }
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to delete mail", e);
+        }
+    }
+
+    @Override
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
+        try {
+            long nextDelivery = 0;
+            if (delay > 0) {
+                nextDelivery = System.currentTimeMillis() + unit.toMillis(delay);
+                mail.setAttribute(NEXT_DELIVERY, nextDelivery);
+            }
+
+            byte[] object = MailEnvelopeCodec.encode(mail);
+
+            Record record;
+            synchronized (writeLock) {
+                try {
+                    record = current.append(key, nextDelivery, object, mail.getMessage(), sync);
+                } catch (IOException e) {
+                    // never append behind a partial written record
+                    roll();
+                    throw e;
+                } catch (MessagingException e) {
+                    roll();
+                    throw e;
+                }
+                if (current.isFull()) {
+                    roll();
+                }
+            }
+            statistics.add(key, record.getMessageLength(), System.currentTimeMillis(), nextDelivery);
+            keyMappings.put(key, record);
+            schedule(key, nextDelivery);
+
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        }
+    }
+
+    @Override
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public MailQueueItem deQueue() throws MailQueueException {
+        try {
+            while (true) {
+                MailQueueItem item = load(inmemoryQueue.take());
+                if (item != null) {
+                    return item;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
+
+    /**
+     * Wait for the first ready key and then take the keys which are ready
+     * already, without waiting for more.
+     */
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            while (items.isEmpty()) {
+                String key = inmemoryQueue.poll(end - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (key == null) {
+                    return items;
+                }
+                MailQueueItem item = load(key);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+
+        String key;
+        while (items.size() < max && (key = inmemoryQueue.poll()) != null) {
+            try {
+                MailQueueItem item = load(key);
+                if (item != null) {
+                    items.add(item);
+                }
+            } catch (MailQueueException e) {
+                // hand out what we have, the next dequeue will fail again if
+                // the problem persists
+                log.info("Unable to dequeue mail " + key, e);
+                inmemoryQueue.offer(key);
+                break;
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Load the {@link MailQueueItem} for the given key. Returns
+     * <code>null</code> if the mail is not in the queue anymore.
+     */
+    private MailQueueItem load(final String key) throws MailQueueException {
+        final Record record = keyMappings.get(key);
+        if (record == null) {
+            return null;
+        }
+        try {
+            final Mail mail = readMail(record);
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(new JournalMimeMessageSource(record)));
+            return new MailQueueItem() {
+
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
+
+                @Override
+                public void done(boolean success) throws MailQueueException {
+                    if (!success) {
+                        int failures = failed(key);
+                        if (quarantine != null && redeliveryPolicy.isExhausted(failures)) {
+                            quarantine(key, record, mail, failures);
+                        } else {
+                            redeliver(key, failures);
+                        }
+                    } else {
+                        remove(key, record);
+                    }
+
+                    LifecycleUtil.dispose(mail);
+                }
+            };
+
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+    }
+
+    /**
+     * Count a failure of the mail of the given key
+     * 
+     * @return failures the count of failures so far
+     */
+    private int failed(String key) {
+        while (true) {
+            Integer old = failures.putIfAbsent(key, 1);
+            if (old == null) {
+                return 1;
+            }
+            if (failures.replace(key, old, old + 1)) {
+                return old + 1;
+            }
+        }
+    }
+
+    /**
+     * Make the failed mail of the given key ready again once the delay of the
+     * {@link RedeliveryPolicy} passed
+     */
+    private void redeliver(String key, int failures) {
+        long delay = redeliveryPolicy.getDelay(failures);
+        if (delay > 0) {
+            long nextDelivery = System.currentTimeMillis() + delay;
+            statistics.defer(key, nextDelivery);
+            delayScheduler.schedule(key, nextDelivery);
+        } else {
+            inmemoryQueue.add(key);
+        }
+    }
+
+    /**
+     * Move the failed mail of the given key to the quarantine queue. If this
+     * fails the mail gets redelivered.
+     */
+    private void quarantine(String key, Record record, Mail mail, int failures) throws MailQueueException {
+        try {
+            mail.removeAttribute(NEXT_DELIVERY);
+            mail.setAttribute(REDELIVERY_COUNT, failures);
+            quarantine.enQueue(mail);
+        } catch (MailQueueException e) {
+            log.error("Unable to move mail " + mail.getName() + " of queue " + queueName + " to quarantine", e);
+            redeliver(key, failures);
+            return;
+        }
+        log.warn("Moved mail " + mail.getName() + " of queue " + queueName + " to quarantine after " + failures + " failures");
+        remove(key, record);
+    }
+
+    /**
+     * Remove the mail of the given key and mark its record as deleted
+     */
+    private void remove(String key, Record record) throws MailQueueException {
+        if (keyMappings.remove(key, record)) {
+            statistics.remove(key);
+            failures.remove(key);
+            release(record);
+        }
+    }
+
+    private Mail readMail(Record record) throws IOException {
+        return MailEnvelopeCodec.decode(record.getSegment().readObject(record));
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message directly out of the
+     * segment it was appended to
+     */
+    private final class JournalMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final Record record;
+        private SharedFileInputStream in;
+
+        public JournalMimeMessageSource(Record record) throws IOException {
+            this.record = record;
+            this.in = new SharedFileInputStream(record.getSegment().getFile());
+        }
+
+        @Override
+        public String getSourceId() {
+            return record.getSegment().getFile().getAbsolutePath() + "#" + record.getOffset();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return in.newStream(record.getMessageOffset(), record.getMessageOffset() + record.getMessageLength());
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return record.getMessageLength();
+        }
+
+        @Override
+        public void dispose() {
+            Closeables.closeQuietly(in);
+            in = null;
+        }
+
+    }
+
+    @Override
+    public void setRedeliveryPolicy(RedeliveryPolicy policy) {
+        this.redeliveryPolicy = policy;
+    }
+
+    @Override
+    public void setQuarantine(MailQueue quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    @Override
+    public long getSize() throws MailQueueException {
+        return keyMappings.size();
+    }
+
+    @Override
+    public long getReadyCount() throws MailQueueException {
+        return statistics.getReadyCount();
+    }
+
+    @Override
+    public long getDeferredCount() throws MailQueueException {
+        return statistics.getDeferredCount();
+    }
+
+    @Override
+    public long getTotalBytes() throws MailQueueException {
+        return statistics.getTotalBytes();
+    }
+
+    @Override
+    public long getOldestAge() throws MailQueueException {
+        return statistics.getOldestAge();
+    }
+
+    @Override
+    public long flush() throws MailQueueException {
+        statistics.flush();
+        Iterator<String> keys = keyMappings.keySet().iterator();
+        long i = 0;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!inmemoryQueue.contains(key)) {
+                inmemoryQueue.add(key);
+                i++;
+            }
+        }
+        return i;
+    }
+
+    @Override
+    public long clear() throws MailQueueException {
+        Iterator<String> keys = keyMappings.keySet().iterator();
+        long count = 0;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Record record = keyMappings.remove(key);
+            if (record != null) {
+                statistics.remove(key);
+                failures.remove(key);
+                release(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long remove(Type type, String value) throws MailQueueException {
+        MailQueueFilter filter = new MailQueueFilter(type, value);
+        long count = 0;
+        for (Map.Entry<String, Record> entry : keyMappings.entrySet()) {
+            String key = entry.getKey();
+            Record record = entry.getValue();
+            try {
+                if (filter.matches(readMail(record)) && keyMappings.remove(key, record)) {
+                    statistics.remove(key);
+                    failures.remove(key);
+                    release(record);
+                    count++;
+                }
+            } catch (IOException e) {
+                log.info("Unable to load mail " + key, e);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public MailQueueIterator browse() throws MailQueueException {
+        final Iterator<Record> records = keyMappings.values().iterator();
+        return new MailQueueIterator() {
+            private MailQueueItemView item = null;
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                if (hasNext()) {
+                    MailQueueItemView vitem = item;
+                    item = null;
+                    return vitem;
+                } else {
+                    throw new NoSuchElementException();
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (item == null) {
+                    while (records.hasNext()) {
+                        final Record record = records.next();
+                        try {
+                            final Mail mail = readMail(record);
+                            item = new MailQueueItemView() {
+
+                                @Override
+                                public long getNextDelivery() {
+                                    return record.getNextDelivery();
+                                }
+
+                                @Override
+                                public Mail getMail() {
+                                    return mail;
+                                }
+                            };
+                            return true;
+                        } catch (IOException e) {
+                            log.info("Unable to load mail", e);
+                        }
+                    }
+                    return false;
+                } else {
+                    return true;
+                }
+            }
+
+            @Override
+            public void close() {
+                // do nothing
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        delayScheduler.dispose();
+        reclaimer.shutdown();
+        try {
+            reclaimer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (JournalSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MailQueue:" + journalDir.getAbsolutePath();
+    }
+}
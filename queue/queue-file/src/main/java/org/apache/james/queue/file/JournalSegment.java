@@ -0,0 +1,378 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.FileUtils;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Closeables;
+
+/**
+ * A preallocated segment file used by the {@link JournalMailQueue}.
+ * <p/>
+ * Records are only ever appended to a segment. The only in-place write is the
+ * status byte of a record, which is flipped when the record was acknowledged.
+ * Once a segment is sealed and all its records are acknowledged it can be
+ * reclaimed as a whole.
+ * <p/>
+ * Each record has the following layout:
+ * <pre>
+ * int    magic
+ * byte   status
+ * long   next delivery time (ms)
+ * int    key length
+ * int    object length
+ * long   message length
+ * byte[] key (UTF-8)
+ * byte[] object (the serialized Mail)
+ * byte[] message
+ * </pre>
+ * A record is written with the status {@link #STATUS_PENDING} and a message
+ * length of -1. The length is filled in once the message was written and only
+ * after that the status is flipped to {@link #STATUS_LIVE}. So a record which
+ * is still pending but has a length was completely written, but never
+ * acknowledged to the caller.
+ */
+class JournalSegment {
+
+    final static String EXTENSION = ".journal";
+
+    private final static int MAGIC = 0x4A4D5131;
+    private final static byte STATUS_PENDING = 1;
+    private final static byte STATUS_LIVE = 2;
+    private final static byte STATUS_DELETED = 3;
+    private final static int STATUS_OFFSET = 4;
+    private final static int HEADER_SIZE = 4 + 1 + 8 + 4 + 4 + 8;
+    private final static long UNKNOWN_LENGTH = -1;
+
+    private final long id;
+    private final File file;
+    private final long capacity;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final AtomicInteger liveRecords = new AtomicInteger();
+    private final AtomicBoolean reclaimed = new AtomicBoolean();
+    private volatile boolean sealed;
+    private long writePosition;
+
+    private JournalSegment(long id, File file, long capacity, RandomAccessFile raf) {
+        this.id = id;
+        this.file = file;
+        this.capacity = capacity;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+    }
+
+    /**
+     * Create a new segment and preallocate <code>capacity</code> bytes for it
+     */
+    static JournalSegment create(File dir, long id, long capacity) throws IOException {
+        File file = new File(dir, fileName(id));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(capacity);
+        } catch (IOException e) {
+            Closeables.closeQuietly(raf);
+            throw e;
+        }
+        return new JournalSegment(id, file, capacity, raf);
+    }
+
+    /**
+     * Open an existing segment. The returned segment is sealed, so nothing will
+     * get appended to it anymore.
+     */
+    static JournalSegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        JournalSegment segment = new JournalSegment(parseId(file.getName()), file, raf.length(), raf);
+        segment.sealed = true;
+        return segment;
+    }
+
+    static String fileName(long id) {
+        return id + EXTENSION;
+    }
+
+    static long parseId(String fileName) {
+        return Long.parseLong(fileName.substring(0, fileName.length() - EXTENSION.length()));
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Return <code>true</code> if the preallocated space of the segment is used
+     * up
+     */
+    public synchronized boolean isFull() {
+        return writePosition >= capacity;
+    }
+
+    public boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Seal the segment so no more records will get appended.
+     *
+     * @return reclaimable <code>true</code> if the segment holds no
+     *         unacknowledged record anymore and should get reclaimed
+     */
+    public boolean seal() {
+        sealed = true;
+        return isReclaimable();
+    }
+
+    /**
+     * Append a new record to the segment. The record only becomes visible for
+     * recovery once it was completely written.
+     */
+    public synchronized Record append(String key, long nextDelivery, byte[] object, MimeMessage message, boolean sync) throws IOException, MessagingException {
+        if (sealed) {
+            throw new IOException("Segment " + file + " is sealed");
+        }
+        byte[] keyBytes = key.getBytes(Charsets.UTF_8);
+        long start = writePosition;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put(STATUS_PENDING).putLong(nextDelivery).putInt(keyBytes.length).putInt(object.length).putLong(UNKNOWN_LENGTH);
+        header.flip();
+
+        writeFully(header, start);
+        long objectOffset = start + HEADER_SIZE + keyBytes.length;
+        long messageOffset = objectOffset + object.length;
+        writeFully(ByteBuffer.wrap(keyBytes), start + HEADER_SIZE);
+        writeFully(ByteBuffer.wrap(object), objectOffset);
+
+        // stream the message directly into the segment
+        channel.position(messageOffset);
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 8192);
+        message.writeTo(out);
+        out.flush();
+        long messageLength = channel.position() - messageOffset;
+
+        ByteBuffer length = ByteBuffer.allocate(8);
+        length.putLong(messageLength).flip();
+        writeFully(length, start + HEADER_SIZE - 8);
+        if (sync) {
+            channel.force(false);
+        }
+        writeStatus(start, STATUS_LIVE);
+        if (sync) {
+            // the enqueue is only acknowledged once the status is durable
+            channel.force(false);
+        }
+
+        writePosition = messageOffset + messageLength;
+        liveRecords.incrementAndGet();
+        return new Record(this, key, start, nextDelivery, objectOffset, object.length, messageOffset, messageLength);
+    }
+
+    /**
+     * Mark the given record as deleted.
+     *
+     * @return reclaimable <code>true</code> if the segment is sealed and holds
+     *         no unacknowledged record anymore
+     */
+    public boolean delete(Record record) throws IOException {
+        writeStatus(record.getOffset(), STATUS_DELETED);
+        liveRecords.decrementAndGet();
+        return isReclaimable();
+    }
+
+    /**
+     * Return <code>true</code> exactly once, as soon as the segment is sealed
+     * and holds no unacknowledged record anymore
+     */
+    private boolean isReclaimable() {
+        return sealed && liveRecords.get() == 0 && reclaimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Read the serialized object of the given record
+     */
+    public byte[] readObject(Record record) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(record.getObjectLength());
+        readFully(buf, record.getObjectOffset());
+        return buf.array();
+    }
+
+    /**
+     * Scan the segment and return all records which were not acknowledged yet.
+     * A record which was completely written but never flipped to live is
+     * skipped. Scanning stops at the first record whose length is unknown, as
+     * nothing was appended after it.
+     */
+    public List<Record> recover() throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                break;
+            }
+            byte status = header.get();
+            if (status != STATUS_PENDING && status != STATUS_LIVE && status != STATUS_DELETED) {
+                break;
+            }
+            long nextDelivery = header.getLong();
+            int keyLength = header.getInt();
+            int objectLength = header.getInt();
+            long messageLength = header.getLong();
+
+            long objectOffset = position + HEADER_SIZE + keyLength;
+            long messageOffset = objectOffset + objectLength;
+            if (keyLength < 0 || objectLength < 0 || messageLength < 0 || messageOffset + messageLength > size) {
+                break;
+            }
+            if (status == STATUS_LIVE) {
+                ByteBuffer keyBuf = ByteBuffer.allocate(keyLength);
+                readFully(keyBuf, position + HEADER_SIZE);
+                String key = new String(keyBuf.array(), Charsets.UTF_8);
+                records.add(new Record(this, key, position, nextDelivery, objectOffset, objectLength, messageOffset, messageLength));
+                liveRecords.incrementAndGet();
+            }
+            position = messageOffset + messageLength;
+        }
+        writePosition = position;
+        return records;
+    }
+
+    /**
+     * Close the segment and delete its file
+     */
+    public void destroy() throws IOException {
+        close();
+        FileUtils.forceDelete(file);
+    }
+
+    public void close() {
+        Closeables.closeQuietly(raf);
+    }
+
+    private void writeStatus(long recordOffset, byte status) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1);
+        buf.put(status).flip();
+        writeFully(buf, recordOffset + STATUS_OFFSET);
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read == -1) {
+                throw new EOFException("Unexpected end of segment " + file);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JournalSegment:" + file.getAbsolutePath();
+    }
+
+    /**
+     * Location of a record inside a {@link JournalSegment}
+     */
+    static final class Record {
+        private final JournalSegment segment;
+        private final String key;
+        private final long offset;
+        private final long nextDelivery;
+        private final long objectOffset;
+        private final int objectLength;
+        private final long messageOffset;
+        private final long messageLength;
+
+        Record(JournalSegment segment, String key, long offset, long nextDelivery, long objectOffset, int objectLength, long messageOffset, long messageLength) {
+            this.segment = segment;
+            this.key = key;
+            this.offset = offset;
+            this.nextDelivery = nextDelivery;
+            this.objectOffset = objectOffset;
+            this.objectLength = objectLength;
+            this.messageOffset = messageOffset;
+            this.messageLength = messageLength;
+        }
+
+        public JournalSegment getSegment() {
+            return segment;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        public long getObjectOffset() {
+            return objectOffset;
+        }
+
+        public int getObjectLength() {
+            return objectLength;
+        }
+
+        public long getMessageOffset() {
+            return messageOffset;
+        }
+
+        public long getMessageLength() {
+            return messageLength;
+        }
+    }
+}
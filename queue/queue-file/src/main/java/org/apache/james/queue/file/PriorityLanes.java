@@ -0,0 +1,217 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+
+/**
+ * Keys of the mails of a {@link FileMailQueue} which are ready for delivery,
+ * with one FIFO lane per priority.
+ * <p/>
+ * The lanes are served by a smooth weighted round-robin. The weight of a lane
+ * is its priority plus one, so mails of a higher priority are preferred while
+ * mails of a lower priority still make progress.
+ */
+class PriorityLanes {
+
+    private final static int LANES = MailPrioritySupport.HIGH_PRIORITY + 1;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<String>[] lanes;
+    private final int[] credits = new int[LANES];
+    private int count;
+
+    @SuppressWarnings("unchecked")
+    public PriorityLanes() {
+        lanes = new ArrayDeque[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new ArrayDeque<String>();
+        }
+    }
+
+    /**
+     * Return the lane of the given priority, priorities out of range are
+     * mapped to the lowest or highest lane
+     */
+    private static int lane(int priority) {
+        return Math.max(MailPrioritySupport.LOW_PRIORITY, Math.min(LANES - 1, priority));
+    }
+
+    /**
+     * Add the key to the tail of the lane of the given priority
+     */
+    public void add(String key, int priority) {
+        lock.lock();
+        try {
+            lanes[lane(priority)].addLast(key);
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Add the key to the head of the lane of the given priority, for a mail
+     * which was taken but could not be handed out
+     */
+    public void addFirst(String key, int priority) {
+        lock.lock();
+        try {
+            lanes[lane(priority)].addFirst(key);
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key, waiting until one is available
+     */
+    public String take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key, waiting up to the given time until one is available
+     *
+     * @return key or <code>null</code> if no key was available in time
+     */
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the next key without waiting
+     *
+     * @return key or <code>null</code> if no key is available
+     */
+    public String poll() {
+        lock.lock();
+        try {
+            return count == 0 ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private String next() {
+        int total = 0;
+        int selected = -1;
+        for (int i = LANES - 1; i >= 0; i--) {
+            if (!lanes[i].isEmpty()) {
+                credits[i] += i + 1;
+                total += i + 1;
+                if (selected == -1 || credits[i] > credits[selected]) {
+                    selected = i;
+                }
+            }
+        }
+        credits[selected] -= total;
+        String key = lanes[selected].pollFirst();
+        if (lanes[selected].isEmpty()) {
+            credits[selected] = 0;
+        }
+        count--;
+        if (count > 0) {
+            notEmpty.signal();
+        }
+        return key;
+    }
+
+    public boolean contains(String key) {
+        lock.lock();
+        try {
+            for (ArrayDeque<String> keys : lanes) {
+                if (keys.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the priority of the highest lane which holds a key or -1 if all
+     * lanes are empty
+     */
+    public int highestPriority() {
+        lock.lock();
+        try {
+            for (int i = LANES - 1; i >= 0; i--) {
+                if (!lanes[i].isEmpty()) {
+                    return i;
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return the count of keys in the lane of the given priority
+     */
+    public int size(int priority) {
+        lock.lock();
+        try {
+            return lanes[lane(priority)].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
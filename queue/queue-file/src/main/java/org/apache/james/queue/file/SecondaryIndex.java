@@ -0,0 +1,60 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Secondary index of a {@link FileMailQueue}, which maps a value like the
+ * sender of a mail to the sorted keys of the queued mails with this value.
+ * Lookups don't lock, the returned sets reflect concurrent changes.
+ */
+final class SecondaryIndex {
+
+    // never modified
+    private final static NavigableSet<String> EMPTY = new ConcurrentSkipListSet<String>();
+
+    private final ConcurrentHashMap<String, NavigableSet<String>> keys = new ConcurrentHashMap<String, NavigableSet<String>>();
+
+    public synchronized void add(String value, String key) {
+        NavigableSet<String> set = keys.get(value);
+        if (set == null) {
+            set = new ConcurrentSkipListSet<String>();
+            keys.put(value, set);
+        }
+        set.add(key);
+    }
+
+    public synchronized void remove(String value, String key) {
+        NavigableSet<String> set = keys.get(value);
+        if (set != null && set.remove(key) && set.isEmpty()) {
+            keys.remove(value);
+        }
+    }
+
+    /**
+     * Return the sorted keys of the mails with the given value
+     */
+    public NavigableSet<String> get(String value) {
+        NavigableSet<String> set = keys.get(value);
+        return set == null ? EMPTY : set;
+    }
+}
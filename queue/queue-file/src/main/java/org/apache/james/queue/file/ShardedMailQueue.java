@@ -0,0 +1,385 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.james.queue.api.InstrumentedMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.PriorityMailQueue;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.mailet.Mail;
+
+/**
+ * {@link MailQueue} which spreads its {@link Mail}'s over several {@link FileMailQueue} shards, each
+ * of them in its own directory, so the shards can be placed on different disks.
+ * <p/>
+ * Every shard has its own ready lanes and one I/O thread which writes the enqueued {@link Mail}'s, so
+ * the writes to one disk don't wait for another. A {@link Mail} is enqueued to the shard with the fewest
+ * pending writes.
+ * <p/>
+ * Each consumer thread is assigned a home shard. It takes the ready {@link Mail}'s of the shard with
+ * the highest ready priority first, preferring its home shard among the shards of the same priority,
+ * so a {@link Mail} of a higher priority is not held back by the {@link Mail}'s of its home shard.
+ * While all shards are empty the consumer waits on its home shard and looks at the others again
+ * every {@link #STEAL_INTERVAL} milliseconds.
+ * <p/>
+ * A {@link Mail} is enqueued once the write of its shard started, so an interrupt of
+ * {@link #enQueue(Mail, long, TimeUnit)} only aborts a write which did not start yet.
+ */
+public class ShardedMailQueue implements PriorityMailQueue, BatchMailQueue, InstrumentedMailQueue, RedeliveryMailQueue, Disposable {
+
+    private final static long STEAL_INTERVAL = 50;
+
+    private final List<FileMailQueue> shards;
+    private final List<ExecutorService> writers;
+    private final AtomicInteger[] pending;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final AtomicInteger nextHome = new AtomicInteger();
+    private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+
+        @Override
+        protected Integer initialValue() {
+            return (nextHome.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+        }
+    };
+
+    /**
+     * @param name
+     *            the name of the queue, used for the I/O threads
+     * @param shards
+     *            the shards, which must be stored in different directories
+     */
+    public ShardedMailQueue(String name, List<FileMailQueue> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        this.shards = new ArrayList<FileMailQueue>(shards);
+        this.writers = new ArrayList<ExecutorService>(shards.size());
+        this.pending = new AtomicInteger[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            final String threadName = "ShardedMailQueue-" + name + "-" + i;
+            writers.add(Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }));
+            pending[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Return the shard with the fewest pending writes. The search starts at
+     * the next shard in turn, so the shards are used round-robin while all of
+     * them keep up.
+     */
+    private int selectShard() {
+        int start = (nextShard.getAndIncrement() & Integer.MAX_VALUE) % shards.size();
+        int selected = start;
+        for (int i = 1; i < shards.size(); i++) {
+            int shard = (start + i) % shards.size();
+            if (pending[shard].get() < pending[selected].get()) {
+                selected = shard;
+            }
+        }
+        return selected;
+    }
+
+    @Override
+    public void enQueue(final Mail mail, final long delay, final TimeUnit unit) throws MailQueueException {
+        final int shard = selectShard();
+        pending[shard].incrementAndGet();
+        boolean interrupted = false;
+        try {
+            Future<Void> write = writers.get(shard).submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+                    shards.get(shard).enQueue(mail, delay, unit);
+                    return null;
+                }
+            });
+            while (true) {
+                try {
+                    write.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    // a write which started is waited for, failing it would
+                    // let the caller enqueue the mail twice
+                    if (write.cancel(false)) {
+                        throw new MailQueueException("Unable to enqueue mail", e);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MailQueueException) {
+                throw (MailQueueException) e.getCause();
+            }
+            throw new MailQueueException("Unable to enqueue mail", e);
+        } finally {
+            pending[shard].decrementAndGet();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public MailQueueItem deQueue() throws MailQueueException {
+        int home = this.home.get();
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>(1);
+        while (items.isEmpty()) {
+            steal(home, 1, items);
+            if (items.isEmpty()) {
+                items.addAll(shards.get(home).deQueue(1, STEAL_INTERVAL, TimeUnit.MILLISECONDS));
+            }
+        }
+        return items.get(0);
+    }
+
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        int home = this.home.get();
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            steal(home, max, items);
+            long remaining = end - System.nanoTime();
+            if (!items.isEmpty() || remaining <= 0) {
+                return items;
+            }
+            remaining = Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(STEAL_INTERVAL));
+            items.addAll(shards.get(home).deQueue(max, remaining, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Take the ready items of the shards without waiting, until the given list
+     * holds max items. The shards are asked by the highest priority of their
+     * ready mails, starting at the home shard among the shards of the same
+     * priority.
+     */
+    private void steal(int home, int max, List<MailQueueItem> items) throws MailQueueException {
+        int[] priorities = new int[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            priorities[i] = shards.get(i).getHighestReadyPriority();
+        }
+        while (items.size() < max) {
+            int selected = -1;
+            for (int i = 0; i < shards.size(); i++) {
+                int shard = (home + i) % shards.size();
+                if (priorities[shard] >= 0 && (selected == -1 || priorities[shard] > priorities[selected])) {
+                    selected = shard;
+                }
+            }
+            if (selected == -1) {
+                return;
+            }
+            priorities[selected] = -1;
+            items.addAll(shards.get(selected).deQueue(max - items.size(), 0, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Override
+    public void setMetricsListener(MailQueueMetricsListener listener) {
+        for (FileMailQueue shard : shards) {
+            shard.setMetricsListener(listener);
+        }
+    }
+
+    @Override
+    public void setRedeliveryPolicy(RedeliveryPolicy policy) {
+        for (FileMailQueue shard : shards) {
+            shard.setRedeliveryPolicy(policy);
+        }
+    }
+
+    @Override
+    public void setQuarantine(MailQueue quarantine) {
+        for (FileMailQueue shard : shards) {
+            shard.setQuarantine(quarantine);
+        }
+    }
+
+    @Override
+    public long getSize() throws MailQueueException {
+        long size = 0;
+        for (FileMailQueue shard : shards) {
+            size += shard.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public long getReadyCount() throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.getReadyCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getReadyCount(int priority) throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.getReadyCount(priority);
+        }
+        return count;
+    }
+
+    @Override
+    public long getDeferredCount() throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.getDeferredCount();
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotalBytes() throws MailQueueException {
+        long bytes = 0;
+        for (FileMailQueue shard : shards) {
+            bytes += shard.getTotalBytes();
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getOldestAge() throws MailQueueException {
+        long age = 0;
+        for (FileMailQueue shard : shards) {
+            age = Math.max(age, shard.getOldestAge());
+        }
+        return age;
+    }
+
+    @Override
+    public long flush() throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.flush();
+        }
+        return count;
+    }
+
+    @Override
+    public long clear() throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.clear();
+        }
+        return count;
+    }
+
+    @Override
+    public long remove(Type type, String value) throws MailQueueException {
+        long count = 0;
+        for (FileMailQueue shard : shards) {
+            count += shard.remove(type, value);
+        }
+        return count;
+    }
+
+    /**
+     * Browse the shards one after the other
+     */
+    @Override
+    public MailQueueIterator browse() throws MailQueueException {
+        final Iterator<FileMailQueue> remaining = shards.iterator();
+        return new MailQueueIterator() {
+            private MailQueueIterator current;
+
+            @Override
+            public boolean hasNext() {
+                while (current == null || !current.hasNext()) {
+                    if (current != null) {
+                        current.close();
+                        current = null;
+                    }
+                    if (!remaining.hasNext()) {
+                        return false;
+                    }
+                    try {
+                        current = remaining.next().browse();
+                    } catch (MailQueueException e) {
+                        throw new RuntimeException("Unable to browse shard", e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public void close() {
+                if (current != null) {
+                    current.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        for (ExecutorService writer : writers) {
+            writer.shutdownNow();
+        }
+        for (FileMailQueue shard : shards) {
+            shard.dispose();
+        }
+    }
+}
@@ -0,0 +1,542 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageInputStreamSource;
+import org.apache.james.queue.api.AbstractMailQueueTest;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueuePage;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.library.MailQueueMetrics;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueTest extends AbstractMailQueueTest<FileMailQueue> {
+
+    private final Logger log = LoggerFactory.getLogger(FileMailQueueTest.class);
+    private File parentDir;
+
+    @Before
+    public void setUp() throws Exception {
+        parentDir = new File("target/file-queue-test-" + System.nanoTime());
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteDirectory(parentDir);
+    }
+
+    @Override
+    protected FileMailQueue createQueue() throws Exception {
+        return new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+    }
+
+    @Test
+    public void testRecoveryFromIndex() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"), 1, TimeUnit.HOURS);
+        queue.dispose();
+        assertTrue(new File(parentDir, QUEUE_NAME + "/index").exists());
+
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        assertEquals(2, queue.getSize());
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        item.done(true);
+        assertEquals(1, queue.getSize());
+    }
+
+    @Test
+    public void testBatchDeQueue() throws Exception {
+        queue.setRedeliveryPolicy(RedeliveryPolicy.IMMEDIATE);
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        queue.enQueue(createMail("mail3"));
+
+        List<MailQueueItem> items = queue.deQueue(2, 1, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        items.get(0).done(false);
+        items.get(1).done(true);
+
+        items = queue.deQueue(10, 1, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+        assertEquals(0, queue.getSize());
+
+        long start = System.currentTimeMillis();
+        assertTrue(queue.deQueue(10, 200, TimeUnit.MILLISECONDS).isEmpty());
+        assertTrue(System.currentTimeMillis() - start >= 200);
+    }
+
+    @Test
+    public void testRecoveryWithoutIndex() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.dispose();
+        FileUtils.forceDelete(new File(parentDir, QUEUE_NAME + "/index"));
+
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testOrphanedMessageFileIsDeleted() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.dispose();
+        File orphan = new File(parentDir, QUEUE_NAME + "/1/orphan-1.msg");
+        FileUtils.writeStringToFile(orphan, "Subject: orphan\r\n\r\n");
+        orphan.setLastModified(System.currentTimeMillis() - 60000);
+
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        item.done(true);
+        // the split directories are reconciled in the background
+        long end = System.currentTimeMillis() + 5000;
+        while (orphan.exists() && System.currentTimeMillis() < end) {
+            Thread.sleep(50);
+        }
+        assertFalse(orphan.exists());
+        Collection<File> files = FileUtils.listFiles(new File(parentDir, QUEUE_NAME), new String[] { "msg", "obj" }, true);
+        assertEquals(files.toString(), 0, files.size());
+    }
+
+    @Test
+    public void testStaleIndexEntriesAreDropped() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        queue.dispose();
+        FileUtils.copyFile(new File(parentDir, QUEUE_NAME + "/index"), new File(parentDir, "index.bak"));
+
+        // simulate a crash after a mail was acknowledged but before the next checkpoint
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        MailQueueItem item = queue.deQueue();
+        String first = item.getMail().getName();
+        item.done(true);
+        queue.dispose();
+        FileUtils.copyFile(new File(parentDir, "index.bak"), new File(parentDir, QUEUE_NAME + "/index"));
+
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        item = queue.deQueue();
+        assertFalse(first.equals(item.getMail().getName()));
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"), 1, TimeUnit.HOURS);
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(1, queue.getDeferredCount());
+        assertTrue(queue.getTotalBytes() > 0);
+        assertTrue(queue.getOldestAge() >= 0);
+        queue.dispose();
+
+        // the statistics are restored from the index
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(1, queue.getDeferredCount());
+        long bytes = queue.getTotalBytes();
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        assertEquals(0, queue.getReadyCount());
+        assertTrue(queue.getTotalBytes() < bytes);
+
+        queue.flush();
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(0, queue.getDeferredCount());
+        queue.clear();
+        assertEquals(0, queue.getTotalBytes());
+        assertEquals(0, queue.getOldestAge());
+    }
+
+    @Test
+    public void testBrowsePage() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            MailImpl mail = createMail("mail" + i);
+            if (i % 2 == 0) {
+                mail.setRecipients(Arrays.asList(new MailAddress("rcpt@Example.org")));
+            }
+            queue.enQueue(mail);
+        }
+        MailQueueFilter filter = new MailQueueFilter(Type.RecipientDomain, "example.org");
+        MailQueuePage page = queue.browse(filter, null, 2);
+        assertEquals(2, page.getItems().size());
+        assertEquals("mail0", page.getItems().get(0).getMail().getName());
+        assertEquals("mail2", page.getItems().get(1).getMail().getName());
+
+        // a mail which is removed does not move the following pages
+        queue.remove(Type.Name, "mail2");
+        page = queue.browse(filter, page.getNextCursor(), 2);
+        assertEquals(1, page.getItems().size());
+        assertEquals("mail4", page.getItems().get(0).getMail().getName());
+        assertNull(page.getNextCursor());
+
+        assertEquals(4, queue.browse(MailQueueFilter.ALL, null, 10).getItems().size());
+    }
+
+    @Test
+    public void testRemoveWithFilter() throws Exception {
+        MailImpl mail = createMail("mail1");
+        mail.setSender(new MailAddress("other@senderdomain"));
+        queue.enQueue(mail);
+        queue.enQueue(createMail("mail2"));
+        queue.enQueue(createMail("mail3"), 1, TimeUnit.HOURS);
+
+        assertEquals(0, queue.remove(new MailQueueFilter(Type.Sender, "sender@senderdomain").and(Type.Name, "mail1")));
+        assertEquals(2, queue.remove(new MailQueueFilter(Type.Sender, "sender@senderdomain")));
+        assertEquals(1, queue.getSize());
+        assertEquals(0, queue.getDeferredCount());
+        assertEquals("mail1", queue.deQueue().getMail().getName());
+    }
+
+    @Test
+    public void testPriorityLanes() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            queue.enQueue(createMail("low" + i));
+        }
+        MailImpl mail = createMail("high");
+        mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+        queue.enQueue(mail);
+        assertEquals(5, queue.getReadyCount(MailPrioritySupport.NORMAL_PRIORITY));
+        assertEquals(1, queue.getReadyCount(MailPrioritySupport.HIGH_PRIORITY));
+        queue.dispose();
+
+        // the priority is restored from the index
+        queue = new FileMailQueue(parentDir, QUEUE_NAME, false, log);
+        assertEquals(1, queue.getReadyCount(MailPrioritySupport.HIGH_PRIORITY));
+        MailQueueItem item = queue.deQueue();
+        assertEquals("high", item.getMail().getName());
+        item.done(false);
+
+        // a failed mail goes back to its lane once it is due
+        assertEquals(0, queue.getReadyCount(MailPrioritySupport.HIGH_PRIORITY));
+        assertEquals(1, queue.getDeferredCount());
+        queue.flush();
+        assertEquals(1, queue.getReadyCount(MailPrioritySupport.HIGH_PRIORITY));
+        assertEquals(5, queue.getReadyCount(MailPrioritySupport.NORMAL_PRIORITY));
+    }
+
+    @Test
+    public void testRedeliveryBackoff() throws Exception {
+        queue.setRedeliveryPolicy(new RedeliveryPolicy(100, 1000, 2, -1));
+        queue.enQueue(createMail("mail1"));
+
+        queue.deQueue().done(false);
+        assertEquals(1, queue.getDeferredCount());
+        assertTrue(queue.deQueue(1, 50, TimeUnit.MILLISECONDS).isEmpty());
+        List<MailQueueItem> items = queue.deQueue(1, 2, TimeUnit.SECONDS);
+        assertEquals(1, items.size());
+        assertEquals(0, queue.getDeferredCount());
+
+        // the delay doubles
+        long start = System.currentTimeMillis();
+        items.get(0).done(false);
+        MailQueueItem item = queue.deQueue();
+        assertTrue(System.currentTimeMillis() - start >= 190);
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        FileMailQueue quarantine = new FileMailQueue(parentDir, "quarantine", false, log);
+        try {
+            MailQueueMetrics metrics = new MailQueueMetrics(QUEUE_NAME);
+            queue.setMetricsListener(metrics);
+            queue.setRedeliveryPolicy(new RedeliveryPolicy(0, 0, 1, 1));
+            queue.setQuarantine(quarantine);
+            queue.enQueue(createMail("mail1"));
+            queue.enQueue(createMail("mail2"));
+
+            // mail1 fails once, mail2 succeeds
+            for (int i = 0; i < 2; i++) {
+                MailQueueItem item = queue.deQueue();
+                item.done(item.getMail().getName().equals("mail2"));
+            }
+            assertEquals(1, queue.getSize());
+            assertEquals(0, quarantine.getSize());
+
+            // the second failure exceeds the max redeliveries
+            queue.deQueue().done(false);
+            assertEquals(0, queue.getSize());
+            assertEquals(1, metrics.getQuarantineCount());
+
+            MailQueueItem item = quarantine.deQueue();
+            assertEquals("mail1", item.getMail().getName());
+            assertEquals(2, item.getMail().getAttribute(RedeliveryMailQueue.REDELIVERY_COUNT));
+            assertEquals("body of mail1", item.getMail().getMessage().getContent());
+            item.done(true);
+        } finally {
+            quarantine.dispose();
+        }
+    }
+
+    @Test
+    public void testSharedQueueDeliversOnce() throws Exception {
+        final List<FileMailQueue> nodes = new ArrayList<FileMailQueue>();
+        nodes.add(new FileMailQueue(parentDir, "shared", false, "node1", 60000, log));
+        nodes.add(new FileMailQueue(parentDir, "shared", false, "node2", 60000, log));
+        try {
+            for (int i = 0; i < 20; i++) {
+                nodes.get(i % 2).enQueue(createMail("mail" + i));
+            }
+            // wait until both nodes know all mails
+            long end = System.currentTimeMillis() + 5000;
+            while ((nodes.get(0).getSize() < 20 || nodes.get(1).getSize() < 20) && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            assertEquals(20, nodes.get(0).getSize());
+            assertEquals(20, nodes.get(1).getSize());
+
+            final Set<String> names = Collections.synchronizedSet(new HashSet<String>());
+            final AtomicInteger duplicates = new AtomicInteger();
+            List<Thread> consumers = new ArrayList<Thread>();
+            for (final FileMailQueue node : nodes) {
+                for (int i = 0; i < 2; i++) {
+                    Thread consumer = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                List<MailQueueItem> items;
+                                while (!(items = node.deQueue(3, 1, TimeUnit.SECONDS)).isEmpty()) {
+                                    for (MailQueueItem item : items) {
+                                        if (!names.add(item.getMail().getName())) {
+                                            duplicates.incrementAndGet();
+                                        }
+                                        item.done(true);
+                                    }
+                                }
+                            } catch (Exception e) {
+                                log.error("Consumer failed", e);
+                            }
+                        }
+                    };
+                    consumer.start();
+                    consumers.add(consumer);
+                }
+            }
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+            assertEquals(20, names.size());
+            assertEquals(0, duplicates.get());
+            assertEquals(0, nodes.get(0).getSize());
+            assertEquals(0, nodes.get(1).getSize());
+        } finally {
+            for (FileMailQueue node : nodes) {
+                node.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void testSharedQueueRedelivery() throws Exception {
+        FileMailQueue node1 = new FileMailQueue(parentDir, "shared", false, "node1", 60000, log);
+        FileMailQueue node2 = new FileMailQueue(parentDir, "shared", false, "node2", 60000, log);
+        try {
+            node1.setRedeliveryPolicy(new RedeliveryPolicy(500, 500, 1, -1));
+            node1.enQueue(createMail("mail1"));
+            long start = System.currentTimeMillis();
+            node1.deQueue().done(false);
+
+            // the delay is stored with the mail, so the other node respects it as well
+            List<MailQueueItem> items = node2.deQueue(1, 5, TimeUnit.SECONDS);
+            assertEquals(1, items.size());
+            assertEquals("mail1", items.get(0).getMail().getName());
+            assertTrue(System.currentTimeMillis() - start >= 500);
+            items.get(0).done(true);
+            assertTrue(node1.deQueue(1, 1500, TimeUnit.MILLISECONDS).isEmpty());
+        } finally {
+            node1.dispose();
+            node2.dispose();
+        }
+    }
+
+    @Test
+    public void testSharedQueueRedeliveryOfKnownMail() throws Exception {
+        FileMailQueue node1 = new FileMailQueue(parentDir, "shared", false, "node1", 60000, log);
+        FileMailQueue node2 = new FileMailQueue(parentDir, "shared", false, "node2", 60000, log);
+        try {
+            node1.setRedeliveryPolicy(new RedeliveryPolicy(1000, 1000, 1, -1));
+            node1.enQueue(createMail("mail1"));
+            // wait until the other node knows the mail as ready
+            long end = System.currentTimeMillis() + 5000;
+            while (node2.getSize() < 1 && System.currentTimeMillis() < end) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, node2.getSize());
+
+            long start = System.currentTimeMillis();
+            node1.deQueue().done(false);
+
+            // the delay is read from the claimed mail, not from the cached entry
+            List<MailQueueItem> items = node2.deQueue(1, 5, TimeUnit.SECONDS);
+            assertEquals(1, items.size());
+            assertTrue(System.currentTimeMillis() - start >= 1000);
+            items.get(0).done(true);
+        } finally {
+            node1.dispose();
+            node2.dispose();
+        }
+    }
+
+    @Test
+    public void testExpiredLeaseIsReleased() throws Exception {
+        FileMailQueue node1 = new FileMailQueue(parentDir, "shared", false, "node1", 300, log);
+        node1.enQueue(createMail("mail1"));
+        MailQueueItem item = node1.deQueue();
+        // the node stops to renew its lease while it holds the mail
+        node1.dispose();
+
+        FileMailQueue node2 = new FileMailQueue(parentDir, "shared", false, "node2", 300, log);
+        try {
+            List<MailQueueItem> items = node2.deQueue(1, 5, TimeUnit.SECONDS);
+            assertEquals(1, items.size());
+            assertEquals("mail1", items.get(0).getMail().getName());
+            items.get(0).done(true);
+            assertEquals(0, node2.getSize());
+
+            // the first node lost the mail, so it does not touch it anymore
+            item.done(true);
+            assertTrue(node2.deQueue(1, 1500, TimeUnit.MILLISECONDS).isEmpty());
+        } finally {
+            node2.dispose();
+        }
+    }
+
+    @Test
+    public void testIngest() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 200 * 1024) {
+            body.append("0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+        }
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("ingest", queue.getIngestDirectory());
+        source.getWritableOutputStream().write(("Subject: ingest\r\n\r\n" + body).getBytes());
+        source.getWritableOutputStream().close();
+        assertEquals(1, queue.getIngestDirectory().list().length);
+
+        MailImpl mail = createMail("mail1");
+        mail.setMessage(new MimeMessageCopyOnWriteProxy(source));
+        queue.enQueue(mail);
+        // the message was moved into the queue
+        assertEquals(0, queue.getIngestDirectory().list().length);
+        assertEquals(source.getMessageSize(), queue.getTotalBytes());
+        mail.dispose();
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("ingest", item.getMail().getMessage().getSubject());
+        assertEquals(body.toString(), item.getMail().getMessage().getContent());
+        item.done(true);
+    }
+
+    @Test
+    public void testFailedEnqueueLeavesNoFiles() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 200 * 1024) {
+            body.append("0123456789abcdefghijklmnopqrstuvwxyz\r\n");
+        }
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("ingest", queue.getIngestDirectory());
+        source.getWritableOutputStream().write(("Subject: ingest\r\n\r\n" + body).getBytes());
+        source.getWritableOutputStream().close();
+
+        MailImpl mail = createMail("mail1");
+        mail.setMessage(new MimeMessageCopyOnWriteProxy(source));
+        // the envelope can't be encoded after the message was moved
+        mail.setAttribute("unserializable", new ArrayList<Object>(Arrays.asList(new Object())));
+        try {
+            queue.enQueue(mail);
+            fail("the attribute is not serializable");
+        } catch (MailQueueException e) {
+            // expected
+        }
+        mail.dispose();
+
+        assertEquals(0, queue.getIngestDirectory().list().length);
+        Collection<File> files = FileUtils.listFiles(new File(parentDir, QUEUE_NAME), new String[] { "msg", "obj", "tmp" }, true);
+        assertEquals(files.toString(), 0, files.size());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        MailQueueMetrics metrics = new MailQueueMetrics(QUEUE_NAME);
+        queue.setMetricsListener(metrics);
+        queue.setRedeliveryPolicy(RedeliveryPolicy.IMMEDIATE);
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        assertEquals(2, metrics.getEnqueueLatencyHistogram().getCount());
+
+        MailQueueItem item = queue.deQueue();
+        item.done(false);
+        assertEquals(1, metrics.getRollbackCount());
+        assertEquals(0, metrics.getRedeliveryCount());
+
+        for (MailQueueItem batchItem : queue.deQueue(2, 1, TimeUnit.SECONDS)) {
+            batchItem.done(true);
+        }
+        assertEquals(3, metrics.getDequeueWaitHistogram().getCount());
+        assertEquals(1, metrics.getRedeliveryCount());
+        assertEquals(2, metrics.getTimeInQueueHistogram().getCount());
+        assertEquals(2L, metrics.getTimeInQueue().get("count"));
+        assertTrue(metrics.getTimeInQueueHistogram().getMax() >= metrics.getTimeInQueueHistogram().getPercentile(50));
+
+        metrics.reset();
+        assertEquals(0, metrics.getRollbackCount());
+        assertEquals(0, metrics.getTimeInQueueHistogram().getCount());
+    }
+}
@@ -0,0 +1,215 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.AbstractMailQueueTest;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class JournalMailQueueTest extends AbstractMailQueueTest<JournalMailQueue> {
+
+    private final Logger log = LoggerFactory.getLogger(JournalMailQueueTest.class);
+    private File parentDir;
+
+    @Before
+    public void setUp() throws Exception {
+        parentDir = new File("target/journal-test-" + System.nanoTime());
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteDirectory(parentDir);
+    }
+
+    @Override
+    protected JournalMailQueue createQueue() throws Exception {
+        return new JournalMailQueue(parentDir, QUEUE_NAME, 4096, false, log);
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        queue.setRedeliveryPolicy(RedeliveryPolicy.IMMEDIATE);
+        queue.enQueue(createMail("mail1"));
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        item.done(false);
+        assertEquals(1, queue.getSize());
+
+        item = queue.deQueue();
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testRedeliveryBackoff() throws Exception {
+        queue.setRedeliveryPolicy(new RedeliveryPolicy(100, 1000, 2, -1));
+        queue.enQueue(createMail("mail1"));
+
+        queue.deQueue().done(false);
+        assertEquals(1, queue.getDeferredCount());
+        assertTrue(queue.deQueue(1, 50, TimeUnit.MILLISECONDS).isEmpty());
+        List<MailQueueItem> items = queue.deQueue(1, 2, TimeUnit.SECONDS);
+        assertEquals(1, items.size());
+
+        // the delay doubles
+        long start = System.currentTimeMillis();
+        items.get(0).done(false);
+        MailQueueItem item = queue.deQueue();
+        assertTrue(System.currentTimeMillis() - start >= 190);
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        JournalMailQueue quarantine = new JournalMailQueue(parentDir, "quarantine", 4096, false, log);
+        try {
+            queue.setRedeliveryPolicy(new RedeliveryPolicy(0, 0, 1, 1));
+            queue.setQuarantine(quarantine);
+            queue.enQueue(createMail("mail1"));
+
+            queue.deQueue().done(false);
+            assertEquals(1, queue.getSize());
+            assertEquals(0, quarantine.getSize());
+
+            // the second failure exceeds the max redeliveries
+            queue.deQueue().done(false);
+            assertEquals(0, queue.getSize());
+
+            MailQueueItem item = quarantine.deQueue();
+            assertEquals("mail1", item.getMail().getName());
+            assertEquals(2, item.getMail().getAttribute(RedeliveryMailQueue.REDELIVERY_COUNT));
+            assertEquals("body of mail1", item.getMail().getMessage().getContent());
+            item.done(true);
+        } finally {
+            quarantine.dispose();
+        }
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        queue.enQueue(createMail("mail3"), 1, TimeUnit.HOURS);
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("mail1", item.getMail().getName());
+        item.done(true);
+        queue.dispose();
+
+        queue = new JournalMailQueue(parentDir, QUEUE_NAME, 4096, false, log);
+        assertEquals(2, queue.getSize());
+        item = queue.deQueue();
+        assertEquals("mail2", item.getMail().getName());
+        item.done(true);
+        assertEquals(1, queue.flush());
+        item = queue.deQueue();
+        assertEquals("mail3", item.getMail().getName());
+        item.done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testRecoverySkipsPendingRecord() throws Exception {
+        File dir = new File(parentDir, "segment");
+        FileUtils.forceMkdir(dir);
+        JournalSegment segment = JournalSegment.create(dir, 1, 64 * 1024);
+        List<JournalSegment.Record> records = new ArrayList<JournalSegment.Record>();
+        for (int i = 0; i < 3; i++) {
+            records.add(segment.append("key" + i, 0, new byte[] { 1, 2, 3 }, createMail("mail" + i).getMessage(), false));
+        }
+        segment.close();
+
+        // the second record was written but the enqueue never got acknowledged
+        RandomAccessFile raf = new RandomAccessFile(segment.getFile(), "rw");
+        try {
+            raf.seek(records.get(1).getOffset() + 4);
+            raf.write(1);
+        } finally {
+            raf.close();
+        }
+
+        segment = JournalSegment.open(segment.getFile());
+        try {
+            List<JournalSegment.Record> recovered = segment.recover();
+            assertEquals(2, recovered.size());
+            assertEquals("key0", recovered.get(0).getKey());
+            assertEquals("key2", recovered.get(1).getKey());
+            assertEquals(records.get(2).getMessageOffset(), recovered.get(1).getMessageOffset());
+        } finally {
+            segment.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsAreReclaimed() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            queue.enQueue(createLargeMail("mail" + i));
+        }
+        assertTrue(countSegments() > 2);
+
+        for (int i = 0; i < 20; i++) {
+            queue.deQueue().done(true);
+        }
+
+        // reclaiming is done in the background
+        long timeout = System.currentTimeMillis() + 5000;
+        while (countSegments() > 1 && System.currentTimeMillis() < timeout) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertEquals(1, countSegments());
+    }
+
+    private int countSegments() {
+        return new File(parentDir, QUEUE_NAME + "/journal").list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JournalSegment.EXTENSION);
+            }
+        }).length;
+    }
+
+    private MailImpl createLargeMail(String name) throws Exception {
+        MailImpl mail = createMail(name);
+        mail.getMessage().setText("This is the body of " + name + " which is a bit longer to fill up the segments faster. "
+                + "This is the body of " + name + " which is a bit longer to fill up the segments faster.");
+        mail.getMessage().saveChanges();
+        return mail;
+    }
+}
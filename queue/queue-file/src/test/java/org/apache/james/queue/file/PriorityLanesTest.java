@@ -0,0 +1,77 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.junit.Test;
+
+public class PriorityLanesTest {
+
+    @Test
+    public void testFIFOWithinLane() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.add("a", MailPrioritySupport.NORMAL_PRIORITY);
+        lanes.add("b", MailPrioritySupport.NORMAL_PRIORITY);
+        lanes.addFirst("c", MailPrioritySupport.NORMAL_PRIORITY);
+        assertEquals("c", lanes.take());
+        assertEquals("a", lanes.poll());
+        assertEquals("b", lanes.poll(1, TimeUnit.SECONDS));
+        assertNull(lanes.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWeightedFairDequeue() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        for (int i = 0; i < 100; i++) {
+            lanes.add("low" + i, MailPrioritySupport.LOW_PRIORITY);
+            lanes.add("high" + i, MailPrioritySupport.HIGH_PRIORITY);
+        }
+        assertEquals(100, lanes.size(MailPrioritySupport.LOW_PRIORITY));
+        assertEquals(100, lanes.size(MailPrioritySupport.HIGH_PRIORITY));
+
+        // the high lane has ten times the weight of the low lane
+        int low = 0;
+        for (int i = 0; i < 110; i++) {
+            if (lanes.take().startsWith("low")) {
+                low++;
+            }
+        }
+        assertEquals(10, low);
+        assertEquals(90, lanes.size());
+    }
+
+    @Test
+    public void testPriorityOutOfRange() throws Exception {
+        PriorityLanes lanes = new PriorityLanes();
+        lanes.add("a", -1);
+        lanes.add("b", 42);
+        assertEquals(1, lanes.size(MailPrioritySupport.LOW_PRIORITY));
+        assertEquals(1, lanes.size(MailPrioritySupport.HIGH_PRIORITY));
+        assertEquals(MailPrioritySupport.HIGH_PRIORITY, lanes.highestPriority());
+        assertEquals("b", lanes.take());
+        assertEquals(MailPrioritySupport.LOW_PRIORITY, lanes.highestPriority());
+        assertEquals("a", lanes.take());
+        assertEquals(-1, lanes.highestPriority());
+    }
+}
@@ -0,0 +1,160 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.core.MailImpl;
+import org.apache.james.queue.api.AbstractMailQueueTest;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class ShardedMailQueueTest extends AbstractMailQueueTest<ShardedMailQueue> {
+
+    private final Logger log = LoggerFactory.getLogger(ShardedMailQueueTest.class);
+    private File parentDir;
+    private List<FileMailQueue> shards;
+
+    @Before
+    public void setUp() throws Exception {
+        parentDir = new File("target/sharded-queue-test-" + System.nanoTime());
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteDirectory(parentDir);
+    }
+
+    @Override
+    protected ShardedMailQueue createQueue() throws Exception {
+        shards = new ArrayList<FileMailQueue>();
+        for (int i = 0; i < 3; i++) {
+            shards.add(new FileMailQueue(new File(parentDir, "shard" + i), QUEUE_NAME, false, log));
+        }
+        return new ShardedMailQueue(QUEUE_NAME, shards);
+    }
+
+    @Test
+    public void testEnqueueSpreadsOverShards() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            queue.enQueue(createMail("mail" + i));
+        }
+        assertEquals(6, queue.getSize());
+        for (FileMailQueue shard : shards) {
+            assertEquals(2, shard.getSize());
+        }
+
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 6; i++) {
+            MailQueueItem item = queue.deQueue();
+            names.add(item.getMail().getName());
+            item.done(true);
+        }
+        assertEquals(6, names.size());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testDequeueStealsFromOtherShards() throws Exception {
+        shards.get(2).enQueue(createMail("mail1"));
+        shards.get(2).enQueue(createMail("mail2"));
+
+        List<MailQueueItem> items = queue.deQueue(10, 1, TimeUnit.SECONDS);
+        assertEquals(2, items.size());
+        for (MailQueueItem item : items) {
+            item.done(true);
+        }
+
+        // a mail which gets ready on another shard while the consumer waits
+        new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    shards.get(1).enQueue(createMail("mail3"));
+                    shards.get(2).enQueue(createMail("mail4"));
+                } catch (Exception e) {
+                    log.error("Unable to enqueue", e);
+                }
+            }
+        }.start();
+        for (int i = 0; i < 2; i++) {
+            MailQueueItem item = queue.deQueue();
+            assertTrue(item.getMail().getName().startsWith("mail"));
+            item.done(true);
+        }
+        assertEquals(0, queue.getSize());
+        assertTrue(queue.deQueue(10, 100, TimeUnit.MILLISECONDS).isEmpty());
+    }
+
+    @Test
+    public void testHighestPriorityOfAllShardsFirst() throws Exception {
+        for (FileMailQueue shard : shards) {
+            shard.enQueue(createMail("low" + shards.indexOf(shard)));
+        }
+        MailImpl high = createMail("high");
+        high.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.HIGH_PRIORITY);
+        shards.get(1).enQueue(high);
+
+        // whichever shard is the home shard of this thread
+        MailQueueItem item = queue.deQueue();
+        assertEquals("high", item.getMail().getName());
+        item.done(true);
+        List<MailQueueItem> items = queue.deQueue(10, 1, TimeUnit.SECONDS);
+        assertEquals(3, items.size());
+        for (MailQueueItem i : items) {
+            assertTrue(i.getMail().getName().startsWith("low"));
+            i.done(true);
+        }
+    }
+
+    @Test
+    public void testInterruptedEnqueueIsNotDuplicated() throws Exception {
+        MailImpl mail = createMail("mail1");
+        Thread.currentThread().interrupt();
+        boolean enqueued;
+        try {
+            queue.enQueue(mail);
+            enqueued = true;
+        } catch (MailQueueException e) {
+            enqueued = false;
+        }
+        assertTrue(Thread.interrupted());
+        // the mail is either enqueued and reported so or not enqueued at all
+        assertEquals(enqueued ? 1 : 0, queue.getSize());
+    }
+}
@@ -19,11 +19,27 @@
 package org.apache.james.queue.jms;
 
 import com.google.common.io.Closeables;
+import org.apache.james.core.MailEnvelopeCodec;
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.queue.api.BatchMailQueue;
+import org.apache.james.queue.api.InstrumentedMailQueue;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
-import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.MailQueuePage;
+import org.apache.james.queue.api.MonitorableMailQueue;
+import org.apache.james.queue.api.PageableMailQueue;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.jms.JMSSessionPool.PooledSession;
+import org.apache.james.queue.library.CompositeMailQueueMetricsListener;
+import org.apache.james.queue.library.MailQueueStatistics;
+import org.apache.james.queue.library.MailQueueStatistics.KeyedItemView;
+import org.apache.james.queue.library.TimingWheel;
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
@@ -50,10 +66,14 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -66,26 +86,83 @@ import java.util.concurrent.TimeUnit;
  * It use {@link ObjectMessage} with a byte array as payload to store the
  * {@link Mail} objects.
  * </p>
+ * <p>
+ * The size and the statistics of the queue are maintained by this instance on
+ * enqueue and dequeue. Mails are tracked by the {@link #JAMES_QUEUE_KEY}
+ * property, which is unique for every enqueue, so a mail which is enqueued
+ * again under the same name is counted twice. The statistics get initialized
+ * by browsing the properties of the messages and are re-synced the same way
+ * once they are older than the statistics reload interval, so mails which are
+ * enqueued or dequeued by other instances sharing the broker are counted too.
+ * The mails themselves are not created for this.
+ * </p>
+ * <p>
+ * Filters for browsing and removing mails are translated to message selectors,
+ * so they are evaluated by the JMS provider.
+ * </p>
+ * <p>
+ * The time in queue which is reported to the {@link MailQueueMetricsListener}
+ * is measured from the {@link Message#getJMSTimestamp()}, a redelivery is
+ * detected by {@link Message#getJMSRedelivered()}.
+ * </p>
+ * <p>
+ * Failed mails are not rolled back to the JMS provider, but sent again with
+ * the delay of the {@link RedeliveryPolicy} in the same transaction. The count
+ * of failures is kept in the {@link #JAMES_REDELIVERY_COUNT} property. If the
+ * policy does not delay the mail it is rolled back as before. A mail which
+ * exhausted the policy is moved to the quarantine queue after its dequeue was
+ * committed, so a failed commit cannot leave a copy in both queues.
+ * </p>
  */
-public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
+public class JMSMailQueue implements MonitorableMailQueue, PageableMailQueue, BatchMailQueue, InstrumentedMailQueue, RedeliveryMailQueue, JMSSupport, MailPrioritySupport, Disposable {
 
     protected final String queueName;
     protected final ConnectionFactory connectionFactory;
     protected final Logger logger;
     public final static String FORCE_DELIVERY = "FORCE_DELIVERY";
+    private final static long RECEIVE_TIMEOUT = 10000;
+    private final static long STATISTICS_RELOAD_INTERVAL = 60000;
+    private final static String JMSX_DELIVERY_COUNT = "JMSXDeliveryCount";
+    private final static ExpirationListener IGNORE_EXPIRED = new ExpirationListener() {
+
+        @Override
+        public void expired(String key, long deadline) {
+            // the mail gets picked up by the message selector
+        }
+    };
+
+    private final TimingWheel delays = new TimingWheel();
+    protected final JMSSessionPool pool;
+    protected final MailQueueStatistics statistics = new MailQueueStatistics();
+    private final Object statisticsLock = new Object();
+    private volatile long statisticsLoaded;
+    private volatile long statisticsReloadInterval = STATISTICS_RELOAD_INTERVAL;
+    private volatile MailQueueMetricsListener metrics = new CompositeMailQueueMetricsListener();
+    private volatile RedeliveryPolicy redeliveryPolicy = RedeliveryPolicy.DEFAULT;
+    private volatile MailQueue quarantine;
 
     public JMSMailQueue(final ConnectionFactory connectionFactory, final String queueName, final Logger logger) {
         this.connectionFactory = connectionFactory;
         this.queueName = queueName;
         this.logger = logger;
+        this.pool = new JMSSessionPool(connectionFactory, queueName, logger);
+    }
+
+    /**
+     * Return the pool of sessions used by this queue
+     */
+    public JMSSessionPool getSessionPool() {
+        return pool;
     }
 
     /**
      * <p>
      * Dequeues a mail when it is ready to process. As JMS does not support delay scheduling out-of-the box,
      * we use a messageselector to check if a mail is ready. For this a
-     * {@link MessageConsumer#receive(long)} is used with a timeout of 10
-     * seconds.
+     * {@link MessageConsumer#receive(long)} is used with a timeout of at most 10
+     * seconds. The deadlines of the mails which were delayed by this instance are
+     * tracked in a {@link TimingWheel}, so the consumer gets recreated as soon as one
+     * of them is ready.
      * </p>
      * <p>
      * Many JMS implementations support better solutions for this, so this
@@ -94,103 +171,112 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      */
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
-        Message message;
-        MessageConsumer consumer = null;
-
-        while (true) {
-            try {
-                connection = connectionFactory.createConnection();
-                connection.start();
-
-                session = connection.createSession(true, Session.SESSION_TRANSACTED);
-                Queue queue = session.createQueue(queueName);
-                consumer = session.createConsumer(queue, getMessageSelector());
-
-                message = consumer.receive(10000);
+        long start = System.nanoTime();
+        PooledSession session = null;
+        try {
+            session = pool.borrow(true);
+            while (true) {
+                MessageConsumer consumer = session.getConsumer(getMessageSelector());
+                Message message = consumer.receive(getReceiveTimeout());
 
                 if (message != null) {
-                    return createMailQueueItem(connection, session, consumer, message);
-                } else {
-                    session.commit();
-
-                    if (consumer != null) {
-
-                        try {
-                            consumer.close();
-                        } catch (JMSException e1) {
-                            // ignore on rollback
-                        }
-                    }
-                    try {
-                        if (session != null)
-                            session.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
-
-                    try {
-                        if (connection != null)
-                            connection.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
-                }
-
-            } catch (Exception e) {
-                if (session != null) {
-                    try {
-                        session.rollback();
-                    } catch (JMSException e1) {
-                        // ignore on rollback
-                    }
-                }
-
-                if (consumer != null) {
-
-                    try {
-                        consumer.close();
-                    } catch (JMSException e1) {
-                        // ignore on rollback
-                    }
+                    MailQueueItem item = createMailQueueItem(session, message);
+                    dequeued(message, start);
+                    return new DequeuedMailQueueItem(item, session, message);
                 }
+            }
+        } catch (Exception e) {
+            if (session != null) {
                 try {
-                    if (session != null)
-                        session.close();
+                    session.getSession().rollback();
                 } catch (JMSException e1) {
-                    // ignore here
+                    // ignore on rollback
                 }
+                pool.invalidate(session);
+            }
+            throw new MailQueueException("Unable to dequeue next message", e);
+        }
+    }
 
+    /**
+     * Receive up to max messages, each in the transaction of its own pooled
+     * session. So every item is committed as soon as it is done and a failed
+     * commit is reported to the caller of its
+     * {@link MailQueueItem#done(boolean)}, a slow item does not hold back the
+     * others.
+     */
+    @Override
+    public List<MailQueueItem> deQueue(int max, long timeout, TimeUnit unit) throws MailQueueException {
+        long start = System.nanoTime();
+        List<MailQueueItem> items = new ArrayList<MailQueueItem>();
+        PooledSession session = null;
+        try {
+            session = pool.borrow(true);
+            long end = System.currentTimeMillis() + unit.toMillis(timeout);
+            Message message = null;
+            long wait;
+            while (message == null && (wait = end - System.currentTimeMillis()) > 0) {
+                message = session.getConsumer(getMessageSelector()).receive(Math.min(wait, getReceiveTimeout()));
+            }
+
+            while (message != null) {
+                MailQueueItem item = createMailQueueItem(session, message);
+                dequeued(message, start);
+                items.add(new DequeuedMailQueueItem(item, session, message));
+                session = null;
+                if (items.size() < max) {
+                    session = pool.borrow(true);
+                    message = session.getConsumer(getMessageSelector()).receiveNoWait();
+                } else {
+                    message = null;
+                }
+            }
+            if (session != null) {
+                pool.release(session);
+            }
+            return items;
+        } catch (Exception e) {
+            if (session != null) {
                 try {
-                    if (connection != null)
-                        connection.close();
+                    session.getSession().rollback();
                 } catch (JMSException e1) {
-                    // ignore here
+                    // ignore on rollback
                 }
-                throw new MailQueueException("Unable to dequeue next message", e);
+                pool.invalidate(session);
+            }
+            if (items.isEmpty()) {
+                throw new MailQueueException("Unable to dequeue next messages", e);
             }
+            // the received items are owned by the caller now
+            logger.info("Unable to dequeue more messages of queue " + queueName, e);
+            return items;
         }
+    }
 
+    /**
+     * Return the timeout to use when waiting for the next message. The message
+     * selector is only evaluated when the consumer gets created, so it needs to
+     * get recreated once a delayed mail becomes ready.
+     */
+    protected long getReceiveTimeout() {
+        long now = System.currentTimeMillis();
+        delays.expire(now, IGNORE_EXPIRED);
+        return Math.max(1, Math.min(RECEIVE_TIMEOUT, delays.nextExpiry() - now));
     }
 
     @Override
     public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
-
+        long start = System.nanoTime();
         long mydelay = 0;
 
         if (delay > 0) {
             mydelay = TimeUnit.MILLISECONDS.convert(delay, unit);
         }
 
+        PooledSession session = null;
+        String key = null;
+        boolean added = false;
         try {
-
-            connection = connectionFactory.createConnection();
-            connection.start();
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-
             int msgPrio = NORMAL_PRIORITY;
             Object prio = mail.getAttribute(MAIL_PRIORITY);
             if (prio instanceof Integer) {
@@ -198,33 +284,30 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             }
 
             Map<String, Object> props = getJMSProperties(mail, mydelay);
+            key = (String) props.get(JAMES_QUEUE_KEY);
+
+            // add it before the mail can get dequeued
+            statistics.add(key, (Long) props.get(JAMES_MAIL_MESSAGE_SIZE), System.currentTimeMillis(), (Long) props.get(JAMES_NEXT_DELIVERY));
+            added = true;
 
+            session = pool.borrow(false);
             produceMail(session, props, msgPrio, mail);
+            pool.release(session);
+            session = null;
 
-        } catch (Exception e) {
-            if (session != null) {
-                try {
-                    session.rollback();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
+            if (mydelay > 0 && isDelayedBySelector()) {
+                delays.schedule(key, (Long) props.get(JAMES_NEXT_DELIVERY));
             }
-            throw new MailQueueException("Unable to enqueue mail " + mail, e);
+            metrics.enqueued(queueName, System.nanoTime() - start);
 
-        } finally {
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e) {
-                // ignore here
+        } catch (Exception e) {
+            if (added) {
+                statistics.remove(key);
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e) {
-                // ignore here
+            if (session != null) {
+                pool.invalidate(session);
             }
+            throw new MailQueueException("Unable to enqueue mail " + mail, e);
         }
     }
 
@@ -236,45 +319,28 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     /**
      * Produce the mail to the JMS Queue
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
+    protected void produceMail(PooledSession session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+        ObjectMessage message = session.getSession().createObjectMessage();
 
-        try {
-            Queue queue = session.createQueue(queueName);
-
-            producer = session.createProducer(queue);
-            ObjectMessage message = session.createObjectMessage();
-
-            for (Map.Entry<String, Object> entry : props.entrySet()) {
-                message.setObjectProperty(entry.getKey(), entry.getValue());
-            }
-
-            long size = mail.getMessageSize();
-            ByteArrayOutputStream out;
-            if (size > -1) {
-                out = new ByteArrayOutputStream((int) size);
-            } else {
-                out = new ByteArrayOutputStream();
-            }
-            mail.getMessage().writeTo(out);
-
-            // store the byte array in a ObjectMessage so we can use a
-            // SharedByteArrayInputStream later
-            // without the need of copy the day
-            message.setObject(out.toByteArray());
-
-            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
-
-        } finally {
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            message.setObjectProperty(entry.getKey(), entry.getValue());
+        }
 
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
+        long size = mail.getMessageSize();
+        ByteArrayOutputStream out;
+        if (size > -1) {
+            out = new ByteArrayOutputStream((int) size);
+        } else {
+            out = new ByteArrayOutputStream();
         }
+        mail.getMessage().writeTo(out);
 
+        // store the byte array in a ObjectMessage so we can use a
+        // SharedByteArrayInputStream later
+        // without the need of copy the day
+        message.setObject(out.toByteArray());
+
+        session.getProducer().send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
     }
 
     /**
@@ -298,18 +364,27 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         props.put(JAMES_MAIL_LAST_UPDATED, mail.getLastUpdated().getTime());
         props.put(JAMES_MAIL_MESSAGE_SIZE, mail.getMessageSize());
         props.put(JAMES_MAIL_NAME, mail.getName());
+        props.put(JAMES_QUEUE_KEY, mail.getName() + "-" + UUID.randomUUID());
 
         StringBuilder recipientsBuilder = new StringBuilder();
+        Set<String> domains = new LinkedHashSet<String>();
 
         Iterator<MailAddress> recipients = mail.getRecipients().iterator();
         while (recipients.hasNext()) {
-            String recipient = recipients.next().toString();
-            recipientsBuilder.append(recipient.trim());
+            MailAddress address = recipients.next();
+            recipientsBuilder.append(address.toString().trim());
             if (recipients.hasNext()) {
                 recipientsBuilder.append(JAMES_MAIL_SEPARATOR);
             }
+            domains.add(address.getDomain().toLowerCase(Locale.US));
         }
         props.put(JAMES_MAIL_RECIPIENTS, recipientsBuilder.toString());
+
+        StringBuilder domainsBuilder = new StringBuilder(JAMES_MAIL_SEPARATOR);
+        for (String domain : domains) {
+            domainsBuilder.append(domain).append(JAMES_MAIL_SEPARATOR);
+        }
+        props.put(JAMES_MAIL_RECIPIENT_DOMAINS, domainsBuilder.toString());
         props.put(JAMES_MAIL_REMOTEADDR, mail.getRemoteAddr());
         props.put(JAMES_MAIL_REMOTEHOST, mail.getRemoteHost());
 
@@ -394,8 +469,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         while (recipientTokenizer.hasMoreTokens()) {
             String token = recipientTokenizer.nextToken();
             try {
-                MailAddress rcpt = new MailAddress(token);
-                rcpts.add(rcpt);
+                rcpts.add(MailEnvelopeCodec.toMailAddress(token));
             } catch (AddressException e) {
                 // Should never happen as long as the user does not modify the
                 // the header by himself
@@ -430,7 +504,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             mail.setSender(null);
         } else {
             try {
-                mail.setSender(new MailAddress(sender));
+                mail.setSender(MailEnvelopeCodec.toMailAddress(sender));
             } catch (AddressException e) {
                 // Should never happen as long as the user does not modify the
                 // the header by himself
@@ -464,72 +538,332 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
     /**
      * Create a {@link org.apache.james.queue.api.MailQueue.MailQueueItem} for the given parameters
      *
-     * @param connection
      * @param session
-     * @param consumer
      * @param message
      * @return item
      * @throws JMSException
      * @throws MessagingException
      */
-    protected MailQueueItem createMailQueueItem(Connection connection, Session session, MessageConsumer consumer, Message message) throws JMSException, MessagingException {
+    protected MailQueueItem createMailQueueItem(PooledSession session, Message message) throws JMSException, MessagingException {
         final Mail mail = createMail(message);
-        return new JMSMailQueueItem(mail, connection, session, consumer);
+        return new JMSMailQueueItem(mail, pool, session, statistics, getKey(message));
     }
 
-    protected String getMessageSelector() {
-        return JAMES_NEXT_DELIVERY + " <= " + System.currentTimeMillis() + " OR " + FORCE_DELIVERY + " = true";
+    @Override
+    public void setMetricsListener(MailQueueMetricsListener listener) {
+        this.metrics = listener;
+    }
+
+    /**
+     * Report the dequeue of the given message
+     *
+     * @param message
+     * @param start
+     *            the time in nanoseconds the consumer started to wait
+     */
+    void dequeued(Message message, long start) throws JMSException {
+        metrics.dequeued(queueName, System.nanoTime() - start, message.getJMSRedelivered() || getFailures(message) > 0);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public long getSize() throws MailQueueException {
-        Connection connection = null;
-        Session session = null;
-        QueueBrowser browser = null;
-        int size = 0;
-        try {
-            connection = connectionFactory.createConnection();
-            connection.start();
-            session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-            Queue queue = session.createQueue(queueName);
+    public void setRedeliveryPolicy(RedeliveryPolicy policy) {
+        this.redeliveryPolicy = policy;
+    }
 
-            browser = session.createBrowser(queue);
+    @Override
+    public void setQuarantine(MailQueue quarantine) {
+        this.quarantine = quarantine;
+    }
 
-            Enumeration<Message> messages = browser.getEnumeration();
+    /**
+     * Return how often the processing of the given message failed before. This
+     * includes the rollbacks if the provider supports the
+     * <code>JMSXDeliveryCount</code> property.
+     */
+    private static int getFailures(Message message) throws JMSException {
+        int failures = message.propertyExists(JAMES_REDELIVERY_COUNT) ? message.getIntProperty(JAMES_REDELIVERY_COUNT) : 0;
+        if (message.propertyExists(JMSX_DELIVERY_COUNT)) {
+            failures += Math.max(0, message.getIntProperty(JMSX_DELIVERY_COUNT) - 1);
+        }
+        return failures;
+    }
 
-            while (messages.hasMoreElements()) {
-                messages.nextElement();
-                size++;
-            }
-            return size;
-        } catch (Exception e) {
-            logger.error("Unable to get size of queue " + queueName, e);
-            throw new MailQueueException("Unable to get size of queue " + queueName, e);
-        } finally {
+    /**
+     * Return <code>true</code> if the given failed message should just get
+     * rolled back, as the {@link RedeliveryPolicy} neither delays nor
+     * quarantines it
+     */
+    boolean isRolledBack(Message message) throws JMSException {
+        int failures = getFailures(message) + 1;
+        return redeliveryPolicy.getDelay(failures) == 0 && !(quarantine != null && redeliveryPolicy.isExhausted(failures));
+    }
+
+    /**
+     * Send the given failed message again within the transaction of the
+     * session, delayed according to the {@link RedeliveryPolicy}. If the mail
+     * failed too often nothing is sent, it gets moved to the quarantine queue
+     * once the transaction was committed, see
+     * {@link #redelivered(Mail, Message, Message)}.
+     *
+     * @param session
+     * @param message
+     * @return copy the message which was sent or <code>null</code> if the
+     *         mail gets moved to quarantine
+     * @throws JMSException
+     */
+    Message redeliver(PooledSession session, Message message) throws JMSException {
+        int failures = getFailures(message) + 1;
+        if (quarantine != null && redeliveryPolicy.isExhausted(failures)) {
+            return null;
+        }
+        Message copy = copy(session.getSession(), message);
+        copy.setIntProperty(JAMES_REDELIVERY_COUNT, failures);
+        long delay = redeliveryPolicy.getDelay(failures);
+        if (delay > 0) {
+            delay(copy, delay);
+        }
+        session.getProducer().send(copy, message.getJMSDeliveryMode(), message.getJMSPriority(), Message.DEFAULT_TIME_TO_LIVE);
+        return copy;
+    }
+
+    /**
+     * Delay the delivery of the given copy of a message which gets sent again
+     *
+     * @param copy
+     * @param delay
+     *            the delay in milliseconds
+     * @throws JMSException
+     */
+    protected void delay(Message copy, long delay) throws JMSException {
+        copy.setLongProperty(JAMES_NEXT_DELIVERY, System.currentTimeMillis() + delay);
+    }
+
+    /**
+     * Callback which gets called after the transaction which redelivered a
+     * failed message was committed, see
+     * {@link #redeliver(PooledSession, Message)}. A mail which failed too
+     * often is moved to the quarantine queue here. If this fails it is
+     * enqueued to this queue again with the delay of the
+     * {@link RedeliveryPolicy}, as its message is gone already.
+     *
+     * @param mail
+     * @param message
+     * @param copy
+     *            the copy which was sent or <code>null</code> if the mail gets
+     *            moved to quarantine
+     */
+    void redelivered(Mail mail, Message message, Message copy) throws JMSException, MailQueueException {
+        if (copy == null) {
+            int failures = getFailures(message) + 1;
+            statistics.remove(getKey(message));
             try {
-                if (browser != null)
-                    browser.close();
-            } catch (JMSException e1) {
-                // ignore here
+                mail.setAttribute(REDELIVERY_COUNT, failures);
+                quarantine.enQueue(mail);
+                logger.warn("Moved mail " + mail.getName() + " of queue " + queueName + " to quarantine after " + failures + " failures");
+                metrics.quarantined(queueName, failures);
+            } catch (MailQueueException e) {
+                logger.error("Unable to move mail " + mail.getName() + " of queue " + queueName + " to quarantine, enqueuing it again", e);
+                mail.removeAttribute(REDELIVERY_COUNT);
+                enQueue(mail, redeliveryPolicy.getDelay(failures), TimeUnit.MILLISECONDS);
             }
+            committed(mail, message);
+        } else {
+            long nextDelivery = copy.getLongProperty(JAMES_NEXT_DELIVERY);
+            String key = getKey(copy);
+            statistics.add(key, copy.getLongProperty(JAMES_MAIL_MESSAGE_SIZE), message.getJMSTimestamp(), nextDelivery);
+            if (nextDelivery > System.currentTimeMillis() && isDelayedBySelector()) {
+                delays.schedule(key, nextDelivery);
+            }
+        }
+    }
 
+    /**
+     * Report that the processing of the given dequeued message is done
+     *
+     * @param message
+     * @param success
+     */
+    void done(Message message, boolean success) {
+        long timeInQueue = 0;
+        try {
+            long timestamp = message.getJMSTimestamp();
+            if (timestamp > 0) {
+                timeInQueue = TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - timestamp));
+            }
+        } catch (JMSException e) {
+            // the provider may not set timestamps
+        }
+        metrics.done(queueName, timeInQueue, success);
+    }
+
+    /**
+     * {@link MailQueueItem} which redelivers the message if the wrapped item
+     * failed and reports to the {@link MailQueueMetricsListener} once it is
+     * done
+     */
+    private final class DequeuedMailQueueItem implements MailQueueItem {
+
+        private final MailQueueItem item;
+        private final PooledSession session;
+        private final Message message;
+
+        private DequeuedMailQueueItem(MailQueueItem item, PooledSession session, Message message) {
+            this.item = item;
+            this.session = session;
+            this.message = message;
+        }
+
+        @Override
+        public Mail getMail() {
+            return item.getMail();
+        }
+
+        @Override
+        public void done(boolean success) throws MailQueueException {
             try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e1) {
-                // ignore here
+                if (success || isRolledBack()) {
+                    item.done(success);
+                    return;
+                }
+                Message copy;
+                try {
+                    copy = redeliver(session, message);
+                    session.getSession().commit();
+                } catch (JMSException e) {
+                    // leave it to the JMS provider
+                    logger.info("Unable to redeliver mail " + item.getMail().getName() + ", rolling back", e);
+                    try {
+                        session.getSession().rollback();
+                    } catch (JMSException e1) {
+                        // ignore on rollback
+                    }
+                    pool.invalidate(session);
+                    return;
+                }
+                pool.release(session);
+                try {
+                    redelivered(item.getMail(), message, copy);
+                } catch (JMSException e) {
+                    // the redelivery is committed, only the statistics miss it
+                    logger.info("Unable to track redelivered mail " + item.getMail().getName(), e);
+                }
+            } finally {
+                JMSMailQueue.this.done(message, success);
             }
+        }
 
+        private boolean isRolledBack() {
             try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
+                return JMSMailQueue.this.isRolledBack(message);
+            } catch (JMSException e) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Callback which gets called after a {@link Mail} was moved to quarantine
+     * and its dequeue was committed
+     *
+     * @param mail
+     * @param message
+     */
+    protected void committed(Mail mail, Message message) {
+    }
+
+    /**
+     * Return <code>true</code> if delayed mails are held back by the message
+     * selector of the consumers. Implementations which let the broker hold
+     * back delayed mails until they are due should return <code>false</code>,
+     * so the consumers don't use a selector at all.
+     *
+     * @return delayedBySelector
+     */
+    protected boolean isDelayedBySelector() {
+        return true;
+    }
+
+    protected String getMessageSelector() {
+        if (!isDelayedBySelector()) {
+            return null;
+        }
+        return JAMES_NEXT_DELIVERY + " <= " + System.currentTimeMillis() + " OR " + FORCE_DELIVERY + " = true";
+    }
+
+    @Override
+    public long getSize() throws MailQueueException {
+        loadStatistics();
+        return statistics.getSize();
+    }
+
+    @Override
+    public long getReadyCount() throws MailQueueException {
+        return Math.max(0, getSize() - getDeferredCount());
+    }
+
+    @Override
+    public long getDeferredCount() throws MailQueueException {
+        loadStatistics();
+        return statistics.getDeferredCount();
+    }
+
+    @Override
+    public long getTotalBytes() throws MailQueueException {
+        loadStatistics();
+        return statistics.getTotalBytes();
+    }
+
+    @Override
+    public long getOldestAge() throws MailQueueException {
+        loadStatistics();
+        return statistics.getOldestAge();
+    }
+
+    /**
+     * Set the interval in milliseconds after which the statistics get re-synced
+     * by browsing the properties of the messages. The default is 60 seconds.
+     *
+     * @param statisticsReloadInterval
+     */
+    public void setStatisticsReloadInterval(long statisticsReloadInterval) {
+        this.statisticsReloadInterval = statisticsReloadInterval;
+    }
+
+    /**
+     * Initialize the statistics by browsing the properties of the messages, if
+     * not done yet or if they are older than the statistics reload interval
+     *
+     * @throws MailQueueException
+     */
+    protected void loadStatistics() throws MailQueueException {
+        if (System.currentTimeMillis() - statisticsLoaded >= statisticsReloadInterval) {
+            synchronized (statisticsLock) {
+                long now = System.currentTimeMillis();
+                if (now - statisticsLoaded >= statisticsReloadInterval) {
+                    statistics.load(browseStatistics());
+                    statisticsLoaded = now;
+                }
             }
         }
     }
 
+    /**
+     * Return the key of the given message in the statistics. Messages which
+     * were enqueued before the {@link #JAMES_QUEUE_KEY} property was introduced
+     * are keyed by their JMS message id.
+     *
+     * @param message
+     * @return key
+     * @throws JMSException
+     */
+    protected static String getKey(Message message) throws JMSException {
+        String key = message.getStringProperty(JAMES_QUEUE_KEY);
+        if (key == null) {
+            key = message.getJMSMessageID();
+        }
+        return key;
+    }
+
     @Override
     public long flush() throws MailQueueException {
         Connection connection = null;
@@ -540,8 +874,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         boolean first = true;
         long count = 0;
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
+            connection = pool.getConnection();
 
             session = connection.createSession(true, Session.SESSION_TRANSACTED);
             Queue queue = session.createQueue(queueName);
@@ -565,6 +898,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
             session.commit();
+            statistics.flush();
             return count;
         } catch (Exception e) {
             logger.error("Unable to flush mail", e);
@@ -598,13 +932,6 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             } catch (JMSException e1) {
                 // ignore here
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
         }
     }
 
@@ -636,8 +963,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         List<Message> messages = new ArrayList<Message>();
 
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
+            connection = pool.getConnection();
 
             session = connection.createSession(true, Session.SESSION_TRANSACTED);
             Queue queue = session.createQueue(queueName);
@@ -655,6 +981,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                 }
             }
             session.commit();
+            for (Message m : messages) {
+                statistics.remove(getKey(m));
+            }
             return messages;
         } catch (Exception e) {
             try {
@@ -680,19 +1009,13 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             } catch (JMSException e1) {
                 // ignore here
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
         }
     }
 
     /**
      * Create a copy of the given {@link Message}. This includes the properties
-     * and the payload
+     * and the payload. The copy keeps the key of the message in the
+     * statistics, see {@link #getKey(Message)}
      *
      * @param session
      * @param m
@@ -709,42 +1032,129 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             String name = properties.nextElement();
             copy.setObjectProperty(name, message.getObjectProperty(name));
         }
+        copy.setStringProperty(JAMES_QUEUE_KEY, getKey(message));
 
         return copy;
     }
 
     @Override
     public long remove(Type type, String value) throws MailQueueException {
-        switch (type) {
-            case Name:
-                return count(removeWithSelector(JAMES_MAIL_NAME + " = '" + value + "'"));
-            case Sender:
-                return count(removeWithSelector(JAMES_MAIL_SENDER + " = '" + value + "'"));
-            case Recipient:
-                return count(removeWithSelector(JAMES_MAIL_RECIPIENTS + " = '" + value + "' or " + JAMES_MAIL_RECIPIENTS + " = '%," + value + "' or " + JAMES_MAIL_RECIPIENTS + " = '%," + value + "%'"));
-            default:
-                break;
+        return remove(new MailQueueFilter(type, value));
+    }
+
+    @Override
+    public long remove(MailQueueFilter filter) throws MailQueueException {
+        return count(removeWithSelector(getMessageSelector(filter)));
+    }
+
+    /**
+     * Browse the mails which match the given filter, the cursor is the count
+     * of mails returned by the previous pages
+     */
+    @Override
+    public MailQueuePage browse(MailQueueFilter filter, String cursor, int pageSize) throws MailQueueException {
+        try {
+            return MailQueuePage.create(browse(getMessageSelector(filter)), MailQueueFilter.ALL, cursor, pageSize);
+        } catch (IllegalArgumentException e) {
+            throw new MailQueueException("Unable to browse queue " + queueName, e);
+        }
+    }
+
+    /**
+     * Return the message selector for the given filter or <code>null</code> if
+     * the filter matches every mail
+     *
+     * @param filter
+     * @return selector
+     */
+    protected String getMessageSelector(MailQueueFilter filter) {
+        if (filter.isEmpty()) {
+            return null;
+        }
+        StringBuilder selector = new StringBuilder();
+        for (Map.Entry<Type, String> criterion : filter.getCriteria().entrySet()) {
+            if (selector.length() > 0) {
+                selector.append(" AND ");
+            }
+            String value = criterion.getValue();
+            switch (criterion.getKey()) {
+                case Name:
+                    selector.append(JAMES_MAIL_NAME).append(" = ").append(quote(value));
+                    break;
+                case Sender:
+                    selector.append(JAMES_MAIL_SENDER).append(" = ").append(quote(value));
+                    break;
+                case Recipient:
+                    // the recipients are stored as a list separated by JAMES_MAIL_SEPARATOR
+                    String like = escapeLike(value);
+                    selector.append("(").append(JAMES_MAIL_RECIPIENTS).append(" = ").append(quote(value));
+                    selector.append(" OR ").append(JAMES_MAIL_RECIPIENTS).append(" LIKE ").append(quote(like + JAMES_MAIL_SEPARATOR + "%")).append(" ESCAPE '\\'");
+                    selector.append(" OR ").append(JAMES_MAIL_RECIPIENTS).append(" LIKE ").append(quote("%" + JAMES_MAIL_SEPARATOR + like)).append(" ESCAPE '\\'");
+                    selector.append(" OR ").append(JAMES_MAIL_RECIPIENTS).append(" LIKE ").append(quote("%" + JAMES_MAIL_SEPARATOR + like + JAMES_MAIL_SEPARATOR + "%")).append(" ESCAPE '\\')");
+                    break;
+                case RecipientDomain:
+                    // the domains are stored lower-cased and enclosed by JAMES_MAIL_SEPARATOR
+                    String domain = escapeLike(value.toLowerCase(Locale.US));
+                    selector.append(JAMES_MAIL_RECIPIENT_DOMAINS).append(" LIKE ").append(quote("%" + JAMES_MAIL_SEPARATOR + domain + JAMES_MAIL_SEPARATOR + "%")).append(" ESCAPE '\\'");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported filter " + criterion.getKey());
+            }
         }
-        return -1;
+        return selector.toString();
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     public MailQueueIterator browse() throws MailQueueException {
-        Connection connection = null;
+        return browse((String) null);
+    }
+
+    /**
+     * Browse the mails which match the given message selector
+     *
+     * @param selector
+     *            the selector or <code>null</code> to browse all mails
+     * @return iterator
+     * @throws MailQueueException
+     */
+    protected MailQueueIterator browse(String selector) throws MailQueueException {
+        return browse(selector, true);
+    }
+
+    /**
+     * Browse the messages of the queue to load the statistics. Only the
+     * properties of the messages are read, the returned views don't carry a
+     * mail.
+     *
+     * @return iterator
+     * @throws MailQueueException
+     */
+    protected MailQueueIterator browseStatistics() throws MailQueueException {
+        return browse(null, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private MailQueueIterator browse(String selector, final boolean withMail) throws MailQueueException {
+        Connection connection;
         Session session = null;
         QueueBrowser browser = null;
         try {
-            connection = connectionFactory.createConnection();
-            connection.start();
+            connection = pool.getConnection();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
             Queue queue = session.createQueue(queueName);
 
-            browser = session.createBrowser(queue);
+            browser = session.createBrowser(queue, selector);
 
             final Enumeration<Message> messages = browser.getEnumeration();
 
-            final Connection myConnection = connection;
             final Session mySession = session;
             final QueueBrowser myBrowser = browser;
 
@@ -760,20 +1170,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                     while (hasNext()) {
                         try {
                             Message m = messages.nextElement();
-                            final Mail mail = createMail(m);
-                            final long nextDelivery = m.getLongProperty(JAMES_NEXT_DELIVERY);
-                            return new MailQueueItemView() {
-
-                                @Override
-                                public long getNextDelivery() {
-                                    return nextDelivery;
-                                }
-
-                                @Override
-                                public Mail getMail() {
-                                    return mail;
-                                }
-                            };
+                            return withMail ? createMailQueueItemView(m) : createStatisticsView(m);
                         } catch (MessagingException e) {
                             logger.error("Unable to browse queue", e);
                         } catch (JMSException e) {
@@ -805,13 +1202,6 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
                     } catch (JMSException e1) {
                         // ignore here
                     }
-
-                    try {
-                        if (myConnection != null)
-                            myConnection.close();
-                    } catch (JMSException e1) {
-                        // ignore here
-                    }
                 }
             };
 
@@ -830,16 +1220,83 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             } catch (JMSException e1) {
                 // ignore here
             }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e1) {
-                // ignore here
-            }
             logger.error("Unable to browse queue " + queueName, e);
             throw new MailQueueException("Unable to browse queue " + queueName, e);
         }
     }
 
+    /**
+     * Create a view of the given browsed message, which carries the key of the
+     * mail in the statistics
+     *
+     * @param m
+     * @return view
+     * @throws MessagingException
+     * @throws JMSException
+     */
+    protected KeyedItemView createMailQueueItemView(Message m) throws MessagingException, JMSException {
+        return new MessageView(m, createMail(m));
+    }
+
+    /**
+     * Create a view of the given browsed message from its properties only, the
+     * view does not carry a mail
+     *
+     * @param m
+     * @return view
+     * @throws JMSException
+     */
+    protected KeyedItemView createStatisticsView(Message m) throws JMSException {
+        return new MessageView(m, null);
+    }
+
+    private final static class MessageView implements KeyedItemView {
+        private final String key;
+        private final long size;
+        private final long arrival;
+        private final long nextDelivery;
+        private final Mail mail;
+
+        private MessageView(Message m, Mail mail) throws JMSException {
+            Object size = m.getObjectProperty(JAMES_MAIL_MESSAGE_SIZE);
+            this.key = JMSMailQueue.getKey(m);
+            this.size = size instanceof Long ? (Long) size : 0;
+            this.arrival = m.getJMSTimestamp();
+            this.nextDelivery = m.getLongProperty(JAMES_NEXT_DELIVERY);
+            this.mail = mail;
+        }
+
+        @Override
+        public long getNextDelivery() {
+            return nextDelivery;
+        }
+
+        @Override
+        public Mail getMail() {
+            if (mail == null) {
+                throw new UnsupportedOperationException("Only the properties of the message were browsed");
+            }
+            return mail;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public long getMessageSize() {
+            return size;
+        }
+
+        @Override
+        public long getArrival() {
+            return arrival;
+        }
+    }
+
+    @Override
+    public void dispose() {
+        pool.dispose();
+    }
 }
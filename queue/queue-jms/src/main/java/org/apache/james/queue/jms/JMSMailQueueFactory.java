@@ -33,6 +33,8 @@ import org.apache.james.queue.library.AbstractMailQueueFactory;
 public class JMSMailQueueFactory extends AbstractMailQueueFactory {
 
     protected ConnectionFactory connectionFactory;
+    private int maxIdleSessions = JMSSessionPool.DEFAULT_MAX_IDLE;
+    private long sessionIdleTimeout = JMSSessionPool.DEFAULT_IDLE_TIMEOUT;
 
     @Inject
     @Resource(name = "jmsConnectionFactory")
@@ -40,9 +42,58 @@ public class JMSMailQueueFactory extends AbstractMailQueueFactory {
         this.connectionFactory = connectionFactory;
     }
 
+    /**
+     * Set the maximal number of idle sessions of each kind which the
+     * {@link JMSSessionPool} of a queue keeps. It should match the number of
+     * threads which use the queue concurrently, like the spooler threads plus
+     * the threads which enqueue mails.
+     * <p/>
+     * The default is 10
+     * 
+     * @param maxIdleSessions
+     */
+    public void setMaxIdleSessions(int maxIdleSessions) {
+        this.maxIdleSessions = maxIdleSessions;
+    }
+
+    /**
+     * Set the milliseconds after which an idle session of a queue gets closed.
+     * <p/>
+     * The default is 1 minute
+     * 
+     * @param sessionIdleTimeout
+     */
+    public void setSessionIdleTimeout(long sessionIdleTimeout) {
+        this.sessionIdleTimeout = sessionIdleTimeout;
+    }
+
     @Override
     protected MailQueue createMailQueue(String name) {
-        return new JMSMailQueue(connectionFactory, name, log);
+        return configure(new JMSMailQueue(connectionFactory, name, log));
+    }
+
+    /**
+     * Apply the configuration of the {@link JMSSessionPool} to the given queue
+     * 
+     * @param queue
+     * @return queue
+     */
+    protected <Q extends JMSMailQueue> Q configure(Q queue) {
+        JMSSessionPool pool = queue.getSessionPool();
+        pool.setMaxIdle(maxIdleSessions);
+        pool.setIdleTimeout(sessionIdleTimeout);
+        return queue;
+    }
+
+    /**
+     * Register the statistics of the {@link JMSSessionPool} of the queue too
+     */
+    @Override
+    protected synchronized void registerMBean(String queuename, MailQueue queue) {
+        super.registerMBean(queuename, queue);
+        if (queue instanceof JMSMailQueue) {
+            registerMBean("org.apache.james:type=component,name=queuesessionpool,queue=" + queuename, ((JMSMailQueue) queue).getSessionPool());
+        }
     }
     
 }
@@ -19,13 +19,12 @@
 
 package org.apache.james.queue.jms;
 
-import javax.jms.Connection;
 import javax.jms.JMSException;
-import javax.jms.MessageConsumer;
-import javax.jms.Session;
 
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.jms.JMSSessionPool.PooledSession;
+import org.apache.james.queue.library.MailQueueStatistics;
 import org.apache.mailet.Mail;
 
 /**
@@ -34,53 +33,45 @@ import org.apache.mailet.Mail;
 public class JMSMailQueueItem implements MailQueueItem {
 
     protected final Mail mail;
-    protected final Connection connection;
-    protected final Session session;
-    protected final MessageConsumer consumer;
+    protected final JMSSessionPool pool;
+    protected final PooledSession session;
+    private final MailQueueStatistics statistics;
+    private final String key;
 
-    public JMSMailQueueItem(Mail mail, Connection connection, Session session, MessageConsumer consumer) {
+    public JMSMailQueueItem(Mail mail, JMSSessionPool pool, PooledSession session) {
+        this(mail, pool, session, null, null);
+    }
+
+    /**
+     * Create an item which removes the mail with the given key from the given
+     * statistics once the dequeue was committed
+     */
+    public JMSMailQueueItem(Mail mail, JMSSessionPool pool, PooledSession session, MailQueueStatistics statistics, String key) {
         this.mail = mail;
-        this.connection = connection;
+        this.pool = pool;
         this.session = session;
-        this.consumer = consumer;
+        this.statistics = statistics;
+        this.key = key;
     }
 
     @Override
     public void done(boolean success) throws MailQueueException {
         try {
             if (success) {
-                session.commit();
-            } else {
-                try {
-                    session.rollback();
-                } catch (JMSException e1) {
-                    // ignore on rollback
+                session.getSession().commit();
+                if (statistics != null) {
+                    statistics.remove(key);
                 }
+            } else {
+                session.getSession().rollback();
             }
+            pool.release(session);
         } catch (JMSException ex) {
-            throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
-        } finally {
-            if (consumer != null) {
-
-                try {
-                    consumer.close();
-                } catch (JMSException e1) {
-                    // ignore on rollback
-                }
-            }
-            try {
-                if (session != null)
-                    session.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
-
-            try {
-                if (connection != null)
-                    connection.close();
-            } catch (JMSException e) {
-                // ignore here
+            pool.invalidate(session);
+            if (success) {
+                throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
             }
+            // ignore on rollback
         }
     }
 
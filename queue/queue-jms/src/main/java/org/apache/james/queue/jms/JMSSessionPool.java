@@ -0,0 +1,519 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.apache.james.lifecycle.api.Disposable;
+import org.slf4j.Logger;
+
+/**
+ * Pool of long-lived JMS {@link Session}'s which all share one
+ * {@link Connection} and are bound to one queue.
+ * <p/>
+ * Each {@link PooledSession} caches its {@link MessageProducer}. A
+ * {@link MessageConsumer} is only kept while the session is borrowed, as an
+ * idle consumer could hold prefetched messages back from the other consumers.
+ * <p/>
+ * Idle sessions are validated before they are handed out and by a periodic
+ * health check, which also evicts sessions that were idle for too long. If the
+ * {@link Connection} fails, all sessions created by it are dropped and a new
+ * {@link Connection} is created on the next borrow. The {@link Connection} is
+ * created and closed outside of the monitor of the pool, so a slow broker does
+ * not block the sessions which are handed out already.
+ * <p/>
+ * The max idle sessions should match the number of threads which use the
+ * queue concurrently, otherwise the sessions above it get closed and created
+ * again on every borrow.
+ */
+public class JMSSessionPool implements JMSSessionPoolMBean, Disposable {
+
+    public final static int DEFAULT_MAX_IDLE = 10;
+    public final static long DEFAULT_IDLE_TIMEOUT = 60000;
+    private final static long HEALTH_CHECK_INTERVAL = 30000;
+
+    private final ConnectionFactory connectionFactory;
+    private final String queueName;
+    private final Logger logger;
+    private volatile int maxIdle;
+    private volatile long idleTimeout;
+
+    private final LinkedBlockingDeque<PooledSession> idleSessions = new LinkedBlockingDeque<PooledSession>();
+    private final LinkedBlockingDeque<PooledSession> idleTransactedSessions = new LinkedBlockingDeque<PooledSession>();
+    private final ScheduledExecutorService healthChecker;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong connectionFailures = new AtomicLong();
+
+    private final Object connectLock = new Object();
+    private Connection connection;
+    private volatile long generation;
+    private volatile boolean disposed;
+
+    public JMSSessionPool(ConnectionFactory connectionFactory, String queueName, Logger logger) {
+        this(connectionFactory, queueName, DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT, logger);
+    }
+
+    /**
+     * @param connectionFactory
+     * @param queueName
+     * @param maxIdle
+     *            the maximal number of idle sessions of each kind which are kept
+     * @param idleTimeout
+     *            the milliseconds after which an idle session gets closed
+     * @param logger
+     */
+    public JMSSessionPool(ConnectionFactory connectionFactory, final String queueName, int maxIdle, long idleTimeout, Logger logger) {
+        this.connectionFactory = connectionFactory;
+        this.queueName = queueName;
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+        this.logger = logger;
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "JMSSessionPool-" + queueName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, HEALTH_CHECK_INTERVAL, HEALTH_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Set the maximal number of idle sessions of each kind which are kept
+     * 
+     * @param maxIdle
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    @Override
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Set the milliseconds after which an idle session gets closed
+     * 
+     * @param idleTimeout
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    @Override
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Borrow a session. It must be given back via
+     * {@link #release(PooledSession)} or, if it failed,
+     * {@link #invalidate(PooledSession)}.
+     *
+     * @param transacted
+     *            <code>true</code> for a {@link Session#SESSION_TRANSACTED}
+     *            session, <code>false</code> for an
+     *            {@link Session#AUTO_ACKNOWLEDGE} session
+     */
+    public PooledSession borrow(boolean transacted) throws JMSException {
+        if (disposed) {
+            throw new JMSException("Session pool of queue " + queueName + " is disposed");
+        }
+        LinkedBlockingDeque<PooledSession> idle = getIdle(transacted);
+        PooledSession session;
+        while ((session = idle.pollFirst()) != null) {
+            if (isCurrent(session) && session.isValid()) {
+                break;
+            }
+            destroy(session);
+        }
+        if (session == null) {
+            session = create(transacted);
+        }
+        active.incrementAndGet();
+        borrowed.incrementAndGet();
+        return session;
+    }
+
+    /**
+     * Give the session back to the pool
+     */
+    public void release(PooledSession session) {
+        active.decrementAndGet();
+        session.closeConsumer();
+        LinkedBlockingDeque<PooledSession> idle = getIdle(session.isTransacted());
+        if (disposed || !isCurrent(session) || idle.size() >= maxIdle) {
+            destroy(session);
+        } else {
+            session.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(session);
+        }
+    }
+
+    /**
+     * Give back a session which failed. The session is closed and the
+     * {@link Connection} is checked, so a broken {@link Connection} gets
+     * replaced.
+     */
+    public void invalidate(PooledSession session) {
+        active.decrementAndGet();
+        destroy(session);
+        checkConnection(session.generation);
+    }
+
+    /**
+     * Return the shared {@link Connection}, which gets created if needed. The
+     * {@link Connection} must not be closed by the caller.
+     */
+    public Connection getConnection() throws JMSException {
+        synchronized (this) {
+            if (connection != null) {
+                return connection;
+            }
+        }
+        // only one thread connects, the others wait for its connection
+        synchronized (connectLock) {
+            while (true) {
+                final long gen;
+                synchronized (this) {
+                    if (connection != null) {
+                        return connection;
+                    }
+                    gen = generation;
+                }
+                Connection c = connectionFactory.createConnection();
+                try {
+                    try {
+                        c.setExceptionListener(new ExceptionListener() {
+
+                            @Override
+                            public void onException(JMSException e) {
+                                logger.warn("Connection of queue " + queueName + " failed, it will get recreated", e);
+                                resetConnection(gen);
+                            }
+                        });
+                    } catch (JMSException e) {
+                        // some connection factories manage the listener themselves,
+                        // the health check will catch broken connections then
+                        logger.debug("Unable to register ExceptionListener for queue " + queueName, e);
+                    }
+                    c.start();
+                } catch (JMSException e) {
+                    close(c);
+                    throw e;
+                }
+                synchronized (this) {
+                    if (gen == generation) {
+                        connection = c;
+                        return c;
+                    }
+                }
+                // the connection was reset or the pool was disposed while
+                // connecting
+                close(c);
+                if (disposed) {
+                    throw new JMSException("Session pool of queue " + queueName + " is disposed");
+                }
+            }
+        }
+    }
+
+    private PooledSession create(boolean transacted) throws JMSException {
+        // the generation is read first, so a session of a newer connection
+        // is dropped at worst and never one of an older connection kept
+        long gen = generation;
+        Session session;
+        try {
+            session = getConnection().createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+        } catch (JMSException e) {
+            // the connection may be stale, so try once more with a new one
+            logger.info("Unable to create session for queue " + queueName + ", reconnecting", e);
+            resetConnection(gen);
+            gen = generation;
+            session = getConnection().createSession(transacted, transacted ? Session.SESSION_TRANSACTED : Session.AUTO_ACKNOWLEDGE);
+        }
+        created.incrementAndGet();
+        return new PooledSession(session, session.createQueue(queueName), transacted, gen);
+    }
+
+    private void destroy(PooledSession session) {
+        session.close();
+        destroyed.incrementAndGet();
+    }
+
+    private boolean isCurrent(PooledSession session) {
+        return session.generation == generation;
+    }
+
+    /**
+     * Check if the {@link Connection} of the given generation is still usable
+     * and replace it if not
+     */
+    private void checkConnection(long gen) {
+        Connection c;
+        synchronized (this) {
+            if (gen != generation || connection == null) {
+                return;
+            }
+            c = connection;
+        }
+        try {
+            c.createSession(false, Session.AUTO_ACKNOWLEDGE).close();
+        } catch (JMSException e) {
+            logger.warn("Connection of queue " + queueName + " failed the health check, it will get recreated", e);
+            resetConnection(gen);
+        }
+    }
+
+    /**
+     * Drop the {@link Connection} of the given generation. Sessions created by
+     * it are closed once they are seen by the pool again.
+     */
+    private void resetConnection(long gen) {
+        Connection c;
+        synchronized (this) {
+            if (gen != generation) {
+                return;
+            }
+            generation++;
+            connectionFailures.incrementAndGet();
+            c = connection;
+            connection = null;
+        }
+        close(c);
+    }
+
+    private void close(Connection c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Evict idle sessions which timed out or are not valid anymore and check
+     * the {@link Connection}
+     */
+    private void checkHealth() {
+        long now = System.currentTimeMillis();
+        evict(idleSessions, now);
+        evict(idleTransactedSessions, now);
+
+        checkConnection(generation);
+    }
+
+    private void evict(LinkedBlockingDeque<PooledSession> idle, long now) {
+        Iterator<PooledSession> sessions = idle.iterator();
+        while (sessions.hasNext()) {
+            PooledSession session = sessions.next();
+            if (now - session.lastUsed > idleTimeout || !isCurrent(session) || !session.isValid()) {
+                if (idle.remove(session)) {
+                    destroy(session);
+                }
+            }
+        }
+    }
+
+    private LinkedBlockingDeque<PooledSession> getIdle(boolean transacted) {
+        return transacted ? idleTransactedSessions : idleSessions;
+    }
+
+    @Override
+    public int getActiveSessionCount() {
+        return active.get();
+    }
+
+    @Override
+    public int getIdleSessionCount() {
+        return idleSessions.size() + idleTransactedSessions.size();
+    }
+
+    @Override
+    public long getCreatedSessionCount() {
+        return created.get();
+    }
+
+    @Override
+    public long getDestroyedSessionCount() {
+        return destroyed.get();
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowed.get();
+    }
+
+    @Override
+    public long getConnectionFailureCount() {
+        return connectionFailures.get();
+    }
+
+    @Override
+    public void dispose() {
+        disposed = true;
+        healthChecker.shutdownNow();
+        PooledSession session;
+        while ((session = idleSessions.poll()) != null) {
+            destroy(session);
+        }
+        while ((session = idleTransactedSessions.poll()) != null) {
+            destroy(session);
+        }
+        Connection c;
+        synchronized (this) {
+            generation++;
+            c = connection;
+            connection = null;
+        }
+        close(c);
+    }
+
+    /**
+     * A pooled {@link Session} together with its cached
+     * {@link MessageProducer} and {@link MessageConsumer}
+     */
+    public static final class PooledSession {
+        private final Session session;
+        private final Queue queue;
+        private final boolean transacted;
+        private final long generation;
+        private MessageProducer producer;
+        private MessageConsumer consumer;
+        private String consumerSelector;
+        private volatile long lastUsed;
+
+        private PooledSession(Session session, Queue queue, boolean transacted, long generation) {
+            this.session = session;
+            this.queue = queue;
+            this.transacted = transacted;
+            this.generation = generation;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public Queue getQueue() {
+            return queue;
+        }
+
+        public boolean isTransacted() {
+            return transacted;
+        }
+
+        /**
+         * Return the {@link MessageProducer} for the queue of the pool
+         */
+        public MessageProducer getProducer() throws JMSException {
+            if (producer == null) {
+                producer = session.createProducer(queue);
+            }
+            return producer;
+        }
+
+        /**
+         * Return a {@link MessageConsumer} for the queue of the pool which
+         * uses the given selector. The consumer is reused as long as the
+         * selector does not change and the session is not given back.
+         */
+        public MessageConsumer getConsumer(String selector) throws JMSException {
+            if (consumer != null && !(selector == null ? consumerSelector == null : selector.equals(consumerSelector))) {
+                closeConsumer();
+            }
+            if (consumer == null) {
+                consumer = session.createConsumer(queue, selector);
+                consumerSelector = selector;
+            }
+            return consumer;
+        }
+
+        private boolean isValid() {
+            try {
+                // throws an exception once the session is closed
+                session.getTransacted();
+                return true;
+            } catch (JMSException e) {
+                return false;
+            } catch (RuntimeException e) {
+                return false;
+            }
+        }
+
+        private void closeConsumer() {
+            if (consumer != null) {
+                try {
+                    consumer.close();
+                } catch (JMSException e) {
+                    // ignore here
+                }
+                consumer = null;
+                consumerSelector = null;
+            }
+        }
+
+        private void close() {
+            closeConsumer();
+            if (producer != null) {
+                try {
+                    producer.close();
+                } catch (JMSException e) {
+                    // ignore here
+                }
+                producer = null;
+            }
+            try {
+                session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+/**
+ * JMX statistics of a {@link JMSSessionPool}
+ */
+public interface JMSSessionPoolMBean {
+
+    /**
+     * Return the number of sessions which are currently borrowed
+     *
+     * @return active
+     */
+    int getActiveSessionCount();
+
+    /**
+     * Return the number of sessions which are currently idle in the pool
+     *
+     * @return idle
+     */
+    int getIdleSessionCount();
+
+    /**
+     * Return the maximal number of idle sessions of each kind which are kept
+     *
+     * @return maxIdle
+     */
+    int getMaxIdle();
+
+    /**
+     * Return the milliseconds after which an idle session gets closed
+     *
+     * @return idleTimeout
+     */
+    long getIdleTimeout();
+
+    /**
+     * Return the number of sessions which were created
+     *
+     * @return created
+     */
+    long getCreatedSessionCount();
+
+    /**
+     * Return the number of sessions which were closed
+     *
+     * @return destroyed
+     */
+    long getDestroyedSessionCount();
+
+    /**
+     * Return how often a session was borrowed
+     *
+     * @return borrowed
+     */
+    long getBorrowCount();
+
+    /**
+     * Return how often the connection failed and needed to get recreated
+     *
+     * @return failures
+     */
+    long getConnectionFailureCount();
+}
@@ -26,6 +26,13 @@ public interface JMSSupport {
     /** JMS Property which holds the recipient as String */
     final static String JAMES_MAIL_RECIPIENTS = "JAMES_MAIL_RECIPIENTS";
 
+    /**
+     * JMS Property which holds the lower-cased domains of the recipients as
+     * String. Each domain is enclosed by {@link #JAMES_MAIL_SEPARATOR}, so a
+     * domain can be selected by one LIKE expression
+     */
+    final static String JAMES_MAIL_RECIPIENT_DOMAINS = "JAMES_MAIL_RECIPIENT_DOMAINS";
+
     /** JMS Property which holds the sender as String */
     final static String JAMES_MAIL_SENDER = "JAMES_MAIL_SENDER";
 
@@ -41,6 +48,12 @@ public interface JMSSupport {
     /** JMS Property which holds the mail name as String */
     final static String JAMES_MAIL_NAME = "JAMES_MAIL_NAME";
 
+    /**
+     * JMS Property which holds the unique key of the enqueued mail as String.
+     * Unlike the name it differs for every enqueue of a mail
+     */
+    final static String JAMES_QUEUE_KEY = "JAMES_QUEUE_KEY";
+
     /**
      * Separator which is used for separate an array of String values in the JMS
      * Property value
@@ -62,4 +75,7 @@ public interface JMSSupport {
     /** JMS Property which holds next delivery time as long (ms) */
     final static String JAMES_NEXT_DELIVERY = "JAMES_NEXT_DELIVERY";
 
+    /** JMS Property which holds how often the processing of the mail failed as int */
+    final static String JAMES_REDELIVERY_COUNT = "JAMES_REDELIVERY_COUNT";
+
 }
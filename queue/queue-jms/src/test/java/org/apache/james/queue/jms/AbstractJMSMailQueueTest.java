@@ -22,14 +22,22 @@ import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.james.core.MailImpl;
 import org.apache.james.protocols.smtp.MailAddressException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueuePage;
 import org.apache.james.queue.api.ManageableMailQueue;
 import org.apache.james.queue.api.ManageableMailQueue.MailQueueIterator;
+import org.apache.james.queue.api.ManageableMailQueue.Type;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.library.MailQueueMetrics;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -40,11 +48,15 @@ import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.internet.MimeMessage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -75,9 +87,204 @@ public abstract class AbstractJMSMailQueueTest {
         setQueue(createQueue(connectionFactory, QUEUE_NAME));
     }
 
+    @After
+    public void disposeQueue() {
+        getQueue().dispose();
+    }
+
+    @Test
+    public void testSessionsArePooled() throws MessagingException, InterruptedException {
+        final JMSMailQueue queue = getQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.enQueue(createMail());
+            queue.deQueue().done(true);
+        }
+
+        JMSSessionPool pool = queue.getSessionPool();
+        assertEquals(0, pool.getActiveSessionCount());
+        assertEquals(20, pool.getBorrowCount());
+        // one session for enqueue and one for dequeue
+        assertEquals(2, pool.getCreatedSessionCount());
+        assertEquals(2, pool.getIdleSessionCount());
+    }
+
+    @Test
+    public void testMaxIdleSessions() throws Exception {
+        JMSSessionPool pool = getQueue().getSessionPool();
+        pool.setMaxIdle(1);
+        List<JMSSessionPool.PooledSession> sessions = new ArrayList<JMSSessionPool.PooledSession>();
+        for (int i = 0; i < 3; i++) {
+            sessions.add(pool.borrow(true));
+        }
+        for (JMSSessionPool.PooledSession session : sessions) {
+            pool.release(session);
+        }
+        assertEquals(1, pool.getIdleSessionCount());
+        assertEquals(2, pool.getDestroyedSessionCount());
+    }
+
+    @Test
+    public void testBorrowRecoversFromKilledConnection() throws Exception {
+        JMSMailQueue queue = getQueue();
+        queue.enQueue(createMail());
+        queue.deQueue().done(true);
+        JMSSessionPool pool = queue.getSessionPool();
+        assertEquals(2, pool.getIdleSessionCount());
+
+        // the idle sessions die with their connection
+        pool.getConnection().close();
+
+        queue.enQueue(createMail());
+        MailQueueItem item = queue.deQueue();
+        assertNotNull(item);
+        item.done(true);
+        assertEquals(1, pool.getConnectionFailureCount());
+        assertEquals(0, pool.getActiveSessionCount());
+        assertEquals(2, pool.getIdleSessionCount());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final JMSMailQueue queue = getQueue();
+        MailQueueMetrics metrics = new MailQueueMetrics(QUEUE_NAME);
+        queue.setMetricsListener(metrics);
+        Mail mail = createMail();
+        queue.enQueue(mail);
+        assertEquals(1, metrics.getEnqueueLatencyHistogram().getCount());
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals(mail.getName(), item.getMail().getName());
+        item.done(false);
+        assertEquals(1, metrics.getRollbackCount());
+
+        item = queue.deQueue();
+        assertEquals(mail.getName(), item.getMail().getName());
+        item.done(true);
+        assertEquals(2, metrics.getDequeueWaitHistogram().getCount());
+        assertEquals(1, metrics.getRedeliveryCount());
+        assertEquals(1, metrics.getTimeInQueueHistogram().getCount());
+    }
+
+    @Test
+    public void testQuarantine() throws Exception {
+        final JMSMailQueue queue = getQueue();
+        JMSMailQueue quarantine = createQueue(createConnectionFactory(), "quarantine");
+        try {
+            queue.setRedeliveryPolicy(new RedeliveryPolicy(1000, 1000, 1, 1));
+            queue.setQuarantine(quarantine);
+            Mail mail = createMail();
+            queue.enQueue(mail);
+
+            long start = System.currentTimeMillis();
+            queue.deQueue().done(false);
+            List<MailQueueItem> items = queue.deQueue(1, 5, TimeUnit.SECONDS);
+            assertEquals(1, items.size());
+            // the broker may deliver scheduled messages a bit early
+            assertTrue(System.currentTimeMillis() - start >= 500);
+            assertEquals(mail.getName(), items.get(0).getMail().getName());
+
+            // the second failure exceeds the max redeliveries
+            items.get(0).done(false);
+            assertEquals(0, queue.getSize());
+            MailQueueItem item = quarantine.deQueue();
+            assertEquals(mail.getName(), item.getMail().getName());
+            assertEquals(2, item.getMail().getAttribute(RedeliveryMailQueue.REDELIVERY_COUNT));
+            item.done(true);
+        } finally {
+            quarantine.dispose();
+        }
+    }
+
+    @Test
+    public void testFailedQuarantineKeepsMail() throws Exception {
+        JMSMailQueue queue = getQueue();
+        JMSMailQueue quarantine = createQueue(createConnectionFactory(), "quarantine");
+        // a disposed queue fails to enqueue
+        quarantine.dispose();
+        queue.setRedeliveryPolicy(new RedeliveryPolicy(0, 0, 1, 0));
+        queue.setQuarantine(quarantine);
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        queue.deQueue().done(false);
+        assertEquals(1, queue.getSize());
+        List<MailQueueItem> items = queue.deQueue(1, 5, TimeUnit.SECONDS);
+        assertEquals(1, items.size());
+        assertEquals(mail.getName(), items.get(0).getMail().getName());
+        items.get(0).done(true);
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testBatchDeQueue() throws MessagingException, InterruptedException {
+        final JMSMailQueue queue = getQueue();
+        Set<String> names = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            Mail mail = createMail();
+            names.add(mail.getName());
+            queue.enQueue(mail);
+        }
+
+        List<MailQueueItem> items = queue.deQueue(2, 5, TimeUnit.SECONDS);
+        assertFalse(items.isEmpty());
+        assertTrue(items.size() <= 2);
+        // the failed mail needs to get delivered again
+        String failed = items.get(0).getMail().getName();
+        items.get(0).done(false);
+        for (MailQueueItem item : items.subList(1, items.size())) {
+            assertTrue(names.remove(item.getMail().getName()));
+            item.done(true);
+        }
+        assertTrue(names.contains(failed));
+
+        while (!names.isEmpty()) {
+            items = queue.deQueue(10, 5, TimeUnit.SECONDS);
+            assertFalse(items.isEmpty());
+            for (MailQueueItem item : items) {
+                assertTrue(names.remove(item.getMail().getName()));
+                item.done(true);
+            }
+        }
+
+        assertTrue(queue.deQueue(10, 100, TimeUnit.MILLISECONDS).isEmpty());
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getSessionPool().getActiveSessionCount());
+    }
+
+    @Test
+    public void testBatchItemsAreCommittedOneByOne() throws Exception {
+        // like the default configuration, so a pending item does not hold
+        // back prefetched messages
+        ActiveMQConnectionFactory factory = createConnectionFactory();
+        factory.getPrefetchPolicy().setQueuePrefetch(0);
+        JMSMailQueue queue = createQueue(factory, QUEUE_NAME);
+        try {
+            queue.enQueue(createMail());
+            queue.enQueue(createMail());
+
+            List<MailQueueItem> items = queue.deQueue(2, 5, TimeUnit.SECONDS);
+            assertEquals(2, items.size());
+            assertEquals(2, queue.getSessionPool().getActiveSessionCount());
+
+            // the first item is committed while the second one is still processed
+            items.get(0).done(true);
+            assertEquals(1, queue.getSessionPool().getActiveSessionCount());
+            assertEquals(1, queue.getSize());
+
+            items.get(1).done(true);
+            assertEquals(0, queue.getSize());
+            assertEquals(0, queue.getSessionPool().getActiveSessionCount());
+        } finally {
+            queue.dispose();
+        }
+    }
+
     @Test
     public void testFIFO() throws MessagingException, InterruptedException, IOException, MailAddressException {
         final JMSMailQueue queue = getQueue();
+        // let the failed mail get rolled back
+        queue.setRedeliveryPolicy(RedeliveryPolicy.IMMEDIATE);
         // should be empty
         assertEquals(0, queue.getSize());
 
@@ -152,6 +359,34 @@ public abstract class AbstractJMSMailQueueTest {
         assertEquals(0, queue.getSize());
     }
 
+    @Test
+    public void testStatistics() throws MessagingException, InterruptedException {
+        final JMSMailQueue queue = getQueue();
+        assertEquals(0, queue.getSize());
+
+        queue.enQueue(createMail());
+        queue.enQueue(createMail(), 30, TimeUnit.SECONDS);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertEquals(2, queue.getSize());
+        assertEquals(1, queue.getReadyCount());
+        assertEquals(1, queue.getDeferredCount());
+        assertTrue(queue.getTotalBytes() > 0);
+        assertTrue(queue.getOldestAge() >= 0);
+
+        MailQueueItem item = queue.deQueue();
+        item.done(true);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(1, queue.getSize());
+        assertEquals(0, queue.getReadyCount());
+
+        assertEquals(1, queue.clear());
+        assertEquals(0, queue.getSize());
+        assertEquals(0, queue.getDeferredCount());
+        assertEquals(0, queue.getTotalBytes());
+        assertEquals(0, queue.getOldestAge());
+    }
+
     @Test
     public void testFlush() throws MessagingException, InterruptedException, IOException, MailAddressException {
         final JMSMailQueue queue = getQueue();
@@ -196,6 +431,51 @@ public abstract class AbstractJMSMailQueueTest {
         assertTrue(dequeueTime < 30 * 1000);
     }
 
+    @Test
+    public void testStatisticsOfMailEnqueuedAgain() throws MessagingException, InterruptedException {
+        final JMSMailQueue queue = getQueue();
+        assertEquals(0, queue.getSize());
+
+        MailImpl mail = createMail();
+        mail.setName("retry");
+        queue.enQueue(mail);
+        MailQueueItem item = queue.deQueue();
+
+        // like a RemoteDelivery retry the mail is enqueued again before the
+        // dequeue gets committed
+        queue.enQueue(item.getMail(), 30, TimeUnit.SECONDS);
+        item.done(true);
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        assertEquals(1, queue.getSize());
+        assertEquals(1, queue.getDeferredCount());
+        assertEquals(1, queue.clear());
+        assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void testStatisticsOfSharedQueue() throws MessagingException, InterruptedException {
+        final JMSMailQueue queue = getQueue();
+        assertEquals(0, queue.getSize());
+
+        JMSMailQueue other = createQueue(createConnectionFactory(), QUEUE_NAME);
+        try {
+            other.enQueue(createMail());
+            other.enQueue(createMail());
+            TimeUnit.MILLISECONDS.sleep(200);
+
+            queue.setStatisticsReloadInterval(0);
+            assertEquals(2, queue.getSize());
+
+            other.deQueue().done(true);
+            TimeUnit.MILLISECONDS.sleep(200);
+            assertEquals(1, queue.getSize());
+        } finally {
+            queue.clear();
+            other.dispose();
+        }
+    }
+
     @Test
     public void testRemoveWithRecipient() throws MessagingException, InterruptedException, MailAddressException {
         final JMSMailQueue queue = getQueue();
@@ -278,6 +558,46 @@ public abstract class AbstractJMSMailQueueTest {
 
     }
 
+    @Test
+    public void testBrowsePageWithFilter() throws MessagingException, InterruptedException, MailAddressException {
+        final JMSMailQueue queue = getQueue();
+
+        Mail mail = createMail();
+        mail.setName("page1");
+        mail.setRecipients(Arrays.asList(new MailAddress("first_rcpt@me"), new MailAddress("o'neil@example.org")));
+        Mail mail2 = createMail();
+        mail2.setName("page2");
+        mail2.setRecipients(Arrays.asList(new MailAddress("firstxrcpt@me"), new MailAddress("Someone@EXAMPLE.ORG")));
+        Mail mail3 = createMail();
+        mail3.setName("page3");
+        mail3.setRecipients(Arrays.asList(new MailAddress("test@test"), new MailAddress("first_rcpt@me")));
+
+        queue.enQueue(mail);
+        queue.enQueue(mail2);
+        queue.enQueue(mail3);
+
+        TimeUnit.MILLISECONDS.sleep(200);
+
+        MailQueuePage page = queue.browse(new MailQueueFilter(Type.Recipient, "first_rcpt@me"), null, 1);
+        assertEquals(1, page.getItems().size());
+        assertEquals(mail.getName(), page.getItems().get(0).getMail().getName());
+        page = queue.browse(new MailQueueFilter(Type.Recipient, "first_rcpt@me"), page.getNextCursor(), 1);
+        assertEquals(1, page.getItems().size());
+        assertEquals(mail3.getName(), page.getItems().get(0).getMail().getName());
+        assertNull(page.getNextCursor());
+
+        // the domains are compared ignoring the case
+        assertEquals(2, queue.browse(new MailQueueFilter(Type.RecipientDomain, "Example.org"), null, 10).getItems().size());
+        assertEquals(0, queue.browse(new MailQueueFilter(Type.RecipientDomain, "ample.org"), null, 10).getItems().size());
+        assertEquals(1, queue.remove(new MailQueueFilter(Type.Recipient, "o'neil@example.org").and(Type.Sender, "sender@senderdomain")));
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(2, queue.getSize());
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, "page2"));
+        assertEquals(1, queue.remove(ManageableMailQueue.Type.Name, "page3"));
+        assertEquals(0, queue.getSize());
+    }
+
     protected MailImpl createMail() throws MessagingException {
         MailImpl mail = new MailImpl();
         mail.setName("" + System.currentTimeMillis());
@@ -0,0 +1,694 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.MessagingException;
+import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.james.core.MailImpl;
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.InstrumentedMailQueue;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFilter;
+import org.apache.james.queue.api.MailQueueMetricsListener;
+import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.api.PriorityMailQueue;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.apache.james.queue.library.CompositeMailQueueMetricsListener;
+import org.apache.james.queue.library.DelayScheduler;
+import org.apache.james.queue.library.MailQueueStatistics;
+import org.apache.james.queue.library.TimingWheel.ExpirationListener;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+import com.google.common.io.Closeables;
+
+/**
+ * {@link ManageableMailQueue} implementation which keeps the {@link Mail}'s in
+ * memory. Nothing survives a restart, so this queue is meant for setups where
+ * the durability is provided upstream, and for tests and benchmarks.
+ * <p/>
+ * The envelope of a {@link Mail} is copied on enqueue without serializing it,
+ * the values of its attributes are shared. The message is written once to a
+ * byte array. When the messages of the queue would exceed the heap budget,
+ * the message is written to a file in the spill directory instead.
+ * <p/>
+ * The {@link Mail}'s which are ready for dequeue are kept in one
+ * {@link RingBuffer} per {@link #MAIL_PRIORITY}. The lanes are served by
+ * strict priority, so a {@link Mail} of a lower priority is only dequeued when
+ * no {@link Mail} of a higher priority is ready.
+ * <p/>
+ * Failed {@link Mail}'s are delayed according to the {@link RedeliveryPolicy}.
+ */
+public class MemoryMailQueue implements PriorityMailQueue, InstrumentedMailQueue, RedeliveryMailQueue, Disposable {
+
+    /** The default heap budget of 64 MB */
+    public final static long DEFAULT_HEAP_BUDGET = 64 * 1024 * 1024;
+
+    private final static int LANES = HIGH_PRIORITY + 1;
+    private final static String SPILL_EXTENSION = ".msg";
+    private final static AtomicLong COUNTER = new AtomicLong();
+
+    private final String queueName;
+    private final long heapBudget;
+    private final File spillDir;
+    private final Logger log;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final RingBuffer<MemoryItem>[] lanes;
+    private final Map<String, MemoryItem> items = new LinkedHashMap<String, MemoryItem>();
+    private int ready;
+    private final MailQueueStatistics statistics = new MailQueueStatistics();
+    private final DelayScheduler delayScheduler;
+    private final AtomicLong heapBytes = new AtomicLong();
+    private volatile MailQueueMetricsListener metrics = new CompositeMailQueueMetricsListener();
+    private volatile RedeliveryPolicy redeliveryPolicy = RedeliveryPolicy.DEFAULT;
+    private volatile MailQueue quarantine;
+
+    /**
+     * @param queueName
+     * @param heapBudget
+     *            the max size in bytes of the messages which are kept on the
+     *            heap
+     * @param spillDir
+     *            the directory which receives the messages which exceed the
+     *            heap budget. Files which are left from an earlier run get
+     *            deleted.
+     * @param log
+     */
+    @SuppressWarnings("unchecked")
+    public MemoryMailQueue(String queueName, long heapBudget, File spillDir, Logger log) throws IOException {
+        this.queueName = queueName;
+        this.heapBudget = heapBudget;
+        this.spillDir = spillDir;
+        this.log = log;
+        this.lanes = new RingBuffer[LANES];
+        for (int i = 0; i < LANES; i++) {
+            lanes[i] = new RingBuffer<MemoryItem>();
+        }
+        FileUtils.forceMkdir(spillDir);
+        FileUtils.cleanDirectory(spillDir);
+        this.delayScheduler = new DelayScheduler("MemoryMailQueue-" + queueName, new ExpirationListener() {
+
+            @Override
+            public void expired(String key, long deadline) {
+                lock.lock();
+                try {
+                    // the mail may have been removed, flushed or delayed
+                    // again in the meantime
+                    MemoryItem item = items.get(key);
+                    if (item != null && item.state == State.DELAYED && item.nextDelivery <= deadline) {
+                        makeReady(item);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+        long start = System.nanoTime();
+        long id = COUNTER.incrementAndGet();
+        String key = mail.getName() + "-" + id;
+        long nextDelivery = delay > 0 ? System.currentTimeMillis() + unit.toMillis(delay) : 0;
+
+        MemoryItem item;
+        try {
+            item = store(key, id, mail, nextDelivery);
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to enqueue mail", e);
+        }
+
+        statistics.add(key, item.size, item.arrival, nextDelivery);
+        lock.lock();
+        try {
+            items.put(key, item);
+            if (nextDelivery == 0) {
+                makeReady(item);
+            } else {
+                item.state = State.DELAYED;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (nextDelivery != 0) {
+            delayScheduler.schedule(key, nextDelivery);
+        }
+        metrics.enqueued(queueName, System.nanoTime() - start);
+    }
+
+    @Override
+    public void enQueue(Mail mail) throws MailQueueException {
+        enQueue(mail, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Copy the envelope and write the message to the heap or, if the heap
+     * budget is used up, to the spill directory
+     */
+    private MemoryItem store(String key, long id, Mail mail, long nextDelivery) throws IOException, MessagingException {
+        File file = new File(spillDir, id + SPILL_EXTENSION);
+        int threshold = (int) Math.max(0, Math.min(Integer.MAX_VALUE, heapBudget - heapBytes.get()));
+        DeferredFileOutputStream out = new DeferredFileOutputStream(threshold, file);
+        try {
+            mail.getMessage().writeTo(out);
+        } catch (IOException e) {
+            Closeables.closeQuietly(out);
+            FileUtils.deleteQuietly(file);
+            throw e;
+        } catch (MessagingException e) {
+            Closeables.closeQuietly(out);
+            FileUtils.deleteQuietly(file);
+            throw e;
+        }
+        out.close();
+
+        byte[] data = null;
+        if (out.isInMemory()) {
+            data = out.getData();
+            // concurrent enqueues may exceed the budget by one message each
+            heapBytes.addAndGet(data.length);
+        } else {
+            log.debug("Heap budget of queue " + queueName + " is used up, spilled mail " + mail.getName() + " to " + file);
+        }
+        return new MemoryItem(key, copyEnvelope(mail), data, data == null ? file : null, out.getByteCount(), priority(mail), System.currentTimeMillis(), nextDelivery);
+    }
+
+    /**
+     * Release the message of the given item
+     */
+    private void release(MemoryItem item) {
+        if (item.data != null) {
+            heapBytes.addAndGet(-item.data.length);
+        } else {
+            FileUtils.deleteQuietly(item.file);
+        }
+    }
+
+    /**
+     * Copy the envelope of the given {@link Mail}, without its message. The
+     * values of the attributes are not copied.
+     */
+    private static MailImpl copyEnvelope(Mail mail) {
+        MailImpl copy = new MailImpl(mail.getName(), mail.getSender(), mail.getRecipients());
+        copy.setState(mail.getState());
+        copy.setErrorMessage(mail.getErrorMessage());
+        copy.setRemoteHost(mail.getRemoteHost());
+        copy.setRemoteAddr(mail.getRemoteAddr());
+        copy.setLastUpdated(mail.getLastUpdated());
+        HashMap<String, Object> attributes = new HashMap<String, Object>();
+        Iterator<?> names = mail.getAttributeNames();
+        while (names.hasNext()) {
+            String name = (String) names.next();
+            attributes.put(name, mail.getAttribute(name));
+        }
+        copy.setAttributesRaw(attributes);
+        return copy;
+    }
+
+    private static int priority(Mail mail) {
+        Object priority = mail.getAttribute(MAIL_PRIORITY);
+        if (priority instanceof Integer) {
+            return Math.max(LOW_PRIORITY, Math.min(HIGH_PRIORITY, (Integer) priority));
+        }
+        return NORMAL_PRIORITY;
+    }
+
+    /**
+     * Add the item to the tail of its lane. The lock must be held.
+     */
+    private void makeReady(MemoryItem item) {
+        item.state = State.READY;
+        item.nextDelivery = 0;
+        lanes[item.priority].add(item);
+        ready++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Take the item at the head of the highest priority lane which is not
+     * empty. The lock must be held and an item must be ready.
+     */
+    private MemoryItem next() {
+        for (int i = LANES - 1; i >= 0; i--) {
+            MemoryItem item = lanes[i].poll();
+            if (item != null) {
+                item.state = State.IN_FLIGHT;
+                ready--;
+                if (ready > 0) {
+                    notEmpty.signal();
+                }
+                return item;
+            }
+        }
+        throw new IllegalStateException("No mail is ready");
+    }
+
+    @Override
+    public MailQueueItem deQueue() throws MailQueueException {
+        long start = System.nanoTime();
+        MemoryItem item;
+        try {
+            lock.lockInterruptibly();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+        try {
+            while (ready == 0) {
+                notEmpty.await();
+            }
+            item = next();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MailQueueException("Unable to dequeue", e);
+        } finally {
+            lock.unlock();
+        }
+        return load(item, start);
+    }
+
+    /**
+     * Create the {@link MailQueueItem} of the given item
+     * 
+     * @param start
+     *            the time in nanoseconds the consumer started to wait
+     */
+    private MailQueueItem load(final MemoryItem item, long start) throws MailQueueException {
+        final Mail mail = copyEnvelope(item.envelope);
+        try {
+            mail.setMessage(new MimeMessageCopyOnWriteProxy(new MemoryMimeMessageSource(item)));
+        } catch (IOException e) {
+            requeue(item);
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            requeue(item);
+            throw new MailQueueException("Unable to dequeue", e);
+        }
+        metrics.dequeued(queueName, System.nanoTime() - start, item.failures > 0);
+        return new MailQueueItem() {
+
+            @Override
+            public Mail getMail() {
+                return mail;
+            }
+
+            @Override
+            public void done(boolean success) throws MailQueueException {
+                if (!success) {
+                    int failures = ++item.failures;
+                    if (quarantine != null && redeliveryPolicy.isExhausted(failures)) {
+                        quarantine(item, mail, failures);
+                    } else {
+                        redeliver(item, failures);
+                    }
+                } else {
+                    remove(item);
+                }
+                metrics.done(queueName, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - item.arrival), success);
+
+                LifecycleUtil.dispose(mail);
+            }
+        };
+    }
+
+    /**
+     * Put the item which could not be handed out back to the head of its lane
+     */
+    private void requeue(MemoryItem item) {
+        lock.lock();
+        try {
+            if (items.get(item.key) == item) {
+                item.state = State.READY;
+                lanes[item.priority].addFirst(item);
+                ready++;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the given item from the queue and release its message
+     */
+    private void remove(MemoryItem item) {
+        lock.lock();
+        try {
+            if (items.get(item.key) != item) {
+                return;
+            }
+            items.remove(item.key);
+            if (item.state == State.READY && lanes[item.priority].remove(item)) {
+                ready--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        statistics.remove(item.key);
+        release(item);
+    }
+
+    /**
+     * Make the failed item ready again once the delay of the
+     * {@link RedeliveryPolicy} passed
+     */
+    private void redeliver(MemoryItem item, int failures) {
+        long delay = redeliveryPolicy.getDelay(failures);
+        long nextDelivery = System.currentTimeMillis() + delay;
+        lock.lock();
+        try {
+            // the mail may have been removed in the meantime
+            if (items.get(item.key) != item) {
+                return;
+            }
+            if (delay <= 0) {
+                makeReady(item);
+                return;
+            }
+            item.state = State.DELAYED;
+            item.nextDelivery = nextDelivery;
+        } finally {
+            lock.unlock();
+        }
+        statistics.add(item.key, item.size, item.arrival, nextDelivery);
+        delayScheduler.schedule(item.key, nextDelivery);
+    }
+
+    /**
+     * Move the failed item to the quarantine queue. If this fails the item
+     * gets redelivered.
+     */
+    private void quarantine(MemoryItem item, Mail mail, int failures) {
+        try {
+            mail.setAttribute(REDELIVERY_COUNT, failures);
+            quarantine.enQueue(mail);
+        } catch (MailQueueException e) {
+            log.error("Unable to move mail " + mail.getName() + " of queue " + queueName + " to quarantine", e);
+            redeliver(item, failures);
+            return;
+        }
+        log.warn("Moved mail " + mail.getName() + " of queue " + queueName + " to quarantine after " + failures + " failures");
+        remove(item);
+        metrics.quarantined(queueName, failures);
+    }
+
+    /**
+     * Return the size in bytes of the messages which are kept on the heap
+     * 
+     * @return bytes
+     */
+    public long getHeapBytes() {
+        return heapBytes.get();
+    }
+
+    @Override
+    public void setMetricsListener(MailQueueMetricsListener listener) {
+        this.metrics = listener;
+    }
+
+    @Override
+    public void setRedeliveryPolicy(RedeliveryPolicy policy) {
+        this.redeliveryPolicy = policy;
+    }
+
+    @Override
+    public void setQuarantine(MailQueue quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    @Override
+    public long getSize() throws MailQueueException {
+        return statistics.getSize();
+    }
+
+    @Override
+    public long getReadyCount() throws MailQueueException {
+        return statistics.getReadyCount();
+    }
+
+    @Override
+    public long getReadyCount(int priority) throws MailQueueException {
+        lock.lock();
+        try {
+            return lanes[Math.max(LOW_PRIORITY, Math.min(HIGH_PRIORITY, priority))].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getDeferredCount() throws MailQueueException {
+        return statistics.getDeferredCount();
+    }
+
+    @Override
+    public long getTotalBytes() throws MailQueueException {
+        return statistics.getTotalBytes();
+    }
+
+    @Override
+    public long getOldestAge() throws MailQueueException {
+        return statistics.getOldestAge();
+    }
+
+    @Override
+    public long flush() throws MailQueueException {
+        statistics.flush();
+        long count = 0;
+        lock.lock();
+        try {
+            for (MemoryItem item : items.values()) {
+                if (item.state == State.DELAYED) {
+                    makeReady(item);
+                    count++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    @Override
+    public long clear() throws MailQueueException {
+        List<MemoryItem> removed;
+        lock.lock();
+        try {
+            removed = new ArrayList<MemoryItem>(items.values());
+            items.clear();
+            for (RingBuffer<MemoryItem> lane : lanes) {
+                lane.clear();
+            }
+            ready = 0;
+        } finally {
+            lock.unlock();
+        }
+        for (MemoryItem item : removed) {
+            statistics.remove(item.key);
+            release(item);
+        }
+        return removed.size();
+    }
+
+    @Override
+    public long remove(Type type, String value) throws MailQueueException {
+        MailQueueFilter filter = new MailQueueFilter(type, value);
+        long count = 0;
+        for (MemoryItem item : snapshot()) {
+            if (filter.matches(item.envelope)) {
+                remove(item);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Return the items of the queue in the order of their enqueue
+     */
+    private List<MemoryItem> snapshot() {
+        lock.lock();
+        try {
+            return new ArrayList<MemoryItem>(items.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MailQueueIterator browse() throws MailQueueException {
+        final Iterator<MemoryItem> snapshot = snapshot().iterator();
+        return new MailQueueIterator() {
+
+            @Override
+            public boolean hasNext() {
+                return snapshot.hasNext();
+            }
+
+            @Override
+            public MailQueueItemView next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final MemoryItem item = snapshot.next();
+                final Mail mail = copyEnvelope(item.envelope);
+                final long nextDelivery = item.nextDelivery;
+                return new MailQueueItemView() {
+
+                    @Override
+                    public long getNextDelivery() {
+                        return nextDelivery > 0 ? nextDelivery : -1;
+                    }
+
+                    @Override
+                    public Mail getMail() {
+                        return mail;
+                    }
+                };
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Read-only");
+            }
+
+            @Override
+            public void close() {
+                // do nothing
+            }
+        };
+    }
+
+    @Override
+    public void dispose() {
+        delayScheduler.dispose();
+        try {
+            clear();
+        } catch (MailQueueException e) {
+            log.warn("Unable to clear queue " + queueName, e);
+        }
+    }
+
+    private enum State {
+        READY, DELAYED, IN_FLIGHT
+    }
+
+    /**
+     * A queued {@link Mail}. The state and the next delivery are guarded by
+     * the lock of the queue.
+     */
+    private final static class MemoryItem {
+        private final String key;
+        private final MailImpl envelope;
+        private final byte[] data;
+        private final File file;
+        private final long size;
+        private final int priority;
+        private final long arrival;
+        private long nextDelivery;
+        private State state;
+        // only changed by the consumer which holds the mail
+        private volatile int failures;
+
+        public MemoryItem(String key, MailImpl envelope, byte[] data, File file, long size, int priority, long arrival, long nextDelivery) {
+            this.key = key;
+            this.envelope = envelope;
+            this.data = data;
+            this.file = file;
+            this.size = size;
+            this.priority = priority;
+            this.arrival = arrival;
+            this.nextDelivery = nextDelivery;
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message of a
+     * {@link MemoryItem} from the heap or from its spill file
+     */
+    private final static class MemoryMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final String sourceId;
+        private final byte[] data;
+        private final long size;
+        private SharedFileInputStream in;
+
+        public MemoryMimeMessageSource(MemoryItem item) throws IOException {
+            this.sourceId = item.key;
+            this.data = item.data;
+            this.size = item.size;
+            if (data == null) {
+                // open the file right away, so it can be read even if the
+                // mail gets removed from the queue
+                this.in = new SharedFileInputStream(item.file);
+            }
+        }
+
+        @Override
+        public String getSourceId() {
+            return sourceId;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (data != null) {
+                return new SharedByteArrayInputStream(data);
+            }
+            return in.newStream(0, -1);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return size;
+        }
+
+        @Override
+        public void dispose() {
+            Closeables.closeQuietly(in);
+            in = null;
+        }
+    }
+}
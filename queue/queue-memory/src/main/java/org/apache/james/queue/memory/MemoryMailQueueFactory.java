@@ -0,0 +1,68 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.annotation.Resource;
+import javax.inject.Inject;
+
+import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.queue.library.AbstractMailQueueFactory;
+
+/**
+ * {@link MailQueueFactory} implementation which returns {@link MemoryMailQueue}
+ * instances
+ */
+public class MemoryMailQueueFactory extends AbstractMailQueueFactory {
+
+    private FileSystem fs;
+    private long heapBudget = MemoryMailQueue.DEFAULT_HEAP_BUDGET;
+
+    @Inject
+    @Resource
+    public void setFileSystem(FileSystem fs) {
+        this.fs = fs;
+    }
+
+    /**
+     * Set the max size in bytes of the messages a queue keeps on the heap.
+     * Further messages are written to the spill directory of the queue until
+     * the heap is freed again.
+     * <p/>
+     * The default is 64 MB
+     * 
+     * @param heapBudget
+     */
+    public void setHeapBudget(long heapBudget) {
+        this.heapBudget = heapBudget;
+    }
+
+    @Override
+    protected MailQueue createMailQueue(String name) {
+        try {
+            return new MemoryMailQueue(name, heapBudget, new File(fs.getFile("file://var/store/queue-spill"), name), log);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to access spill directory of queue " + name, e);
+        }
+    }
+}
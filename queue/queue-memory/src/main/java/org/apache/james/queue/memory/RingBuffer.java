@@ -0,0 +1,144 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import java.util.NoSuchElementException;
+
+/**
+ * FIFO of elements which is backed by a single array used as a ring. The
+ * array grows when it is full but never shrinks, so a queue which runs at a
+ * steady size does not allocate anything on add and poll.
+ * <p/>
+ * This class is not thread-safe, the caller needs to take care of the locking.
+ */
+class RingBuffer<E> {
+
+    private final static int DEFAULT_CAPACITY = 16;
+
+    private Object[] elements;
+    private int head;
+    private int size;
+
+    public RingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RingBuffer(int capacity) {
+        elements = new Object[Math.max(1, capacity)];
+    }
+
+    /**
+     * Add the element to the tail
+     */
+    public void add(E element) {
+        ensureCapacity();
+        elements[index(size)] = element;
+        size++;
+    }
+
+    /**
+     * Add the element to the head
+     */
+    public void addFirst(E element) {
+        ensureCapacity();
+        head = index(elements.length - 1);
+        elements[head] = element;
+        size++;
+    }
+
+    /**
+     * Remove and return the element at the head
+     *
+     * @return element or <code>null</code> if empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        if (size == 0) {
+            return null;
+        }
+        E element = (E) elements[head];
+        elements[head] = null;
+        head = index(1);
+        size--;
+        return element;
+    }
+
+    /**
+     * Return the element at the given position, counted from the head
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+        if (i < 0 || i >= size) {
+            throw new NoSuchElementException("No element at " + i);
+        }
+        return (E) elements[index(i)];
+    }
+
+    /**
+     * Remove the first occurrence of the given element, closing the gap by
+     * moving the following elements
+     *
+     * @return <code>true</code> if the element was found
+     */
+    public boolean remove(Object element) {
+        for (int i = 0; i < size; i++) {
+            if (elements[index(i)] == element) {
+                for (int j = i + 1; j < size; j++) {
+                    elements[index(j - 1)] = elements[index(j)];
+                }
+                elements[index(size - 1)] = null;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            elements[index(i)] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int index(int i) {
+        return (head + i) % elements.length;
+    }
+
+    private void ensureCapacity() {
+        if (size < elements.length) {
+            return;
+        }
+        Object[] grown = new Object[elements.length * 2];
+        for (int i = 0; i < size; i++) {
+            grown[i] = elements[index(i)];
+        }
+        elements = grown;
+        head = 0;
+    }
+}
@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.james.queue.api.AbstractMailQueueTest;
+import org.apache.james.queue.api.MailPrioritySupport;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.api.RedeliveryMailQueue;
+import org.apache.james.queue.api.RedeliveryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class MemoryMailQueueTest extends AbstractMailQueueTest<MemoryMailQueue> {
+
+    private final Logger log = LoggerFactory.getLogger(MemoryMailQueueTest.class);
+    private File spillDir;
+
+    @Before
+    public void setUp() throws Exception {
+        spillDir = new File("target/memory-queue-test-" + System.nanoTime());
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+        FileUtils.deleteDirectory(spillDir);
+    }
+
+    @Override
+    protected MemoryMailQueue createQueue() throws Exception {
+        return new MemoryMailQueue(QUEUE_NAME, MemoryMailQueue.DEFAULT_HEAP_BUDGET, spillDir, log);
+    }
+
+    @Test
+    public void testHeapBytes() throws Exception {
+        queue.enQueue(createMail("mail1"));
+        queue.enQueue(createMail("mail2"));
+        assertTrue(queue.getHeapBytes() > 0);
+        assertEquals(2, queue.getReadyCount(MailPrioritySupport.NORMAL_PRIORITY));
+
+        queue.deQueue().done(true);
+        assertTrue(queue.getHeapBytes() > 0);
+        assertEquals(1, queue.clear());
+        assertEquals(0, queue.getReadyCount(MailPrioritySupport.NORMAL_PRIORITY));
+        assertEquals(0, queue.getHeapBytes());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        queue.dispose();
+        queue = new MemoryMailQueue(QUEUE_NAME, 1, spillDir, log);
+        queue.enQueue(createMail("mail1"));
+        assertEquals(0, queue.getHeapBytes());
+        assertEquals(1, spillDir.list().length);
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("body of mail1", item.getMail().getMessage().getContent());
+        item.done(true);
+        assertEquals(0, spillDir.list().length);
+    }
+
+    @Test
+    public void testRedeliveryAndQuarantine() throws Exception {
+        MemoryMailQueue quarantine = new MemoryMailQueue("quarantine", MemoryMailQueue.DEFAULT_HEAP_BUDGET, new File(spillDir, "quarantine"), log);
+        try {
+            queue.setQuarantine(quarantine);
+            queue.setRedeliveryPolicy(new RedeliveryPolicy(100, 100, 1, 1));
+            queue.enQueue(createMail("mail1"));
+
+            queue.deQueue().done(false);
+            assertEquals(1, queue.getDeferredCount());
+            long start = System.currentTimeMillis();
+            MailQueueItem item = queue.deQueue();
+            assertTrue(System.currentTimeMillis() - start >= 50);
+            item.done(false);
+            assertEquals(0, queue.getSize());
+
+            item = quarantine.deQueue();
+            assertEquals("mail1", item.getMail().getName());
+            assertEquals(2, item.getMail().getAttribute(RedeliveryMailQueue.REDELIVERY_COUNT));
+            item.done(true);
+        } finally {
+            quarantine.dispose();
+        }
+    }
+}
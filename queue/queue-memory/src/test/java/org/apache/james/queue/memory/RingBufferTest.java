@@ -0,0 +1,86 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void testFIFO() {
+        RingBuffer<String> ring = new RingBuffer<String>(2);
+        for (int i = 0; i < 10; i++) {
+            ring.add("e" + i);
+        }
+        assertEquals(10, ring.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("e" + i, ring.poll());
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void testWrapAround() {
+        RingBuffer<String> ring = new RingBuffer<String>(4);
+        ring.add("a");
+        ring.add("b");
+        ring.add("c");
+        assertEquals("a", ring.poll());
+        assertEquals("b", ring.poll());
+        ring.add("d");
+        ring.add("e");
+        ring.addFirst("b");
+        // full and wrapped, so this grows the array
+        ring.add("f");
+        assertEquals(5, ring.size());
+        for (String expected : new String[] { "b", "c", "d", "e", "f" }) {
+            assertEquals(expected, ring.poll());
+        }
+    }
+
+    @Test
+    public void testRemove() {
+        RingBuffer<String> ring = new RingBuffer<String>(4);
+        String a = "a";
+        String b = "b";
+        String c = "c";
+        ring.poll();
+        ring.add("x");
+        ring.poll();
+        ring.add(a);
+        ring.add(b);
+        ring.add(c);
+        assertTrue(ring.remove(b));
+        assertFalse(ring.remove(b));
+        assertEquals(2, ring.size());
+        assertEquals(a, ring.get(0));
+        assertEquals(c, ring.get(1));
+
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        ring.add(a);
+        assertEquals(a, ring.poll());
+    }
+}